@@ -0,0 +1,90 @@
+package com.adobe.http.request;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * @author rbajaj
+ * Parsing of one request head as it arrives in the connection's read
+ * buffer, for a bare client and for a browser sending a full header set.
+ * The parser and request are reused like on a keep-alive connection.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestParserBenchmark {
+
+	private static final String CURL = "GET /index.html HTTP/1.1\r\n"
+			+ "Host: localhost:8080\r\n"
+			+ "User-Agent: curl/8.4.0\r\n"
+			+ "Accept: */*\r\n"
+			+ "\r\n";
+
+	private static final String BROWSER = "GET /static/css/site.min.css?v=20240101 HTTP/1.1\r\n"
+			+ "Host: www.example.com\r\n"
+			+ "Connection: keep-alive\r\n"
+			+ "sec-ch-ua: \"Chromium\";v=\"124\", \"Google Chrome\";v=\"124\", \"Not-A.Brand\";v=\"99\"\r\n"
+			+ "sec-ch-ua-mobile: ?0\r\n"
+			+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/124.0.0.0 Safari/537.36\r\n"
+			+ "sec-ch-ua-platform: \"Linux\"\r\n"
+			+ "Accept: text/css,*/*;q=0.1\r\n"
+			+ "Sec-Fetch-Site: same-origin\r\n"
+			+ "Sec-Fetch-Mode: no-cors\r\n"
+			+ "Sec-Fetch-Dest: style\r\n"
+			+ "Referer: https://www.example.com/\r\n"
+			+ "Accept-Encoding: gzip, deflate, br, zstd\r\n"
+			+ "Accept-Language: en-US,en;q=0.9,de;q=0.8\r\n"
+			+ "Cookie: session=5f2b1c9e0a7d4e3f8b6a; theme=dark; consent=1\r\n"
+			+ "If-None-Match: \"18c2f1a9e40-1f4-gzip\"\r\n"
+			+ "If-Modified-Since: Tue, 02 Jan 2024 10:00:00 GMT\r\n"
+			+ "\r\n";
+
+	@Param({"curl", "browser"})
+	public String headers;
+
+	private final HttpRequestParser parser = new HttpRequestParser();
+	private final HttpRequest request = new HttpRequest();
+	private ByteBuffer head;
+
+	@Setup
+	public void setUp()
+	{
+		String text = "curl".equals(headers) ? CURL : BROWSER;
+		head = ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	@Benchmark
+	public boolean parse() throws HttpParseException
+	{
+		head.rewind();
+		return parser.parse(head, request);
+	}
+
+	/**
+	 * Parse plus the header lookups every GET makes
+	 */
+	@Benchmark
+	public Object parseAndServeLookups() throws HttpParseException
+	{
+		head.rewind();
+		parser.parse(head, request);
+		request.getHeader(HttpHeader.HOST);
+		return request.acceptedEncoding();
+	}
+}
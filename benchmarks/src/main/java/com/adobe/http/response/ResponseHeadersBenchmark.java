@@ -0,0 +1,110 @@
+package com.adobe.http.response;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * @author rbajaj
+ * Encoding of a 200 header block and the Content-Type lookup behind it.
+ * The channel only counts bytes, so nothing but the encoding is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseHeadersBenchmark {
+
+	@Param({"index.html", "photo.jpeg", "archive.unknown"})
+	public String name;
+
+	private final CountingChannel channel = new CountingChannel();
+	private final HttpResponse response = new HttpResponse(channel, true);
+	private final Validators validators = new Validators(1700000000000L, 48213, null);
+	private File file;
+
+	@Setup
+	public void setUp()
+	{
+		file = new File(name);
+	}
+
+	@Benchmark
+	public long sendHeaders()
+	{
+		response.reset(true);
+		response.sendHeaders(file, 48213);
+		return channel.bytes;
+	}
+
+	/**
+	 * Header block with ETag, Last-Modified, Content-Encoding and Vary, as for a compressed variant
+	 */
+	@Benchmark
+	public long sendHeadersWithValidators()
+	{
+		response.reset(true);
+		response.setValidators(validators);
+		response.sendHeaders(file, 9157, ContentEncoding.GZIP, true);
+		return channel.bytes;
+	}
+
+	@Benchmark
+	public byte[] contentType()
+	{
+		return ContentType.of(name).headerLine();
+	}
+
+	/**
+	 * Response channel that drops what it is given
+	 */
+	static final class CountingChannel implements ResponseChannel {
+		long bytes = 0;
+
+		public void write(byte[] b, int off, int len) {
+			bytes += len;
+		}
+
+		public void write(ByteBuffer src) {
+			bytes += src.remaining();
+			src.position(src.limit());
+		}
+
+		public void write(ByteBuffer src, Closeable release) throws IOException {
+			write(src);
+			release.close();
+		}
+
+		public void transferFile(FileChannel file, long position, long count) throws IOException {
+			bytes += count;
+			file.close();
+		}
+
+		public void flush() {
+		}
+
+		public boolean drain() {
+			return true;
+		}
+
+		public void close() {
+		}
+	}
+}
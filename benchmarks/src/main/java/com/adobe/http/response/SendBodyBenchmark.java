@@ -0,0 +1,112 @@
+package com.adobe.http.response;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import com.adobe.connection.OutboundBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * @author rbajaj
+ * Headers and body of a file response written to a loopback socket whose
+ * other end a background thread drains, the way a pool thread serves a
+ * file that is not cached. Small files are copied next to the headers,
+ * larger ones go out with transferTo.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SendBodyBenchmark {
+
+	@Param({"1024", "65536", "1048576", "104857600"})
+	public int size;
+
+	private File file;
+	private ServerSocketChannel server;
+	private SocketChannel client;
+	private Thread drainer;
+	private OutboundBuffer outbound;
+	private HttpResponse response;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		file = File.createTempFile("body", ".bin");
+		file.deleteOnExit();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			byte[] block = new byte[64 * 1024];
+			for (int i = 0; i < block.length; i++) {
+				block[i] = (byte) ('a' + i % 26);
+			}
+			for (long written = 0; written < size; written += block.length) {
+				raf.write(block, 0, (int) Math.min(block.length, size - written));
+			}
+		} finally {
+			raf.close();
+		}
+
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("127.0.0.1", 0));
+		client = SocketChannel.open(server.getLocalAddress());
+		client.socket().setTcpNoDelay(true);
+		final SocketChannel peer = server.accept();
+		drainer = new Thread(new Runnable() {
+			public void run() {
+				ByteBuffer sink = ByteBuffer.allocateDirect(256 * 1024);
+				try {
+					while (peer.read(sink) >= 0) {
+						sink.clear();
+					}
+				} catch (IOException e) {
+					//closed by tearDown
+				}
+			}
+		}, "drainer");
+		drainer.setDaemon(true);
+		drainer.start();
+
+		outbound = new OutboundBuffer(client);
+		response = new HttpResponse(outbound, true);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException
+	{
+		client.close();
+		server.close();
+		file.delete();
+	}
+
+	@Benchmark
+	public long sendFile() throws IOException
+	{
+		response.reset(true);
+		response.sendHeaders(file, size);
+		response.sendBody(file);
+		outbound.drain();
+		return response.getBodyBytes();
+	}
+}
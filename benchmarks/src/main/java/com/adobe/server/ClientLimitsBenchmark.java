@@ -0,0 +1,121 @@
+package com.adobe.server;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * @author rbajaj
+ * Contention of the per client limits under many threads: every thread
+ * takes tokens from and opens connections of clients picked at random, so
+ * with one client all threads hit the same bucket and with many they are
+ * spread over the table. A bucket behind a lock is measured alongside.
+ *
+ * Run with -t to change the thread count, e.g. -t 32.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+public class ClientLimitsBenchmark {
+
+	@Param({"1", "64", "4096"})
+	public int clients;
+
+	private ClientLimits limits;
+	private InetAddress[] addresses;
+	private ClientLimits.Client[] handles;
+	private LockedBucket[] locked;
+
+	@Setup
+	public void setUp() throws UnknownHostException
+	{
+		//rate and cap high enough that every call succeeds, the cost measured is the update itself
+		limits = new ClientLimits(Integer.MAX_VALUE, 1000000000, Integer.MAX_VALUE / 2, clients * 2);
+		addresses = new InetAddress[clients];
+		handles = new ClientLimits.Client[clients];
+		locked = new LockedBucket[clients];
+		for(int i = 0; i < clients; i++)
+		{
+			addresses[i] = InetAddress.getByAddress(new byte[] {10, (byte) (i >> 16), (byte) (i >> 8), (byte) i});
+			handles[i] = limits.acquire(addresses[i]);
+			locked[i] = new LockedBucket(1000000000, Integer.MAX_VALUE / 2);
+		}
+	}
+
+	/**
+	 * One request: a token from the client's bucket
+	 */
+	@Benchmark
+	public boolean tryRequest()
+	{
+		return limits.tryRequest(handles[ThreadLocalRandom.current().nextInt(clients)]);
+	}
+
+	/**
+	 * One short connection: lookup, count and release
+	 */
+	@Benchmark
+	public boolean acquireRelease()
+	{
+		ClientLimits.Client client = limits.acquire(addresses[ThreadLocalRandom.current().nextInt(clients)]);
+		limits.release(client);
+		return client != null;
+	}
+
+	/**
+	 * Baseline: the same bucket behind a monitor
+	 */
+	@Benchmark
+	public boolean lockedBucket()
+	{
+		return locked[ThreadLocalRandom.current().nextInt(clients)].tryTake();
+	}
+
+	/**
+	 * Classic token bucket refilled on each take, guarded by its monitor
+	 */
+	static final class LockedBucket {
+		private final double tokensPerNano;
+		private final double capacity;
+		private double tokens;
+		private long last = System.nanoTime();
+
+		LockedBucket(int perSecond, int capacity)
+		{
+			this.tokensPerNano = perSecond / 1e9;
+			this.capacity = capacity;
+			this.tokens = capacity;
+		}
+
+		synchronized boolean tryTake()
+		{
+			long now = System.nanoTime();
+			tokens = Math.min(capacity, tokens + (now - last) * tokensPerNano);
+			last = now;
+			if(tokens < 1)
+			{
+				return false;
+			}
+			tokens--;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package com.adobe.cache;
+
+/**
+ * @author rbajaj
+ * Ready to send body of a static file together with the file version it was read from
+ */
+public final class CachedContent {
+	
+	private final byte[] body;
+	private final long lastModified;
+	
+	CachedContent(byte[] body, long lastModified)
+	{
+		this.body = body;
+		this.lastModified = lastModified;
+	}
+	
+	/**
+	 * @return file content, must not be modified
+	 */
+	public byte[] body()
+	{
+		return body;
+	}
+	
+	public long length()
+	{
+		return body.length;
+	}
+	
+	public long lastModified()
+	{
+		return lastModified;
+	}
+	
+	/**
+	 * @return true if this content was read from a file with the given mtime and size
+	 */
+	boolean matches(long mtime, long size)
+	{
+		return lastModified == mtime && body.length == size;
+	}
+}
@@ -0,0 +1,65 @@
+package com.adobe.cache;
+
+import com.adobe.http.response.ContentEncoding;
+
+/**
+ * @author rbajaj
+ * Compressed variant of a static file, tied to the file version it was produced from
+ */
+public final class CompressedContent {
+	
+	private final String path;
+	private final ContentEncoding encoding;
+	//null when the coding does not make the file any smaller
+	private final byte[] body;
+	private final long lastModified;
+	private final long sourceLength;
+	
+	CompressedContent(String path, ContentEncoding encoding, byte[] body, long lastModified, long sourceLength)
+	{
+		this.path = path;
+		this.encoding = encoding;
+		this.body = body;
+		this.lastModified = lastModified;
+		this.sourceLength = sourceLength;
+	}
+	
+	/**
+	 * @return encoded content, must not be modified
+	 */
+	public byte[] body()
+	{
+		return body;
+	}
+	
+	public long length()
+	{
+		return body == null ? 0 : body.length;
+	}
+	
+	public ContentEncoding encoding()
+	{
+		return encoding;
+	}
+	
+	String path()
+	{
+		return path;
+	}
+	
+	/**
+	 * @return false if sending the file as is is cheaper
+	 */
+	boolean isSmaller()
+	{
+		return body != null;
+	}
+	
+	/**
+	 * @return true if this variant was produced from a file with the given mtime and size
+	 */
+	boolean matches(long mtime, long size)
+	{
+		return lastModified == mtime && sourceLength == size;
+	}
+}
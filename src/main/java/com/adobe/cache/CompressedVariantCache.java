@@ -0,0 +1,342 @@
+package com.adobe.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.adobe.http.response.ContentEncoding;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author rbajaj
+ * Byte budgeted cache of gzip and deflate variants of compressible static
+ * files, keyed by resolved path and coding.
+ * 
+ * A variant is produced once per file version (mtime and size) at the
+ * strongest compression level. Files up to inlineMaxBytes are compressed
+ * on the request thread; larger ones are handed to a background thread and
+ * served uncompressed until their variant is ready. Files that do not get
+ * smaller are remembered as such, so they are not compressed again.
+ * Least recently used variants are dropped to stay within the budget.
+ */
+public class CompressedVariantCache {
+	
+	static Logger log = Logger.getLogger(CompressedVariantCache.class.getSimpleName());
+	
+	//accounted per entry on top of the body, also bounds the count of "not smaller" entries
+	private static final int ENTRY_OVERHEAD = 128;
+	//background compressions waiting at most, further large misses are dropped
+	private static final int MAX_PENDING = 64;
+	
+	private final long maxBytes;
+	private final long minBytes;
+	private final long inlineMaxBytes;
+	private final long maxFileBytes;
+	
+	//one lookup map per coding, so a lookup needs no composite key
+	private final ConcurrentHashMap<String, CompressedContent>[] variants;
+	//policy state below is guarded by policyLock
+	private final ReentrantLock policyLock = new ReentrantLock();
+	private final LinkedHashMap<CompressedContent, Boolean> accessOrder = new LinkedHashMap<CompressedContent, Boolean>(16, 0.75f, true);
+	private long weightedSize = 0;
+	
+	private final ConcurrentHashMap<String, Boolean> pending = new ConcurrentHashMap<String, Boolean>();
+	private volatile ExecutorService compressor;
+	
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	
+	/**
+	 * @param maxBytes - total bytes of variants the cache may hold, 0 disables compression
+	 * @param minBytes - smallest file that is compressed
+	 * @param inlineMaxBytes - largest file compressed on the request thread
+	 * @param maxFileBytes - largest file that is compressed at all
+	 */
+	public CompressedVariantCache(long maxBytes, long minBytes, long inlineMaxBytes, long maxFileBytes)
+	{
+		this.maxBytes = maxBytes;
+		this.minBytes = minBytes;
+		this.inlineMaxBytes = inlineMaxBytes;
+		this.maxFileBytes = Math.min(maxFileBytes, maxBytes);
+		this.variants = newVariantMaps(ContentEncoding.values().length);
+	}
+	
+	/**
+	 * @param count - one map per content encoding
+	 * @return empty maps of file path to variant
+	 */
+	@SuppressWarnings("unchecked")
+	private static ConcurrentHashMap<String, CompressedContent>[] newVariantMaps(int count)
+	{
+		ConcurrentHashMap<String, CompressedContent>[] maps = (ConcurrentHashMap<String, CompressedContent>[]) new ConcurrentHashMap<?, ?>[count];
+		for(int i = 0; i < count; i++)
+		{
+			maps[i] = new ConcurrentHashMap<String, CompressedContent>();
+		}
+		return maps;
+	}
+	
+	/**
+	 * @return false if compression is switched off
+	 */
+	public boolean isEnabled()
+	{
+		return maxBytes > 0;
+	}
+	
+	/**
+	 * Returns the compressed variant of the given file version, producing
+	 * it now for small files or scheduling it for large ones.
+	 * 
+	 * @param file
+	 * @param mtime - last modified time of the version being served
+	 * @param size - length of the version being served
+	 * @param encoding
+	 * @param source - file content if already in memory, otherwise null
+	 * @return the variant, or null if the file should be sent as it is
+	 */
+	public CompressedContent get(File file, long mtime, long size, ContentEncoding encoding, byte[] source)
+	{
+		if(!isEnabled() || size < minBytes || size > maxFileBytes)
+		{
+			return null;
+		}
+		String path = file.getPath();
+		CompressedContent variant = variants[encoding.ordinal()].get(path);
+		if(variant != null && variant.matches(mtime, size))
+		{
+			hits.increment();
+			//recency is best effort, a busy policy lock must not stall the request
+			if(policyLock.tryLock())
+			{
+				try{
+					accessOrder.get(variant);
+				}finally
+				{
+					policyLock.unlock();
+				}
+			}
+			return variant.isSmaller() ? variant : null;
+		}
+		
+		misses.increment();
+		if(size > inlineMaxBytes)
+		{
+			compressLater(file, mtime, size, encoding);
+			return null;
+		}
+		try{
+			if(source == null)
+			{
+				source = readFile(file, size);
+			}
+			variant = compress(path, encoding, source, mtime);
+		}catch(IOException e)
+		{
+			log.error("Cannot compress " + path + ": " + e);
+			return null;
+		}
+		put(variant);
+		return variant.isSmaller() ? variant : null;
+	}
+	
+	/**
+	 * Queue a large file for compression on the background thread
+	 */
+	private void compressLater(final File file, final long mtime, final long size, final ContentEncoding encoding)
+	{
+		final String task = encoding.token() + ':' + file.getPath();
+		if(pending.putIfAbsent(task, Boolean.TRUE) != null)
+		{
+			return;
+		}
+		try{
+			compressor().execute(new Runnable() {
+				public void run() {
+					try{
+						byte[] source = readFile(file, size);
+						//the file may have changed since it was requested
+						if(file.lastModified() == mtime)
+						{
+							put(compress(file.getPath(), encoding, source, mtime));
+						}
+					}catch(IOException e)
+					{
+						log.error("Cannot compress " + file + ": " + e);
+					}finally
+					{
+						pending.remove(task);
+					}
+				}
+			});
+		}catch(RuntimeException rejected)
+		{
+			//queue full, a later request will try again
+			pending.remove(task);
+		}
+	}
+	
+	private ExecutorService compressor()
+	{
+		if(compressor == null)
+		{
+			synchronized(this)
+			{
+				if(compressor == null)
+				{
+					ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+							new LinkedBlockingQueue<Runnable>(MAX_PENDING), new ThreadFactory() {
+								public Thread newThread(Runnable r) {
+									Thread thread = new Thread(r, "compressor");
+									thread.setDaemon(true);
+									thread.setPriority(Thread.MIN_PRIORITY);
+									return thread;
+								}
+							});
+					executor.allowCoreThreadTimeOut(true);
+					compressor = executor;
+				}
+			}
+		}
+		return compressor;
+	}
+	
+	private static byte[] readFile(File file, long size) throws IOException
+	{
+		byte[] data = new byte[(int) size];
+		InputStream in = new FileInputStream(file);
+		try{
+			int off = 0;
+			while(off < data.length)
+			{
+				int n = in.read(data, off, data.length - off);
+				if(n < 0)
+				{
+					throw new IOException("File truncated while being compressed");
+				}
+				off += n;
+			}
+		}finally
+		{
+			in.close();
+		}
+		return data;
+	}
+	
+	/**
+	 * @return the variant; its body is null if it is not smaller than source
+	 */
+	static CompressedContent compress(String path, ContentEncoding encoding, byte[] source, long mtime) throws IOException
+	{
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream(Math.max(64, source.length / 4));
+		OutputStream out = encoding.compressor(encoded);
+		try{
+			out.write(source);
+		}finally
+		{
+			out.close();
+		}
+		byte[] body = encoded.size() < source.length ? encoded.toByteArray() : null;
+		return new CompressedContent(path, encoding, body, mtime, source.length);
+	}
+	
+	/**
+	 * Store a variant, replacing an older version, and evict least recently
+	 * used variants over the budget
+	 */
+	private void put(CompressedContent variant)
+	{
+		ConcurrentHashMap<String, CompressedContent> map = variants[variant.encoding().ordinal()];
+		policyLock.lock();
+		try{
+			CompressedContent old = map.put(variant.path(), variant);
+			if(old != null && accessOrder.remove(old) != null)
+			{
+				weightedSize -= weight(old);
+			}
+			accessOrder.put(variant, Boolean.TRUE);
+			weightedSize += weight(variant);
+			
+			Iterator<Map.Entry<CompressedContent, Boolean>> it = accessOrder.entrySet().iterator();
+			while(weightedSize > maxBytes && it.hasNext())
+			{
+				CompressedContent eldest = it.next().getKey();
+				if(eldest == variant)
+				{
+					continue;
+				}
+				it.remove();
+				variants[eldest.encoding().ordinal()].remove(eldest.path(), eldest);
+				weightedSize -= weight(eldest);
+				evictions.increment();
+			}
+		}finally
+		{
+			policyLock.unlock();
+		}
+	}
+	
+	private static long weight(CompressedContent variant)
+	{
+		return variant.length() + ENTRY_OVERHEAD;
+	}
+	
+	public long getHitCount()
+	{
+		return hits.sum();
+	}
+	
+	public long getMissCount()
+	{
+		return misses.sum();
+	}
+	
+	public long getEvictionCount()
+	{
+		return evictions.sum();
+	}
+	
+	/**
+	 * @return number of variants held, including "not smaller" markers
+	 */
+	public int size()
+	{
+		policyLock.lock();
+		try{
+			return accessOrder.size();
+		}finally
+		{
+			policyLock.unlock();
+		}
+	}
+	
+	/**
+	 * @return accounted bytes of the variants held
+	 */
+	public long weightedSize()
+	{
+		policyLock.lock();
+		try{
+			return weightedSize;
+		}finally
+		{
+			policyLock.unlock();
+		}
+	}
+}
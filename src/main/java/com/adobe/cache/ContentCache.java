@@ -0,0 +1,262 @@
+package com.adobe.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author rbajaj
+ * Byte budgeted in-memory cache of small static files, keyed by resolved path.
+ * 
+ * Lookups go through a ConcurrentHashMap without locking. The eviction policy
+ * is TinyLFU style: every access is counted in a {@link FrequencySketch}, the
+ * least recently used entries are the eviction candidates, and a new file is
+ * only admitted if it has been requested more often than the entries it
+ * would push out. One-off requests therefore cannot flush the hot set.
+ * 
+ * Entries are checked against the mtime and size the caller already knows,
+ * e.g. from the web root index, and dropped as soon as either changed.
+ */
+public class ContentCache {
+	
+	static Logger log = Logger.getLogger(ContentCache.class.getSimpleName());
+	
+	//rough average file size used to size the frequency sketch
+	private static final int AVERAGE_ENTRY_BYTES = 4 * 1024;
+	//least recently used entries considered as eviction victims
+	private static final int EVICTION_SAMPLE = 8;
+	//bound on entries looked at per admission so a miss never walks the whole cache
+	private static final int MAX_SCAN = 256;
+	
+	private final long maxBytes;
+	private final int maxEntryBytes;
+	
+	private final ConcurrentHashMap<String, CachedContent> data = new ConcurrentHashMap<String, CachedContent>();
+	//policy state below is guarded by policyLock
+	private final ReentrantLock policyLock = new ReentrantLock();
+	private final LinkedHashMap<String, CachedContent> accessOrder = new LinkedHashMap<String, CachedContent>(16, 0.75f, true);
+	private final FrequencySketch sketch;
+	private long weightedSize = 0;
+	
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	
+	/**
+	 * @param maxBytes - total body bytes the cache may hold, 0 disables caching
+	 * @param maxEntryBytes - largest single file that is cached
+	 */
+	public ContentCache(long maxBytes, int maxEntryBytes)
+	{
+		this.maxBytes = maxBytes;
+		this.maxEntryBytes = (int) Math.min(maxEntryBytes, maxBytes);
+		this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(64, maxBytes / AVERAGE_ENTRY_BYTES)));
+	}
+	
+	/**
+	 * Returns the content of a regular file whose current mtime and size the
+	 * caller already knows, e.g. from the web root index, without looking at
+	 * the file unless it has to be read.
+	 * 
+	 * @param file
+	 * @param mtime - current mtime of the file
+	 * @param size - current size of the file
+	 * @return file content, or null if the file is too large to be cached or cannot be read
+	 */
+	public CachedContent get(File file, long mtime, long size)
+	{
+		if(maxBytes <= 0)
+		{
+			return null;
+		}
+		String key = file.getPath();
+		CachedContent content = data.get(key);
+		if(content != null)
+		{
+			if(content.matches(mtime, size))
+			{
+				recordHit(key);
+				return content;
+			}
+			invalidate(key, content);
+		}
+		
+		misses.increment();
+		if(size > maxEntryBytes)
+		{
+			recordMiss(key, null);
+			return null;
+		}
+		try{
+			byte[] body = Files.readAllBytes(file.toPath());
+			content = new CachedContent(body, mtime);
+			//a writer changed the file while we read it; serve it but do not keep it
+			recordMiss(key, body.length == size ? content : null);
+			return content;
+		}catch(IOException e)
+		{
+			recordMiss(key, null);
+			return null;
+		}
+	}
+	
+	/**
+	 * Counts a hit; the policy update is skipped when another thread holds the
+	 * lock so that hits never wait
+	 */
+	private void recordHit(String key)
+	{
+		hits.increment();
+		if(policyLock.tryLock())
+		{
+			try{
+				sketch.increment(key.hashCode());
+				accessOrder.get(key);
+			}finally
+			{
+				policyLock.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Counts an access to a key that was not cached and offers the freshly
+	 * read content for admission
+	 */
+	private void recordMiss(String key, CachedContent candidate)
+	{
+		policyLock.lock();
+		try{
+			sketch.increment(key.hashCode());
+			if(candidate != null && !accessOrder.containsKey(key))
+			{
+				admit(key, candidate);
+			}
+		}finally
+		{
+			policyLock.unlock();
+		}
+	}
+	
+	/**
+	 * Admits the candidate if it fits, or if the coldest of the least recently
+	 * used entries can make room for it and were all requested less often.
+	 * Sampling several entries keeps one hot but idle entry at the head of
+	 * the LRU order from blocking every admission. Caller holds policyLock.
+	 */
+	private void admit(String key, CachedContent candidate)
+	{
+		long needed = weightedSize + candidate.length() - maxBytes;
+		List<String> victims = new ArrayList<String>();
+		if(needed > 0)
+		{
+			final int candidateFrequency = sketch.frequency(key.hashCode());
+			List<Map.Entry<String, CachedContent>> sample = new ArrayList<Map.Entry<String, CachedContent>>();
+			Iterator<Map.Entry<String, CachedContent>> it = accessOrder.entrySet().iterator();
+			long sampledBytes = 0;
+			int scanned = 0;
+			while(it.hasNext() && scanned++ < MAX_SCAN && (sample.size() < EVICTION_SAMPLE || sampledBytes < needed))
+			{
+				Map.Entry<String, CachedContent> entry = it.next();
+				if(sketch.frequency(entry.getKey().hashCode()) < candidateFrequency)
+				{
+					sample.add(entry);
+					sampledBytes += entry.getValue().length();
+				}
+			}
+			if(sampledBytes < needed)
+			{
+				//candidate is not worth more than what it would replace
+				return;
+			}
+			Collections.sort(sample, new Comparator<Map.Entry<String, CachedContent>>() {
+				public int compare(Map.Entry<String, CachedContent> a, Map.Entry<String, CachedContent> b) {
+					return sketch.frequency(a.getKey().hashCode()) - sketch.frequency(b.getKey().hashCode());
+				}
+			});
+			for(int i = 0; needed > 0; i++)
+			{
+				victims.add(sample.get(i).getKey());
+				needed -= sample.get(i).getValue().length();
+			}
+		}
+		for(String victim : victims)
+		{
+			CachedContent evicted = accessOrder.remove(victim);
+			data.remove(victim, evicted);
+			weightedSize -= evicted.length();
+			evictions.increment();
+		}
+		accessOrder.put(key, candidate);
+		data.put(key, candidate);
+		weightedSize += candidate.length();
+	}
+	
+	/**
+	 * Drops an entry whose file changed or disappeared
+	 */
+	private void invalidate(String key, CachedContent content)
+	{
+		policyLock.lock();
+		try{
+			if(data.remove(key, content))
+			{
+				accessOrder.remove(key);
+				weightedSize -= content.length();
+				log.debug("Invalidated cached content: " + key);
+			}
+		}finally
+		{
+			policyLock.unlock();
+		}
+	}
+	
+	public long getHitCount()
+	{
+		return hits.sum();
+	}
+	
+	public long getMissCount()
+	{
+		return misses.sum();
+	}
+	
+	public long getEvictionCount()
+	{
+		return evictions.sum();
+	}
+	
+	/**
+	 * @return number of cached files
+	 */
+	public int size()
+	{
+		return data.size();
+	}
+	
+	/**
+	 * @return total bytes of the cached bodies
+	 */
+	public long weightedSize()
+	{
+		policyLock.lock();
+		try{
+			return weightedSize;
+		}finally
+		{
+			policyLock.unlock();
+		}
+	}
+}
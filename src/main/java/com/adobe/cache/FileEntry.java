@@ -0,0 +1,63 @@
+package com.adobe.cache;
+
+import java.io.File;
+
+import com.adobe.http.response.ContentType;
+
+/**
+ * @author rbajaj
+ * Metadata of a servable file in the web root, as last seen on disk
+ */
+public final class FileEntry {
+
+	//a file modified this close to its stat may still be written to
+	static final long RACY_MILLIS = 2000;
+
+	private final File file;
+	private final long length;
+	private final long lastModified;
+	private final ContentType contentType;
+	private final long statMillis;
+
+	FileEntry(File file, long length, long lastModified, ContentType contentType, long statMillis)
+	{
+		this.file = file;
+		this.length = length;
+		this.lastModified = lastModified;
+		this.contentType = contentType;
+		this.statMillis = statMillis;
+	}
+
+	public File file()
+	{
+		return file;
+	}
+
+	public long length()
+	{
+		return length;
+	}
+
+	public long lastModified()
+	{
+		return lastModified;
+	}
+
+	/**
+	 * @return type by extension, with its pre-encoded header line
+	 */
+	public ContentType contentType()
+	{
+		return contentType;
+	}
+
+	/**
+	 * @return true if the file changed so shortly before it was looked at
+	 *         that a writer may not be done with it; such entries are not
+	 *         trusted and the file is looked at again on every request
+	 */
+	boolean isRacy()
+	{
+		return statMillis - lastModified < RACY_MILLIS;
+	}
+}
@@ -0,0 +1,478 @@
+package com.adobe.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.adobe.http.response.ContentType;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author rbajaj
+ * In-memory index of the web root: request path to size, mtime and content
+ * type of every servable file. It is built at start with one fork/join task
+ * per directory and kept current by a WatchService, so a request for a known
+ * file costs a hash lookup and no file system call.
+ *
+ * Paths that are not in the index are looked up on disk once; a miss is
+ * remembered until the watcher reports a file created anywhere in the root,
+ * so a flood of requests for missing files does not reach the disk either.
+ * Entries found or refreshed by requests are only stored if the watcher
+ * reported no change in the meantime.
+ *
+ * Watch events arrive shortly after the change, so an entry may describe the
+ * previous version of a file for that long. Files modified within the last
+ * two seconds are looked at again on every request, so a file still being
+ * written is never served by its first stat. Without a working watch service
+ * every lookup goes to disk.
+ */
+public class FileIndex implements Runnable {
+
+	static Logger log = Logger.getLogger(FileIndex.class.getSimpleName());
+
+	private final String root;
+	private final Path rootPath;
+	private final boolean enabled;
+	private final int maxFiles;
+	private final int maxMisses;
+
+	private final ConcurrentHashMap<String, FileEntry> files = new ConcurrentHashMap<String, FileEntry>();
+	//missing paths with the value of creations at the time they were found missing
+	private final ConcurrentHashMap<String, Long> misses = new ConcurrentHashMap<String, Long>();
+	private final ConcurrentHashMap<WatchKey, Path> directories = new ConcurrentHashMap<WatchKey, Path>();
+	//every watch event processed, guards entries stored by requests
+	private final AtomicLong changes = new AtomicLong();
+	//files created or events lost, makes remembered misses stale
+	private final AtomicLong creations = new AtomicLong();
+	private WatchService watcher = null;
+	private volatile boolean active = false;
+	private volatile boolean closed = false;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder missHits = new LongAdder();
+	private final LongAdder diskLookups = new LongAdder();
+
+	/**
+	 * @param root - web root directory
+	 * @param enabled - false to look every request up on disk
+	 * @param maxFiles - most files indexed, others are looked up on disk
+	 * @param maxMisses - most missing paths remembered
+	 */
+	public FileIndex(String root, boolean enabled, int maxFiles, int maxMisses)
+	{
+		this.root = root;
+		this.rootPath = root != null ? Paths.get(root).toAbsolutePath().normalize() : null;
+		this.enabled = enabled && root != null;
+		this.maxFiles = maxFiles;
+		this.maxMisses = maxMisses;
+	}
+
+	/**
+	 * Indexes the web root and starts watching it. Does nothing if the index
+	 * is disabled, already started or closed.
+	 */
+	public synchronized void start()
+	{
+		if(!enabled || watcher != null || closed)
+		{
+			return;
+		}
+		try{
+			watcher = rootPath.getFileSystem().newWatchService();
+			long start = System.nanoTime();
+			ForkJoinPool.commonPool().invoke(new Scan(rootPath));
+			log.info("Indexed " + files.size() + " files of " + rootPath + " in "
+					+ (System.nanoTime() - start) / 1000000 + " ms");
+		}catch(IOException | RuntimeException e)
+		{
+			log.error("Web root index disabled, cannot watch " + rootPath + ": " + e);
+			closeWatcher();
+			files.clear();
+			return;
+		}
+		active = true;
+		Thread thread = new Thread(this, "web-root-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @param url - request path, relative to the web root
+	 * @return metadata of the servable file, null if there is none
+	 */
+	public FileEntry get(String url)
+	{
+		String key = normalize(url);
+		if(!active)
+		{
+			diskLookups.increment();
+			return stat(key);
+		}
+		FileEntry entry = files.get(key);
+		if(entry != null && !entry.isRacy())
+		{
+			hits.increment();
+			return entry;
+		}
+		long seenChanges = changes.get();
+		if(entry == null)
+		{
+			Long missed = misses.get(key);
+			if(missed != null && missed.longValue() == creations.get())
+			{
+				missHits.increment();
+				return null;
+			}
+		}
+		long seenCreations = creations.get();
+		diskLookups.increment();
+		FileEntry current = stat(key);
+		if(current == null)
+		{
+			if(entry != null)
+			{
+				files.remove(key, entry);
+			}
+			if(misses.size() >= maxMisses)
+			{
+				misses.clear();
+			}
+			misses.put(key, seenCreations);
+			return null;
+		}
+		if(changes.get() == seenChanges)
+		{
+			if(entry != null)
+			{
+				files.replace(key, entry, current);
+			}
+			else if(files.size() < maxFiles)
+			{
+				files.putIfAbsent(key, current);
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * @param url - request path
+	 * @return the indexed entry as it is, without looking at the disk; for tests
+	 */
+	public FileEntry peek(String url)
+	{
+		return files.get(normalize(url));
+	}
+
+	/**
+	 * @return true if lookups are answered from the index
+	 */
+	public boolean isActive()
+	{
+		return active;
+	}
+
+	public int size()
+	{
+		return files.size();
+	}
+
+	/**
+	 * @return lookups answered by an indexed file
+	 */
+	public long getHitCount()
+	{
+		return hits.sum();
+	}
+
+	/**
+	 * @return lookups answered by a remembered miss
+	 */
+	public long getMissHitCount()
+	{
+		return missHits.sum();
+	}
+
+	/**
+	 * @return lookups that had to look at the disk
+	 */
+	public long getDiskLookupCount()
+	{
+		return diskLookups.sum();
+	}
+
+	/**
+	 * Applies watch events until the index is closed
+	 */
+	public void run()
+	{
+		try{
+			while(!closed)
+			{
+				WatchKey key = watcher.take();
+				Path dir = directories.get(key);
+				for(WatchEvent<?> event : key.pollEvents())
+				{
+					changes.incrementAndGet();
+					if(event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null)
+					{
+						rescan();
+						continue;
+					}
+					Path child = dir.resolve((Path) event.context());
+					if(event.kind() == StandardWatchEventKinds.ENTRY_DELETE)
+					{
+						remove(key(child));
+					}
+					else
+					{
+						if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE)
+						{
+							creations.incrementAndGet();
+						}
+						update(child);
+					}
+				}
+				if(!key.reset())
+				{
+					directories.remove(key);
+				}
+			}
+		}catch(ClosedWatchServiceException cwse)
+		{
+			log.debug("Web root watcher closed.");
+		}catch(InterruptedException ie)
+		{
+			log.info("Web root watcher interrupted, index disabled.");
+		}finally
+		{
+			active = false;
+		}
+	}
+
+	/**
+	 * Stops watching; lookups go to disk from now on
+	 */
+	public synchronized void close()
+	{
+		closed = true;
+		active = false;
+		closeWatcher();
+	}
+
+	private void closeWatcher()
+	{
+		if(watcher != null)
+		{
+			try{
+				watcher.close();
+			}catch(IOException e)
+			{
+				log.error("Error closing web root watcher: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Refreshes one path reported created or modified
+	 */
+	private void update(Path child)
+	{
+		String key = key(child);
+		BasicFileAttributes attrs;
+		try{
+			attrs = Files.readAttributes(child, BasicFileAttributes.class);
+		}catch(IOException e)
+		{
+			//gone again before we looked
+			remove(key);
+			return;
+		}
+		if(attrs.isDirectory())
+		{
+			new Scan(child).invoke();
+			return;
+		}
+		FileEntry entry = entry(key, child, attrs);
+		if(entry == null)
+		{
+			files.remove(key);
+		}
+		else if(files.containsKey(key) || files.size() < maxFiles)
+		{
+			files.put(key, entry);
+		}
+	}
+
+	/**
+	 * Drops a deleted file, or everything below a deleted directory
+	 */
+	private void remove(String key)
+	{
+		files.remove(key);
+		String prefix = key + "/";
+		Iterator<String> keys = files.keySet().iterator();
+		while(keys.hasNext())
+		{
+			if(keys.next().startsWith(prefix))
+			{
+				keys.remove();
+			}
+		}
+	}
+
+	/**
+	 * Builds the index again after watch events were lost
+	 */
+	private void rescan()
+	{
+		creations.incrementAndGet();
+		log.info("Web root watch events lost, indexing " + rootPath + " again");
+		files.clear();
+		misses.clear();
+		new Scan(rootPath).invoke();
+	}
+
+	/**
+	 * Indexes the files of one directory and forks a task per subdirectory
+	 */
+	private final class Scan extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Path dir;
+
+		Scan(Path dir)
+		{
+			this.dir = dir;
+		}
+
+		@Override
+		protected void compute()
+		{
+			List<Scan> subdirectories = new ArrayList<Scan>();
+			try{
+				//registered before listing, so nothing created meanwhile is missed
+				WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+				directories.put(key, dir);
+			}catch(IOException e)
+			{
+				if(dir.equals(rootPath))
+				{
+					throw new IllegalStateException("cannot watch the web root", e);
+				}
+				log.error("Cannot watch " + dir + ": " + e);
+				return;
+			}
+			try(DirectoryStream<Path> children = Files.newDirectoryStream(dir))
+			{
+				for(Path child : children)
+				{
+					BasicFileAttributes attrs;
+					try{
+						attrs = Files.readAttributes(child, BasicFileAttributes.class);
+					}catch(IOException e)
+					{
+						continue;
+					}
+					if(attrs.isDirectory())
+					{
+						subdirectories.add(new Scan(child));
+					}
+					else if(files.size() < maxFiles)
+					{
+						String key = key(child);
+						FileEntry entry = entry(key, child, attrs);
+						if(entry != null)
+						{
+							files.put(key, entry);
+						}
+					}
+				}
+			}catch(IOException e)
+			{
+				log.error("Cannot list " + dir + ": " + e);
+			}
+			invokeAll(subdirectories);
+		}
+	}
+
+	/**
+	 * Looks a path up on disk
+	 */
+	private FileEntry stat(String key)
+	{
+		File file = new File(root, key);
+		try{
+			Path path = file.toPath();
+			return entry(key, path, Files.readAttributes(path, BasicFileAttributes.class));
+		}catch(IOException | RuntimeException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * @return entry of a regular readable file, null for anything else
+	 */
+	private FileEntry entry(String key, Path path, BasicFileAttributes attrs)
+	{
+		if(!attrs.isRegularFile() || !Files.isReadable(path))
+		{
+			return null;
+		}
+		File file = new File(root, key);
+		return new FileEntry(file, attrs.size(), attrs.lastModifiedTime().toMillis(),
+				ContentType.of(file.getName()), System.currentTimeMillis());
+	}
+
+	/**
+	 * @return index key of a path below the web root
+	 */
+	private String key(Path path)
+	{
+		String relative = rootPath.relativize(path).toString();
+		if(File.separatorChar != '/')
+		{
+			relative = relative.replace(File.separatorChar, '/');
+		}
+		return "/" + relative;
+	}
+
+	/**
+	 * @return the request path with a leading slash and without empty or "." segments
+	 */
+	static String normalize(String url)
+	{
+		if(url.startsWith("/") && url.indexOf("//") < 0 && url.indexOf("/.") < 0)
+		{
+			return url;
+		}
+		StringBuilder key = new StringBuilder(url.length() + 1);
+		for(String segment : url.split("/"))
+		{
+			if(segment.isEmpty() || segment.equals("."))
+			{
+				continue;
+			}
+			key.append('/').append(segment);
+		}
+		return key.length() == 0 ? "/" : key.toString();
+	}
+}
@@ -0,0 +1,105 @@
+package com.adobe.cache;
+
+/**
+ * @author rbajaj
+ * Count-min sketch of 4-bit counters estimating how often a key was seen.
+ * 
+ * Four rows of counters are packed sixteen to a long. Once the number of
+ * increments reaches the sample size every counter is halved, so the
+ * estimate follows the recent popularity of a key rather than its total
+ * history. Not thread safe; the owner guards it with its policy lock.
+ */
+final class FrequencySketch {
+	
+	private static final long[] SEEDS = {
+		0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final int ROWS = SEEDS.length;
+	private static final int MAX_COUNT = 15;
+	
+	private final long[] table;
+	private final int rowLongs;
+	private final int counterMask;
+	private final int sampleSize;
+	private int additions;
+	
+	/**
+	 * @param expectedEntries - expected number of distinct hot keys
+	 */
+	FrequencySketch(int expectedEntries)
+	{
+		int counters = Integer.highestOneBit(Math.max(16, expectedEntries - 1) << 1);
+		this.rowLongs = counters >>> 4;
+		this.counterMask = counters - 1;
+		this.table = new long[rowLongs * ROWS];
+		this.sampleSize = 10 * counters;
+	}
+	
+	/**
+	 * @param hash
+	 * @return estimated recent frequency, 0 to 15
+	 */
+	int frequency(int hash)
+	{
+		int min = MAX_COUNT;
+		for(int row = 0; row < ROWS; row++)
+		{
+			min = Math.min(min, counter(row, indexOf(hash, row)));
+		}
+		return min;
+	}
+	
+	/**
+	 * Records one occurrence of the key
+	 * @param hash
+	 */
+	void increment(int hash)
+	{
+		boolean added = false;
+		for(int row = 0; row < ROWS; row++)
+		{
+			added |= incrementAt(row, indexOf(hash, row));
+		}
+		if(added && ++additions >= sampleSize)
+		{
+			reset();
+		}
+	}
+	
+	private int indexOf(int hash, int row)
+	{
+		long h = (hash + SEEDS[row]) * SEEDS[row];
+		h += h >>> 32;
+		return (int) h & counterMask;
+	}
+	
+	private int counter(int row, int index)
+	{
+		int shift = (index & 15) << 2;
+		return (int) ((table[row * rowLongs + (index >>> 4)] >>> shift) & 0xfL);
+	}
+	
+	private boolean incrementAt(int row, int index)
+	{
+		int slot = row * rowLongs + (index >>> 4);
+		int shift = (index & 15) << 2;
+		if(((table[slot] >>> shift) & 0xfL) == MAX_COUNT)
+		{
+			return false;
+		}
+		table[slot] += 1L << shift;
+		return true;
+	}
+	
+	/**
+	 * Halves every counter so that old popularity fades
+	 */
+	private void reset()
+	{
+		for(int i = 0; i < table.length; i++)
+		{
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		additions >>>= 1;
+	}
+}
@@ -0,0 +1,126 @@
+package com.adobe.cache;
+
+import java.io.Closeable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author rbajaj
+ * Read-only mapping of a file shared by all responses sending it.
+ * 
+ * The mapping is reference counted: the cache holds one reference and every
+ * response acquiring it holds another until its slice has been written.
+ * The memory is unmapped when the last reference is closed, so eviction
+ * never pulls a mapping out from under a response still sending it.
+ */
+public final class MappedContent implements Closeable {
+	
+	private static final Method INVOKE_CLEANER;
+	private static final Object UNSAFE;
+	
+	static {
+		Method invokeCleaner = null;
+		Object unsafe = null;
+		try {
+			//JDK 9+: sun.misc.Unsafe.invokeCleaner unmaps a direct or mapped buffer
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafe = theUnsafe.get(null);
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (Exception e) {
+			//unmapping is left to the garbage collector
+		}
+		INVOKE_CLEANER = invokeCleaner;
+		UNSAFE = unsafe;
+	}
+	
+	private final MappedByteBuffer buffer;
+	private final long lastModified;
+	private final AtomicInteger references = new AtomicInteger(1);
+	
+	MappedContent(MappedByteBuffer buffer, long lastModified)
+	{
+		this.buffer = buffer;
+		this.lastModified = lastModified;
+	}
+	
+	/**
+	 * @return a view of the whole file with its own position, for one response
+	 */
+	public ByteBuffer slice()
+	{
+		return buffer.duplicate();
+	}
+	
+	public long length()
+	{
+		return buffer.capacity();
+	}
+	
+	public long lastModified()
+	{
+		return lastModified;
+	}
+	
+	/**
+	 * @return true if this mapping was made from a file with the given mtime and size
+	 */
+	boolean matches(long mtime, long size)
+	{
+		return lastModified == mtime && buffer.capacity() == size;
+	}
+	
+	/**
+	 * Takes a reference unless the mapping is already being unmapped
+	 * @return false if the mapping can no longer be used
+	 */
+	boolean retain()
+	{
+		while(true)
+		{
+			int count = references.get();
+			if(count <= 0)
+			{
+				return false;
+			}
+			if(references.compareAndSet(count, count + 1))
+			{
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Releases one reference; the last one unmaps the file
+	 */
+	public void close()
+	{
+		if(references.decrementAndGet() == 0)
+		{
+			unmap(buffer);
+		}
+	}
+	
+	/**
+	 * Unmaps a mapped buffer at once; the buffer must not be used afterwards
+	 * @param buffer
+	 * @return false if unmapping is left to the garbage collector
+	 */
+	public static boolean unmap(MappedByteBuffer buffer)
+	{
+		if(INVOKE_CLEANER == null)
+		{
+			return false;
+		}
+		try {
+			INVOKE_CLEANER.invoke(UNSAFE, buffer);
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+}
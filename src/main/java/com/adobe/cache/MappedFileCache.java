@@ -0,0 +1,238 @@
+package com.adobe.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author rbajaj
+ * Serving tier of read-only memory mappings for files too large for the
+ * heap content cache, e.g. 1 to 50 MB downloads.
+ * 
+ * Only files whose size is within [minBytes, maxBytes] are mapped. The total
+ * of mapped bytes is capped; the least recently used mappings are unmapped
+ * to make room. Responses write straight from the mapping to the socket.
+ */
+public class MappedFileCache {
+	
+	static Logger log = Logger.getLogger(MappedFileCache.class.getSimpleName());
+	
+	private final long minBytes;
+	private final long maxBytes;
+	private final long maxMappedBytes;
+	
+	//all state guarded by lock; requests for these sizes are far rarer than for small files
+	private final ReentrantLock lock = new ReentrantLock();
+	private final LinkedHashMap<String, MappedContent> mappings = new LinkedHashMap<String, MappedContent>(16, 0.75f, true);
+	private long mappedBytes = 0;
+	
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	
+	/**
+	 * @param minBytes - smallest file that is mapped
+	 * @param maxBytes - largest file that is mapped
+	 * @param maxMappedBytes - cap on the total of mapped bytes, 0 disables the tier
+	 */
+	public MappedFileCache(long minBytes, long maxBytes, long maxMappedBytes)
+	{
+		this.minBytes = minBytes;
+		this.maxBytes = Math.min(maxBytes, Integer.MAX_VALUE);
+		this.maxMappedBytes = maxMappedBytes;
+	}
+	
+	/**
+	 * Returns a mapping of the current file content, mapping it if needed.
+	 * The caller owns one reference and must close it once the response
+	 * has been written.
+	 * 
+	 * @param file
+	 * @return the mapping, or null if the file is outside the size band,
+	 *         missing, or cannot be mapped
+	 */
+	public MappedContent acquire(File file)
+	{
+		if(maxMappedBytes <= 0)
+		{
+			return null;
+		}
+		BasicFileAttributes attrs;
+		try{
+			attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+		}catch(IOException e)
+		{
+			return null;
+		}
+		if(!attrs.isRegularFile())
+		{
+			return null;
+		}
+		return acquire(file, attrs.lastModifiedTime().toMillis(), attrs.size());
+	}
+	
+	/**
+	 * Returns a retained mapping of a regular file whose current mtime and
+	 * size the caller already knows, e.g. from the web root index
+	 * 
+	 * @param file
+	 * @param mtime - current mtime of the file
+	 * @param size - current size of the file
+	 * @return the mapping, or null if the file is outside the size band or cannot be mapped
+	 */
+	public MappedContent acquire(File file, long mtime, long size)
+	{
+		if(maxMappedBytes <= 0 || size < minBytes || size > maxBytes || size > maxMappedBytes)
+		{
+			return null;
+		}
+		String key = file.getPath();
+		
+		lock.lock();
+		try{
+			MappedContent mapped = mappings.get(key);
+			if(mapped != null)
+			{
+				if(mapped.matches(mtime, size) && mapped.retain())
+				{
+					hits.increment();
+					return mapped;
+				}
+				//file changed since it was mapped
+				remove(key);
+			}
+		}finally
+		{
+			lock.unlock();
+		}
+		
+		misses.increment();
+		MappedContent mapped = map(file, mtime, size);
+		if(mapped == null)
+		{
+			return null;
+		}
+		lock.lock();
+		try{
+			MappedContent existing = mappings.get(key);
+			if(existing != null && existing.matches(mtime, size) && existing.retain())
+			{
+				//another request mapped it first
+				mapped.close();
+				return existing;
+			}
+			if(existing != null)
+			{
+				remove(key);
+			}
+			mapped.retain();
+			mappings.put(key, mapped);
+			mappedBytes += size;
+			evictOverCap(key);
+			return mapped;
+		}finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	private MappedContent map(File file, long mtime, long size)
+	{
+		RandomAccessFile raf = null;
+		try{
+			raf = new RandomAccessFile(file, "r");
+			//the mapping stays valid after the channel is closed
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+			return new MappedContent(buffer, mtime);
+		}catch(IOException e)
+		{
+			log.error("Cannot map file " + file + ": " + e);
+			return null;
+		}finally
+		{
+			if(raf != null)
+			{
+				try{
+					raf.close();
+				}catch(IOException e)
+				{
+					log.error("Error closing mapped file: " + e);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Unmaps least recently used files until the cap is respected. Caller holds lock.
+	 * @param keep - the mapping just added
+	 */
+	private void evictOverCap(String keep)
+	{
+		Iterator<Map.Entry<String, MappedContent>> it = mappings.entrySet().iterator();
+		while(mappedBytes > maxMappedBytes && it.hasNext())
+		{
+			Map.Entry<String, MappedContent> eldest = it.next();
+			if(eldest.getKey().equals(keep))
+			{
+				continue;
+			}
+			it.remove();
+			mappedBytes -= eldest.getValue().length();
+			eldest.getValue().close();
+			evictions.increment();
+		}
+	}
+	
+	/**
+	 * Drops the cache's reference to a mapping. Caller holds lock.
+	 */
+	private void remove(String key)
+	{
+		MappedContent mapped = mappings.remove(key);
+		if(mapped != null)
+		{
+			mappedBytes -= mapped.length();
+			mapped.close();
+		}
+	}
+	
+	public long getHitCount()
+	{
+		return hits.sum();
+	}
+	
+	public long getMissCount()
+	{
+		return misses.sum();
+	}
+	
+	public long getEvictionCount()
+	{
+		return evictions.sum();
+	}
+	
+	/**
+	 * @return total bytes currently mapped by the cache
+	 */
+	public long mappedBytes()
+	{
+		lock.lock();
+		try{
+			return mappedBytes;
+		}finally
+		{
+			lock.unlock();
+		}
+	}
+}
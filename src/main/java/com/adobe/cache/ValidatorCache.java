@@ -0,0 +1,140 @@
+package com.adobe.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+import com.adobe.http.response.Validators;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author rbajaj
+ * Validators (ETag and Last-Modified) of static files, keyed by resolved
+ * path and kept as long as the file's mtime and size stay the same.
+ *
+ * By default tags are derived from mtime and size, which costs nothing
+ * beyond the stat the request already does. With content hashing on, the
+ * file is read once per version to tag it by content, so identical files
+ * on several servers share their tags. Either way a revalidation that
+ * ends in 304 never opens the file once its validators are cached.
+ *
+ * Entries are tiny, so the cache is bounded by count and drops an
+ * arbitrary entry when full rather than tracking recency.
+ */
+public class ValidatorCache {
+
+	static Logger log = Logger.getLogger(ValidatorCache.class.getSimpleName());
+
+	private final int maxEntries;
+	private final boolean contentHash;
+	private final ConcurrentHashMap<String, Validators> validators = new ConcurrentHashMap<String, Validators>();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * @param maxEntries - most files whose validators are kept
+	 * @param contentHash - true to tag files by a hash of their content
+	 */
+	public ValidatorCache(int maxEntries, boolean contentHash)
+	{
+		this.maxEntries = maxEntries;
+		this.contentHash = contentHash;
+	}
+
+	/**
+	 * @param file
+	 * @param mtime - last modified time of the version being served
+	 * @param size - length of the version being served
+	 * @param source - file content if already in memory, otherwise null
+	 * @return validators of that version
+	 */
+	public Validators get(File file, long mtime, long size, byte[] source)
+	{
+		String path = file.getPath();
+		Validators current = validators.get(path);
+		if(current != null && current.isCurrent(mtime, size))
+		{
+			hits.increment();
+			return current;
+		}
+
+		misses.increment();
+		String hash = null;
+		if(contentHash)
+		{
+			try{
+				hash = hash(file, source);
+			}catch(IOException e)
+			{
+				//fall back to mtime and size, still a valid tag for this version
+				log.error("Cannot hash " + path + ": " + e);
+			}
+		}
+		current = new Validators(mtime, size, hash);
+		if(maxEntries <= 0)
+		{
+			return current;
+		}
+		if(validators.size() >= maxEntries && !validators.containsKey(path))
+		{
+			Iterator<String> it = validators.keySet().iterator();
+			if(it.hasNext())
+			{
+				it.next();
+				it.remove();
+			}
+		}
+		validators.put(path, current);
+		return current;
+	}
+
+	private static String hash(File file, byte[] source) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		if(source != null)
+		{
+			crc.update(source, 0, source.length);
+		}
+		else
+		{
+			InputStream in = new FileInputStream(file);
+			try{
+				byte[] buf = new byte[16 * 1024];
+				int n;
+				while((n = in.read(buf)) > 0)
+				{
+					crc.update(buf, 0, n);
+				}
+			}finally
+			{
+				in.close();
+			}
+		}
+		return Long.toHexString(crc.getValue());
+	}
+
+	public long getHitCount()
+	{
+		return hits.sum();
+	}
+
+	public long getMissCount()
+	{
+		return misses.sum();
+	}
+
+	/**
+	 * @return number of files whose validators are held
+	 */
+	public int size()
+	{
+		return validators.size();
+	}
+}
@@ -0,0 +1,88 @@
+package com.adobe.connection;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author rbajaj
+ * Shared free list of equally sized heap buffers. Connections take buffers
+ * while they have bytes in flight and give them back when they go idle, so
+ * memory is held by the busy connections only, not by every open one.
+ * Buffers of another size, e.g. ones a connection had to grow, are left to
+ * the garbage collector.
+ */
+public final class BufferPool {
+
+	private final int bufferSize;
+	private final int maxPooled;
+	private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger pooled = new AtomicInteger();
+	private final LongAdder allocated = new LongAdder();
+
+	/**
+	 * @param bufferSize - capacity of every buffer
+	 * @param maxPooled - most free buffers kept, more are dropped when given back
+	 */
+	public BufferPool(int bufferSize, int maxPooled)
+	{
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * @return an empty buffer of bufferSize bytes
+	 */
+	public ByteBuffer acquire()
+	{
+		ByteBuffer buffer = free.poll();
+		if(buffer == null)
+		{
+			allocated.increment();
+			return ByteBuffer.allocate(bufferSize);
+		}
+		pooled.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Gives a buffer back; the caller must not touch it afterwards
+	 * @param buffer - null is ignored
+	 */
+	public void release(ByteBuffer buffer)
+	{
+		if(buffer == null || buffer.capacity() != bufferSize)
+		{
+			return;
+		}
+		if(pooled.incrementAndGet() > maxPooled)
+		{
+			pooled.decrementAndGet();
+			return;
+		}
+		free.offer(buffer);
+	}
+
+	public int getBufferSize()
+	{
+		return bufferSize;
+	}
+
+	/**
+	 * @return free buffers held
+	 */
+	public int size()
+	{
+		return pooled.get();
+	}
+
+	/**
+	 * @return buffers allocated because the pool was empty
+	 */
+	public long getAllocatedCount()
+	{
+		return allocated.sum();
+	}
+}
@@ -0,0 +1,219 @@
+package com.adobe.connection;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+import com.adobe.server.WebServer;
+
+/**
+ * @author rbajaj
+ * Single threaded selector loop owning many non-blocking connections
+ */
+public class EventLoop implements Runnable {
+	
+	Logger log = Logger.getLogger(this.getClass().getSimpleName());
+	
+	//how often idle connections are swept, in milliseconds
+	private static final long SWEEP_INTERVAL = 1000;
+	//most connections accepted per readiness of the listening socket, so reads are not starved
+	private static final int ACCEPT_BATCH = 64;
+	
+	private final Selector selector;
+	//server whose connections this loop serves
+	private final WebServer server;
+	private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+	private long lastSweep = System.currentTimeMillis();
+	
+	public EventLoop(WebServer server) throws IOException {
+		this.selector = Selector.open();
+		this.server = server;
+	}
+	
+	/**
+	 * Makes this loop accept connections from a listening socket itself; the
+	 * connections it accepts are served by this loop only. Must be called
+	 * before the loop runs.
+	 * @param server - bound listening channel, may be shared with other loops
+	 * @throws IOException
+	 */
+	public void listen(ServerSocketChannel server) throws IOException
+	{
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+	}
+	
+	/**
+	 * Hands an accepted channel over to this loop. May be called from any thread.
+	 * @param channel - accepted socket channel
+	 */
+	public void register(SocketChannel channel)
+	{
+		pending.add(channel);
+		selector.wakeup();
+	}
+
+	public void run()
+	{
+		try{
+			while(!Thread.interrupted())
+			{
+				selector.select(SWEEP_INTERVAL);
+				registerPending();
+				
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					if(key.channel() instanceof ServerSocketChannel)
+					{
+						if(key.isValid())
+						{
+							acceptConnections((ServerSocketChannel) key.channel());
+						}
+						continue;
+					}
+					NioHttpConnection conn = (NioHttpConnection) key.attachment();
+					if(!key.isValid())
+					{
+						conn.close();
+						continue;
+					}
+					if(key.isReadable())
+					{
+						conn.onReadable();
+					}
+					if(key.isValid() && key.isWritable())
+					{
+						conn.onWritable();
+					}
+				}
+				sweepIdleConnections();
+			}
+		}catch(ClosedSelectorException cse)
+		{
+			log.info("Event loop selector closed.");
+		}catch(IOException ioe)
+		{
+			log.error("Event loop IO Exception: " + ioe);
+		}finally
+		{
+			close();
+		}
+	}
+	
+	/**
+	 * Accepts the connections waiting on a listening socket, in a batch.
+	 * Another loop sharing the socket may have taken them already.
+	 */
+	private void acceptConnections(ServerSocketChannel server)
+	{
+		for(int i = 0; i < ACCEPT_BATCH; i++)
+		{
+			SocketChannel channel;
+			try{
+				channel = server.accept();
+			}catch(IOException ioe)
+			{
+				log.error("Cannot accept connection. IO Exception: " + ioe.getMessage());
+				return;
+			}
+			if(channel == null)
+			{
+				return;
+			}
+			registerChannel(channel);
+		}
+	}
+	
+	/**
+	 * Registers channels accepted since the last select with this loop's selector
+	 */
+	private void registerPending()
+	{
+		SocketChannel channel;
+		while((channel = pending.poll()) != null)
+		{
+			registerChannel(channel);
+		}
+	}
+	
+	private void registerChannel(SocketChannel channel)
+	{
+		try{
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+			NioHttpConnection conn = new NioHttpConnection(channel, key, server);
+			if(!conn.isAdmitted())
+			{
+				conn.refuse();
+				return;
+			}
+			key.attach(conn);
+		}catch(IOException ioe)
+		{
+			log.error("Cannot register connection: " + ioe);
+			try{
+				channel.close();
+			}catch(IOException e)
+			{
+				log.error("Error closing channel: " + e);
+			}
+		}
+	}
+	
+	/**
+	 * Closes keep alive connections which have not been active for SOCKET_TIMEOUT
+	 */
+	private void sweepIdleConnections()
+	{
+		long now = System.currentTimeMillis();
+		if(now - lastSweep < SWEEP_INTERVAL)
+		{
+			return;
+		}
+		lastSweep = now;
+		for(SelectionKey key : selector.keys())
+		{
+			NioHttpConnection conn = (NioHttpConnection) key.attachment();
+			if(conn != null && now - conn.lastActivity() > HttpConnection.SOCKET_TIMEOUT)
+			{
+				conn.close();
+			}
+		}
+	}
+	
+	/**
+	 * Close the selector and every connection registered with it
+	 */
+	private void close()
+	{
+		try{
+			if(selector.isOpen())
+			{
+				for(SelectionKey key : selector.keys())
+				{
+					NioHttpConnection conn = (NioHttpConnection) key.attachment();
+					if(conn != null)
+					{
+						conn.close();
+					}
+				}
+				selector.close();
+			}
+		}catch(Exception e)
+		{
+			log.error("Error closing event loop: " + e);
+		}
+	}
+}
@@ -0,0 +1,974 @@
+package com.adobe.connection;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.HashMap;
+
+import com.adobe.http.http2.FrameWriter;
+import com.adobe.http.http2.HeaderListener;
+import com.adobe.http.http2.HpackDecoder;
+import com.adobe.http.http2.HpackEncoder;
+import com.adobe.http.http2.Http2Exception;
+import com.adobe.http.http2.Http2Frame;
+import com.adobe.http.request.HttpHeader;
+import com.adobe.http.request.HttpParseException;
+import com.adobe.http.request.HttpRequest;
+import com.adobe.http.request.HttpRequestParser;
+import com.adobe.http.response.HttpResponse;
+import com.adobe.server.ServerConfig;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author rbajaj
+ * HTTP/2 over cleartext on a connection that started as HTTP/1.1, either
+ * with the client preface (prior knowledge) or with Upgrade: h2c. Runs on
+ * the connection's thread like the HTTP/1.1 loop it replaces.
+ *
+ * Every complete request is answered at once, in the order the requests
+ * arrived: its header list is turned back into an HTTP/1.1 head, parsed by
+ * the usual parser and served by HttpRequest into the stream, so GET and
+ * HEAD behave exactly as over HTTP/1.1. Responses are then sent
+ * multiplexed: each pass over the streams with body left writes one DATA
+ * frame per stream, as far as the connection and stream windows allow, so
+ * a large file does not hold up the small ones requested next to it. When
+ * no window is left, or the client sent something, the connection reads.
+ *
+ * Request bodies are not read; their DATA only counts against the receive
+ * window, which is given back as it is used.
+ */
+final class Http2Connection implements HeaderListener {
+
+	static Logger log = Logger.getLogger(Http2Connection.class.getSimpleName());
+
+	private static final byte[] SWITCHING_PROTOCOLS = ("HTTP/1.1 101 Switching Protocols\r\n"
+			+ "Connection: Upgrade\r\nUpgrade: h2c\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+	//request line of the preface, read by the HTTP/1.1 parser when the client starts with it
+	static final int PREFACE_REQUEST_LENGTH = 18;
+	//DATA payloads are cut at this size even if the client allows larger frames
+	private static final int MAX_DATA_FRAME = 64 * 1024;
+	//compressed header block accepted from HEADERS and CONTINUATION frames
+	private static final int MAX_HEADER_BLOCK = 2 * ServerConfig.HTTP_MAX_HEADER_BYTES;
+	private static final byte[] HTTP_2_0 = " HTTP/2.0\r\n".getBytes(StandardCharsets.US_ASCII);
+
+	private final HttpConnection connection;
+	private final InputStream in;
+	private final OutboundBuffer outbound;
+	private ByteBuffer readBuffer;
+	private final FrameWriter frames;
+	private final HpackDecoder decoder = new HpackDecoder(Http2Frame.DEFAULT_HEADER_TABLE_SIZE);
+	private final HpackEncoder encoder = new HpackEncoder();
+	private final int maxConcurrentStreams;
+	//streams answered in order, one request at a time, so one parser and request serve them all
+	private final HttpRequestParser parser = new HttpRequestParser();
+	private final HttpRequest request;
+	//open streams, and those of them with DATA to send in round robin order
+	private final HashMap<Integer, Http2Stream> streams = new HashMap<Integer, Http2Stream>();
+	private final ArrayDeque<Http2Stream> sending = new ArrayDeque<Http2Stream>();
+	//preface bytes still to be checked
+	private int prefaceOffset;
+	private boolean settingsReceived = false;
+	//highest stream the client opened
+	private int lastStreamId = 0;
+	//client's settings and the connection window it gives us
+	private long sendWindow = Http2Frame.DEFAULT_WINDOW_SIZE;
+	private int initialWindow = Http2Frame.DEFAULT_WINDOW_SIZE;
+	private int maxFrameSize = Http2Frame.DEFAULT_MAX_FRAME_SIZE;
+	//DATA bytes received and not yet given back with WINDOW_UPDATE
+	private int received = 0;
+	//header block of the stream being opened, while CONTINUATION frames are due
+	private byte[] headerBlock = new byte[1024];
+	private int headerBlockLength = 0;
+	private int headerStreamId = 0;
+	private boolean headerEndStream;
+	private boolean headerNewStream;
+	//GOAWAY sent or received: no new streams, close when the open ones are done
+	private boolean goingAway = false;
+	private byte[] scratch = null;
+
+	//HTTP/1.1 head rebuilt from the header list being decoded
+	private byte[] head = new byte[1024];
+	private int headLength;
+	private String method;
+	private String path;
+	private String scheme;
+	private String authority;
+	private boolean requestLineWritten;
+	private boolean hostSeen;
+	private String malformed;
+	//decoded size of the header list as SETTINGS_MAX_HEADER_LIST_SIZE counts it, fields past the limit are not kept
+	private int headerListSize;
+	private boolean headerListTooLarge;
+
+	/**
+	 * @param connection - serves the requests and owns the socket
+	 * @param in - socket input
+	 * @param outbound - response channel of the socket
+	 * @param readBuffer - bytes read past the HTTP/1.1 request that started HTTP/2
+	 */
+	Http2Connection(HttpConnection connection, InputStream in, OutboundBuffer outbound, ByteBuffer readBuffer)
+	{
+		this.connection = connection;
+		this.request = new HttpRequest(connection.getServer());
+		this.in = in;
+		this.outbound = outbound;
+		this.readBuffer = readBuffer;
+		this.frames = new FrameWriter(outbound);
+		this.maxConcurrentStreams = ServerConfig.HTTP2_MAX_CONCURRENT_STREAMS;
+	}
+
+	/**
+	 * Starts after the HTTP/1.1 parser read the request line of the client
+	 * preface; the rest of the preface is expected next
+	 * @throws IOException
+	 */
+	void start() throws IOException
+	{
+		prefaceOffset = PREFACE_REQUEST_LENGTH;
+		sendSettings();
+	}
+
+	/**
+	 * @param settings - value of an HTTP2-Settings header
+	 * @return the SETTINGS payload it carries, null if it is not one
+	 */
+	static byte[] decodeSettings(String settings)
+	{
+		try{
+			byte[] payload = Base64.getUrlDecoder().decode(settings.trim());
+			return payload.length % 6 == 0 ? payload : null;
+		}catch(IllegalArgumentException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Switches to HTTP/2 on an Upgrade: h2c request and answers that request
+	 * on stream 1. The client preface is expected next.
+	 * @param upgraded - the request, already parsed
+	 * @param settings - decoded HTTP2-Settings
+	 * @param arrivalNanos
+	 * @throws IOException
+	 */
+	void upgrade(HttpRequest upgraded, byte[] settings, long arrivalNanos) throws IOException
+	{
+		outbound.write(SWITCHING_PROTOCOLS, 0, SWITCHING_PROTOCOLS.length);
+		prefaceOffset = 0;
+		applySettings(settings, 0, settings.length);
+		sendSettings();
+		lastStreamId = 1;
+		Http2Stream stream = new Http2Stream(1, initialWindow);
+		stream.remoteClosed = true;
+		streams.put(1, stream);
+		respond(stream, upgraded, arrivalNanos);
+	}
+
+	private void sendSettings() throws IOException
+	{
+		frames.settings(Http2Frame.SETTINGS_MAX_CONCURRENT_STREAMS, maxConcurrentStreams,
+				Http2Frame.SETTINGS_MAX_HEADER_LIST_SIZE, ServerConfig.HTTP_MAX_HEADER_BYTES);
+	}
+
+	/**
+	 * Serves streams until the connection ends or, if it may be parked, until
+	 * it has nothing to do
+	 * @param parkable - true if the connection can wait for its next frame on the idle selector
+	 * @return true if the connection should be parked, false if it is to be closed
+	 * @throws IOException
+	 */
+	boolean serve(boolean parkable) throws IOException
+	{
+		//a connection resumed from the idle selector first reads what woke it
+		boolean read = false;
+		try{
+			while(true)
+			{
+				while(nextFrame())
+				{
+					//frames already read are handled before anything is sent
+				}
+				sendData();
+				if(goingAway && streams.isEmpty())
+				{
+					outbound.drain();
+					return false;
+				}
+				if(parkable && read && streams.isEmpty() && headerStreamId == 0 && !readBuffer.hasRemaining()
+						&& in.available() == 0)
+				{
+					outbound.drain();
+					return true;
+				}
+				outbound.drain();
+				read();
+				read = true;
+			}
+		}catch(Http2Exception h2e)
+		{
+			log.debug("HTTP/2 connection error: " + h2e.getMessage());
+			frames.goAway(lastStreamId, h2e.getErrorCode());
+			outbound.drain();
+			return false;
+		}
+	}
+
+	/**
+	 * Reads what the socket has, at least one byte
+	 * @throws IOException
+	 */
+	private void read() throws IOException
+	{
+		readBuffer.compact();
+		if(!readBuffer.hasRemaining())
+		{
+			ByteBuffer bigger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+			readBuffer.flip();
+			bigger.put(readBuffer);
+			readBuffer = bigger;
+		}
+		int read = in.read(readBuffer.array(), readBuffer.position(), readBuffer.remaining());
+		if(read < 0)
+		{
+			readBuffer.flip();
+			throw new EOFException("Connection closed by client.");
+		}
+		readBuffer.position(readBuffer.position() + read);
+		readBuffer.flip();
+	}
+
+	/**
+	 * Handles the next frame if it was read completely
+	 * @return false if more bytes are needed
+	 * @throws IOException
+	 */
+	private boolean nextFrame() throws IOException
+	{
+		byte[] b = readBuffer.array();
+		int p = readBuffer.position();
+		if(prefaceOffset < Http2Frame.PREFACE.length)
+		{
+			while(readBuffer.hasRemaining() && prefaceOffset < Http2Frame.PREFACE.length)
+			{
+				if(b[p++] != Http2Frame.PREFACE[prefaceOffset++])
+				{
+					throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid connection preface.");
+				}
+				readBuffer.position(p);
+			}
+			if(prefaceOffset < Http2Frame.PREFACE.length)
+			{
+				return false;
+			}
+		}
+		if(readBuffer.remaining() < Http2Frame.HEADER_LENGTH)
+		{
+			return false;
+		}
+		int length = Http2Frame.length(b, p);
+		if(length > Http2Frame.DEFAULT_MAX_FRAME_SIZE)
+		{
+			throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Frame of " + length + " bytes.");
+		}
+		if(readBuffer.remaining() < Http2Frame.HEADER_LENGTH + length)
+		{
+			return false;
+		}
+		int type = Http2Frame.type(b, p);
+		int flags = Http2Frame.flags(b, p);
+		int streamId = Http2Frame.streamId(b, p);
+		readBuffer.position(p + Http2Frame.HEADER_LENGTH + length);
+		if(!settingsReceived && type != Http2Frame.SETTINGS)
+		{
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Preface not followed by SETTINGS.");
+		}
+		if(headerStreamId != 0 && (type != Http2Frame.CONTINUATION || streamId != headerStreamId))
+		{
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Header block interrupted.");
+		}
+		try{
+			onFrame(type, flags, streamId, b, p + Http2Frame.HEADER_LENGTH, length);
+		}catch(Http2Exception h2e)
+		{
+			if(h2e.getStreamId() == 0)
+			{
+				throw h2e;
+			}
+			log.debug("HTTP/2 stream error: " + h2e.getMessage());
+			reset(h2e.getStreamId(), h2e.getErrorCode());
+		}
+		return true;
+	}
+
+	private void onFrame(int type, int flags, int streamId, byte[] b, int off, int length) throws IOException
+	{
+		switch(type)
+		{
+		case Http2Frame.DATA:
+			onData(flags, streamId, b, off, length);
+			break;
+		case Http2Frame.HEADERS:
+			onHeaders(flags, streamId, b, off, length);
+			break;
+		case Http2Frame.CONTINUATION:
+			if(headerStreamId == 0)
+			{
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "CONTINUATION without HEADERS.");
+			}
+			appendHeaderBlock(b, off, length, flags);
+			break;
+		case Http2Frame.PRIORITY:
+			requireStream(streamId);
+			if(length != 5)
+			{
+				throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, streamId, "PRIORITY of " + length + " bytes.");
+			}
+			break;
+		case Http2Frame.RST_STREAM:
+			requireStream(streamId);
+			if(length != 4)
+			{
+				throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "RST_STREAM of " + length + " bytes.");
+			}
+			if(streamId > lastStreamId)
+			{
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "RST_STREAM on idle stream " + streamId + ".");
+			}
+			Http2Stream stream = streams.remove(streamId);
+			if(stream != null)
+			{
+				sending.remove(stream);
+				stream.discard(outbound);
+			}
+			break;
+		case Http2Frame.SETTINGS:
+			onSettings(flags, streamId, b, off, length);
+			break;
+		case Http2Frame.PING:
+			if(streamId != 0 || length != 8)
+			{
+				throw new Http2Exception(streamId != 0 ? Http2Exception.PROTOCOL_ERROR : Http2Exception.FRAME_SIZE_ERROR, "Invalid PING.");
+			}
+			if((flags & Http2Frame.FLAG_ACK) == 0)
+			{
+				frames.pingAck(b, off);
+			}
+			break;
+		case Http2Frame.GOAWAY:
+			if(streamId != 0)
+			{
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "GOAWAY on a stream.");
+			}
+			//the client opens no more streams, the open ones are finished
+			goingAway = true;
+			break;
+		case Http2Frame.WINDOW_UPDATE:
+			onWindowUpdate(streamId, b, off, length);
+			break;
+		case Http2Frame.PUSH_PROMISE:
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PUSH_PROMISE from a client.");
+		default:
+			//unknown frame types are ignored
+		}
+	}
+
+	private void requireStream(int streamId) throws Http2Exception
+	{
+		if(streamId == 0)
+		{
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Frame needs a stream.");
+		}
+	}
+
+	/**
+	 * @return payload length without padding, checked against the frame
+	 */
+	private int unpadded(int flags, byte[] b, int off, int length) throws Http2Exception
+	{
+		if((flags & Http2Frame.FLAG_PADDED) == 0)
+		{
+			return length;
+		}
+		int padding = length > 0 ? b[off] & 0xff : length;
+		if(padding >= length)
+		{
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Padding exceeds the frame.");
+		}
+		return length - 1 - padding;
+	}
+
+	private void onData(int flags, int streamId, byte[] b, int off, int length) throws IOException
+	{
+		requireStream(streamId);
+		unpadded(flags, b, off, length);
+		if(streamId > lastStreamId)
+		{
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on idle stream " + streamId + ".");
+		}
+		//bodies are not read, the window is given back once half of it is used
+		received += length;
+		if(received >= Http2Frame.DEFAULT_WINDOW_SIZE / 2)
+		{
+			frames.windowUpdate(0, received);
+			received = 0;
+		}
+		Http2Stream stream = streams.get(streamId);
+		if(stream == null)
+		{
+			//reset or answered already, what was in flight is dropped
+			return;
+		}
+		if(stream.remoteClosed)
+		{
+			throw new Http2Exception(Http2Exception.STREAM_CLOSED, streamId, "DATA after END_STREAM.");
+		}
+		if((flags & Http2Frame.FLAG_END_STREAM) != 0)
+		{
+			stream.remoteClosed = true;
+			closeIfDone(stream);
+		}
+	}
+
+	private void onHeaders(int flags, int streamId, byte[] b, int off, int length) throws IOException
+	{
+		requireStream(streamId);
+		int end = off + unpadded(flags, b, off, length);
+		if((flags & Http2Frame.FLAG_PADDED) != 0)
+		{
+			off++;
+		}
+		if((flags & Http2Frame.FLAG_PRIORITY) != 0)
+		{
+			off += 5;
+		}
+		if(off > end)
+		{
+			throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "HEADERS too short.");
+		}
+		headerNewStream = streamId > lastStreamId;
+		if(headerNewStream)
+		{
+			if((streamId & 1) == 0)
+			{
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Client opened even stream " + streamId + ".");
+			}
+			lastStreamId = streamId;
+		}
+		headerStreamId = streamId;
+		headerEndStream = (flags & Http2Frame.FLAG_END_STREAM) != 0;
+		headerBlockLength = 0;
+		appendHeaderBlock(b, off, end - off, flags);
+	}
+
+	private void appendHeaderBlock(byte[] b, int off, int length, int flags) throws IOException
+	{
+		if(headerBlockLength + length > MAX_HEADER_BLOCK)
+		{
+			throw new Http2Exception(Http2Exception.ENHANCE_YOUR_CALM, "Header block too large.");
+		}
+		if(headerBlockLength + length > headerBlock.length)
+		{
+			byte[] grown = new byte[Math.max(headerBlock.length * 2, headerBlockLength + length)];
+			System.arraycopy(headerBlock, 0, grown, 0, headerBlockLength);
+			headerBlock = grown;
+		}
+		System.arraycopy(b, off, headerBlock, headerBlockLength, length);
+		headerBlockLength += length;
+		if((flags & Http2Frame.FLAG_END_HEADERS) != 0)
+		{
+			int streamId = headerStreamId;
+			headerStreamId = 0;
+			onHeaderBlock(streamId);
+		}
+	}
+
+	/**
+	 * Decodes a complete header block and answers the request it opened.
+	 * Every block is decoded, also those that are refused or dropped, to keep
+	 * the decoder's table in step with the client.
+	 */
+	private void onHeaderBlock(int streamId) throws IOException
+	{
+		long arrivalNanos = System.nanoTime();
+		if(!headerNewStream)
+		{
+			decoder.decode(headerBlock, 0, headerBlockLength, IGNORE);
+			Http2Stream stream = streams.get(streamId);
+			if(stream != null)
+			{
+				//trailers
+				if(stream.remoteClosed || !headerEndStream)
+				{
+					throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "HEADERS on a stream already open.");
+				}
+				stream.remoteClosed = true;
+				closeIfDone(stream);
+			}
+			return;
+		}
+		beginHead();
+		decoder.decode(headerBlock, 0, headerBlockLength, this);
+		if(goingAway || streams.size() >= maxConcurrentStreams)
+		{
+			frames.rstStream(streamId, Http2Exception.REFUSED_STREAM);
+			return;
+		}
+		if(malformed == null && !headerListTooLarge)
+		{
+			endHead();
+		}
+		if(malformed != null)
+		{
+			log.debug("Malformed HTTP/2 request: " + malformed);
+			frames.rstStream(streamId, Http2Exception.PROTOCOL_ERROR);
+			return;
+		}
+		Http2Stream stream = new Http2Stream(streamId, initialWindow);
+		stream.remoteClosed = headerEndStream;
+		streams.put(streamId, stream);
+		try{
+			if(headerListTooLarge)
+			{
+				throw new HttpParseException(HttpParseException.HEADERS_TOO_LARGE, "Header list over "
+						+ ServerConfig.HTTP_MAX_HEADER_BYTES + " bytes.");
+			}
+			if(!parser.parse(ByteBuffer.wrap(head, 0, headLength), request))
+			{
+				throw new HttpParseException(HttpParseException.BAD_REQUEST, "Incomplete request head.");
+			}
+		}catch(HttpParseException hpe)
+		{
+			parser.reset();
+			HttpResponse response = new HttpResponse(stream, true);
+			connection.respondError(hpe, response, arrivalNanos);
+			finish(stream, response);
+			return;
+		}
+		respond(stream, request, arrivalNanos);
+	}
+
+	/**
+	 * Answers a request into its stream and sends the response headers
+	 */
+	private void respond(Http2Stream stream, HttpRequest request, long arrivalNanos) throws IOException
+	{
+		HttpResponse response = new HttpResponse(stream, true);
+		connection.respond(request, response, arrivalNanos);
+		finish(stream, response);
+	}
+
+	private void finish(Http2Stream stream, HttpResponse response) throws IOException
+	{
+		stream.sendHeaders(encoder, frames, maxFrameSize);
+		if(stream.hasData())
+		{
+			sending.add(stream);
+		}
+		else
+		{
+			closeIfDone(stream);
+		}
+		if(!response.isKeepAlive() && !goingAway)
+		{
+			//the connection would be closed after this response in HTTP/1.1, e.g. for a client over its rate
+			goingAway = true;
+			frames.goAway(lastStreamId, Http2Exception.NO_ERROR);
+		}
+	}
+
+	/**
+	 * Forgets a stream whose response was sent completely. A client still
+	 * sending its request body is told to stop.
+	 */
+	private void closeIfDone(Http2Stream stream) throws IOException
+	{
+		if(!stream.isSent())
+		{
+			return;
+		}
+		streams.remove(stream.id);
+		if(!stream.remoteClosed)
+		{
+			frames.rstStream(stream.id, Http2Exception.NO_ERROR);
+		}
+	}
+
+	private void reset(int streamId, int errorCode) throws IOException
+	{
+		frames.rstStream(streamId, errorCode);
+		Http2Stream stream = streams.remove(streamId);
+		if(stream != null)
+		{
+			sending.remove(stream);
+			stream.discard(outbound);
+		}
+	}
+
+	private void onSettings(int flags, int streamId, byte[] b, int off, int length) throws IOException
+	{
+		if(streamId != 0)
+		{
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "SETTINGS on a stream.");
+		}
+		if((flags & Http2Frame.FLAG_ACK) != 0)
+		{
+			if(length != 0)
+			{
+				throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS ACK with payload.");
+			}
+			return;
+		}
+		if(length % 6 != 0)
+		{
+			throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS of " + length + " bytes.");
+		}
+		applySettings(b, off, length);
+		settingsReceived = true;
+		frames.settingsAck();
+	}
+
+	private void applySettings(byte[] b, int off, int length) throws Http2Exception
+	{
+		for(int p = off; p < off + length; p += 6)
+		{
+			int id = (b[p] & 0xff) << 8 | (b[p + 1] & 0xff);
+			int value = Http2Frame.int32(b, p + 2);
+			switch(id)
+			{
+			case Http2Frame.SETTINGS_HEADER_TABLE_SIZE:
+				encoder.setMaxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+				break;
+			case Http2Frame.SETTINGS_ENABLE_PUSH:
+				if(value != 0 && value != 1)
+				{
+					throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH.");
+				}
+				break;
+			case Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE:
+				if(value < 0)
+				{
+					throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE.");
+				}
+				int delta = value - initialWindow;
+				initialWindow = value;
+				for(Http2Stream stream : streams.values())
+				{
+					stream.sendWindow += delta;
+					if(stream.sendWindow > Integer.MAX_VALUE)
+					{
+						throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Stream window overflow.");
+					}
+				}
+				break;
+			case Http2Frame.SETTINGS_MAX_FRAME_SIZE:
+				if(value < Http2Frame.DEFAULT_MAX_FRAME_SIZE || value > Http2Frame.MAX_FRAME_SIZE_LIMIT)
+				{
+					throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE.");
+				}
+				maxFrameSize = value;
+				break;
+			default:
+				//concurrent streams and header list size limit pushes and requests, neither of which the server sends
+			}
+		}
+	}
+
+	private void onWindowUpdate(int streamId, byte[] b, int off, int length) throws Http2Exception
+	{
+		if(length != 4)
+		{
+			throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + length + " bytes.");
+		}
+		int increment = Http2Frame.int31(b, off);
+		if(streamId == 0)
+		{
+			if(increment == 0)
+			{
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "WINDOW_UPDATE of 0.");
+			}
+			sendWindow += increment;
+			if(sendWindow > Integer.MAX_VALUE)
+			{
+				throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Connection window overflow.");
+			}
+			return;
+		}
+		if(streamId > lastStreamId)
+		{
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream " + streamId + ".");
+		}
+		if(increment == 0)
+		{
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "WINDOW_UPDATE of 0.");
+		}
+		Http2Stream stream = streams.get(streamId);
+		if(stream != null)
+		{
+			stream.sendWindow += increment;
+			if(stream.sendWindow > Integer.MAX_VALUE)
+			{
+				throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, streamId, "Stream window overflow.");
+			}
+		}
+	}
+
+	/**
+	 * Writes DATA frames round robin, one per stream and pass, until the
+	 * windows are used up, every body is sent or the client sent something
+	 * @throws IOException
+	 */
+	private void sendData() throws IOException
+	{
+		int frameSize = Math.min(maxFrameSize, MAX_DATA_FRAME);
+		if(scratch == null || scratch.length < frameSize)
+		{
+			scratch = new byte[frameSize];
+		}
+		while(!sending.isEmpty() && sendWindow > 0)
+		{
+			boolean progress = false;
+			for(int i = sending.size(); i > 0 && sendWindow > 0; i--)
+			{
+				Http2Stream stream = sending.poll();
+				int max = (int) Math.min(Math.min(sendWindow, stream.sendWindow), frameSize);
+				if(max > 0)
+				{
+					int sent;
+					try{
+						sent = stream.writeData(frames, outbound, max, scratch);
+					}catch(Http2Exception h2e)
+					{
+						log.debug("HTTP/2 stream error: " + h2e.getMessage());
+						reset(stream.id, h2e.getErrorCode());
+						continue;
+					}
+					sendWindow -= sent;
+					stream.sendWindow -= sent;
+					progress = true;
+				}
+				if(stream.hasData())
+				{
+					sending.add(stream);
+				}
+				else
+				{
+					closeIfDone(stream);
+				}
+				if(outbound.isBacklogged())
+				{
+					outbound.drain();
+				}
+			}
+			if(!progress || in.available() > 0)
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Releases what the open streams hold, when the connection closes
+	 */
+	void close()
+	{
+		for(Http2Stream stream : streams.values())
+		{
+			stream.close();
+		}
+		streams.clear();
+		sending.clear();
+	}
+
+	private void beginHead()
+	{
+		headLength = 0;
+		method = null;
+		path = null;
+		scheme = null;
+		authority = null;
+		requestLineWritten = false;
+		hostSeen = false;
+		malformed = null;
+		headerListSize = 0;
+		headerListTooLarge = false;
+	}
+
+	/**
+	 * Appends a decoded field to the HTTP/1.1 head. Malformed requests are
+	 * only noted, the rest of the block still has to be decoded.
+	 */
+	public void header(String name, String value)
+	{
+		if(malformed != null || headerListTooLarge)
+		{
+			return;
+		}
+		//a small block can repeat one large table entry many times, the decoded list is what is limited
+		headerListSize += name.length() + value.length() + 32;
+		if(headerListSize > ServerConfig.HTTP_MAX_HEADER_BYTES)
+		{
+			headerListTooLarge = true;
+			return;
+		}
+		if(!isValidValue(value))
+		{
+			malformed = "invalid value of " + name;
+			return;
+		}
+		if(name.startsWith(":"))
+		{
+			if(requestLineWritten)
+			{
+				malformed = "pseudo-header " + name + " after regular fields";
+			}
+			else if(name.equals(":method") && method == null)
+			{
+				method = value;
+			}
+			else if(name.equals(":path") && path == null)
+			{
+				path = value;
+			}
+			else if(name.equals(":scheme") && scheme == null)
+			{
+				scheme = value;
+			}
+			else if(name.equals(":authority") && authority == null)
+			{
+				authority = value;
+			}
+			else
+			{
+				malformed = "unexpected pseudo-header " + name;
+			}
+			return;
+		}
+		if(!isToken(name, true) || name.equals("connection") || name.equals("keep-alive") || name.equals("proxy-connection")
+				|| name.equals("transfer-encoding") || name.equals("upgrade") || (name.equals("te") && !value.equals("trailers")))
+		{
+			malformed = "invalid field " + name;
+			return;
+		}
+		if(!requestLineWritten)
+		{
+			writeRequestLine();
+		}
+		if(name.equals("host"))
+		{
+			hostSeen = true;
+		}
+		appendField(name, value);
+	}
+
+	/**
+	 * Writes the request line, and Host from :authority, once the pseudo-header fields are known
+	 */
+	private void writeRequestLine()
+	{
+		requestLineWritten = true;
+		if(method == null || path == null || scheme == null || path.isEmpty() || !isToken(method, false) || path.indexOf(' ') >= 0)
+		{
+			malformed = "missing or invalid pseudo-header";
+			return;
+		}
+		append(method);
+		append(" ");
+		append(path);
+		ensure(HTTP_2_0.length);
+		System.arraycopy(HTTP_2_0, 0, head, headLength, HTTP_2_0.length);
+		headLength += HTTP_2_0.length;
+	}
+
+	private void endHead()
+	{
+		if(!requestLineWritten)
+		{
+			writeRequestLine();
+		}
+		if(malformed != null)
+		{
+			return;
+		}
+		if(!hostSeen && authority != null)
+		{
+			appendField(HttpHeader.HOST.headerName(), authority);
+		}
+		append("\r\n");
+	}
+
+	private void appendField(String name, String value)
+	{
+		append(name);
+		append(": ");
+		append(value);
+		append("\r\n");
+	}
+
+	private void append(String s)
+	{
+		ensure(s.length());
+		for(int i = 0; i < s.length(); i++)
+		{
+			head[headLength++] = (byte) s.charAt(i);
+		}
+	}
+
+	private void ensure(int n)
+	{
+		if(headLength + n > head.length)
+		{
+			byte[] grown = new byte[Math.max(head.length * 2, headLength + n)];
+			System.arraycopy(head, 0, grown, 0, headLength);
+			head = grown;
+		}
+	}
+
+	/**
+	 * @param lowerCase - true for field names, which must be lower case in HTTP/2
+	 * @return true if s is a token: no separators, spaces or control characters
+	 */
+	private static boolean isToken(String s, boolean lowerCase)
+	{
+		if(s.isEmpty())
+		{
+			return false;
+		}
+		for(int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			if(c <= ' ' || c >= 127 || "\"(),/:;<=>?@[\\]{}".indexOf(c) >= 0 || (lowerCase && c >= 'A' && c <= 'Z'))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return false for values with NUL, CR or LF, which could split the rebuilt head
+	 */
+	private static boolean isValidValue(String value)
+	{
+		for(int i = 0; i < value.length(); i++)
+		{
+			char c = value.charAt(i);
+			if(c == 0 || c == '\r' || c == '\n')
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	//decodes blocks whose fields are not used, only the table updates matter
+	private static final HeaderListener IGNORE = new HeaderListener() {
+		public void header(String name, String value)
+		{
+		}
+	};
+}
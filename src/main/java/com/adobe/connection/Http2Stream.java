@@ -0,0 +1,330 @@
+package com.adobe.connection;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+
+import com.adobe.http.http2.FrameWriter;
+import com.adobe.http.http2.HpackEncoder;
+import com.adobe.http.http2.Http2Exception;
+import com.adobe.http.response.ResponseChannel;
+
+/**
+ * @author rbajaj
+ * One HTTP/2 stream, from the HEADERS that opened it until its response is
+ * sent. The stream is the response channel its request is answered into, so
+ * HttpResponse serves it exactly as it serves an HTTP/1.1 request: the head
+ * it writes is kept until the response is complete and then sent as a
+ * HEADERS frame without the hop-by-hop fields, and the body is kept as the
+ * buffers, mappings and file regions it was written as. The connection cuts
+ * the body into DATA frames as the flow control windows allow.
+ */
+final class Http2Stream implements ResponseChannel {
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	final int id;
+	//bytes the client lets us send on this stream; a smaller SETTINGS_INITIAL_WINDOW_SIZE can make it negative
+	long sendWindow;
+	//the client sent END_STREAM, or the stream was opened by an upgraded request
+	boolean remoteClosed;
+	//response head as HttpResponse wrote it, up to the empty line
+	private byte[] head = new byte[512];
+	private int headLength = 0;
+	private boolean headComplete = false;
+	private final ArrayDeque<Segment> body = new ArrayDeque<Segment>();
+	//the HEADERS frame was written
+	private boolean headersSent = false;
+
+	Http2Stream(int id, long sendWindow)
+	{
+		this.id = id;
+		this.sendWindow = sendWindow;
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		if(!headComplete)
+		{
+			int taken = appendHead(b, off, len);
+			off += taken;
+			len -= taken;
+		}
+		if(len > 0)
+		{
+			//the caller may reuse its array, e.g. the header encoder for multipart part headers
+			body.add(new Segment(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)), null));
+		}
+	}
+
+	public void write(ByteBuffer src) throws IOException
+	{
+		write(src, null);
+	}
+
+	public void write(ByteBuffer src, Closeable release) throws IOException
+	{
+		body.add(new Segment(src, release));
+	}
+
+	public void transferFile(FileChannel file, long position, long count) throws IOException
+	{
+		body.add(new Segment(file, position, count));
+	}
+
+	/**
+	 * Nothing to do: the connection sends the response once it is complete
+	 */
+	public void flush() throws IOException
+	{
+	}
+
+	public boolean drain() throws IOException
+	{
+		return true;
+	}
+
+	/**
+	 * Copies head bytes up to and including the empty line that ends the head
+	 * @return bytes taken
+	 */
+	private int appendHead(byte[] b, int off, int len)
+	{
+		int taken = 0;
+		while(taken < len && !headComplete)
+		{
+			if(headLength == head.length)
+			{
+				head = Arrays.copyOf(head, head.length * 2);
+			}
+			byte c = b[off + taken++];
+			head[headLength++] = c;
+			headComplete = c == '\n' && headLength >= 4 && head[headLength - 2] == '\r'
+					&& head[headLength - 3] == '\n' && head[headLength - 4] == '\r';
+		}
+		return taken;
+	}
+
+	/**
+	 * Sends the response head as HEADERS, ending the stream there if there is
+	 * no body. Status and fields are taken from the HTTP/1.1 head; Connection,
+	 * Keep-Alive and Transfer-Encoding have no meaning in HTTP/2 and are
+	 * dropped.
+	 * @param encoder - the connection's HPACK encoder
+	 * @param frames
+	 * @param maxFrameSize - client's SETTINGS_MAX_FRAME_SIZE
+	 * @throws IOException
+	 */
+	void sendHeaders(HpackEncoder encoder, FrameWriter frames, int maxFrameSize) throws IOException
+	{
+		Iterator<Segment> segments = body.iterator();
+		while(segments.hasNext())
+		{
+			Segment segment = segments.next();
+			if(segment.remaining() == 0)
+			{
+				segment.close();
+				segments.remove();
+			}
+		}
+		encoder.reset();
+		int p = 0;
+		while(p < headLength && head[p] != ' ')
+		{
+			p++;
+		}
+		encoder.header(":status", new String(head, p + 1, 3, StandardCharsets.ISO_8859_1));
+		p = next(p);
+		while(p < headLength && head[p] != '\r')
+		{
+			int colon = p;
+			while(head[colon] != ':')
+			{
+				colon++;
+			}
+			int valueStart = colon + 1;
+			while(head[valueStart] == ' ')
+			{
+				valueStart++;
+			}
+			int end = next(valueStart);
+			String name = new String(head, p, colon - p, StandardCharsets.ISO_8859_1).toLowerCase(Locale.ROOT);
+			if(!name.equals("connection") && !name.equals("keep-alive") && !name.equals("transfer-encoding"))
+			{
+				String value = new String(head, valueStart, end - 2 - valueStart, StandardCharsets.ISO_8859_1);
+				encoder.header(name, value, !name.equals("content-length") && !name.equals("content-range"));
+			}
+			p = end;
+		}
+		frames.headers(id, encoder.buffer(), encoder.length(), body.isEmpty(), maxFrameSize);
+		headersSent = true;
+	}
+
+	/**
+	 * @return offset after the CRLF ending the line at p
+	 */
+	private int next(int p)
+	{
+		while(p < headLength && head[p++] != '\n')
+		{
+			//up to the end of the line
+		}
+		return p;
+	}
+
+	/**
+	 * Writes one DATA frame of at most max bytes, the last one with END_STREAM
+	 * @param frames
+	 * @param out - the connection's response channel
+	 * @param max - largest payload the windows and frame size allow, at least 1
+	 * @param scratch - buffer for file content, at least max bytes
+	 * @return payload bytes written
+	 * @throws IOException
+	 */
+	int writeData(FrameWriter frames, ResponseChannel out, int max, byte[] scratch) throws IOException
+	{
+		Segment segment = body.peek();
+		int n = (int) Math.min(max, segment.remaining());
+		boolean last = n == segment.remaining() && body.size() == 1;
+		if(segment.buffer != null)
+		{
+			ByteBuffer slice = segment.buffer.duplicate();
+			slice.limit(slice.position() + n);
+			segment.buffer.position(slice.limit());
+			frames.dataHeader(id, n, last);
+			if(!segment.buffer.hasRemaining() && segment.release != null)
+			{
+				//the memory has to stay valid until the channel wrote the slice
+				out.write(slice, segment.release);
+				segment.release = null;
+			}
+			else
+			{
+				out.write(slice);
+			}
+		}
+		else
+		{
+			ByteBuffer dst = ByteBuffer.wrap(scratch, 0, n);
+			while(dst.hasRemaining())
+			{
+				if(segment.file.read(dst, segment.position + dst.position()) < 0)
+				{
+					throw new Http2Exception(Http2Exception.INTERNAL_ERROR, id, "File truncated while being sent.");
+				}
+			}
+			segment.position += n;
+			segment.count -= n;
+			frames.dataHeader(id, n, last);
+			out.write(scratch, 0, n);
+		}
+		if(segment.remaining() == 0)
+		{
+			body.poll().close();
+		}
+		return n;
+	}
+
+	/**
+	 * @return true if body bytes wait for a DATA frame
+	 */
+	boolean hasData()
+	{
+		return !body.isEmpty();
+	}
+
+	/**
+	 * @return true once the whole response was written to the connection
+	 */
+	boolean isSent()
+	{
+		return headersSent && body.isEmpty();
+	}
+
+	/**
+	 * Drops what is left of the body when the stream is reset. Mappings are
+	 * released through the channel, behind slices of them it still holds.
+	 * @param out - the connection's response channel
+	 * @throws IOException
+	 */
+	void discard(ResponseChannel out) throws IOException
+	{
+		Segment segment;
+		while((segment = body.poll()) != null)
+		{
+			if(segment.release != null)
+			{
+				out.write(EMPTY, segment.release);
+				segment.release = null;
+			}
+			segment.close();
+		}
+	}
+
+	/**
+	 * Releases what the body holds, when the connection closes
+	 */
+	public void close()
+	{
+		Segment segment;
+		while((segment = body.poll()) != null)
+		{
+			segment.close();
+		}
+	}
+
+	/**
+	 * Part of a response body: a buffer, with a resource to release once it
+	 * is sent, or a region of a file
+	 */
+	private static final class Segment implements Closeable {
+		private final ByteBuffer buffer;
+		private Closeable release;
+		private final FileChannel file;
+		private long position;
+		private long count;
+
+		Segment(ByteBuffer buffer, Closeable release)
+		{
+			this.buffer = buffer;
+			this.release = release;
+			this.file = null;
+		}
+
+		Segment(FileChannel file, long position, long count)
+		{
+			this.buffer = null;
+			this.file = file;
+			this.position = position;
+			this.count = count;
+		}
+
+		long remaining()
+		{
+			return buffer != null ? buffer.remaining() : count;
+		}
+
+		public void close()
+		{
+			try{
+				if(release != null)
+				{
+					release.close();
+				}
+				if(file != null)
+				{
+					file.close();
+				}
+			}catch(IOException e)
+			{
+				//nothing left to send from it
+			}
+		}
+	}
+}
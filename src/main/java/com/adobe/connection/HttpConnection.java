@@ -1,14 +1,28 @@
 package com.adobe.connection;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
-import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+import com.adobe.http.request.HttpHeader;
+import com.adobe.http.request.HttpParseException;
 import com.adobe.http.request.HttpRequest;
+import com.adobe.http.request.HttpRequestParser;
 import com.adobe.http.response.HttpResponse;
+import com.adobe.logutils.AccessLog;
+import com.adobe.metrics.ServerMetrics;
+import com.adobe.server.ClientLimits;
+import com.adobe.server.ServerConfig;
 import com.adobe.server.WebServer;
 
 import org.apache.log4j.Logger;
@@ -19,56 +33,271 @@ import org.apache.log4j.Logger;
  */
 public class HttpConnection implements Runnable {
 	
-	Logger log = Logger.getLogger(this.getClass().getSimpleName());
+	static Logger log = Logger.getLogger(HttpConnection.class.getSimpleName());
 	
 	private Socket socket = null;
 	private WebServer webServer;
-	private static final int SOCKET_TIMEOUT = 5000;
-	private HttpRequest httpRequest = null;
+	static final int SOCKET_TIMEOUT = 5000;
+	static final int READ_BUFFER_SIZE = 8 * 1024;
+	//kept across requests: bytes read past one request belong to the next
+	private ByteBuffer readBuffer = null;
+	private final HttpRequestParser parser = new HttpRequestParser();
+	private final HttpRequest httpRequest;
+	//body of the request being answered, for handlers that read it
+	private final RequestBody requestBody = new RequestBody();
 	private HttpResponse httpResponse = null;
 	private InputStream inStream = null;
 	private OutputStream outStream = null;
+	private OutboundBuffer outbound = null;
+	//client address for the access log, encoded once per connection
+	private final byte[] remote;
+	private final ServerMetrics metrics;
+	private final ClientLimits clientLimits;
+	//null if the client already had too many connections open, released on close
+	private ClientLimits.Client client;
+	//when the request being read arrived; the first one counts from the accept, so time queued for a thread is included
+	private long arrivalNanos;
+	//when the connection was handed to the pool, by the acceptor or by the idle connection selector
+	private long queuedNanos;
+	//answered, the next bytes read start the next request
+	private boolean awaitingRequest = false;
+	//answered and kept alive, waiting for the next request
+	private boolean idle = false;
+	//set once the connection switched to HTTP/2, which then serves it
+	private Http2Connection http2 = null;
+	//HTTPS: the plain side of the connection, null for plain HTTP
+	private TlsChannel tls = null;
 	
 	public HttpConnection(Socket socket, WebServer ws){
+		this.remote = AccessLog.remote(socket.getInetAddress());
+		this.httpRequest = new HttpRequest(ws);
+		this.metrics = ws.getMetrics();
+		this.clientLimits = ws.getClientLimits();
+		this.client = clientLimits.acquire(socket.getInetAddress());
+		this.queuedNanos = System.nanoTime();
+		this.arrivalNanos = queuedNanos;
+		metrics.connectionOpened();
+		this.socket=socket;
+		this.webServer=ws;
+		//socket options are set by the pool thread, the acceptor only hands the connection over
+	}
+
+	/**
+	 * Answers the connection with 503 and closes it without reading a
+	 * request, for when the server has no capacity to serve it. Runs on the
+	 * acceptor thread for a full queue, so the write is a single small
+	 * write into an empty socket buffer.
+	 * @param timedOut - true if the connection waited too long for a thread
+	 */
+	public void reject(boolean timedOut)
+	{
+		metrics.connectionRejected(timedOut);
+		if(webServer.getTlsContext() != null)
+		{
+			//a 503 would need a handshake first, more than the acceptor can spend on an overloaded server
+			close();
+			return;
+		}
+		try{
+			byte[] response = HttpResponse.overloadedResponse();
+			OutputStream out = socket.getOutputStream();
+			out.write(response, 0, response.length);
+			socket.shutdownOutput();
+		}catch(IOException ioe)
+		{
+			log.debug("Client gone before the 503 response was sent.");
+		}
+		close();
+	}
+
+	/**
+	 * Called by the idle connection selector when the next request of a
+	 * parked connection arrived, before the connection is queued for a thread
+	 */
+	void resumed()
+	{
+		queuedNanos = System.nanoTime();
+		arrivalNanos = queuedNanos;
+		awaitingRequest = false;
+	}
+
+	/**
+	 * @return channel of the socket, null if it was not accepted from a ServerSocketChannel
+	 */
+	SocketChannel channel()
+	{
+		return socket.getChannel();
+	}
+
+	/**
+	 * @return server this connection was accepted by
+	 */
+	WebServer getServer()
+	{
+		return webServer;
+	}
+
+	/**
+	 * Closes a parked connection whose idle timeout passed
+	 */
+	void closeIdle()
+	{
+		log.debug("Idle timeout. No more requests to cater. Closing connection.");
+		close();
+	}
+
+	/**
+	 * @return false if the client had too many connections open, see refuse
+	 */
+	public boolean isAdmitted()
+	{
+		return client != null;
+	}
+
+	/**
+	 * Answers the connection of a client over its connection limit with 429
+	 * and closes it without reading a request. Runs on the acceptor thread.
+	 */
+	public void refuse()
+	{
+		metrics.connectionLimited();
+		if(webServer.getTlsContext() != null)
+		{
+			//a 429 would need a handshake first, which is what the limit saves
+			close();
+			return;
+		}
 		try{
-			this.socket=socket;
-			this.webServer=ws;
-		
-			socket.setSoTimeout(SOCKET_TIMEOUT);
-			
-		}catch(SocketException se){
-			log.error("Socket Exception: "+se);
+			byte[] response = HttpResponse.connectionLimitedResponse();
+			OutputStream out = socket.getOutputStream();
+			out.write(response, 0, response.length);
+			socket.shutdownOutput();
+		}catch(IOException ioe)
+		{
+			log.debug("Client gone before the 429 response was sent.");
 		}
-		
+		close();
 	}
 
 	public void run()
 	{ 
+		if(System.nanoTime() - queuedNanos > webServer.getMaxQueueNanos())
+		{
+			//the client has waited too long already, an answer now would likely go unread
+			reject(true);
+			return;
+		}
+		IdleConnections idleConnections = socket.getChannel() != null ? webServer.getIdleConnections() : null;
+		boolean parked = false;
 		try{
-			inStream = socket.getInputStream();
-			outStream = socket.getOutputStream();
+			//a connection resumed from the idle selector keeps its streams and buffers
+			if(outbound == null)
+			{
+				//in POOL mode idle connections are timed by the idle selector, this only catches clients stalling within a request
+				socket.setSoTimeout(SOCKET_TIMEOUT);
+				//every response leaves in one write, Nagle would only delay the last segment
+				socket.setTcpNoDelay(true);
+				outStream = socket.getOutputStream();
+				WritableByteChannel channel;
+				if(webServer.getTlsContext() != null)
+				{
+					tls = new TlsChannel(socket, webServer.getTlsContext());
+					handshake();
+					inStream = tls.inputStream();
+					channel = tls;
+				}
+				else
+				{
+					inStream = socket.getInputStream();
+					//sockets accepted from a ServerSocketChannel can send files with transferTo
+					channel = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(outStream);
+				}
+				outbound = new OutboundBuffer(channel);
+				//responses to pipelined requests leave together, see readRequest
+				outbound.setBatching(true);
+				httpResponse = new HttpResponse(outbound, true);
+				readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+				readBuffer.flip();
+			}
 			//indefinite while loop to add keep alive behavior
-		    	while(true)
+		    	while(http2 == null)
 		    	{
 		    		//parse request
-		    		httpRequest = HttpRequest.parseRequest(inStream);
+		    		readRequest();
+		    		setIdle(false);
+		    		if(startHttp2())
+		    		{
+		    			break;
+		    		}
 		    		//keep alive boolean
 		    		boolean isKeepAlive = httpRequest.keepAlive;
+		    		long length = httpRequest.getContentLength();
+		    		requestBody.reset(readBuffer, inStream, length, httpRequest.expectsContinue() ? outbound : null);
+		    		httpRequest.setBody(length > 0 ? requestBody : null);
 		    		//send response
-		    		httpResponse = new HttpResponse(outStream, isKeepAlive);
-		    		httpRequest.sendResponse(httpResponse);
-		    		if(!isKeepAlive)
+		    		httpResponse.reset(isKeepAlive);
+		    		respond(httpRequest, httpResponse, arrivalNanos);
+		    		awaitingRequest = true;
+		    		if(!httpResponse.isKeepAlive())
 		    		{
 		    			// When request contains "Connection: close" in the header
 		    			break;
 		    		}
+		    		setIdle(true);
+		    		skipBody(requestBody.remaining());
+		    		if(idleConnections != null && !readBuffer.hasRemaining() && (tls == null || !tls.hasBuffered()))
+		    		{
+		    			//nothing pipelined: wait for the next request on the idle selector, not on this thread
+		    			outbound.drain();
+		    			releaseTlsBuffers();
+		    			parked = true;
+		    			break;
+		    		}
+		    	}
+		    	if(http2 != null)
+		    	{
+		    		setIdle(false);
+		    		parked = http2.serve(idleConnections != null);
+		    		setIdle(parked);
+		    		if(parked)
+		    		{
+		    			releaseTlsBuffers();
+		    		}
+		    	}
+		    	if(!parked)
+		    	{
+		    		outbound.drain();
+		    		if(tls != null)
+		    		{
+		    			//close_notify goes out before the socket is closed
+		    			tls.close();
+		    		}
+		    		inStream.close();
+		    		outStream.close();
 		    	}
-		    	inStream.close();
-		    	outStream.close();
 		    }
 		    catch(SocketTimeoutException ste)
 		    {
-		    	log.info("Socket timeout. No more requests to cater. Closing connection.");
+		    	log.debug("Socket timeout. No more requests to cater. Closing connection.");
+		    }
+		    catch(EOFException eofe)
+		    {
+		    	log.debug("Client closed connection.");
+		    }
+		    catch(SSLException ssle)
+		    {
+		    	log.debug("TLS error: " + ssle.getMessage());
+		    }
+		    catch(HttpParseException hpe)
+		    {
+		    	httpResponse.reset(false);
+		    	respondError(hpe, httpResponse, arrivalNanos);
+		    	try{
+		    		outbound.drain();
+		    	}catch(IOException ioe)
+		    	{
+		    		log.debug("Client gone before the error response was sent.");
+		    	}
 		    }
 		    catch (IOException ioe)
 		    {
@@ -76,18 +305,221 @@ public class HttpConnection implements Runnable {
 		    }
 		    finally
 		    {
-		    	close();
-		    	log.info("Connection closed.\n");
+		    	if(!parked)
+		    	{
+		    		close();
+		    		log.debug("Connection closed.");
+		    	}
+		    }
+		    if(parked)
+		    {
+		    	//last statement: the connection may run on another thread as soon as it is parked
+		    	idleConnections.park(this);
 		    }
 	}
 	
+	/**
+	 * Answers a request, unless its client is over its request rate, and
+	 * records it in the access log and the metrics. Also serves the streams
+	 * of an HTTP/2 connection.
+	 * @param request
+	 * @param response - reset for this request
+	 * @param arrivalNanos - when the request arrived
+	 */
+	void respond(HttpRequest request, HttpResponse response, long arrivalNanos)
+	{
+		long serviceStart = System.nanoTime();
+		request.setRemote(remote);
+		if(clientLimits.tryRequest(client))
+		{
+			request.sendResponse(response);
+		}
+		else
+		{
+			//over its rate: answered without touching the file system, and the connection is closed
+			metrics.requestLimited();
+			response.sendTooManyRequests(clientLimits.retryAfterSeconds(client));
+		}
+		long end = System.nanoTime();
+		webServer.getAccessLog().log(remote, request, response);
+		metrics.recordRequest(request.getMethod(), response.getStatus(), response.getBodyBytes(),
+				end - arrivalNanos, end - serviceStart);
+	}
+
+	/**
+	 * Answers a request that could not be parsed with its error status
+	 * @param hpe
+	 * @param response - reset for this request
+	 * @param arrivalNanos - when the request arrived
+	 */
+	void respondError(HttpParseException hpe, HttpResponse response, long arrivalNanos)
+	{
+		log.debug("Bad request: " + hpe.getMessage());
+		long serviceStart = System.nanoTime();
+		response.sendError(hpe.getStatus());
+		long end = System.nanoTime();
+		webServer.getAccessLog().log(remote, null, response);
+		metrics.recordRequest(null, response.getStatus(), response.getBodyBytes(), end - arrivalNanos, end - serviceStart);
+	}
+
+	/**
+	 * Switches to HTTP/2 if the request just read starts it: the client
+	 * preface of a client that knows the server speaks it, or an upgrade to
+	 * h2c. An upgrade with invalid settings is served as HTTP/1.1.
+	 * @return true if the connection now speaks HTTP/2
+	 * @throws IOException
+	 */
+	private boolean startHttp2() throws IOException
+	{
+		if(!ServerConfig.HTTP2_ENABLED)
+		{
+			return false;
+		}
+		if(httpRequest.isHttp2Preface())
+		{
+			http2 = new Http2Connection(this, inStream, outbound, readBuffer);
+			http2.start();
+		}
+		else if(tls == null && httpRequest.isH2cUpgrade())
+		{
+			byte[] settings = Http2Connection.decodeSettings(httpRequest.getHeader(HttpHeader.HTTP2_SETTINGS));
+			if(settings == null)
+			{
+				return false;
+			}
+			http2 = new Http2Connection(this, inStream, outbound, readBuffer);
+			http2.upgrade(httpRequest, settings, arrivalNanos);
+		}
+		else
+		{
+			return false;
+		}
+		metrics.http2Started();
+		return true;
+	}
+
+	/**
+	 * Runs the TLS handshake of a new connection and records whether it
+	 * resumed an earlier session. A client that asked for h2 with ALPN goes
+	 * on with the HTTP/2 preface, which startHttp2 recognizes as for h2c.
+	 * @throws IOException if the handshake fails
+	 */
+	private void handshake() throws IOException
+	{
+		long start = System.currentTimeMillis();
+		SSLSession session;
+		try{
+			session = tls.handshake();
+		}catch(IOException ioe)
+		{
+			metrics.tlsHandshakeFailed();
+			throw ioe;
+		}
+		//a resumed session was created by an earlier handshake
+		metrics.tlsHandshake(session.getCreationTime() < start);
+	}
+	
+	/**
+	 * Gives the record buffers of a parked TLS connection back to the pool
+	 */
+	private void releaseTlsBuffers()
+	{
+		if(tls != null)
+		{
+			tls.releaseBuffers();
+		}
+	}
+	
+	/**
+	 * Parse the next request head into httpRequest. A request that already
+	 * sits in the read buffer is served right away; the batch of responses
+	 * written so far is only sent when the connection has to wait for the
+	 * client, so pipelined requests are answered with few socket writes.
+	 * @throws IOException
+	 */
+	private void readRequest() throws IOException
+	{
+		while(!parser.parse(readBuffer, httpRequest))
+		{
+			outbound.drain();
+			readBuffer.compact();
+			if(!readBuffer.hasRemaining())
+			{
+				//the parser rejects heads over its limit before this grows far
+				ByteBuffer bigger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+				readBuffer.flip();
+				bigger.put(readBuffer);
+				readBuffer = bigger;
+			}
+			int read = inStream.read(readBuffer.array(), readBuffer.position(), readBuffer.remaining());
+			if(read < 0)
+			{
+				throw new EOFException("Connection closed by client.");
+			}
+			readBuffer.position(readBuffer.position() + read);
+			readBuffer.flip();
+			if(awaitingRequest)
+			{
+				arrivalNanos = System.nanoTime();
+				awaitingRequest = false;
+			}
+		}
+	}
+	
+	private void setIdle(boolean idle)
+	{
+		if(this.idle != idle)
+		{
+			this.idle = idle;
+			metrics.connectionIdle(idle);
+		}
+	}
+	
+	/**
+	 * Discards request body bytes the response left unread. Runs after the
+	 * response, as it reuses the buffer holding the request head.
+	 * @param length
+	 * @throws IOException
+	 */
+	private void skipBody(long length) throws IOException
+	{
+		int buffered = (int) Math.min(length, readBuffer.remaining());
+		readBuffer.position(readBuffer.position() + buffered);
+		length -= buffered;
+		if(length == 0)
+		{
+			return;
+		}
+		outbound.drain();
+		byte[] scratch = readBuffer.array();
+		while(length > 0)
+		{
+			int read = inStream.read(scratch, 0, (int) Math.min(length, scratch.length));
+			if(read < 0)
+			{
+				throw new EOFException("Connection closed by client.");
+			}
+			length -= read;
+		}
+		readBuffer.clear();
+		readBuffer.limit(0);
+	}
+	
 	/**
 	 * Close all streams and sockets
 	 */
 	private void close()
 	{
+		metrics.connectionClosed(idle);
+		idle = false;
+		clientLimits.release(client);
+		client = null;
 		try
 	    {
+			if(tls != null)
+			{
+				tls.close();
+			}
 			if(inStream!=null)
 			{
 				inStream.close();
@@ -96,14 +528,14 @@ public class HttpConnection implements Runnable {
 			{
 				outStream.close();
 			}
-			if(httpRequest != null)
-			{
-				httpRequest.close();
-			}
 			if(httpResponse != null)
 			{
 				httpResponse.close();
 			}
+			if(http2 != null)
+			{
+				http2.close();
+			}
 			if(socket != null)
 			{
 				socket.close();
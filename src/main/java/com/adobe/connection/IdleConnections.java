@@ -0,0 +1,218 @@
+package com.adobe.connection;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author rbajaj
+ * Shared selector holding the kept alive connections of the thread pool
+ * mode between requests. A connection whose response is complete is parked
+ * here instead of blocking its pool thread on the read of the next request;
+ * once bytes of that request arrive it is switched back to blocking mode
+ * and handed to the pool again. Idle timeouts are kept in a timer wheel,
+ * so parked connections cost no thread and no per-socket timer.
+ */
+public class IdleConnections implements Runnable {
+
+	static Logger log = Logger.getLogger(IdleConnections.class.getSimpleName());
+
+	private static final long TICK_MILLIS = 100;
+	private static final int WHEEL_SLOTS = 512;
+
+	private final Selector selector;
+	private final Executor executor;
+	private final long idleTimeoutMillis;
+	private final TimerWheel<Parked> timeouts;
+	private final Queue<HttpConnection> pending = new ConcurrentLinkedQueue<HttpConnection>();
+	//reused by every round of the loop
+	private final List<Parked> ready = new ArrayList<Parked>();
+	private final List<Parked> expired = new ArrayList<Parked>();
+	private volatile boolean closed = false;
+
+	/**
+	 * A connection waiting here for its next request
+	 */
+	private static final class Parked {
+		final HttpConnection conn;
+		SelectionKey key;
+		TimerWheel.Timeout<Parked> timeout;
+
+		Parked(HttpConnection conn)
+		{
+			this.conn = conn;
+		}
+	}
+
+	/**
+	 * @param executor - runs a connection again once its next request arrives
+	 * @throws IOException
+	 */
+	public IdleConnections(Executor executor) throws IOException
+	{
+		this.selector = Selector.open();
+		this.executor = executor;
+		this.idleTimeoutMillis = HttpConnection.SOCKET_TIMEOUT;
+		this.timeouts = new TimerWheel<Parked>(TICK_MILLIS, WHEEL_SLOTS, System.currentTimeMillis());
+	}
+
+	/**
+	 * Parks a connection until its next request arrives. The calling thread
+	 * must not touch the connection afterwards. May be called from any thread.
+	 * @param conn - connection with nothing left to read or write
+	 */
+	void park(HttpConnection conn)
+	{
+		pending.add(conn);
+		selector.wakeup();
+	}
+
+	/**
+	 * @return number of parked connections
+	 */
+	public int size()
+	{
+		return selector.keys().size();
+	}
+
+	public void run()
+	{
+		try{
+			while(!closed && !Thread.interrupted())
+			{
+				selector.select(TICK_MILLIS);
+				registerPending();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					Parked parked = (Parked) key.attachment();
+					key.cancel();
+					timeouts.cancel(parked.timeout);
+					ready.add(parked);
+				}
+				timeouts.advance(System.currentTimeMillis(), expired);
+				for(Parked parked : expired)
+				{
+					parked.key.cancel();
+				}
+				if(!ready.isEmpty() || !expired.isEmpty())
+				{
+					//deregisters the cancelled keys, a channel must not be registered to block again
+					selector.selectNow();
+				}
+				for(Parked parked : ready)
+				{
+					resume(parked.conn);
+				}
+				for(Parked parked : expired)
+				{
+					parked.conn.closeIdle();
+				}
+				ready.clear();
+				expired.clear();
+			}
+		}catch(ClosedSelectorException cse)
+		{
+			log.info("Idle connection selector closed.");
+		}catch(IOException ioe)
+		{
+			log.error("Idle connection selector IO Exception: " + ioe);
+		}finally
+		{
+			closeAll();
+		}
+	}
+
+	/**
+	 * Registers connections parked since the last select
+	 */
+	private void registerPending()
+	{
+		HttpConnection conn;
+		long deadline = System.currentTimeMillis() + idleTimeoutMillis;
+		while((conn = pending.poll()) != null)
+		{
+			Parked parked = new Parked(conn);
+			try{
+				SocketChannel channel = conn.channel();
+				channel.configureBlocking(false);
+				parked.key = channel.register(selector, SelectionKey.OP_READ, parked);
+				parked.timeout = timeouts.schedule(parked, deadline);
+			}catch(IOException ioe)
+			{
+				log.error("Cannot park connection: " + ioe);
+				conn.closeIdle();
+			}
+		}
+	}
+
+	/**
+	 * Hands a connection whose next request arrived back to the pool
+	 */
+	private void resume(HttpConnection conn)
+	{
+		try{
+			conn.channel().configureBlocking(true);
+		}catch(IOException ioe)
+		{
+			log.error("Cannot resume connection: " + ioe);
+			conn.closeIdle();
+			return;
+		}
+		conn.resumed();
+		try{
+			executor.execute(conn);
+		}catch(RejectedExecutionException ree)
+		{
+			conn.reject(false);
+		}
+	}
+
+	/**
+	 * Stops the selector thread, which closes every connection parked on it
+	 */
+	public void close()
+	{
+		closed = true;
+		selector.wakeup();
+	}
+
+	/**
+	 * Close the selector and every connection parked on it
+	 */
+	private void closeAll()
+	{
+		try{
+			if(selector.isOpen())
+			{
+				for(SelectionKey key : selector.keys())
+				{
+					((Parked) key.attachment()).conn.closeIdle();
+				}
+				selector.close();
+			}
+			HttpConnection conn;
+			while((conn = pending.poll()) != null)
+			{
+				conn.closeIdle();
+			}
+		}catch(Exception e)
+		{
+			log.error("Error closing idle connection selector: " + e);
+		}
+	}
+}
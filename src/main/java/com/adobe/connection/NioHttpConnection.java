@@ -0,0 +1,318 @@
+package com.adobe.connection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import com.adobe.http.request.HttpParseException;
+import com.adobe.http.request.HttpRequest;
+import com.adobe.http.request.HttpRequestParser;
+import com.adobe.http.response.HttpResponse;
+import com.adobe.logutils.AccessLog;
+import com.adobe.metrics.ServerMetrics;
+import com.adobe.server.ClientLimits;
+import com.adobe.server.WebServer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author rbajaj
+ * Non-blocking connection handler driven by an {@link EventLoop}.
+ * Request heads are parsed in place in the connection's read buffer as
+ * bytes arrive and each complete request is served through the same {@link HttpRequest} / {@link HttpResponse} code
+ * as the thread pool mode, with the response queued for non-blocking writes.
+ */
+public class NioHttpConnection {
+	
+	static Logger log = Logger.getLogger(NioHttpConnection.class.getSimpleName());
+	
+	private final SocketChannel channel;
+	private final SelectionKey key;
+	private ByteBuffer readBuffer = ByteBuffer.allocate(HttpConnection.READ_BUFFER_SIZE);
+	private final HttpRequestParser parser = new HttpRequestParser();
+	private final HttpRequest httpRequest;
+	private final AccessLog accessLog;
+	private final HttpResponse httpResponse;
+	private final OutboundBuffer outbound;
+	private long bodyBytesToSkip = 0;
+	private boolean closeAfterWrite = false;
+	private long lastActivity = System.currentTimeMillis();
+	//client address for the access log, encoded once per connection
+	private final byte[] remote;
+	private final ServerMetrics metrics;
+	private final ClientLimits clientLimits;
+	//null if the client already had too many connections open, released on close
+	private ClientLimits.Client client;
+	//when the bytes completing the buffered requests were read
+	private long arrivalNanos = System.nanoTime();
+	//answered and kept alive, waiting for the next request
+	private boolean idle = false;
+	private boolean closed = false;
+	
+	public NioHttpConnection(SocketChannel channel, SelectionKey key, WebServer server)
+	{
+		this.channel = channel;
+		this.key = key;
+		this.remote = AccessLog.remote(channel.socket().getInetAddress());
+		this.outbound = new OutboundBuffer(channel);
+		//responses of one read are written together by writeOutbound
+		this.outbound.setBatching(true);
+		this.httpResponse = new HttpResponse(outbound, true);
+		this.httpRequest = new HttpRequest(server);
+		this.accessLog = server.getAccessLog();
+		this.metrics = server.getMetrics();
+		this.clientLimits = server.getClientLimits();
+		this.client = clientLimits.acquire(channel.socket().getInetAddress());
+		metrics.connectionOpened();
+	}
+	
+	/**
+	 * @return false if the client had too many connections open, see refuse
+	 */
+	boolean isAdmitted()
+	{
+		return client != null;
+	}
+	
+	/**
+	 * Answers the connection of a client over its connection limit with 429
+	 * and closes it without reading a request. The response is one small
+	 * write into an empty socket buffer.
+	 */
+	void refuse()
+	{
+		metrics.connectionLimited();
+		try{
+			channel.write(ByteBuffer.wrap(HttpResponse.connectionLimitedResponse()));
+			channel.shutdownOutput();
+		}catch(IOException ioe)
+		{
+			log.debug("Client gone before the 429 response was sent.");
+		}
+		close();
+	}
+	
+	long lastActivity()
+	{
+		return lastActivity;
+	}
+	
+	/**
+	 * Read whatever the socket has and serve every complete request in the buffer
+	 */
+	void onReadable()
+	{
+		try{
+			int read = 0;
+			//parse after every read so the buffer only grows for a head that does not fit
+			while(!closeAfterWrite && !outbound.isBacklogged() && (read = channel.read(readBuffer)) > 0)
+			{
+				lastActivity = System.currentTimeMillis();
+				arrivalNanos = System.nanoTime();
+				processRequests();
+				if(!readBuffer.hasRemaining() && !outbound.isBacklogged())
+				{
+					//the parser rejects heads over its limit before this grows far
+					growReadBuffer();
+				}
+			}
+			if(read < 0)
+			{
+				close();
+				return;
+			}
+			writeOutbound();
+		}catch(HttpParseException hpe)
+		{
+			badRequest(hpe);
+		}catch(IOException ioe)
+		{
+			log.error("Server IO Exception: " + ioe);
+			close();
+		}
+	}
+	
+	void onWritable()
+	{
+		//a slow reader of a large body is busy, not idle
+		lastActivity = System.currentTimeMillis();
+		try{
+			writeOutbound();
+		}catch(HttpParseException hpe)
+		{
+			badRequest(hpe);
+		}catch(IOException ioe)
+		{
+			log.error("Server IO Exception: " + ioe);
+			close();
+		}
+	}
+	
+	/**
+	 * Answer a request head that could not be parsed, after the responses
+	 * already queued, and close the connection
+	 * @param hpe
+	 */
+	private void badRequest(HttpParseException hpe)
+	{
+		log.debug("Bad request: " + hpe.getMessage());
+		closeAfterWrite = true;
+		httpResponse.reset(false);
+		long serviceStart = System.nanoTime();
+		httpResponse.sendError(hpe.getStatus());
+		long end = System.nanoTime();
+		accessLog.log(remote, null, httpResponse);
+		metrics.recordRequest(null, httpResponse.getStatus(), httpResponse.getBodyBytes(), end - arrivalNanos, end - serviceStart);
+		try{
+			writeOutbound();
+		}catch(IOException ioe)
+		{
+			close();
+		}
+	}
+	
+	/**
+	 * Parse and answer each request whose header block has fully arrived.
+	 * Stops early once enough responses are waiting to be written; the rest
+	 * stay in the read buffer until the socket has taken them.
+	 * @return true if at least one request was answered
+	 * @throws IOException
+	 */
+	private boolean processRequests() throws IOException
+	{
+		boolean served = false;
+		readBuffer.flip();
+		try{
+			while(!closeAfterWrite && !outbound.isBacklogged())
+			{
+				skipBody();
+				if(bodyBytesToSkip > 0)
+				{
+					break;
+				}
+				if(!parser.parse(readBuffer, httpRequest))
+				{
+					break;
+				}
+				bodyBytesToSkip = httpRequest.getContentLength();
+				setIdle(false);
+				
+				boolean isKeepAlive = httpRequest.keepAlive;
+				httpResponse.reset(isKeepAlive);
+				long serviceStart = System.nanoTime();
+				if(clientLimits.tryRequest(client))
+				{
+					httpRequest.sendResponse(httpResponse);
+				}
+				else
+				{
+					//over its rate: answered without touching the file system, and the connection is closed
+					metrics.requestLimited();
+					httpResponse.sendTooManyRequests(clientLimits.retryAfterSeconds(client));
+				}
+				long end = System.nanoTime();
+				accessLog.log(remote, httpRequest, httpResponse);
+				metrics.recordRequest(httpRequest.getMethod(), httpResponse.getStatus(), httpResponse.getBodyBytes(),
+						end - arrivalNanos, end - serviceStart);
+				served = true;
+				if(!httpResponse.isKeepAlive())
+				{
+					// When request contains "Connection: close" in the header
+					closeAfterWrite = true;
+				}
+				else
+				{
+					setIdle(true);
+				}
+			}
+		}finally
+		{
+			readBuffer.compact();
+		}
+		return served;
+	}
+	
+	/**
+	 * Discards request body bytes that nothing in the server consumes
+	 */
+	private void skipBody()
+	{
+		int skip = (int) Math.min(bodyBytesToSkip, readBuffer.remaining());
+		readBuffer.position(readBuffer.position() + skip);
+		bodyBytesToSkip -= skip;
+	}
+	
+	/**
+	 * Doubles the read buffer, keeping what it holds
+	 */
+	private void growReadBuffer()
+	{
+		ByteBuffer bigger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+		readBuffer.flip();
+		bigger.put(readBuffer);
+		readBuffer = bigger;
+	}
+	
+	/**
+	 * Write queued responses until the socket buffer is full. Requests held
+	 * back while responses were backlogged are answered once they are out.
+	 * @throws IOException
+	 */
+	private void writeOutbound() throws IOException
+	{
+		do
+		{
+			if(!outbound.drain())
+			{
+				//socket buffer full, resume when writable
+				key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+			lastActivity = System.currentTimeMillis();
+			if(closeAfterWrite)
+			{
+				close();
+				return;
+			}
+		}while(readBuffer.position() > 0 && processRequests());
+		key.interestOps(SelectionKey.OP_READ);
+	}
+	
+	/**
+	 * Counts the connection as idle, waiting for its next request, or as active
+	 */
+	private void setIdle(boolean idle)
+	{
+		if(this.idle != idle)
+		{
+			this.idle = idle;
+			metrics.connectionIdle(idle);
+		}
+	}
+	
+	/**
+	 * Close the channel and release its selection key
+	 */
+	void close()
+	{
+		if(!closed)
+		{
+			closed = true;
+			metrics.connectionClosed(idle);
+			idle = false;
+			clientLimits.release(client);
+			client = null;
+		}
+		try
+		{
+			key.cancel();
+			channel.close();
+			outbound.close();
+		}
+		catch (IOException e)
+		{
+			log.error("Error closing connection channel: " + e);
+		}
+	}
+}
@@ -0,0 +1,385 @@
+package com.adobe.connection;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import com.adobe.http.response.ResponseChannel;
+
+/**
+ * @author rbajaj
+ * Ordered queue of response bytes and file regions for one connection.
+ * 
+ * Small writes such as headers and small bodies are coalesced in a staging
+ * buffer, and the staged bytes leave together with any queued body buffers
+ * in one gathering write, so a response costs a single write system call
+ * whatever its size. Filled staging buffers are recycled, not reallocated.
+ * File regions are sent with
+ * FileChannel.transferTo (sendfile on Linux). On a blocking channel flush
+ * drains everything; on a non-blocking channel it writes what the socket
+ * accepts and the owner drains the rest when the socket becomes writable.
+ * 
+ * In batching mode flush only marks the end of a response: the owner serves
+ * every pipelined request it already holds and then drains the whole batch
+ * at once, unless the batch grows past FLUSH_THRESHOLD first.
+ */
+public class OutboundBuffer implements ResponseChannel {
+	
+	private static final int STAGING_SIZE = 16 * 1024;
+	//pending bytes at which a batch is written out without waiting for its end
+	static final int FLUSH_THRESHOLD = 64 * 1024;
+	
+	private final WritableByteChannel channel;
+	private final boolean blocking;
+	private final ArrayDeque<Segment> queue = new ArrayDeque<Segment>();
+	private ByteBuffer staging = ByteBuffer.allocate(STAGING_SIZE);
+	//written staging buffers kept for reuse
+	private final ArrayDeque<ByteBuffer> spares = new ArrayDeque<ByteBuffer>();
+	private static final int MAX_SPARES = 4;
+	//buffers handed to one gathering write, IOV_MAX is far larger
+	private static final int MAX_GATHER = 64;
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+	//bytes of the queued segments as they were queued
+	private long queuedBytes = 0;
+	private boolean batching = false;
+	
+	public OutboundBuffer(WritableByteChannel channel)
+	{
+		this.channel = channel;
+		this.blocking = !(channel instanceof SelectableChannel) || ((SelectableChannel) channel).isBlocking();
+	}
+	
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		while(len > 0)
+		{
+			if(!staging.hasRemaining())
+			{
+				sealStaging();
+			}
+			int n = Math.min(len, staging.remaining());
+			staging.put(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+	
+	public void write(ByteBuffer src) throws IOException
+	{
+		if(src.remaining() <= staging.remaining())
+		{
+			//small enough to ride along with what is staged
+			staging.put(src);
+			return;
+		}
+		sealStaging();
+		enqueue(new BufferSegment(src, null, false));
+	}
+	
+	public void write(ByteBuffer src, Closeable release) throws IOException
+	{
+		sealStaging();
+		enqueue(new BufferSegment(src, release, false));
+	}
+	
+	public void transferFile(FileChannel file, long position, long count) throws IOException
+	{
+		sealStaging();
+		enqueue(new FileRegion(file, position, count));
+	}
+	
+	public void flush() throws IOException
+	{
+		if(!batching || isBacklogged())
+		{
+			drain();
+		}
+	}
+	
+	/**
+	 * @param batching - true to hold flushed responses until drain is called
+	 */
+	public void setBatching(boolean batching)
+	{
+		this.batching = batching;
+	}
+	
+	/**
+	 * @return true if enough is waiting that no more responses should be added before draining
+	 */
+	public boolean isBacklogged()
+	{
+		return queuedBytes + staging.position() >= FLUSH_THRESHOLD;
+	}
+	
+	/**
+	 * @return true if nothing is waiting to be written
+	 */
+	public boolean isEmpty()
+	{
+		return queue.isEmpty() && staging.position() == 0;
+	}
+	
+	/**
+	 * Writes queued data until done or until a non-blocking socket is full.
+	 * Consecutive byte segments, e.g. headers followed by a cached or mapped
+	 * body, and the staged bytes behind them leave in one gathering write;
+	 * file regions in between are sent with transferTo.
+	 * @return true if everything was written
+	 * @throws IOException
+	 */
+	public boolean drain() throws IOException
+	{
+		while(true)
+		{
+			Segment head = queue.peek();
+			if(head instanceof FileRegion)
+			{
+				if(!((FileRegion) head).writeTo(channel, blocking))
+				{
+					return false;
+				}
+				release(queue.poll());
+				continue;
+			}
+			
+			//collect the run of byte segments up to the next file region
+			int count = 0;
+			int segments = 0;
+			for(Segment segment : queue)
+			{
+				if(!(segment instanceof BufferSegment) || count == MAX_GATHER - 1)
+				{
+					break;
+				}
+				gather[count++] = ((BufferSegment) segment).buffer;
+				segments++;
+			}
+			boolean withStaging = segments == queue.size() && staging.position() > 0;
+			if(withStaging)
+			{
+				staging.flip();
+				gather[count++] = staging;
+			}
+			if(count == 0)
+			{
+				return true;
+			}
+			
+			boolean complete = write(gather, count);
+			Arrays.fill(gather, 0, count, null);
+			while(segments-- > 0 && !((BufferSegment) queue.peek()).buffer.hasRemaining())
+			{
+				release(queue.poll());
+			}
+			if(withStaging)
+			{
+				//unsent staged bytes stay at the front, later writes append behind them
+				staging.compact();
+			}
+			if(!complete)
+			{
+				return false;
+			}
+		}
+	}
+	
+	/**
+	 * @return false if a non-blocking socket stopped accepting bytes
+	 */
+	private boolean write(ByteBuffer[] buffers, int count) throws IOException
+	{
+		int first = 0;
+		while(true)
+		{
+			while(first < count && !buffers[first].hasRemaining())
+			{
+				first++;
+			}
+			if(first == count)
+			{
+				return true;
+			}
+			long written;
+			if(channel instanceof GatheringByteChannel)
+			{
+				written = ((GatheringByteChannel) channel).write(buffers, first, count - first);
+			}
+			else
+			{
+				written = channel.write(buffers[first]);
+			}
+			if(written == 0 && !blocking)
+			{
+				return false;
+			}
+		}
+	}
+	
+	/**
+	 * Moves staged bytes into the queue so that they keep their order
+	 * relative to a queued segment or to a staging buffer that filled up
+	 */
+	private void sealStaging()
+	{
+		if(staging.position() == 0)
+		{
+			return;
+		}
+		staging.flip();
+		enqueue(new BufferSegment(staging, null, true));
+		staging = spares.isEmpty() ? ByteBuffer.allocate(STAGING_SIZE) : spares.poll();
+	}
+	
+	private void enqueue(Segment segment)
+	{
+		queuedBytes += segment.length();
+		queue.add(segment);
+	}
+	
+	/**
+	 * Account for a segment that has been written and free what it holds
+	 */
+	private void release(Segment segment)
+	{
+		queuedBytes -= segment.length();
+		if(segment instanceof BufferSegment && ((BufferSegment) segment).recycle && spares.size() < MAX_SPARES)
+		{
+			ByteBuffer buffer = ((BufferSegment) segment).buffer;
+			buffer.clear();
+			spares.add(buffer);
+		}
+		segment.close();
+	}
+	
+	/**
+	 * Releases whatever queued segments still hold, e.g. when the connection closes
+	 */
+	public void close()
+	{
+		for(Segment segment : queue)
+		{
+			segment.close();
+		}
+		queue.clear();
+		queuedBytes = 0;
+		staging.clear();
+	}
+	
+	/**
+	 * Queued piece of a response
+	 */
+	private interface Segment extends Closeable {
+		
+		/**
+		 * @return bytes in the segment when it was queued
+		 */
+		long length();
+		
+		void close();
+	}
+	
+	/**
+	 * Bytes queued without copying, with an optional resource released once written
+	 */
+	private static class BufferSegment implements Segment {
+		private final ByteBuffer buffer;
+		private final Closeable release;
+		private final long length;
+		//a sealed staging buffer, reusable once written
+		private final boolean recycle;
+		
+		BufferSegment(ByteBuffer buffer, Closeable release, boolean recycle)
+		{
+			this.buffer = buffer;
+			this.release = release;
+			this.length = buffer.remaining();
+			this.recycle = recycle;
+		}
+		
+		public long length()
+		{
+			return length;
+		}
+		
+		public void close()
+		{
+			if(release != null)
+			{
+				try{
+					release.close();
+				}catch(IOException e)
+				{
+					//nothing left to release
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Part of a file waiting to be transferred to the socket
+	 */
+	private static class FileRegion implements Segment {
+		private final FileChannel file;
+		private long position;
+		private long remaining;
+		private final long length;
+		
+		FileRegion(FileChannel file, long position, long count)
+		{
+			this.file = file;
+			this.position = position;
+			this.remaining = count;
+			this.length = count;
+		}
+		
+		public long length()
+		{
+			return length;
+		}
+		
+		/**
+		 * @return true once the whole region has been written
+		 */
+		boolean writeTo(WritableByteChannel target, boolean blocking) throws IOException
+		{
+			while(remaining > 0)
+			{
+				//TLS encrypts in user space, from the file into whole records
+				long sent = target instanceof TlsChannel ? ((TlsChannel) target).transferFrom(file, position, remaining)
+						: file.transferTo(position, remaining, target);
+				if(sent <= 0)
+				{
+					//a file that shrank after its length was announced never completes, whatever the socket does
+					if(position >= file.size())
+					{
+						throw new IOException("File truncated while being sent");
+					}
+					if(!blocking)
+					{
+						return false;
+					}
+				}
+				position += sent;
+				remaining -= sent;
+			}
+			return true;
+		}
+		
+		public void close()
+		{
+			try{
+				file.close();
+			}catch(IOException e)
+			{
+				//nothing left to send from this file
+			}
+		}
+	}
+}
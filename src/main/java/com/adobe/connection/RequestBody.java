@@ -0,0 +1,106 @@
+package com.adobe.connection;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * @author rbajaj
+ * Body of the request being answered, as declared by its Content-Length.
+ * Bytes already read with the head come from the read buffer, the rest
+ * from the connection, and never more than the declared length, so the
+ * next request stays where the connection expects it. What a handler
+ * leaves unread is skipped after the response.
+ *
+ * A client that sent Expect: 100-continue is told to go on before the
+ * first read that has to wait for the body, so a body nobody reads is
+ * never asked for.
+ */
+final class RequestBody extends InputStream {
+
+	private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes();
+
+	private ByteBuffer readBuffer;
+	private InputStream in;
+	private long remaining;
+	//where 100 Continue is written, null once sent or if not expected
+	private OutboundBuffer continueTo;
+
+	/**
+	 * Prepares for the body of the next request
+	 * @param readBuffer - connection's read buffer, positioned after the request head
+	 * @param in - the connection's input
+	 * @param length - declared body length
+	 * @param continueTo - where to send 100 Continue, null if the client did not ask for it
+	 */
+	void reset(ByteBuffer readBuffer, InputStream in, long length, OutboundBuffer continueTo)
+	{
+		this.readBuffer = readBuffer;
+		this.in = in;
+		this.remaining = length;
+		this.continueTo = continueTo;
+	}
+
+	/**
+	 * @return body bytes not read yet
+	 */
+	long remaining()
+	{
+		return remaining;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if(remaining == 0)
+		{
+			return -1;
+		}
+		if(len == 0)
+		{
+			return 0;
+		}
+		int n = (int) Math.min(len, remaining);
+		if(readBuffer.hasRemaining())
+		{
+			n = Math.min(n, readBuffer.remaining());
+			readBuffer.get(b, off, n);
+		}
+		else
+		{
+			if(continueTo != null)
+			{
+				continueTo.write(CONTINUE, 0, CONTINUE.length);
+				continueTo.drain();
+				continueTo = null;
+			}
+			n = in.read(b, off, n);
+			if(n < 0)
+			{
+				throw new EOFException("Connection closed by client within the request body.");
+			}
+		}
+		remaining -= n;
+		return n;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		byte[] one = new byte[1];
+		return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+	}
+
+	@Override
+	public int available()
+	{
+		return (int) Math.min(remaining, readBuffer.remaining());
+	}
+
+	@Override
+	public void close()
+	{
+		//the rest is skipped by the connection
+	}
+}
@@ -0,0 +1,160 @@
+package com.adobe.connection;
+
+import java.util.Collection;
+
+/**
+ * @author rbajaj
+ * Hashed timer wheel for connection timeouts. Deadlines are rounded up to
+ * a tick and hashed into one of a power of two number of slots; each slot
+ * is a doubly linked list, so scheduling and cancelling cost O(1) however
+ * many connections are waiting, and advancing the clock only visits the
+ * slots of the ticks that passed. Entries more than one turn of the wheel
+ * ahead stay in their slot until their round comes.
+ *
+ * Not thread safe: owned by one thread, e.g. the idle connection selector.
+ */
+final class TimerWheel<T> {
+
+	/**
+	 * A scheduled item, used to cancel it
+	 */
+	static final class Timeout<T> {
+		final T item;
+		long deadlineTick;
+		Timeout<T> prev;
+		Timeout<T> next;
+		boolean scheduled;
+
+		Timeout(T item)
+		{
+			this.item = item;
+		}
+	}
+
+	private final long tickMillis;
+	private final Timeout<T>[] slots;
+	private final int mask;
+	//last tick whose slot was expired
+	private long currentTick;
+	private int size = 0;
+
+	/**
+	 * @param tickMillis - resolution, deadlines fire up to one tick late
+	 * @param slotCount - rounded up to a power of two
+	 * @param nowMillis - current time
+	 */
+	TimerWheel(long tickMillis, int slotCount, long nowMillis)
+	{
+		this.tickMillis = tickMillis;
+		int n = Integer.highestOneBit(Math.max(2, slotCount) * 2 - 1);
+		this.slots = newSlots(n);
+		this.mask = n - 1;
+		this.currentTick = nowMillis / tickMillis;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> Timeout<T>[] newSlots(int count)
+	{
+		return (Timeout<T>[]) new Timeout<?>[count];
+	}
+
+	/**
+	 * @param item
+	 * @param deadlineMillis - time at which the item expires
+	 * @return handle to cancel the timeout
+	 */
+	Timeout<T> schedule(T item, long deadlineMillis)
+	{
+		Timeout<T> timeout = new Timeout<T>(item);
+		//round up, never earlier than the next tick
+		long tick = Math.max((deadlineMillis + tickMillis - 1) / tickMillis, currentTick + 1);
+		timeout.deadlineTick = tick;
+		int slot = (int) (tick & mask);
+		timeout.next = slots[slot];
+		if(timeout.next != null)
+		{
+			timeout.next.prev = timeout;
+		}
+		slots[slot] = timeout;
+		timeout.scheduled = true;
+		size++;
+		return timeout;
+	}
+
+	/**
+	 * @param timeout - scheduled or already expired or cancelled
+	 * @return true if it was still scheduled
+	 */
+	boolean cancel(Timeout<T> timeout)
+	{
+		if(!timeout.scheduled)
+		{
+			return false;
+		}
+		unlink(timeout);
+		return true;
+	}
+
+	/**
+	 * Moves the wheel to the current time
+	 * @param nowMillis
+	 * @param expired - receives the items whose deadline has passed
+	 * @return number of items expired
+	 */
+	int advance(long nowMillis, Collection<T> expired)
+	{
+		long nowTick = nowMillis / tickMillis;
+		int count = 0;
+		//after a long pause every slot is visited once rather than once per tick
+		long ticks = Math.min(nowTick - currentTick, slots.length);
+		for(long t = 1; t <= ticks; t++)
+		{
+			Timeout<T> timeout = slots[(int) ((currentTick + t) & mask)];
+			while(timeout != null)
+			{
+				Timeout<T> next = timeout.next;
+				if(timeout.deadlineTick <= nowTick)
+				{
+					unlink(timeout);
+					expired.add(timeout.item);
+					count++;
+				}
+				timeout = next;
+			}
+		}
+		if(nowTick > currentTick)
+		{
+			currentTick = nowTick;
+		}
+		return count;
+	}
+
+	/**
+	 * @return number of scheduled items
+	 */
+	int size()
+	{
+		return size;
+	}
+
+	private void unlink(Timeout<T> timeout)
+	{
+		int slot = (int) (timeout.deadlineTick & mask);
+		if(timeout.prev != null)
+		{
+			timeout.prev.next = timeout.next;
+		}
+		else
+		{
+			slots[slot] = timeout.next;
+		}
+		if(timeout.next != null)
+		{
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.scheduled = false;
+		size--;
+	}
+}
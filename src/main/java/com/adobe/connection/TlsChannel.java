@@ -0,0 +1,471 @@
+package com.adobe.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * @author rbajaj
+ * TLS over the blocking socket of one connection, done by an SSLEngine.
+ * Reads and writes plain bytes like the socket they replace: the read side
+ * backs the connection's input stream, the write side is the channel its
+ * OutboundBuffer drains into. Gathering writes put the pieces of a response
+ * into one record, so headers and a small body cost one record, not two.
+ *
+ * Socket reads go through the socket's input stream, so the socket timeout
+ * applies as it does without TLS. The record buffers come from the pool of
+ * the TlsContext and go back to it while the connection is parked; reads
+ * and writes take them again as needed.
+ */
+final class TlsChannel implements GatheringByteChannel, ReadableByteChannel {
+
+	private static final ByteBuffer[] NOTHING = {ByteBuffer.allocate(0)};
+
+	private final Socket socket;
+	private final SSLEngine engine;
+	private final BufferPool pool;
+	private final InputStream socketIn;
+	private final OutputStream socketOut;
+	//records read from the socket and not yet decrypted, in write mode
+	private ByteBuffer netIn = null;
+	//decrypted bytes not yet read, in read mode
+	private ByteBuffer appIn = null;
+	//encrypted records on their way to the socket
+	private ByteBuffer netOut = null;
+	private final InputStream in = new Input();
+	private boolean open = true;
+	private boolean inboundDone = false;
+
+	TlsChannel(Socket socket, TlsContext tls) throws IOException
+	{
+		this.socket = socket;
+		this.engine = tls.newEngine();
+		this.pool = tls.buffers();
+		this.socketIn = socket.getInputStream();
+		this.socketOut = socket.getOutputStream();
+	}
+
+	/**
+	 * Runs the handshake to its end
+	 * @return the negotiated session
+	 * @throws IOException if it fails or the client goes away
+	 */
+	SSLSession handshake() throws IOException
+	{
+		acquireBuffers();
+		engine.beginHandshake();
+		continueHandshake();
+		return engine.getSession();
+	}
+
+	/**
+	 * @return protocol chosen with ALPN, empty or null if none
+	 */
+	String applicationProtocol()
+	{
+		try{
+			return (String) SSLEngine.class.getMethod("getApplicationProtocol").invoke(engine);
+		}catch(ReflectiveOperationException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Wraps and unwraps handshake messages until the engine has none left,
+	 * also for the messages that follow a handshake, e.g. TLS 1.3 tickets
+	 */
+	private void continueHandshake() throws IOException
+	{
+		while(true)
+		{
+			HandshakeStatus status = engine.getHandshakeStatus();
+			if(status == HandshakeStatus.NEED_TASK)
+			{
+				Runnable task;
+				while((task = engine.getDelegatedTask()) != null)
+				{
+					task.run();
+				}
+			}
+			else if(status == HandshakeStatus.NEED_WRAP)
+			{
+				wrap(NOTHING, 0, 1);
+			}
+			else if(status == HandshakeStatus.NEED_UNWRAP)
+			{
+				if(!unwrap() && readRecords() < 0)
+				{
+					throw new SSLException("Connection closed during the TLS handshake.");
+				}
+			}
+			else
+			{
+				return;
+			}
+		}
+	}
+
+	public int read(ByteBuffer dst) throws IOException
+	{
+		if(!open)
+		{
+			throw new ClosedChannelException();
+		}
+		acquireBuffers();
+		while(!appIn.hasRemaining())
+		{
+			if(inboundDone)
+			{
+				return -1;
+			}
+			if(!unwrap() && readRecords() < 0)
+			{
+				//closed without close_notify: requests are framed by length, nothing is lost
+				inboundDone = true;
+				return -1;
+			}
+		}
+		int n = Math.min(dst.remaining(), appIn.remaining());
+		int limit = appIn.limit();
+		appIn.limit(appIn.position() + n);
+		dst.put(appIn);
+		appIn.limit(limit);
+		return n;
+	}
+
+	/**
+	 * Decrypts the next record read
+	 * @return false if a whole record has to be read first
+	 */
+	private boolean unwrap() throws IOException
+	{
+		while(true)
+		{
+			netIn.flip();
+			appIn.compact();
+			SSLEngineResult result;
+			try{
+				result = engine.unwrap(netIn, appIn);
+			}finally
+			{
+				netIn.compact();
+				appIn.flip();
+			}
+			switch(result.getStatus())
+			{
+			case BUFFER_UNDERFLOW:
+				if(!netIn.hasRemaining())
+				{
+					//a record larger than the pool's buffers, allowed by some peers
+					netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+				}
+				return false;
+			case BUFFER_OVERFLOW:
+				appIn = grow(appIn, engine.getSession().getApplicationBufferSize() + appIn.remaining());
+				continue;
+			case CLOSED:
+				inboundDone = true;
+				if(engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP)
+				{
+					//answers close_notify with ours
+					continueHandshake();
+				}
+				return true;
+			default:
+				if(result.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING
+						&& result.getHandshakeStatus() != HandshakeStatus.FINISHED)
+				{
+					continueHandshake();
+				}
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Reads what the socket has into netIn
+	 * @return bytes read, -1 at end of stream
+	 */
+	private int readRecords() throws IOException
+	{
+		int read = socketIn.read(netIn.array(), netIn.arrayOffset() + netIn.position(), netIn.remaining());
+		if(read > 0)
+		{
+			netIn.position(netIn.position() + read);
+		}
+		return read;
+	}
+
+	public int write(ByteBuffer src) throws IOException
+	{
+		return (int) write(new ByteBuffer[] {src}, 0, 1);
+	}
+
+	public long write(ByteBuffer[] srcs) throws IOException
+	{
+		return write(srcs, 0, srcs.length);
+	}
+
+	/**
+	 * Encrypts and sends all of srcs, in records of up to 16 KB
+	 */
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+	{
+		if(!open)
+		{
+			throw new ClosedChannelException();
+		}
+		acquireBuffers();
+		long written = 0;
+		do{
+			written += wrap(srcs, offset, length);
+		}while(hasRemaining(srcs, offset, length));
+		return written;
+	}
+
+	/**
+	 * Sends file content read into a pool buffer, a whole record at a time;
+	 * transferTo to a channel that is not a socket would use 8 KB records
+	 * @return bytes sent
+	 */
+	long transferFrom(FileChannel file, long position, long count) throws IOException
+	{
+		ByteBuffer plain = pool.acquire();
+		try{
+			long sent = 0;
+			while(sent < count)
+			{
+				plain.clear();
+				plain.limit((int) Math.min(plain.capacity(), count - sent));
+				int read = file.read(plain, position + sent);
+				if(read <= 0)
+				{
+					break;
+				}
+				plain.flip();
+				write(plain);
+				sent += read;
+			}
+			return sent;
+		}finally
+		{
+			pool.release(plain);
+		}
+	}
+
+	/**
+	 * Wraps one record and writes it to the socket
+	 * @return plain bytes consumed
+	 */
+	private int wrap(ByteBuffer[] srcs, int offset, int length) throws IOException
+	{
+		while(true)
+		{
+			netOut.clear();
+			SSLEngineResult result = engine.wrap(srcs, offset, length, netOut);
+			switch(result.getStatus())
+			{
+			case BUFFER_OVERFLOW:
+				netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+				continue;
+			case CLOSED:
+				flushRecords();
+				if(result.bytesConsumed() == 0 && hasRemaining(srcs, offset, length))
+				{
+					throw new SSLException("TLS session closed.");
+				}
+				return result.bytesConsumed();
+			default:
+				flushRecords();
+				if(result.getHandshakeStatus() == HandshakeStatus.NEED_TASK
+						|| result.getHandshakeStatus() == HandshakeStatus.NEED_WRAP)
+				{
+					continueHandshake();
+				}
+				return result.bytesConsumed();
+			}
+		}
+	}
+
+	private void flushRecords() throws IOException
+	{
+		if(netOut.position() > 0)
+		{
+			socketOut.write(netOut.array(), netOut.arrayOffset(), netOut.position());
+			netOut.clear();
+		}
+	}
+
+	private static boolean hasRemaining(ByteBuffer[] srcs, int offset, int length)
+	{
+		for(int i = offset; i < offset + length; i++)
+		{
+			if(srcs[i].hasRemaining())
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return a larger buffer with the content of buffer, which is given back to the pool
+	 */
+	private ByteBuffer grow(ByteBuffer buffer, int minimum)
+	{
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(minimum, buffer.capacity() * 2));
+		buffer.flip();
+		bigger.put(buffer);
+		pool.release(buffer);
+		//appIn is kept in read mode
+		if(buffer == appIn)
+		{
+			bigger.flip();
+		}
+		return bigger;
+	}
+
+	private void acquireBuffers()
+	{
+		if(netIn == null)
+		{
+			netIn = pool.acquire();
+			appIn = pool.acquire();
+			appIn.flip();
+			netOut = pool.acquire();
+		}
+	}
+
+	/**
+	 * @return true if read bytes wait in the channel, encrypted or not
+	 */
+	boolean hasBuffered()
+	{
+		return netIn != null && (netIn.position() > 0 || appIn.hasRemaining());
+	}
+
+	/**
+	 * Gives the record buffers back to the pool, when the connection is
+	 * parked with nothing buffered
+	 */
+	void releaseBuffers()
+	{
+		if(netIn == null || hasBuffered())
+		{
+			return;
+		}
+		pool.release(netIn);
+		pool.release(appIn);
+		pool.release(netOut);
+		netIn = null;
+		appIn = null;
+		netOut = null;
+	}
+
+	/**
+	 * @return plain bytes of the connection as a stream
+	 */
+	InputStream inputStream()
+	{
+		return in;
+	}
+
+	public boolean isOpen()
+	{
+		return open;
+	}
+
+	/**
+	 * Sends close_notify, best effort, and gives the buffers back. The socket
+	 * is closed by the connection. Parked connections are in non-blocking
+	 * mode and close without close_notify, like a plain connection that times out.
+	 */
+	public void close()
+	{
+		if(!open)
+		{
+			return;
+		}
+		open = false;
+		if(socket.getChannel() != null && !socket.getChannel().isBlocking())
+		{
+			releaseBuffers();
+			return;
+		}
+		try{
+			engine.closeOutbound();
+			if(netOut == null)
+			{
+				acquireBuffers();
+			}
+			while(!engine.isOutboundDone())
+			{
+				netOut.clear();
+				engine.wrap(NOTHING, netOut);
+				if(netOut.position() == 0)
+				{
+					break;
+				}
+				flushRecords();
+			}
+		}catch(IOException e)
+		{
+			//the client is gone already
+		}finally
+		{
+			pool.release(netIn);
+			pool.release(appIn);
+			pool.release(netOut);
+			netIn = null;
+			appIn = null;
+			netOut = null;
+		}
+	}
+
+	/**
+	 * Plain side of the channel as the stream the connection reads requests from
+	 */
+	private final class Input extends InputStream {
+
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			return len == 0 ? 0 : TlsChannel.this.read(ByteBuffer.wrap(b, off, len));
+		}
+
+		public int read() throws IOException
+		{
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+		}
+
+		/**
+		 * @return decrypted bytes waiting, or 1 if records or socket bytes wait
+		 */
+		public int available() throws IOException
+		{
+			if(netIn != null && appIn.hasRemaining())
+			{
+				return appIn.remaining();
+			}
+			return (netIn != null && netIn.position() > 0) || socketIn.available() > 0 ? 1 : 0;
+		}
+
+		public void close()
+		{
+			//closed with the connection
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package com.adobe.connection;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+
+import com.adobe.server.ServerConfig;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author rbajaj
+ * Server side TLS settings shared by the connections of one server: the
+ * SSLContext with its tuned session cache, the enabled protocol versions,
+ * the ALPN protocols offered and the pool of record buffers.
+ *
+ * Repeat clients skip the full key exchange in two ways: TLS 1.2 clients
+ * present the id of a session still in the server's cache, TLS 1.3 clients
+ * a ticket from an earlier connection. With session tickets enabled the
+ * ticket carries the encrypted session state itself, so resumption works
+ * even for sessions that were evicted from the cache.
+ */
+public final class TlsContext {
+
+	static Logger log = Logger.getLogger(TlsContext.class.getSimpleName());
+
+	//JSSE reads it once, before the first SSLContext of the JVM is initialized
+	private static final String SESSION_TICKETS_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+	//free record buffers kept for connections that start or resume
+	private static final int MAX_POOLED_BUFFERS = 1024;
+
+	private final SSLContext context;
+	private final String[] protocols;
+	//ALPN protocols in the server's order of preference, null for none
+	private final String[] applicationProtocols;
+	private final BufferPool buffers;
+
+	/**
+	 * @param context - initialized with the server's key
+	 * @param protocols - enabled protocol versions, e.g. TLSv1.3, TLSv1.2; the JDK's defaults if empty
+	 * @param sessionCacheSize - sessions the server remembers for resumption, 0 for no limit
+	 * @param sessionTimeoutSeconds - how long a session can be resumed
+	 * @param http2 - offer h2 with ALPN
+	 */
+	public TlsContext(SSLContext context, String[] protocols, int sessionCacheSize, int sessionTimeoutSeconds, boolean http2)
+	{
+		this.context = context;
+		SSLSessionContext sessions = context.getServerSessionContext();
+		sessions.setSessionCacheSize(sessionCacheSize);
+		sessions.setSessionTimeout(sessionTimeoutSeconds);
+		SSLEngine probe = context.createSSLEngine();
+		this.protocols = supported(protocols, probe.getSupportedProtocols());
+		this.applicationProtocols = http2 ? new String[] {"h2", "http/1.1"} : null;
+		if(this.protocols.length > 0)
+		{
+			probe.setEnabledProtocols(this.protocols);
+		}
+		//every buffer fits a whole record, encrypted or not
+		int bufferSize = Math.max(probe.getSession().getPacketBufferSize(), probe.getSession().getApplicationBufferSize());
+		this.buffers = new BufferPool(bufferSize, MAX_POOLED_BUFFERS);
+	}
+
+	/**
+	 * @return the context described by the webserver.tls properties, null if no keystore is configured
+	 * @throws IOException if the keystore cannot be read
+	 * @throws GeneralSecurityException if it holds no usable key
+	 */
+	public static TlsContext fromConfig() throws IOException, GeneralSecurityException
+	{
+		if(ServerConfig.TLS_KEYSTORE.isEmpty())
+		{
+			return null;
+		}
+		if(System.getProperty(SESSION_TICKETS_PROPERTY) == null)
+		{
+			System.setProperty(SESSION_TICKETS_PROPERTY, Boolean.toString(ServerConfig.TLS_SESSION_TICKETS));
+		}
+		SSLContext context = load(ServerConfig.TLS_KEYSTORE, ServerConfig.TLS_KEYSTORE_PASSWORD.toCharArray(),
+				ServerConfig.TLS_KEYSTORE_TYPE);
+		return new TlsContext(context, ServerConfig.TLS_PROTOCOLS.split("\\s*,\\s*"), ServerConfig.TLS_SESSION_CACHE_SIZE,
+				ServerConfig.TLS_SESSION_TIMEOUT_SECONDS, ServerConfig.HTTP2_ENABLED);
+	}
+
+	/**
+	 * @param keystore - path of the keystore holding the server's key and certificate chain
+	 * @param password - of the keystore and the key
+	 * @param type - keystore type, e.g. PKCS12
+	 * @return a server context using the key
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	public static SSLContext load(String keystore, char[] password, String type) throws IOException, GeneralSecurityException
+	{
+		KeyStore keys = KeyStore.getInstance(type);
+		InputStream in = new FileInputStream(keystore);
+		try{
+			keys.load(in, password);
+		}finally
+		{
+			in.close();
+		}
+		KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		factory.init(keys, password);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(factory.getKeyManagers(), null, null);
+		return context;
+	}
+
+	/**
+	 * @return wanted protocols the JDK supports, in the order given
+	 */
+	private static String[] supported(String[] wanted, String[] supported)
+	{
+		List<String> supportedList = Arrays.asList(supported);
+		List<String> enabled = new ArrayList<String>();
+		for(String protocol : wanted)
+		{
+			if(supportedList.contains(protocol))
+			{
+				enabled.add(protocol);
+			}
+			else if(!protocol.isEmpty())
+			{
+				log.info("TLS protocol " + protocol + " is not supported by this JDK");
+			}
+		}
+		return enabled.toArray(new String[enabled.size()]);
+	}
+
+	/**
+	 * @return a server side engine for one connection
+	 */
+	SSLEngine newEngine()
+	{
+		SSLEngine engine = context.createSSLEngine();
+		engine.setUseClientMode(false);
+		if(protocols.length > 0)
+		{
+			engine.setEnabledProtocols(protocols);
+		}
+		if(applicationProtocols != null && SET_APPLICATION_PROTOCOLS != null)
+		{
+			SSLParameters parameters = engine.getSSLParameters();
+			try{
+				SET_APPLICATION_PROTOCOLS.invoke(parameters, (Object) applicationProtocols);
+				engine.setSSLParameters(parameters);
+			}catch(ReflectiveOperationException e)
+			{
+				log.error("Cannot offer ALPN protocols: " + e);
+			}
+		}
+		return engine;
+	}
+
+	/**
+	 * @return record buffers shared by the connections
+	 */
+	BufferPool buffers()
+	{
+		return buffers;
+	}
+
+	/**
+	 * @return the server's session cache
+	 */
+	public SSLSessionContext getSessionContext()
+	{
+		return context.getServerSessionContext();
+	}
+
+	//ALPN is not part of the JDK 8 API before 8u252, so it is looked up reflectively
+	private static final Method SET_APPLICATION_PROTOCOLS = applicationProtocolsSetter();
+
+	private static Method applicationProtocolsSetter()
+	{
+		try{
+			return SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+		}catch(NoSuchMethodException e)
+		{
+			log.info("ALPN needs JDK 9 or 8u252 and newer, HTTP/2 is not offered over TLS");
+			return null;
+		}
+	}
+}
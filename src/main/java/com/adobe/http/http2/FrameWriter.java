@@ -0,0 +1,119 @@
+package com.adobe.http.http2;
+
+import java.io.IOException;
+
+import com.adobe.http.response.ResponseChannel;
+
+/**
+ * @author rbajaj
+ * Writes HTTP/2 frames of one connection into its response channel. Control
+ * frames are assembled in a small reusable array and copied into the
+ * channel's staging buffer, so they leave with the next write; DATA payloads
+ * are written by the caller right behind the header from dataHeader.
+ */
+public final class FrameWriter {
+
+	private final ResponseChannel out;
+	private final byte[] frame = new byte[Http2Frame.HEADER_LENGTH + 8 + 6 * 8];
+
+	/**
+	 * @param out - the connection's response channel
+	 */
+	public FrameWriter(ResponseChannel out) {
+		this.out = out;
+	}
+
+	/**
+	 * @param settings - pairs of setting identifier and value
+	 * @throws IOException
+	 */
+	public void settings(int... settings) throws IOException {
+		int off = Http2Frame.header(frame, 0, settings.length * 3, Http2Frame.SETTINGS, 0, 0);
+		for (int i = 0; i < settings.length; i += 2) {
+			frame[off++] = (byte) (settings[i] >>> 8);
+			frame[off++] = (byte) settings[i];
+			off = Http2Frame.putInt32(frame, off, settings[i + 1]);
+		}
+		out.write(frame, 0, off);
+	}
+
+	public void settingsAck() throws IOException {
+		out.write(frame, 0, Http2Frame.header(frame, 0, 0, Http2Frame.SETTINGS, Http2Frame.FLAG_ACK, 0));
+	}
+
+	/**
+	 * Answers a PING with the same 8 bytes
+	 * @param payload
+	 * @param off
+	 * @throws IOException
+	 */
+	public void pingAck(byte[] payload, int off) throws IOException {
+		int end = Http2Frame.header(frame, 0, 8, Http2Frame.PING, Http2Frame.FLAG_ACK, 0);
+		System.arraycopy(payload, off, frame, end, 8);
+		out.write(frame, 0, end + 8);
+	}
+
+	/**
+	 * @param lastStreamId - highest stream that was or will be processed
+	 * @param errorCode
+	 * @throws IOException
+	 */
+	public void goAway(int lastStreamId, int errorCode) throws IOException {
+		int off = Http2Frame.header(frame, 0, 8, Http2Frame.GOAWAY, 0, 0);
+		off = Http2Frame.putInt32(frame, off, lastStreamId);
+		out.write(frame, 0, Http2Frame.putInt32(frame, off, errorCode));
+	}
+
+	public void rstStream(int streamId, int errorCode) throws IOException {
+		int off = Http2Frame.header(frame, 0, 4, Http2Frame.RST_STREAM, 0, streamId);
+		out.write(frame, 0, Http2Frame.putInt32(frame, off, errorCode));
+	}
+
+	/**
+	 * @param streamId - 0 for the connection window
+	 * @param increment - 1 to 2^31-1
+	 * @throws IOException
+	 */
+	public void windowUpdate(int streamId, int increment) throws IOException {
+		int off = Http2Frame.header(frame, 0, 4, Http2Frame.WINDOW_UPDATE, 0, streamId);
+		out.write(frame, 0, Http2Frame.putInt32(frame, off, increment));
+	}
+
+	/**
+	 * Writes a header block as a HEADERS frame, followed by CONTINUATION
+	 * frames if it is larger than a frame may be
+	 * @param streamId
+	 * @param block - HPACK encoded header block
+	 * @param length
+	 * @param endStream - true if no DATA follows
+	 * @param maxFrameSize - peer's SETTINGS_MAX_FRAME_SIZE
+	 * @throws IOException
+	 */
+	public void headers(int streamId, byte[] block, int length, boolean endStream, int maxFrameSize) throws IOException {
+		int type = Http2Frame.HEADERS;
+		int off = 0;
+		do {
+			int n = Math.min(length - off, maxFrameSize);
+			int flags = off + n == length ? Http2Frame.FLAG_END_HEADERS : 0;
+			if (endStream && type == Http2Frame.HEADERS) {
+				flags |= Http2Frame.FLAG_END_STREAM;
+			}
+			out.write(frame, 0, Http2Frame.header(frame, 0, n, type, flags, streamId));
+			out.write(block, off, n);
+			off += n;
+			type = Http2Frame.CONTINUATION;
+		} while (off < length);
+	}
+
+	/**
+	 * Writes the header of a DATA frame; the caller writes its payload next
+	 * @param streamId
+	 * @param length - payload bytes
+	 * @param endStream - true for the last frame of the response
+	 * @throws IOException
+	 */
+	public void dataHeader(int streamId, int length, boolean endStream) throws IOException {
+		out.write(frame, 0, Http2Frame.header(frame, 0, length, Http2Frame.DATA,
+				endStream ? Http2Frame.FLAG_END_STREAM : 0, streamId));
+	}
+}
@@ -0,0 +1,15 @@
+package com.adobe.http.http2;
+
+/**
+ * @author rbajaj
+ * Receives the fields of a header block as HpackDecoder decodes them
+ */
+public interface HeaderListener {
+
+	/**
+	 * @param name - lower case field name, pseudo-header fields start with ':'
+	 * @param value
+	 * @throws Http2Exception to reset the stream or end the connection
+	 */
+	void header(String name, String value) throws Http2Exception;
+}
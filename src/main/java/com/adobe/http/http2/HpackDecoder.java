@@ -0,0 +1,132 @@
+package com.adobe.http.http2;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author rbajaj
+ * HPACK header block decoder (RFC 7541) for the request headers of one
+ * connection. Blocks have to be decoded in the order they were sent, also
+ * those of streams that are refused, since each may change the dynamic
+ * table. Any error leaves the table out of step with the peer's encoder, so
+ * it is a connection error.
+ */
+public final class HpackDecoder {
+
+	private final HpackTable table;
+	//SETTINGS_HEADER_TABLE_SIZE we announced, the most the encoder may use
+	private final int maxTableSize;
+
+	//results of readInt and readString, next to the offset they return
+	private int lastInt;
+	private String lastString;
+
+	/**
+	 * @param maxTableSize - SETTINGS_HEADER_TABLE_SIZE sent to the peer
+	 */
+	public HpackDecoder(int maxTableSize) {
+		this.maxTableSize = maxTableSize;
+		this.table = new HpackTable(maxTableSize);
+	}
+
+	/**
+	 * Decodes a complete header block
+	 * @param b
+	 * @param off
+	 * @param len
+	 * @param listener - receives every field in order
+	 * @throws Http2Exception for malformed blocks, or as thrown by the listener
+	 */
+	public void decode(byte[] b, int off, int len, HeaderListener listener) throws Http2Exception {
+		int end = off + len;
+		int p = off;
+		boolean fieldSeen = false;
+		while (p < end) {
+			int c = b[p] & 0xff;
+			String name;
+			String value;
+			if ((c & 0x80) != 0) {
+				//indexed field
+				p = readInt(b, p, end, 7);
+				int index = lastInt;
+				if (index == 0) {
+					throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Header table index 0.");
+				}
+				name = table.name(index);
+				value = table.value(index);
+			} else if ((c & 0xe0) == 0x20) {
+				//dynamic table size update, only ahead of the first field
+				p = readInt(b, p, end, 5);
+				if (fieldSeen || lastInt > maxTableSize) {
+					throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Invalid header table size update.");
+				}
+				table.setMaxSize(lastInt);
+				continue;
+			} else {
+				//literal with incremental indexing (6 bit prefix), without indexing or never indexed (4 bit prefix)
+				boolean indexing = (c & 0x40) != 0;
+				p = readInt(b, p, end, indexing ? 6 : 4);
+				if (lastInt == 0) {
+					p = readString(b, p, end);
+					name = lastString;
+				} else {
+					name = table.name(lastInt);
+				}
+				p = readString(b, p, end);
+				value = lastString;
+				if (indexing) {
+					table.add(name, value);
+				}
+			}
+			fieldSeen = true;
+			listener.header(name, value);
+		}
+	}
+
+	/**
+	 * Reads a prefix coded integer (RFC 7541 section 5.1) into lastInt
+	 * @return offset after it
+	 */
+	private int readInt(byte[] b, int p, int end, int prefix) throws Http2Exception {
+		int max = (1 << prefix) - 1;
+		int value = b[p++] & max;
+		if (value == max) {
+			int shift = 0;
+			int c;
+			do {
+				if (p == end || shift > 21) {
+					throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Invalid integer in header block.");
+				}
+				c = b[p++] & 0xff;
+				value += (c & 0x7f) << shift;
+				shift += 7;
+			} while ((c & 0x80) != 0);
+		}
+		lastInt = value;
+		return p;
+	}
+
+	/**
+	 * Reads a string literal (RFC 7541 section 5.2) into lastString
+	 * @return offset after it
+	 */
+	private int readString(byte[] b, int p, int end) throws Http2Exception {
+		if (p == end) {
+			throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Truncated header block.");
+		}
+		boolean huffman = (b[p] & 0x80) != 0;
+		p = readInt(b, p, end, 7);
+		int length = lastInt;
+		if (length > end - p) {
+			throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Truncated header block.");
+		}
+		lastString = huffman ? Huffman.decode(b, p, length) : new String(b, p, length, StandardCharsets.ISO_8859_1);
+		return p + length;
+	}
+
+	/**
+	 * @return current size of the dynamic table
+	 */
+	int tableSize() {
+		return table.size();
+	}
+}
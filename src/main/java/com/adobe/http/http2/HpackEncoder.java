@@ -0,0 +1,150 @@
+package com.adobe.http.http2;
+
+/**
+ * @author rbajaj
+ * HPACK header block encoder (RFC 7541) for the response headers of one
+ * connection. A field already in the static or dynamic table costs one
+ * index; others are sent as literals, by default added to the dynamic table
+ * so that the next response of the connection can refer to them. Strings
+ * are Huffman coded when that is shorter. Blocks must be sent in the order
+ * they are encoded.
+ */
+public final class HpackEncoder {
+
+	private final HpackTable table = new HpackTable(Http2Frame.DEFAULT_HEADER_TABLE_SIZE);
+	private byte[] buf = new byte[256];
+	private int len = 0;
+	//table size the peer has to be told about at the start of the next block, -1 if none
+	private int pendingSize = -1;
+	//smallest size set since the last block, signalled first if it is below pendingSize
+	private int lowestSize = -1;
+
+	/**
+	 * Applies the peer's SETTINGS_HEADER_TABLE_SIZE from the next block on;
+	 * the table never grows past the default size whatever the peer allows
+	 * @param size
+	 */
+	public void setMaxTableSize(int size) {
+		size = Math.min(size, Http2Frame.DEFAULT_HEADER_TABLE_SIZE);
+		if (size == table.maxSize() && pendingSize < 0) {
+			return;
+		}
+		lowestSize = lowestSize < 0 ? size : Math.min(lowestSize, size);
+		pendingSize = size;
+	}
+
+	/**
+	 * Starts a new header block, dropping the previous one. A table size
+	 * change is signalled at its start, the smallest size first if the table
+	 * shrank and grew again since the last block.
+	 */
+	public void reset() {
+		len = 0;
+		if (pendingSize >= 0) {
+			if (lowestSize < pendingSize) {
+				table.setMaxSize(lowestSize);
+				writeInt(0x20, 5, lowestSize);
+			}
+			table.setMaxSize(pendingSize);
+			writeInt(0x20, 5, pendingSize);
+			pendingSize = -1;
+			lowestSize = -1;
+		}
+	}
+
+	/**
+	 * Appends a field, indexed into the dynamic table
+	 * @param name - lower case field name
+	 * @param value
+	 */
+	public void header(String name, String value) {
+		header(name, value, true);
+	}
+
+	/**
+	 * Appends a field
+	 * @param name - lower case field name
+	 * @param value
+	 * @param index - false for values unlikely to repeat, e.g. Content-Length
+	 */
+	public void header(String name, String value, boolean index) {
+		int i = table.indexOf(name, value);
+		if (i > 0) {
+			writeInt(0x80, 7, i);
+			return;
+		}
+		int nameIndex = table.indexOfName(name);
+		if (index) {
+			writeInt(0x40, 6, nameIndex);
+		} else {
+			writeInt(0x00, 4, nameIndex);
+		}
+		if (nameIndex == 0) {
+			writeString(name);
+		}
+		writeString(value);
+		if (index) {
+			table.add(name, value);
+		}
+	}
+
+	/**
+	 * @return the block encoded since reset
+	 */
+	public byte[] buffer() {
+		return buf;
+	}
+
+	/**
+	 * @return bytes encoded since reset
+	 */
+	public int length() {
+		return len;
+	}
+
+	/**
+	 * Writes a prefix coded integer (RFC 7541 section 5.1)
+	 * @param first - bits above the prefix in the first byte
+	 */
+	private void writeInt(int first, int prefix, int value) {
+		ensure(6);
+		int max = (1 << prefix) - 1;
+		if (value < max) {
+			buf[len++] = (byte) (first | value);
+			return;
+		}
+		buf[len++] = (byte) (first | max);
+		value -= max;
+		while (value >= 0x80) {
+			buf[len++] = (byte) (value & 0x7f | 0x80);
+			value >>>= 7;
+		}
+		buf[len++] = (byte) value;
+	}
+
+	/**
+	 * Writes a string literal (RFC 7541 section 5.2), Huffman coded if shorter
+	 */
+	private void writeString(String s) {
+		int huffman = Huffman.encodedLength(s);
+		if (huffman < s.length()) {
+			writeInt(0x80, 7, huffman);
+			ensure(huffman);
+			len = Huffman.encode(s, buf, len);
+		} else {
+			writeInt(0x00, 7, s.length());
+			ensure(s.length());
+			for (int i = 0; i < s.length(); i++) {
+				buf[len++] = (byte) s.charAt(i);
+			}
+		}
+	}
+
+	private void ensure(int n) {
+		if (len + n > buf.length) {
+			byte[] grown = new byte[Math.max(buf.length * 2, len + n)];
+			System.arraycopy(buf, 0, grown, 0, len);
+			buf = grown;
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package com.adobe.http.http2;
+
+import java.util.HashMap;
+
+/**
+ * @author rbajaj
+ * HPACK header table (RFC 7541 section 2.3): the 61 static entries followed
+ * by the dynamic entries of one direction of a connection, newest first.
+ * The dynamic part is a ring of parallel name and value arrays; an entry
+ * costs its name and value length plus 32 bytes of the table size, and the
+ * oldest entries are evicted to keep the size within the maximum.
+ */
+final class HpackTable {
+
+	private static final String[][] STATIC = {
+		{":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+		{":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+		{":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"},
+		{":status", "404"}, {":status", "500"}, {"accept-charset", ""}, {"accept-encoding", "gzip, deflate"},
+		{"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""}, {"access-control-allow-origin", ""},
+		{"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+		{"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+		{"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""},
+		{"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""},
+		{"from", ""}, {"host", ""}, {"if-match", ""}, {"if-modified-since", ""},
+		{"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""}, {"last-modified", ""},
+		{"link", ""}, {"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""},
+		{"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+		{"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+		{"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""},
+		{"www-authenticate", ""}
+	};
+
+	static final int STATIC_LENGTH = STATIC.length;
+	static final int ENTRY_OVERHEAD = 32;
+
+	//static index of each name and of each name and value pair
+	private static final HashMap<String, Integer> STATIC_NAMES = new HashMap<String, Integer>();
+	private static final HashMap<String, Integer> STATIC_FIELDS = new HashMap<String, Integer>();
+
+	static {
+		for (int i = STATIC_LENGTH; i > 0; i--) {
+			STATIC_NAMES.put(STATIC[i - 1][0], i);
+			STATIC_FIELDS.put(STATIC[i - 1][0] + '\0' + STATIC[i - 1][1], i);
+		}
+	}
+
+	private String[] names = new String[16];
+	private String[] values = new String[16];
+	//slot of the newest entry
+	private int first = 0;
+	private int count = 0;
+	private int size = 0;
+	private int maxSize;
+
+	/**
+	 * @param maxSize - initial maximum size, SETTINGS_HEADER_TABLE_SIZE
+	 */
+	HpackTable(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @param index - 1 based index over static and dynamic entries
+	 * @return name of the entry
+	 * @throws Http2Exception if there is no such entry
+	 */
+	String name(int index) throws Http2Exception {
+		if (index > 0 && index <= STATIC_LENGTH) {
+			return STATIC[index - 1][0];
+		}
+		return names[slot(index)];
+	}
+
+	/**
+	 * @param index - 1 based index over static and dynamic entries
+	 * @return value of the entry
+	 * @throws Http2Exception if there is no such entry
+	 */
+	String value(int index) throws Http2Exception {
+		if (index > 0 && index <= STATIC_LENGTH) {
+			return STATIC[index - 1][1];
+		}
+		return values[slot(index)];
+	}
+
+	private int slot(int index) throws Http2Exception {
+		int k = index - STATIC_LENGTH - 1;
+		if (index <= 0 || k >= count) {
+			throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Invalid header table index " + index + ".");
+		}
+		return (first + k) & (names.length - 1);
+	}
+
+	/**
+	 * @return index of the entry with this name and value, 0 if there is none
+	 */
+	int indexOf(String name, String value) {
+		Integer index = STATIC_FIELDS.get(name + '\0' + value);
+		if (index != null) {
+			return index;
+		}
+		int mask = names.length - 1;
+		for (int k = 0; k < count; k++) {
+			int slot = (first + k) & mask;
+			if (values[slot].equals(value) && names[slot].equals(name)) {
+				return STATIC_LENGTH + 1 + k;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @return index of an entry with this name, 0 if there is none
+	 */
+	int indexOfName(String name) {
+		Integer index = STATIC_NAMES.get(name);
+		if (index != null) {
+			return index;
+		}
+		int mask = names.length - 1;
+		for (int k = 0; k < count; k++) {
+			if (names[(first + k) & mask].equals(name)) {
+				return STATIC_LENGTH + 1 + k;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Adds an entry as the newest, evicting the oldest ones to make room. An
+	 * entry larger than the table empties it and is not added.
+	 */
+	void add(String name, String value) {
+		int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+		evict(maxSize - entrySize);
+		if (entrySize > maxSize) {
+			return;
+		}
+		if (count == names.length) {
+			grow();
+		}
+		first = (first - 1) & (names.length - 1);
+		names[first] = name;
+		values[first] = value;
+		count++;
+		size += entrySize;
+	}
+
+	/**
+	 * @param maxSize - new maximum size, entries that no longer fit are evicted
+	 */
+	void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		evict(maxSize);
+	}
+
+	int maxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return sum of the entry sizes
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return number of dynamic entries
+	 */
+	int length() {
+		return count;
+	}
+
+	private void evict(int limit) {
+		int mask = names.length - 1;
+		while (size > Math.max(limit, 0) && count > 0) {
+			int slot = (first + count - 1) & mask;
+			size -= names[slot].length() + values[slot].length() + ENTRY_OVERHEAD;
+			names[slot] = null;
+			values[slot] = null;
+			count--;
+		}
+	}
+
+	private void grow() {
+		String[] n = new String[names.length * 2];
+		String[] v = new String[values.length * 2];
+		for (int k = 0; k < count; k++) {
+			int slot = (first + k) & (names.length - 1);
+			n[k] = names[slot];
+			v[k] = values[slot];
+		}
+		names = n;
+		values = v;
+		first = 0;
+	}
+}
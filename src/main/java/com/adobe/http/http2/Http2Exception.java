@@ -0,0 +1,60 @@
+package com.adobe.http.http2;
+
+import java.io.IOException;
+
+/**
+ * @author rbajaj
+ * HTTP/2 protocol violation. Carries the error code to send and the stream
+ * it concerns: an error on stream 0 ends the connection with GOAWAY, one on
+ * another stream only resets that stream.
+ */
+public class Http2Exception extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int NO_ERROR = 0x0;
+	public static final int PROTOCOL_ERROR = 0x1;
+	public static final int INTERNAL_ERROR = 0x2;
+	public static final int FLOW_CONTROL_ERROR = 0x3;
+	public static final int STREAM_CLOSED = 0x5;
+	public static final int FRAME_SIZE_ERROR = 0x6;
+	public static final int REFUSED_STREAM = 0x7;
+	public static final int CANCEL = 0x8;
+	public static final int COMPRESSION_ERROR = 0x9;
+	public static final int ENHANCE_YOUR_CALM = 0xb;
+
+	private final int errorCode;
+	private final int streamId;
+
+	/**
+	 * Connection error
+	 */
+	public Http2Exception(int errorCode, String message) {
+		this(errorCode, 0, message);
+	}
+
+	/**
+	 * @param errorCode
+	 * @param streamId - stream to reset, 0 to end the connection
+	 * @param message
+	 */
+	public Http2Exception(int errorCode, int streamId, String message) {
+		super(message);
+		this.errorCode = errorCode;
+		this.streamId = streamId;
+	}
+
+	/**
+	 * @return error code for RST_STREAM or GOAWAY
+	 */
+	public int getErrorCode() {
+		return errorCode;
+	}
+
+	/**
+	 * @return stream to reset, 0 if the connection has to go
+	 */
+	public int getStreamId() {
+		return streamId;
+	}
+}
@@ -0,0 +1,115 @@
+package com.adobe.http.http2;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author rbajaj
+ * HTTP/2 frame layout (RFC 7540 section 4): a 9 byte header of 24 bit
+ * payload length, type, flags and 31 bit stream id, then the payload. Frame
+ * types, flags and settings the server knows, and helpers to read the
+ * big-endian fields in place.
+ */
+public final class Http2Frame {
+
+	/** Connection preface every client starts with */
+	public static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+	public static final int HEADER_LENGTH = 9;
+
+	public static final int DATA = 0x0;
+	public static final int HEADERS = 0x1;
+	public static final int PRIORITY = 0x2;
+	public static final int RST_STREAM = 0x3;
+	public static final int SETTINGS = 0x4;
+	public static final int PUSH_PROMISE = 0x5;
+	public static final int PING = 0x6;
+	public static final int GOAWAY = 0x7;
+	public static final int WINDOW_UPDATE = 0x8;
+	public static final int CONTINUATION = 0x9;
+
+	public static final int FLAG_END_STREAM = 0x1;
+	public static final int FLAG_ACK = 0x1;
+	public static final int FLAG_END_HEADERS = 0x4;
+	public static final int FLAG_PADDED = 0x8;
+	public static final int FLAG_PRIORITY = 0x20;
+
+	public static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	public static final int SETTINGS_ENABLE_PUSH = 0x2;
+	public static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	public static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	public static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+	public static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+	/** Window of a connection or stream until a SETTINGS or WINDOW_UPDATE changes it */
+	public static final int DEFAULT_WINDOW_SIZE = 65535;
+	/** Largest payload until the peer allows more */
+	public static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+	public static final int MAX_FRAME_SIZE_LIMIT = 16777215;
+	public static final int DEFAULT_HEADER_TABLE_SIZE = 4096;
+
+	private Http2Frame() {
+	}
+
+	/**
+	 * @return payload length of the frame header at off
+	 */
+	public static int length(byte[] b, int off) {
+		return (b[off] & 0xff) << 16 | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff);
+	}
+
+	/**
+	 * @return type of the frame header at off
+	 */
+	public static int type(byte[] b, int off) {
+		return b[off + 3] & 0xff;
+	}
+
+	/**
+	 * @return flags of the frame header at off
+	 */
+	public static int flags(byte[] b, int off) {
+		return b[off + 4] & 0xff;
+	}
+
+	/**
+	 * @return stream id of the frame header at off
+	 */
+	public static int streamId(byte[] b, int off) {
+		return int31(b, off + 5);
+	}
+
+	/**
+	 * @return 32 bit field without its reserved top bit
+	 */
+	public static int int31(byte[] b, int off) {
+		return int32(b, off) & 0x7fffffff;
+	}
+
+	public static int int32(byte[] b, int off) {
+		return (b[off] & 0xff) << 24 | (b[off + 1] & 0xff) << 16 | (b[off + 2] & 0xff) << 8 | (b[off + 3] & 0xff);
+	}
+
+	/**
+	 * Writes a frame header
+	 * @return offset after it
+	 */
+	public static int header(byte[] dst, int off, int length, int type, int flags, int streamId) {
+		dst[off] = (byte) (length >>> 16);
+		dst[off + 1] = (byte) (length >>> 8);
+		dst[off + 2] = (byte) length;
+		dst[off + 3] = (byte) type;
+		dst[off + 4] = (byte) flags;
+		return putInt32(dst, off + 5, streamId);
+	}
+
+	/**
+	 * @return offset after the field
+	 */
+	public static int putInt32(byte[] dst, int off, int value) {
+		dst[off] = (byte) (value >>> 24);
+		dst[off + 1] = (byte) (value >>> 16);
+		dst[off + 2] = (byte) (value >>> 8);
+		dst[off + 3] = (byte) value;
+		return off + 4;
+	}
+}
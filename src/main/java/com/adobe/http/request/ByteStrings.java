@@ -0,0 +1,163 @@
+package com.adobe.http.request;
+
+/**
+ * @author rbajaj
+ * ASCII helpers working directly on request bytes.
+ * 
+ * intern() maps bytes to a String through a fixed size, direct mapped table:
+ * the first occurrence allocates, later occurrences of the same bytes return
+ * the very same String. Methods, paths and header values of a hot request
+ * mix therefore cost no allocation. Slots are overwritten on collision and
+ * read without locking, which is safe because Strings are immutable.
+ */
+final class ByteStrings {
+	
+	private static final int TABLE_SIZE = 4096;
+	//longer values are rare and not worth keeping
+	private static final int MAX_INTERNED_LENGTH = 256;
+	private static final String[] TABLE = new String[TABLE_SIZE];
+	private static final String[] LOWER_TABLE = new String[TABLE_SIZE];
+	
+	private ByteStrings() {
+	}
+	
+	/**
+	 * @param b
+	 * @param off
+	 * @param len
+	 * @param lowerCase - ASCII lower case the result
+	 * @return String of the ISO-8859-1 bytes, shared with earlier calls for the same bytes
+	 */
+	static String intern(byte[] b, int off, int len, boolean lowerCase) {
+		int h = 0;
+		for (int i = off; i < off + len; i++) {
+			h = 31 * h + (lowerCase ? toLower(b[i]) : (b[i] & 0xff));
+		}
+		String[] table = lowerCase ? LOWER_TABLE : TABLE;
+		int slot = (h ^ (h >>> 16)) & (TABLE_SIZE - 1);
+		String s = table[slot];
+		if (s != null && s.hashCode() == h && matches(s, b, off, len, lowerCase)) {
+			return s;
+		}
+		char[] chars = new char[len];
+		for (int i = 0; i < len; i++) {
+			chars[i] = (char) (lowerCase ? toLower(b[off + i]) : (b[off + i] & 0xff));
+		}
+		s = new String(chars);
+		if (len <= MAX_INTERNED_LENGTH) {
+			table[slot] = s;
+		}
+		return s;
+	}
+	
+	private static boolean matches(String s, byte[] b, int off, int len, boolean lowerCase) {
+		if (s.length() != len) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			int c = lowerCase ? toLower(b[off + i]) : (b[off + i] & 0xff);
+			if (s.charAt(i) != c) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @param lower - expected bytes in lower case
+	 * @return true if b[off, off+len) equals lower ignoring ASCII case
+	 */
+	static boolean equalsIgnoreCase(byte[] b, int off, int len, byte[] lower) {
+		if (len != lower.length) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			if (toLower(b[off + i]) != lower[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return true if b[off, off+len) equals expected byte for byte
+	 */
+	static boolean equals(byte[] b, int off, int len, byte[] expected) {
+		if (len != expected.length) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			if (b[off + i] != expected[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return true if b[off, off+len) equals s ignoring ASCII case
+	 */
+	static boolean equalsIgnoreCase(byte[] b, int off, int len, String s) {
+		if (len != s.length()) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if (toLower(b[off + i]) != (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @param lower - token in lower case
+	 * @return true if the comma separated list b[off, off+len) contains the token, ignoring case
+	 */
+	static boolean containsToken(byte[] b, int off, int len, byte[] lower) {
+		int end = off + len;
+		int i = off;
+		while (i < end) {
+			while (i < end && (b[i] == ' ' || b[i] == '\t' || b[i] == ',')) {
+				i++;
+			}
+			int start = i;
+			while (i < end && b[i] != ',') {
+				i++;
+			}
+			int tokenEnd = i;
+			while (tokenEnd > start && (b[tokenEnd - 1] == ' ' || b[tokenEnd - 1] == '\t')) {
+				tokenEnd--;
+			}
+			if (equalsIgnoreCase(b, start, tokenEnd - start, lower)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @param b
+	 * @param off - first byte of a qvalue, e.g. "0.5"
+	 * @param end
+	 * @return the weight in thousandths, 0 to 1000
+	 */
+	static int qValue(byte[] b, int off, int end) {
+		if (off >= end || (b[off] != '0' && b[off] != '1')) {
+			return 0;
+		}
+		int q = (b[off] - '0') * 1000;
+		int scale = 100;
+		if (off + 1 < end && b[off + 1] == '.') {
+			for (int i = off + 2; i < end && scale > 0 && b[i] >= '0' && b[i] <= '9'; i++) {
+				q += (b[i] - '0') * scale;
+				scale /= 10;
+			}
+		}
+		return Math.min(q, 1000);
+	}
+	
+	static int toLower(byte c) {
+		return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c & 0xff;
+	}
+}
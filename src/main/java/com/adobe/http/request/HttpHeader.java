@@ -0,0 +1,85 @@
+package com.adobe.http.request;
+
+/**
+ * @author rbajaj
+ * Request header names the server looks at, matched case-insensitively
+ * against raw header bytes without creating Strings.
+ */
+public enum HttpHeader {
+	
+	HOST("Host"),
+	CONNECTION("Connection"),
+	CONTENT_LENGTH("Content-Length"),
+	TRANSFER_ENCODING("Transfer-Encoding"),
+	ACCEPT("Accept"),
+	ACCEPT_ENCODING("Accept-Encoding"),
+	ACCEPT_LANGUAGE("Accept-Language"),
+	IF_NONE_MATCH("If-None-Match"),
+	IF_MODIFIED_SINCE("If-Modified-Since"),
+	RANGE("Range"),
+	IF_RANGE("If-Range"),
+	USER_AGENT("User-Agent"),
+	REFERER("Referer"),
+	UPGRADE("Upgrade"),
+	HTTP2_SETTINGS("HTTP2-Settings"),
+	COOKIE("Cookie"),
+	AUTHORIZATION("Authorization"),
+	CACHE_CONTROL("Cache-Control"),
+	PRAGMA("Pragma"),
+	ORIGIN("Origin"),
+	EXPECT("Expect"),
+	KEEP_ALIVE("Keep-Alive"),
+	TE("TE"),
+	X_FORWARDED_FOR("X-Forwarded-For");
+	
+	private static final int MAX_LENGTH = 32;
+	//names bucketed by length so a lookup compares against very few candidates
+	private static final HttpHeader[][] BY_LENGTH = new HttpHeader[MAX_LENGTH + 1][];
+	
+	static {
+		for (HttpHeader header : values()) {
+			int len = header.bytes.length;
+			HttpHeader[] bucket = BY_LENGTH[len];
+			HttpHeader[] grown = new HttpHeader[bucket == null ? 1 : bucket.length + 1];
+			if (bucket != null) {
+				System.arraycopy(bucket, 0, grown, 0, bucket.length);
+			}
+			grown[grown.length - 1] = header;
+			BY_LENGTH[len] = grown;
+		}
+	}
+	
+	private final String name;
+	//lower case ASCII
+	private final byte[] bytes;
+	
+	private HttpHeader(String name) {
+		this.name = name;
+		this.bytes = name.toLowerCase().getBytes();
+	}
+	
+	/**
+	 * @return canonical header name
+	 */
+	public String headerName() {
+		return name;
+	}
+	
+	/**
+	 * @param b
+	 * @param off
+	 * @param len
+	 * @return the known header with this name in any letter case, or null
+	 */
+	static HttpHeader lookup(byte[] b, int off, int len) {
+		if (len > MAX_LENGTH || BY_LENGTH[len] == null) {
+			return null;
+		}
+		for (HttpHeader header : BY_LENGTH[len]) {
+			if (ByteStrings.equalsIgnoreCase(b, off, len, header.bytes)) {
+				return header;
+			}
+		}
+		return null;
+	}
+}
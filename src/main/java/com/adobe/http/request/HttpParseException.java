@@ -0,0 +1,30 @@
+package com.adobe.http.request;
+
+import java.io.IOException;
+
+/**
+ * @author rbajaj
+ * Malformed or oversized request head. Carries the status line to answer with.
+ */
+public class HttpParseException extends IOException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	public static final String BAD_REQUEST = "400 Bad Request";
+	public static final String URI_TOO_LONG = "414 URI Too Long";
+	public static final String HEADERS_TOO_LARGE = "431 Request Header Fields Too Large";
+	
+	private final String status;
+	
+	public HttpParseException(String status, String message) {
+		super(message);
+		this.status = status;
+	}
+	
+	/**
+	 * @return status line text, e.g. "400 Bad Request"
+	 */
+	public String getStatus() {
+		return status;
+	}
+}
@@ -1,16 +1,23 @@
 package com.adobe.http.request;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.SocketTimeoutException;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
 
+import com.adobe.cache.CachedContent;
+import com.adobe.cache.CompressedContent;
+import com.adobe.cache.CompressedVariantCache;
+import com.adobe.cache.FileEntry;
+import com.adobe.cache.MappedContent;
+import com.adobe.http.response.ByteRanges;
+import com.adobe.http.response.ContentEncoding;
+import com.adobe.http.response.HttpDate;
 import com.adobe.http.response.HttpResponse;
+import com.adobe.http.response.Validators;
+import com.adobe.proxy.ReverseProxy;
+import com.adobe.proxy.Upstream;
+import com.adobe.server.ServerConfig;
 import com.adobe.server.WebServer;
 
 import org.apache.log4j.Logger;
@@ -22,36 +29,577 @@ import org.apache.log4j.Logger;
 public class HttpRequest {
 	
 	static Logger log = Logger.getLogger(HttpRequest.class.toString());
-	public static BufferedReader inputReader = null;
 	protected String url;
 	protected String method;
 	protected File file;
-	protected HashMap<String, String> headers;
+	protected FileEntry entry;
+	protected CachedContent content;
+	//coding of the representation an If-None-Match tag matched, null for the file as is
+	private ContentEncoding matchedEncoding;
+	private final ByteRanges ranges = new ByteRanges();
 	public boolean keepAlive;
 	
+	//request head as parsed, offsets are absolute indexes into buffer
+	private byte[] buffer;
+	private int requestLineStart;
+	private int targetStart;
+	private int targetEnd;
+	private int versionStart;
+	private int versionEnd;
+	private int headerCount;
+	private int[] headerOffsets = new int[0];
+	private HttpHeader[] headerKinds = new HttpHeader[0];
+	private long contentLength;
+	//body of the request being answered, set by connections that can read it, null otherwise
+	private InputStream body;
+	//client address as logged, set by the connection
+	private byte[] remote;
+	//null for a request that is only parsed
+	private final WebServer server;
+	
 	private static final String GET = "GET";
 	private static final String HEAD = "HEAD";
 	public static final String CONNECTION_CLOSE = "close";
+	private static final byte[] CLOSE_TOKEN = CONNECTION_CLOSE.getBytes();
+	private static final byte[] KEEP_ALIVE_TOKEN = "keep-alive".getBytes();
+	private static final byte[] HTTP_1_0 = "http/1.0".getBytes();
+	private static final byte[] HTTP_2_0 = "http/2.0".getBytes();
+	private static final byte[] H2C_TOKEN = "h2c".getBytes();
+	private static final byte[] CONTINUE_TOKEN = "100-continue".getBytes();
+	private static final byte[] GZIP_TOKEN = "gzip".getBytes();
+	private static final byte[] X_GZIP_TOKEN = "x-gzip".getBytes();
+	private static final byte[] DEFLATE_TOKEN = "deflate".getBytes();
+	private static final ContentEncoding[] ENCODINGS = ContentEncoding.values();
+	private static final String METRICS_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	
+	/**
+	 * Empty request, filled in by {@link HttpRequestParser#parse}. A
+	 * connection reuses one instance for all of its requests.
+	 * @param server - serves the responses: its index, caches, metrics and proxy routes
+	 */
+	public HttpRequest(WebServer server)
+	{
+		this.server = server;
+	}
+	
+	/**
+	 * Request that is only parsed, never answered with sendResponse
+	 */
+	public HttpRequest()
+	{
+		this(null);
+	}
 	
 	/**
-	 * @param in
-	 * @param url - request url
-	 * @param method - request method
-	 * @param headers 
+	 * Describe a freshly parsed request head. Offsets are relative to base.
+	 * @throws HttpParseException
 	 */
-	public HttpRequest(BufferedReader in, String url, String method, HashMap<String, String> headers)
+	void init(byte[] b, int base, int requestLineStart, int methodEnd, int targetStart, int targetEnd,
+			int versionStart, int versionEnd, int[] offsets, HttpHeader[] kinds, int count) throws HttpParseException
 	{
-		this.url = url;
-		this.method = method;
-		inputReader = in;
+		this.buffer = b;
+		this.requestLineStart = base + requestLineStart;
+		this.method = ByteStrings.intern(b, base + requestLineStart, methodEnd - requestLineStart, false);
+		this.url = ByteStrings.intern(b, base + targetStart, targetEnd - targetStart, true);
+		this.targetStart = base + targetStart;
+		this.targetEnd = base + targetEnd;
+		this.versionStart = base + versionStart;
+		this.versionEnd = base + versionEnd;
+		this.file = null;
+		this.content = null;
+		this.body = null;
 		
-		//as per HTTP 1.1 spec, keep connection alive
-		this.keepAlive = true;
+		if(headerOffsets.length < count * 4)
+		{
+			headerOffsets = new int[offsets.length];
+			headerKinds = new HttpHeader[kinds.length];
+		}
+		for(int i = 0; i < count * 4; i++)
+		{
+			headerOffsets[i] = base + offsets[i];
+		}
+		System.arraycopy(kinds, 0, headerKinds, 0, count);
+		this.headerCount = count;
+		
+		this.contentLength = parseContentLength();
 		
-		if(CONNECTION_CLOSE.equals(headers.get("Connection")))
+		//as per HTTP 1.1 spec, keep connection alive; HTTP 1.0 has to ask for it
+		int connection = indexOf(HttpHeader.CONNECTION);
+		if(isHttp10())
+		{
+			this.keepAlive = connection >= 0 && valueContains(connection, KEEP_ALIVE_TOKEN);
+		}
+		else
+		{
+			this.keepAlive = connection < 0 || !valueContains(connection, CLOSE_TOKEN);
+		}
+		
+		//a body of unknown length cannot be skipped to reach the next request
+		if(indexOf(HttpHeader.TRANSFER_ENCODING) >= 0)
 		{
 			this.keepAlive = false;
-		}	
+		}
+	}
+	
+	/**
+	 * @return request method, e.g. GET
+	 */
+	public String getMethod()
+	{
+		return method;
+	}
+	
+	/**
+	 * @return request target in lower case
+	 */
+	public String getUrl()
+	{
+		return url;
+	}
+	
+	/**
+	 * @return request target as sent, in its original letter case, e.g. for forwarding
+	 */
+	public String getTarget()
+	{
+		return new String(buffer, targetStart, targetEnd - targetStart, StandardCharsets.ISO_8859_1);
+	}
+	
+	/**
+	 * @return true for HTTP/1.0 requests
+	 */
+	public boolean isHttp10()
+	{
+		return ByteStrings.equalsIgnoreCase(buffer, versionStart, versionEnd - versionStart, HTTP_1_0);
+	}
+	
+	/**
+	 * @return true for a request of an HTTP/2 stream, whose head the
+	 *         connection rebuilt with version HTTP/2.0
+	 */
+	public boolean isHttp2()
+	{
+		return ByteStrings.equalsIgnoreCase(buffer, versionStart, versionEnd - versionStart, HTTP_2_0);
+	}
+	
+	/**
+	 * @return true for "PRI * HTTP/2.0", the request line that starts the
+	 *         HTTP/2 client preface
+	 */
+	public boolean isHttp2Preface()
+	{
+		return "PRI".equals(method) && "*".equals(url) && headerCount == 0
+				&& ByteStrings.equalsIgnoreCase(buffer, versionStart, versionEnd - versionStart, HTTP_2_0);
+	}
+	
+	/**
+	 * @return true for a request without body asking to continue in HTTP/2
+	 *         over cleartext, with the settings the upgrade needs
+	 */
+	public boolean isH2cUpgrade()
+	{
+		int upgrade = indexOf(HttpHeader.UPGRADE);
+		return upgrade >= 0 && valueContains(upgrade, H2C_TOKEN) && indexOf(HttpHeader.HTTP2_SETTINGS) >= 0
+				&& contentLength == 0 && indexOf(HttpHeader.TRANSFER_ENCODING) < 0;
+	}
+	
+	/**
+	 * @return true if the client waits for 100 Continue before it sends the body
+	 */
+	public boolean expectsContinue()
+	{
+		int expect = indexOf(HttpHeader.EXPECT);
+		return expect >= 0 && !isHttp10() && valueContains(expect, CONTINUE_TOKEN);
+	}
+	
+	/**
+	 * @param body - stream of the declared body, set by the connection before the request is answered
+	 */
+	public void setBody(InputStream body)
+	{
+		this.body = body;
+	}
+	
+	/**
+	 * @return the request body, null if the connection does not offer it to handlers
+	 */
+	public InputStream getBody()
+	{
+		return body;
+	}
+	
+	/**
+	 * @param remote - client address as logged, e.g. "127.0.0.1"
+	 */
+	public void setRemote(byte[] remote)
+	{
+		this.remote = remote;
+	}
+	
+	/**
+	 * @return client address as logged, null if not known
+	 */
+	public byte[] getRemote()
+	{
+		return remote;
+	}
+	
+	/**
+	 * @param header
+	 * @return value of the first header field of this kind, or null
+	 */
+	public String getHeader(HttpHeader header)
+	{
+		int i = indexOf(header);
+		return i < 0 ? null : getHeaderValue(i);
+	}
+	
+	/**
+	 * Copies the request line as received, e.g. for the access log
+	 * @param dst
+	 * @param off
+	 * @param max - most bytes to copy
+	 * @return number of bytes copied
+	 */
+	public int copyRequestLine(byte[] dst, int off, int max)
+	{
+		int length = Math.min(versionEnd - requestLineStart, max);
+		System.arraycopy(buffer, requestLineStart, dst, off, length);
+		return length;
+	}
+	
+	/**
+	 * Copies the value of the first header field of this kind as received
+	 * @param header
+	 * @param dst
+	 * @param off
+	 * @param max - most bytes to copy
+	 * @return number of bytes copied, -1 if the header is absent
+	 */
+	public int copyHeader(HttpHeader header, byte[] dst, int off, int max)
+	{
+		int i = indexOf(header);
+		if(i < 0)
+		{
+			return -1;
+		}
+		int start = headerOffsets[i * 4 + 2];
+		int length = Math.min(headerOffsets[i * 4 + 3] - start, max);
+		System.arraycopy(buffer, start, dst, off, length);
+		return length;
+	}
+	
+	/**
+	 * @param name - header name in any letter case
+	 * @return value of the first header field with this name, or null
+	 */
+	public String getHeader(String name)
+	{
+		for(int i = 0; i < headerCount; i++)
+		{
+			int start = headerOffsets[i * 4];
+			if(ByteStrings.equalsIgnoreCase(buffer, start, headerOffsets[i * 4 + 1] - start, name))
+			{
+				return getHeaderValue(i);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * @return number of header fields in the request
+	 */
+	public int getHeaderCount()
+	{
+		return headerCount;
+	}
+	
+	/**
+	 * @param i - 0 based header index
+	 * @return header name as sent
+	 */
+	public String getHeaderName(int i)
+	{
+		int start = headerOffsets[i * 4];
+		return ByteStrings.intern(buffer, start, headerOffsets[i * 4 + 1] - start, false);
+	}
+	
+	/**
+	 * @param i - 0 based header index
+	 * @return kind of the header, null for names the server does not know
+	 */
+	public HttpHeader getHeaderKind(int i)
+	{
+		return headerKinds[i];
+	}
+	
+	/**
+	 * @param i - 0 based header index
+	 * @return header value without surrounding white space
+	 */
+	public String getHeaderValue(int i)
+	{
+		int start = headerOffsets[i * 4 + 2];
+		return ByteStrings.intern(buffer, start, headerOffsets[i * 4 + 3] - start, false);
+	}
+	
+	private int indexOf(HttpHeader header)
+	{
+		for(int i = 0; i < headerCount; i++)
+		{
+			if(headerKinds[i] == header)
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	private boolean valueContains(int i, byte[] token)
+	{
+		int start = headerOffsets[i * 4 + 2];
+		return ByteStrings.containsToken(buffer, start, headerOffsets[i * 4 + 3] - start, token);
+	}
+	
+	/**
+	 * Content negotiation on Accept-Encoding: the coding with the highest
+	 * weight wins, gzip before deflate on equal weights, and codings with
+	 * q=0 are refused.
+	 * @return the coding to send, or null to send the content as is
+	 */
+	public ContentEncoding acceptedEncoding()
+	{
+		int i = indexOf(HttpHeader.ACCEPT_ENCODING);
+		if(i < 0)
+		{
+			return null;
+		}
+		int end = headerOffsets[i * 4 + 3];
+		//weights in thousandths, -1 while a coding is not listed
+		int gzip = -1;
+		int deflate = -1;
+		int any = -1;
+		int p = headerOffsets[i * 4 + 2];
+		while(p < end)
+		{
+			while(p < end && (buffer[p] == ' ' || buffer[p] == '\t' || buffer[p] == ','))
+			{
+				p++;
+			}
+			int tokenStart = p;
+			while(p < end && buffer[p] != ',' && buffer[p] != ';' && buffer[p] != ' ' && buffer[p] != '\t')
+			{
+				p++;
+			}
+			int tokenLength = p - tokenStart;
+			int q = 1000;
+			while(p < end && buffer[p] != ',')
+			{
+				if(buffer[p++] != ';')
+				{
+					continue;
+				}
+				while(p < end && (buffer[p] == ' ' || buffer[p] == '\t'))
+				{
+					p++;
+				}
+				if(p + 1 < end && (buffer[p] == 'q' || buffer[p] == 'Q') && buffer[p + 1] == '=')
+				{
+					q = ByteStrings.qValue(buffer, p + 2, end);
+				}
+			}
+			if(ByteStrings.equalsIgnoreCase(buffer, tokenStart, tokenLength, GZIP_TOKEN)
+					|| ByteStrings.equalsIgnoreCase(buffer, tokenStart, tokenLength, X_GZIP_TOKEN))
+			{
+				gzip = q;
+			}
+			else if(ByteStrings.equalsIgnoreCase(buffer, tokenStart, tokenLength, DEFLATE_TOKEN))
+			{
+				deflate = q;
+			}
+			else if(tokenLength == 1 && buffer[tokenStart] == '*')
+			{
+				any = q;
+			}
+		}
+		if(gzip < 0)
+		{
+			gzip = Math.max(any, 0);
+		}
+		if(deflate < 0)
+		{
+			deflate = Math.max(any, 0);
+		}
+		if(gzip > 0 && gzip >= deflate)
+		{
+			return ContentEncoding.GZIP;
+		}
+		return deflate > 0 ? ContentEncoding.DEFLATE : null;
+	}
+	
+	/**
+	 * Evaluates If-None-Match, or If-Modified-Since when no tags are given,
+	 * against the validators of the file version about to be sent. Tags are
+	 * compared weakly and a tag of any coding of this version matches, since
+	 * all of them carry the same content.
+	 * @param validators
+	 * @return true if the client's copy is current and 304 can be sent
+	 */
+	public boolean isNotModified(Validators validators)
+	{
+		matchedEncoding = null;
+		int i = indexOf(HttpHeader.IF_NONE_MATCH);
+		if(i >= 0)
+		{
+			int end = headerOffsets[i * 4 + 3];
+			int p = headerOffsets[i * 4 + 2];
+			while(p < end)
+			{
+				while(p < end && (buffer[p] == ' ' || buffer[p] == '\t' || buffer[p] == ','))
+				{
+					p++;
+				}
+				if(p < end && buffer[p] == '*')
+				{
+					return true;
+				}
+				if(p + 1 < end && buffer[p] == 'W' && buffer[p + 1] == '/')
+				{
+					p += 2;
+				}
+				int tagStart = p;
+				if(p < end && buffer[p] == '"')
+				{
+					p++;
+					while(p < end && buffer[p] != '"')
+					{
+						p++;
+					}
+					if(p < end)
+					{
+						p++;
+					}
+				}
+				if(matchesTag(validators, tagStart, p - tagStart))
+				{
+					return true;
+				}
+				//skip anything malformed up to the next list element
+				while(p < end && buffer[p] != ',')
+				{
+					p++;
+				}
+			}
+			return false;
+		}
+		
+		i = indexOf(HttpHeader.IF_MODIFIED_SINCE);
+		if(i < 0)
+		{
+			return false;
+		}
+		int start = headerOffsets[i * 4 + 2];
+		int length = headerOffsets[i * 4 + 3] - start;
+		//clients usually echo the Last-Modified date they were sent
+		if(ByteStrings.equals(buffer, start, length, validators.lastModifiedDate()))
+		{
+			return true;
+		}
+		long since = HttpDate.parse(getHeaderValue(i));
+		return since >= 0 && validators.lastModified() / 1000 <= since / 1000;
+	}
+	
+	private boolean matchesTag(Validators validators, int off, int length)
+	{
+		if(ByteStrings.equals(buffer, off, length, validators.tag(null)))
+		{
+			return true;
+		}
+		for(ContentEncoding encoding : ENCODINGS)
+		{
+			if(ByteStrings.equals(buffer, off, length, validators.tag(encoding)))
+			{
+				matchedEncoding = encoding;
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Parses Range into ranges() unless If-Range names another version of
+	 * the file. If-Range must match the plain file's tag exactly or be the
+	 * Last-Modified date that was sent.
+	 * @param validators - of the file version about to be sent
+	 * @param length - length of that version
+	 * @return true if a partial response, or 416, is due
+	 */
+	public boolean isRangeRequest(Validators validators, long length)
+	{
+		int i = indexOf(HttpHeader.RANGE);
+		if(i < 0)
+		{
+			return false;
+		}
+		int ifRange = indexOf(HttpHeader.IF_RANGE);
+		if(ifRange >= 0)
+		{
+			int start = headerOffsets[ifRange * 4 + 2];
+			int len = headerOffsets[ifRange * 4 + 3] - start;
+			if(!ByteStrings.equals(buffer, start, len, validators.tag(null))
+					&& !ByteStrings.equals(buffer, start, len, validators.lastModifiedDate()))
+			{
+				return false;
+			}
+		}
+		int start = headerOffsets[i * 4 + 2];
+		return ranges.parse(buffer, start, headerOffsets[i * 4 + 3] - start, length);
+	}
+	
+	/**
+	 * @return ranges parsed by the last isRangeRequest
+	 */
+	public ByteRanges ranges()
+	{
+		return ranges;
+	}
+	
+	/**
+	 * @return Content-Length digits as a number, 0 when absent
+	 * @throws HttpParseException if the value is not a valid length
+	 */
+	private long parseContentLength() throws HttpParseException
+	{
+		int i = indexOf(HttpHeader.CONTENT_LENGTH);
+		if(i < 0)
+		{
+			return 0;
+		}
+		int start = headerOffsets[i * 4 + 2];
+		int end = headerOffsets[i * 4 + 3];
+		if(start == end || end - start > 18)
+		{
+			throw new HttpParseException(HttpParseException.BAD_REQUEST, "Invalid Content-Length.");
+		}
+		long length = 0;
+		for(int p = start; p < end; p++)
+		{
+			byte c = buffer[p];
+			if(c < '0' || c > '9')
+			{
+				throw new HttpParseException(HttpParseException.BAD_REQUEST, "Invalid Content-Length.");
+			}
+			length = length * 10 + (c - '0');
+		}
+		return length;
+	}
+	
+	/**
+	 * @return declared request body length, 0 when there is no Content-Length
+	 */
+	public long getContentLength()
+	{
+		return contentLength;
 	}
 	
 	/**
@@ -64,17 +612,20 @@ public class HttpRequest {
 		//If we get to here, request method is GET or HEAD
     	url = preparePath(url);
     	
-    	//create file object
-    	file = new File(WebServer.SERVERROOT, url);
+    	//size, mtime and type come from the web root index, missing files are known there too
+    	entry = server.getFileIndex().get(url);
     	
     	//if file doesn't exist, we want to abort before sending headers
-    	FileInputStream fis = new FileInputStream(file);
+    	if (entry == null) {
+    		throw new FileNotFoundException(url);
+    	}
+    	file = entry.file();
     	
-		try {
-			fis.close();
-		} catch (IOException e) {
-			log.error("File not exist: "+e.getMessage());
-		}
+    	//small hot files are answered from memory without touching the disk
+    	content = null;
+    	if (GET.equals(method) || HEAD.equals(method)) {
+    		content = server.getContentCache().get(file, entry.lastModified(), entry.length());
+    	}
 	}
 	
 	/**
@@ -87,54 +638,129 @@ public class HttpRequest {
             path = WebServer.DEFAULT_FILE;
         }
         path.replace('/', File.separator.charAt(0));
-        log.info("Requested File Path: "+path);
         return path;
     }
 	
 	/**
-	 * @param inStream
-	 * @return
-	 * @throws IOException
-	 * @throws SocketTimeoutException
+	 * Send the requested file: 304 if the client's copy is current, without
+	 * opening the file, otherwise compressed if the client accepts a coding
+	 * and a variant is available, otherwise from the fastest tier holding it
+	 * @param response
+	 * @param withBody - false for HEAD
+	 * @throws FileNotFoundException
 	 */
-	public static HttpRequest parseRequest(InputStream inStream) throws IOException, SocketTimeoutException
+	private void sendFile(HttpResponse response, boolean withBody) throws FileNotFoundException
 	{
-		log.info("Parsing Request");
-		BufferedReader reader = new BufferedReader(new InputStreamReader(inStream));
-		String line = reader.readLine();
-    	
-		log.info("Request: " + line);
+		long length = entry.length();
+		long mtime = entry.lastModified();
+		CompressedVariantCache variants = server.getCompressedCache();
+		boolean negotiable = variants.isEnabled() && entry.contentType().isCompressible();
+		response.setContentType(entry.contentType());
 		
-		//Verify protocol of the request
-		String[] req = line.split(" ", 3);
-		String protocol = req[2];
-		if (line == null || !protocol.startsWith("HTTP/")) {
-			throw new IOException("Server accepts only HTTP requests.");
-		}
-		      
-		//Get method and requested file url
-       	String method = req[0];
-       	String url = req[1].toLowerCase();
-       
-       	HashMap<String, String> headers = new HashMap<String, String>();
-    	
-       	line = reader.readLine();
-       	while(line != null && !line.trim().isEmpty()) 
-    	{
-    		String[] header = line.split(":" , 2);
-    		if(header.length!=2){
-    			log.info("No headers added");
-    			throw new IOException("Cannot parse header from \"" + line + "\"");
-    		}
-			else {
-					headers.put(header[0].trim(), header[1].trim());
+		Validators validators = server.getValidatorCache().get(file, mtime, length, content != null ? content.body() : null);
+		response.setValidators(validators);
+		if(isNotModified(validators))
+		{
+			response.sendNotModified(matchedEncoding, negotiable);
+			return;
+		}
+		
+		//ranges always refer to the file as is, never to a compressed variant
+		if(withBody && isRangeRequest(validators, length))
+		{
+			sendRanges(response, length, negotiable);
+			return;
+		}
+		
+		if(negotiable)
+		{
+			ContentEncoding encoding = acceptedEncoding();
+			CompressedContent variant = null;
+			if(encoding != null)
+			{
+				variant = variants.get(file, mtime, length, encoding, content != null ? content.body() : null);
 			}
-    		line = reader.readLine();
-    	}
-    	
-    	return new HttpRequest(reader, url, method, headers);
+			if(variant != null)
+			{
+				response.sendHeaders(file, variant.length(), encoding, true);
+				if(withBody)
+				{
+					response.sendBody(variant.body());
+				}
+				else
+				{
+					response.flush();
+				}
+				return;
+			}
+		}
+		
+		if(!withBody)
+		{
+			//HEAD method
+			response.sendHeaders(file, length, null, negotiable);
+			response.flush();
+			return;
+		}
+		MappedContent mapped = null;
+		if (content != null) {
+			response.sendHeaders(file, content.length(), null, negotiable);
+			response.sendBody(content.body());
+		} else if ((mapped = server.getMappedFileCache().acquire(file, mtime, length)) != null) {
+			response.sendHeaders(file, mapped.length(), null, negotiable);
+			response.sendBody(mapped);
+		} else {
+			response.sendHeaders(file, length, null, negotiable);
+			response.sendBody(file);
+		}
+	}
+	
+	/**
+	 * Send the requested ranges of the file from the fastest tier holding
+	 * it, or 416 if none of them lies within the file
+	 * @param response
+	 * @param length
+	 * @param vary
+	 * @throws FileNotFoundException
+	 */
+	private void sendRanges(HttpResponse response, long length, boolean vary) throws FileNotFoundException
+	{
+		if(ranges.count() == 0)
+		{
+			response.sendRangeNotSatisfiable(length);
+			return;
+		}
+		MappedContent mapped = null;
+		if (content != null) {
+			response.sendPartialHeaders(file, ranges, vary);
+			response.sendPartialBody(content.body());
+		} else if ((mapped = server.getMappedFileCache().acquire(file, entry.lastModified(), length)) != null
+				&& mapped.length() == length) {
+			response.sendPartialHeaders(file, ranges, vary);
+			response.sendPartialBody(mapped);
+		} else {
+			if (mapped != null) {
+				//changed since the stat, the ranges were resolved against the old length
+				mapped.close();
+			}
+			response.sendPartialHeaders(file, ranges, vary);
+			response.sendPartialBody(file);
+		}
 	}
 	
+	/**
+	 * @return true for a GET or HEAD of the reserved metrics path, which is
+	 *         answered from memory however the web root looks
+	 */
+	private boolean isMetricsRequest()
+	{
+		String path = ServerConfig.METRICS_PATH;
+		if(path.isEmpty() || !(GET.equals(method) || HEAD.equals(method)) || !url.startsWith(path))
+		{
+			return false;
+		}
+		return url.length() == path.length() || url.charAt(path.length()) == '?';
+	}
 	
 	/**
 	 * Send response depending upon the request method
@@ -144,17 +770,25 @@ public class HttpRequest {
 		
 			try
 			{
+				response.setChunkedSupported(!isHttp10());
+				if(isMetricsRequest())
+				{
+					response.sendContent(METRICS_TYPE, server.getMetrics().format(), GET.equals(method));
+					return;
+				}
+				//paths of a proxy route belong to its upstream, whatever the method
+				ReverseProxy proxy = server.getReverseProxy();
+				Upstream upstream = proxy.route(url);
+				if(upstream != null)
+				{
+					proxy.forward(upstream, this, response, server.getMetrics());
+					return;
+				}
 				initResponse(response);
-				log.info("Request Method: "+method);
 				//response constructed depending upon the method in request
-				if(GET.equals(method))
-		    	{					
-					//GET Method
-					response.sendHeaders(file);
-					response.sendBody(file);
-		    	} else if(HEAD.equals(method)){
-		    		//HEAD method
-		    		response.sendHeaders(file);
+				if(GET.equals(method) || HEAD.equals(method))
+		    	{
+					sendFile(response, GET.equals(method));
 		    	} else{
 		    		//Not Implemented Method
 		    		response.sendNotImplementedMethod(method);
@@ -163,27 +797,8 @@ public class HttpRequest {
 			}catch (FileNotFoundException fe)
 		    {
 				//File Not Found Response
-				log.info("File Not Found.");
 		    	response.fileNotFound(url);
 		    }	
 	}
-	
-	/**
-	 * Close http request reader
-	 */
-	public void close()
-	{
-		try
-		{
-			if(inputReader != null)
-			{
-				inputReader.close();
-			}
-			
-		}catch(Exception e)
-		{
-			log.error("Error closing http request stream: " + e);
-		}
-	}
 
 }
@@ -0,0 +1,268 @@
+package com.adobe.http.request;
+
+import java.nio.ByteBuffer;
+
+import com.adobe.server.ServerConfig;
+
+/**
+ * @author rbajaj
+ * Byte level HTTP/1.1 request head parser. One instance belongs to a
+ * connection and scans that connection's read buffer in place: no readers,
+ * no line Strings, no header map. The parser is resumable, so a head that
+ * arrives in pieces is scanned only once; all of its progress is kept
+ * relative to the start of the request, so the owner may compact or grow
+ * the buffer between calls.
+ */
+public class HttpRequestParser {
+
+	private static final int METHOD = 0;
+	private static final int TARGET = 1;
+	private static final int VERSION = 2;
+	private static final int REQUEST_LINE_LF = 3;
+	private static final int HEADER_START = 4;
+	private static final int HEADER_NAME = 5;
+	private static final int HEADER_VALUE_START = 6;
+	private static final int HEADER_VALUE = 7;
+	private static final int HEADER_LF = 8;
+	private static final int END_LF = 9;
+
+	private static final byte[] HTTP_PREFIX = "http/".getBytes();
+	//RFC 7230 tchar
+	private static final boolean[] TOKEN = new boolean[256];
+
+	static {
+		for (int c = '0'; c <= '9'; c++) {
+			TOKEN[c] = true;
+		}
+		for (int c = 'a'; c <= 'z'; c++) {
+			TOKEN[c] = true;
+			TOKEN[c - 'a' + 'A'] = true;
+		}
+		for (char c : "!#$%&'*+-.^_`|~".toCharArray()) {
+			TOKEN[c] = true;
+		}
+	}
+
+	private final int maxRequestLine;
+	private final int maxHeaderCount;
+	private final int maxHeaderBytes;
+
+	private int state = METHOD;
+	//offsets below are relative to the first byte of the request
+	private int scanned;
+	private int lineStart;
+	private int requestLineStart;
+	private int methodEnd;
+	private int targetStart;
+	private int targetEnd;
+	private int versionStart;
+	private int versionEnd;
+	private int nameStart;
+	private int nameEnd;
+	private int valueStart;
+	private int valueEnd;
+	private int headerCount;
+	//name start, name end, value start, value end of each header
+	private final int[] headerOffsets;
+	private final HttpHeader[] headerKinds;
+
+	public HttpRequestParser() {
+		this(ServerConfig.HTTP_MAX_REQUEST_LINE, ServerConfig.HTTP_MAX_HEADER_COUNT, ServerConfig.HTTP_MAX_HEADER_BYTES);
+	}
+
+	/**
+	 * @param maxRequestLine - longest request line
+	 * @param maxHeaderCount - most header fields
+	 * @param maxHeaderBytes - largest request head
+	 */
+	public HttpRequestParser(int maxRequestLine, int maxHeaderCount, int maxHeaderBytes) {
+		this.maxRequestLine = maxRequestLine;
+		this.maxHeaderCount = maxHeaderCount;
+		this.maxHeaderBytes = maxHeaderBytes;
+		this.headerOffsets = new int[maxHeaderCount * 4];
+		this.headerKinds = new HttpHeader[maxHeaderCount];
+	}
+
+	/**
+	 * Scan the bytes between position and limit of an array backed buffer.
+	 * On success the position is moved past the request head and request
+	 * describes it; header values stay in the buffer, so the request is only
+	 * valid until the owner overwrites those bytes. Otherwise the position is
+	 * left alone and parse should be called again once more bytes arrived.
+	 *
+	 * @param in - read buffer in read mode
+	 * @param request - filled in when a complete head was found
+	 * @return true if a complete request head was parsed
+	 * @throws HttpParseException for malformed heads and exceeded limits
+	 */
+	public boolean parse(ByteBuffer in, HttpRequest request) throws HttpParseException {
+		byte[] b = in.array();
+		int base = in.arrayOffset() + in.position();
+		int end = in.arrayOffset() + in.limit();
+
+		for (int p = base + scanned; p < end; p++) {
+			byte c = b[p];
+			int rel = p - base;
+			switch (state) {
+			case METHOD:
+				if (c == ' ' && rel > lineStart) {
+					methodEnd = rel;
+					targetStart = rel + 1;
+					state = TARGET;
+				} else if ((c == '\r' || c == '\n') && rel == lineStart) {
+					//empty lines ahead of a request line are ignored
+					lineStart = rel + 1;
+					requestLineStart = lineStart;
+				} else if (!TOKEN[c & 0xff]) {
+					throw fail(HttpParseException.BAD_REQUEST, "Invalid request method.");
+				}
+				break;
+			case TARGET:
+				if (c == ' ' && rel > targetStart) {
+					targetEnd = rel;
+					versionStart = rel + 1;
+					state = VERSION;
+				} else if (c <= ' ' || c == 127) {
+					throw fail(HttpParseException.BAD_REQUEST, "Invalid request target.");
+				}
+				break;
+			case VERSION:
+				if (c == '\r' || c == '\n') {
+					versionEnd = rel;
+					endRequestLine(b, base, rel);
+					state = c == '\r' ? REQUEST_LINE_LF : HEADER_START;
+				} else if (c <= ' ' || c == 127) {
+					throw fail(HttpParseException.BAD_REQUEST, "Server accepts only HTTP requests.");
+				}
+				break;
+			case REQUEST_LINE_LF:
+			case HEADER_LF:
+				if (c != '\n') {
+					throw fail(HttpParseException.BAD_REQUEST, "Bare CR in request head.");
+				}
+				lineStart = rel + 1;
+				state = HEADER_START;
+				break;
+			case HEADER_START:
+				if (c == '\r') {
+					state = END_LF;
+				} else if (c == '\n') {
+					complete(in, request, b, base, rel);
+					return true;
+				} else if (TOKEN[c & 0xff]) {
+					nameStart = rel;
+					state = HEADER_NAME;
+				} else {
+					//includes obsolete line folding
+					throw fail(HttpParseException.BAD_REQUEST, "Cannot parse header.");
+				}
+				break;
+			case HEADER_NAME:
+				if (c == ':') {
+					nameEnd = rel;
+					state = HEADER_VALUE_START;
+				} else if (!TOKEN[c & 0xff]) {
+					throw fail(HttpParseException.BAD_REQUEST, "Cannot parse header.");
+				}
+				break;
+			case HEADER_VALUE_START:
+				if (c == ' ' || c == '\t') {
+					break;
+				}
+				valueStart = rel;
+				valueEnd = rel;
+				state = HEADER_VALUE;
+				//first value byte is handled like the rest
+			case HEADER_VALUE:
+				if (c == '\r' || c == '\n') {
+					endHeader();
+					lineStart = rel + 1;
+					state = c == '\r' ? HEADER_LF : HEADER_START;
+				} else if ((c < ' ' && c != '\t') || c == 127) {
+					throw fail(HttpParseException.BAD_REQUEST, "Invalid header value.");
+				} else if (c != ' ' && c != '\t') {
+					valueEnd = rel + 1;
+				}
+				break;
+			case END_LF:
+				if (c != '\n') {
+					throw fail(HttpParseException.BAD_REQUEST, "Bare CR in request head.");
+				}
+				complete(in, request, b, base, rel);
+				return true;
+			}
+		}
+
+		scanned = end - base;
+		if (state <= REQUEST_LINE_LF && scanned - lineStart > maxRequestLine) {
+			throw fail(HttpParseException.URI_TOO_LONG, "Request line too long.");
+		}
+		if (scanned > maxHeaderBytes) {
+			throw fail(HttpParseException.HEADERS_TOO_LARGE, "Request head too large.");
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if part of a request head has been scanned but it is not complete yet
+	 */
+	public boolean inProgress() {
+		return scanned > lineStart || state != METHOD;
+	}
+
+	/**
+	 * Forget any partially scanned request
+	 */
+	public void reset() {
+		state = METHOD;
+		scanned = 0;
+		lineStart = 0;
+		requestLineStart = 0;
+		headerCount = 0;
+	}
+
+	private void endRequestLine(byte[] b, int base, int rel) throws HttpParseException {
+		if (rel - lineStart > maxRequestLine) {
+			throw fail(HttpParseException.URI_TOO_LONG, "Request line too long.");
+		}
+		if (versionEnd - versionStart < HTTP_PREFIX.length + 1
+				|| !ByteStrings.equalsIgnoreCase(b, base + versionStart, HTTP_PREFIX.length, HTTP_PREFIX)) {
+			throw fail(HttpParseException.BAD_REQUEST, "Server accepts only HTTP requests.");
+		}
+	}
+
+	private void endHeader() throws HttpParseException {
+		if (headerCount == maxHeaderCount) {
+			throw fail(HttpParseException.HEADERS_TOO_LARGE, "Too many header fields.");
+		}
+		int i = headerCount * 4;
+		headerOffsets[i] = nameStart;
+		headerOffsets[i + 1] = nameEnd;
+		headerOffsets[i + 2] = valueStart;
+		headerOffsets[i + 3] = valueEnd;
+		headerCount++;
+	}
+
+	private void complete(ByteBuffer in, HttpRequest request, byte[] b, int base, int rel) throws HttpParseException {
+		int length = rel + 1;
+		if (length > maxHeaderBytes) {
+			throw fail(HttpParseException.HEADERS_TOO_LARGE, "Request head too large.");
+		}
+		for (int i = 0; i < headerCount; i++) {
+			int nameOffset = base + headerOffsets[i * 4];
+			headerKinds[i] = HttpHeader.lookup(b, nameOffset, base + headerOffsets[i * 4 + 1] - nameOffset);
+		}
+		try {
+			request.init(b, base, requestLineStart, methodEnd, targetStart, targetEnd,
+					versionStart, versionEnd, headerOffsets, headerKinds, headerCount);
+		} finally {
+			reset();
+		}
+		in.position(in.position() + length);
+	}
+
+	private HttpParseException fail(String status, String message) {
+		reset();
+		return new HttpParseException(status, message);
+	}
+}
@@ -0,0 +1,174 @@
+package com.adobe.http.response;
+
+/**
+ * @author rbajaj
+ * Byte ranges of one Range request resolved against the file length, in
+ * the order requested. One instance is reused per connection, so parsing
+ * allocates nothing.
+ */
+public final class ByteRanges {
+
+	/** More ranges than this and the Range header is ignored */
+	public static final int MAX_RANGES = 16;
+
+	private static final String BYTES_UNIT = "bytes";
+
+	private final long[] starts = new long[MAX_RANGES];
+	private final long[] ends = new long[MAX_RANGES];
+	private int count;
+	private long length;
+
+	/**
+	 * Parses a Range header value such as "bytes=0-499, -500"
+	 *
+	 * @param b
+	 * @param off
+	 * @param len
+	 * @param length - length of the file the ranges refer to
+	 * @return false if the header is malformed, uses another unit or asks
+	 *         for too many ranges and must be ignored; true otherwise, with
+	 *         count() 0 if no range is satisfiable
+	 */
+	public boolean parse(byte[] b, int off, int len, long length)
+	{
+		this.count = 0;
+		this.length = length;
+		int end = off + len;
+		int p = off;
+		for(int i = 0; i < BYTES_UNIT.length(); i++, p++)
+		{
+			if(p >= end || (b[p] | 0x20) != BYTES_UNIT.charAt(i))
+			{
+				return false;
+			}
+		}
+		p = skipSpaces(b, p, end);
+		if(p >= end || b[p++] != '=')
+		{
+			return false;
+		}
+		int parsed = 0;
+		while(p < end)
+		{
+			p = skipSpaces(b, p, end);
+			if(p < end && b[p] == ',')
+			{
+				p++;
+				continue;
+			}
+			if(p >= end)
+			{
+				break;
+			}
+			long first = -1;
+			if(b[p] != '-')
+			{
+				int digitsStart = p;
+				first = 0;
+				while(p < end && b[p] >= '0' && b[p] <= '9')
+				{
+					first = first < Long.MAX_VALUE / 10 ? first * 10 + (b[p] - '0') : Long.MAX_VALUE;
+					p++;
+				}
+				if(p == digitsStart)
+				{
+					return false;
+				}
+			}
+			if(p >= end || b[p++] != '-')
+			{
+				return false;
+			}
+			long last = -1;
+			if(p < end && b[p] >= '0' && b[p] <= '9')
+			{
+				last = 0;
+				while(p < end && b[p] >= '0' && b[p] <= '9')
+				{
+					last = last < Long.MAX_VALUE / 10 ? last * 10 + (b[p] - '0') : Long.MAX_VALUE;
+					p++;
+				}
+			}
+			else if(first < 0)
+			{
+				//"-" alone
+				return false;
+			}
+			p = skipSpaces(b, p, end);
+			if(p < end && b[p] != ',')
+			{
+				return false;
+			}
+			if(++parsed > MAX_RANGES)
+			{
+				return false;
+			}
+
+			if(first >= 0)
+			{
+				if(last >= 0 && last < first)
+				{
+					return false;
+				}
+				if(first < length)
+				{
+					add(first, last < 0 ? length - 1 : Math.min(last, length - 1));
+				}
+			}
+			else if(last > 0 && length > 0)
+			{
+				//suffix range, the last n bytes
+				add(Math.max(0, length - last), length - 1);
+			}
+		}
+		return parsed > 0;
+	}
+
+	private void add(long start, long end)
+	{
+		starts[count] = start;
+		ends[count] = end;
+		count++;
+	}
+
+	private static int skipSpaces(byte[] b, int p, int end)
+	{
+		while(p < end && (b[p] == ' ' || b[p] == '\t'))
+		{
+			p++;
+		}
+		return p;
+	}
+
+	/**
+	 * @return number of satisfiable ranges
+	 */
+	public int count()
+	{
+		return count;
+	}
+
+	/**
+	 * @return first byte of range i
+	 */
+	public long start(int i)
+	{
+		return starts[i];
+	}
+
+	/**
+	 * @return last byte of range i, inclusive
+	 */
+	public long end(int i)
+	{
+		return ends[i];
+	}
+
+	/**
+	 * @return length of the file the ranges refer to
+	 */
+	public long length()
+	{
+		return length;
+	}
+}
@@ -0,0 +1,168 @@
+package com.adobe.http.response;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * @author rbajaj
+ * Body of a response whose length is not known up front, sent with
+ * Transfer-Encoding: chunked. Data is collected in one bounded chunk
+ * buffer that is sent when it is full, when flushMillis have passed since
+ * the last chunk went out, or on flush(), so the first bytes reach the
+ * client early without the whole body being buffered. Each chunk is framed
+ * in place and handed to the response channel with a single write.
+ *
+ * For HTTP/1.0 clients the body is sent unframed and the connection is
+ * closed after it, see {@link HttpResponse#sendChunkedHeaders}.
+ */
+public final class ChunkedOutputStream extends OutputStream {
+
+	//room for the size line in front of the data: up to 8 hex digits and CRLF
+	private static final int SIZE_RESERVE = 10;
+	private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+	private final ResponseChannel out;
+	private final boolean framed;
+	private final long flushNanos;
+	private final byte[] buf;
+	private int count = 0;
+	private long bytesWritten = 0;
+	private long lastPush;
+	private boolean closed = false;
+
+	/**
+	 * @param out - response channel the headers were written to
+	 * @param framed - false to send the data as is, for HTTP/1.0
+	 * @param chunkBytes - largest chunk
+	 * @param flushMillis - longest time data waits in the buffer while more is written
+	 */
+	ChunkedOutputStream(ResponseChannel out, boolean framed, int chunkBytes, long flushMillis)
+	{
+		this.out = out;
+		this.framed = framed;
+		this.flushNanos = flushMillis * 1000000L;
+		this.buf = new byte[SIZE_RESERVE + chunkBytes + 2];
+		this.lastPush = System.nanoTime();
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		ensureOpen();
+		buf[SIZE_RESERVE + count++] = (byte) b;
+		if(count == buf.length - SIZE_RESERVE - 2 || System.nanoTime() - lastPush >= flushNanos)
+		{
+			sendChunk();
+			push();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		ensureOpen();
+		int capacity = buf.length - SIZE_RESERVE - 2;
+		while(len > 0)
+		{
+			int n = Math.min(len, capacity - count);
+			System.arraycopy(b, off, buf, SIZE_RESERVE + count, n);
+			count += n;
+			off += n;
+			len -= n;
+			if(count == capacity)
+			{
+				sendChunk();
+				push();
+			}
+		}
+		if(count > 0 && System.nanoTime() - lastPush >= flushNanos)
+		{
+			sendChunk();
+			push();
+		}
+	}
+
+	/**
+	 * Sends what is buffered as a chunk and pushes it towards the client now
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		ensureOpen();
+		sendChunk();
+		push();
+	}
+
+	/**
+	 * Sends the rest and the last chunk; this ends the response. The
+	 * connection is not closed.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if(closed)
+		{
+			return;
+		}
+		closed = true;
+		sendChunk();
+		if(framed)
+		{
+			out.write(LAST_CHUNK, 0, LAST_CHUNK.length);
+		}
+		out.flush();
+	}
+
+	/**
+	 * @return body bytes written so far, without chunk framing
+	 */
+	public long bytesWritten()
+	{
+		return bytesWritten + count;
+	}
+
+	private void sendChunk() throws IOException
+	{
+		if(count == 0)
+		{
+			return;
+		}
+		bytesWritten += count;
+		if(!framed)
+		{
+			out.write(buf, SIZE_RESERVE, count);
+			count = 0;
+			return;
+		}
+		//size line right before the data, CRLF after it
+		int start = SIZE_RESERVE;
+		buf[--start] = '\n';
+		buf[--start] = '\r';
+		int size = count;
+		do
+		{
+			buf[--start] = HEX[size & 0xf];
+			size >>>= 4;
+		}while(size != 0);
+		int end = SIZE_RESERVE + count;
+		buf[end++] = '\r';
+		buf[end++] = '\n';
+		out.write(buf, start, end - start);
+		count = 0;
+	}
+
+	private void push() throws IOException
+	{
+		out.drain();
+		lastPush = System.nanoTime();
+	}
+
+	private void ensureOpen() throws IOException
+	{
+		if(closed)
+		{
+			throw new IOException("Response body already complete");
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package com.adobe.http.response;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * @author rbajaj
+ * Content codings the server can produce, in order of preference
+ */
+public enum ContentEncoding {
+	
+	GZIP("gzip") {
+		@Override
+		public DeflaterOutputStream compressor(OutputStream out) throws IOException {
+			return new GZIPOutputStream(out, 8192) {
+				{
+					def.setLevel(Deflater.BEST_COMPRESSION);
+				}
+			};
+		}
+	},
+	
+	DEFLATE("deflate") {
+		@Override
+		public DeflaterOutputStream compressor(OutputStream out) {
+			//HTTP deflate is the zlib format, not raw deflate
+			return new DeflaterOutputStream(out, new Deflater(Deflater.BEST_COMPRESSION, false), 8192) {
+				@Override
+				public void close() throws IOException {
+					super.close();
+					def.end();
+				}
+			};
+		}
+	};
+	
+	private final String token;
+	private final byte[] headerLine;
+	
+	private ContentEncoding(String token) {
+		this.token = token;
+		this.headerLine = ("Content-Encoding: " + token + "\r\n").getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	/**
+	 * @return coding name as used in Accept-Encoding and Content-Encoding
+	 */
+	public String token() {
+		return token;
+	}
+	
+	byte[] headerLine() {
+		return headerLine;
+	}
+	
+	/**
+	 * Compressed variants are produced once per file version, so the
+	 * slowest and smallest compression level is used.
+	 * 
+	 * @param out - receives the encoded bytes
+	 * @return stream encoding what is written to it, closing it finishes the encoding
+	 * @throws IOException
+	 */
+	public abstract DeflaterOutputStream compressor(OutputStream out) throws IOException;
+}
@@ -0,0 +1,58 @@
+package com.adobe.http.response;
+
+/**
+ * @author rbajaj
+ * Content types by file extension, with their pre-encoded header line
+ */
+public enum ContentType {
+	
+	HTML("text/html", true, ".htm", ".html"),
+	CSS("text/css", true, ".css"),
+	JAVASCRIPT("application/javascript", true, ".js"),
+	JSON("application/json", true, ".json"),
+	XML("application/xml", true, ".xml"),
+	SVG("image/svg+xml", true, ".svg"),
+	GIF("image/gif", false, ".gif"),
+	JPEG("image/jpeg", false, ".jpg", ".jpeg"),
+	PNG("image/png", false, ".png"),
+	OCTET_STREAM("application/octet-stream", false, ".class", ".jar"),
+	PLAIN("text/plain", true);
+	
+	private static final ContentType[] TYPES = values();
+	
+	private final boolean compressible;
+	private final String[] suffixes;
+	private final byte[] headerLine;
+	
+	private ContentType(String mimeType, boolean compressible, String... suffixes) {
+		this.compressible = compressible;
+		this.suffixes = suffixes;
+		this.headerLine = HeaderEncoder.line("Content-Type: " + mimeType);
+	}
+	
+	/**
+	 * @param fname - file name
+	 * @return type matching the extension, text/plain when none does
+	 */
+	public static ContentType of(String fname) {
+		for (ContentType type : TYPES) {
+			for (String suffix : type.suffixes) {
+				if (fname.endsWith(suffix)) {
+					return type;
+				}
+			}
+		}
+		return PLAIN;
+	}
+	
+	/**
+	 * @return true for text formats that shrink well with gzip
+	 */
+	public boolean isCompressible() {
+		return compressible;
+	}
+	
+	byte[] headerLine() {
+		return headerLine;
+	}
+}
@@ -0,0 +1,142 @@
+package com.adobe.http.response;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author rbajaj
+ * Assembles a response header block from pre-encoded lines in a reusable
+ * byte array. Numbers are written as ASCII digits in place, so the usual
+ * header block costs no Strings and no character encoding.
+ */
+final class HeaderEncoder {
+	
+	static final byte[] CRLF = {'\r', '\n'};
+	private static final byte[] DATE = "Date: ".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CONTENT_LENGTH = "Content-Length: ".getBytes(StandardCharsets.US_ASCII);
+	static final byte[] CONTENT_RANGE = "Content-Range: bytes ".getBytes(StandardCharsets.US_ASCII);
+	
+	private byte[] buf = new byte[512];
+	private int len = 0;
+	
+	/**
+	 * @param text - header line text without CRLF, e.g. "Server: x"
+	 * @return the line with CRLF as ISO-8859-1 bytes, for use as a constant
+	 */
+	static byte[] line(String text) {
+		return (text + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+	}
+	
+	/**
+	 * @param line - complete pre-encoded line including CRLF
+	 */
+	HeaderEncoder append(byte[] line) {
+		ensure(line.length);
+		System.arraycopy(line, 0, buf, len, line.length);
+		len += line.length;
+		return this;
+	}
+	
+	/**
+	 * @param b - complete lines including CRLF, e.g. fields passed on from another server
+	 * @param off
+	 * @param length
+	 */
+	HeaderEncoder append(byte[] b, int off, int length) {
+		ensure(length);
+		System.arraycopy(b, off, buf, len, length);
+		len += length;
+		return this;
+	}
+	
+	/**
+	 * Date header with the cached current date
+	 */
+	HeaderEncoder date() {
+		append(DATE);
+		append(HttpDate.now());
+		return append(CRLF);
+	}
+	
+	HeaderEncoder contentLength(long length) {
+		append(CONTENT_LENGTH);
+		appendDigits(length);
+		return append(CRLF);
+	}
+	
+	/**
+	 * Content-Range header of a satisfied range, e.g. "bytes 0-499/1234"
+	 * @param start
+	 * @param end - last byte, inclusive
+	 * @param length - length of the whole file
+	 */
+	HeaderEncoder contentRange(long start, long end, long length) {
+		append(CONTENT_RANGE);
+		appendDigits(start);
+		append((byte) '-');
+		appendDigits(end);
+		append((byte) '/');
+		appendDigits(length);
+		return append(CRLF);
+	}
+	
+	/**
+	 * @return bytes of the Content-Range line written by contentRange
+	 */
+	static int contentRangeLength(long start, long end, long length) {
+		return CONTENT_RANGE.length + digits(start) + 1 + digits(end) + 1 + digits(length) + CRLF.length;
+	}
+	
+	HeaderEncoder append(byte b) {
+		ensure(1);
+		buf[len++] = b;
+		return this;
+	}
+	
+	/**
+	 * @return number of decimal digits of a non-negative value
+	 */
+	static int digits(long value) {
+		int digits = 1;
+		for (long v = value; v >= 10; v /= 10) {
+			digits++;
+		}
+		return digits;
+	}
+	
+	/**
+	 * @param value - non-negative number written as decimal digits
+	 */
+	HeaderEncoder appendDigits(long value) {
+		int digits = digits(value);
+		ensure(digits);
+		for (int i = len + digits - 1; i >= len; i--) {
+			buf[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		len += digits;
+		return this;
+	}
+	
+	/**
+	 * Terminates the header block and hands it to the response channel
+	 * @param out
+	 * @throws IOException
+	 */
+	void writeTo(ResponseChannel out) throws IOException {
+		append(CRLF);
+		try {
+			out.write(buf, 0, len);
+		} finally {
+			len = 0;
+		}
+	}
+	
+	private void ensure(int extra) {
+		if (len + extra > buf.length) {
+			byte[] bigger = new byte[Math.max(buf.length * 2, len + extra)];
+			System.arraycopy(buf, 0, bigger, 0, len);
+			buf = bigger;
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package com.adobe.http.response;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * @author rbajaj
+ * RFC 1123 (IMF-fixdate) dates as used by the Date header, e.g.
+ * "Sun, 06 Nov 1994 08:49:37 GMT". The current date is encoded at most once
+ * per second and shared by all responses sent within that second.
+ */
+public final class HttpDate {
+	
+	private static final DateTimeFormatter FORMAT =
+			DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+	
+	private static volatile Cached current = new Cached(System.currentTimeMillis() / 1000);
+	
+	private HttpDate() {
+	}
+	
+	/**
+	 * @return ASCII bytes of the current date, shared and not to be modified
+	 */
+	public static byte[] now() {
+		long second = System.currentTimeMillis() / 1000;
+		Cached cached = current;
+		if (cached.second != second) {
+			//racing threads encode the same second, whichever is stored is correct
+			cached = new Cached(second);
+			current = cached;
+		}
+		return cached.bytes;
+	}
+	
+	/**
+	 * @param millis - epoch milliseconds
+	 * @return the date in RFC 1123 format
+	 */
+	public static String format(long millis) {
+		return FORMAT.format(Instant.ofEpochMilli(millis));
+	}
+	
+	/**
+	 * @param date - RFC 1123 date, e.g. from If-Modified-Since
+	 * @return epoch milliseconds, or -1 if the date cannot be parsed
+	 */
+	public static long parse(String date) {
+		try {
+			return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+	
+	private static final class Cached {
+		final long second;
+		final byte[] bytes;
+		
+		Cached(long second) {
+			this.second = second;
+			this.bytes = format(second * 1000).getBytes(StandardCharsets.US_ASCII);
+		}
+	}
+}
@@ -1,15 +1,18 @@
 package com.adobe.http.response;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
 
+import com.adobe.cache.MappedContent;
 import com.adobe.http.request.HttpRequest;
+import com.adobe.server.ServerConfig;
 
 import org.apache.log4j.Logger;
 
@@ -20,46 +23,195 @@ import org.apache.log4j.Logger;
 public class HttpResponse {
 	static Logger log = Logger.getLogger(HttpResponse.class.toString());
 	public static final String OK = "200 OK";
+	public static final String PARTIAL_CONTENT = "206 Partial Content";
+	public static final String NOT_MODIFIED = "304 Not Modified";
 	public static final String NOT_FOUND = "404 Not Found";
+	public static final String LENGTH_REQUIRED = "411 Length Required";
+	public static final String RANGE_NOT_SATISFIABLE = "416 Range Not Satisfiable";
+	public static final String TOO_MANY_REQUESTS = "429 Too Many Requests";
 	public static final String NOT_IMPLEMENTED = "501 Not Implemented";
+	public static final String BAD_GATEWAY = "502 Bad Gateway";
+	public static final String SERVICE_UNAVAILABLE = "503 Service Unavailable";
+	public static final String GATEWAY_TIMEOUT = "504 Gateway Timeout";
 
 	private static final String protocol = "HTTP/1.1";
-	private PrintWriter out = null;
-	private BufferedOutputStream outStream = null;
-	private String contentType;
+	//bodies up to this size are copied next to the headers and leave in one write
+	static final int COALESCE_LIMIT = 8 * 1024;
+	
+	//header lines encoded once, see HeaderEncoder
+	private static final byte[] STATUS_OK = HeaderEncoder.line(protocol + " " + OK);
+	private static final byte[] STATUS_PARTIAL_CONTENT = HeaderEncoder.line(protocol + " " + PARTIAL_CONTENT);
+	private static final byte[] STATUS_RANGE_NOT_SATISFIABLE = HeaderEncoder.line(protocol + " " + RANGE_NOT_SATISFIABLE);
+	private static final byte[] STATUS_NOT_MODIFIED = HeaderEncoder.line(protocol + " " + NOT_MODIFIED);
+	private static final byte[] STATUS_NOT_FOUND = HeaderEncoder.line(protocol + " " + NOT_FOUND);
+	private static final byte[] STATUS_NOT_IMPLEMENTED = HeaderEncoder.line(protocol + " " + NOT_IMPLEMENTED);
+	private static final byte[] SERVER = HeaderEncoder.line("Server: Java HTTP Server 1.1");
+	private static final byte[] ALLOW = HeaderEncoder.line("Allow: GET, HEAD");
+	private static final byte[] CONNECTION_CLOSE = HeaderEncoder.line("Connection: " + HttpRequest.CONNECTION_CLOSE);
+	private static final byte[] TYPE_HTML_UTF8 = HeaderEncoder.line("Content-Type: text/html;charset=UTF-8");
+	private static final byte[] VARY_ACCEPT_ENCODING = HeaderEncoder.line("Vary: Accept-Encoding");
+	private static final byte[] ACCEPT_RANGES = HeaderEncoder.line("Accept-Ranges: bytes");
+	private static final byte[] TRANSFER_ENCODING_CHUNKED = HeaderEncoder.line("Transfer-Encoding: chunked");
+	//whole 503 response, written by the acceptor without any per-request work; Date is optional for 5xx
+	private static final byte[] OVERLOADED = refusal(SERVICE_UNAVAILABLE, ServerConfig.RETRY_AFTER_SECONDS);
+	//whole 429 response for clients over their connection limit, likewise written by the acceptor
+	private static final byte[] CONNECTION_LIMITED = refusal(TOO_MANY_REQUESTS, ServerConfig.RETRY_AFTER_SECONDS);
+	
+	//multipart/byteranges framing; the boundary is random so file content cannot end a part early
+	private static final String BOUNDARY = "WebServer" + Long.toHexString(new Random().nextLong() | Long.MIN_VALUE);
+	private static final byte[] TYPE_BYTERANGES = HeaderEncoder.line("Content-Type: multipart/byteranges; boundary=" + BOUNDARY);
+	private static final byte[] PART_START = HeaderEncoder.line("\r\n--" + BOUNDARY);
+	private static final byte[] PARTS_END = HeaderEncoder.line("\r\n--" + BOUNDARY + "--");
+	
+	private static byte[] refusal(String status, int retryAfterSeconds) {
+		String body = "<H2>" + status + "</H2>";
+		String response = protocol + " " + status + "\r\n"
+				+ "Server: Java HTTP Server 1.1\r\n"
+				+ "Retry-After: " + retryAfterSeconds + "\r\n"
+				+ "Connection: " + HttpRequest.CONNECTION_CLOSE + "\r\n"
+				+ "Content-Type: text/html;charset=UTF-8\r\n"
+				+ "Content-Length: " + body.length() + "\r\n"
+				+ "\r\n" + body;
+		return response.getBytes(StandardCharsets.ISO_8859_1);
+	}
+	
+	/**
+	 * @return complete 503 response with Retry-After and Connection: close,
+	 *         sent to connections the server has no capacity for; must not
+	 *         be modified
+	 */
+	public static byte[] overloadedResponse() {
+		return OVERLOADED;
+	}
+	
+	/**
+	 * @return complete 429 response with Retry-After and Connection: close,
+	 *         sent to clients with too many connections open; must not be
+	 *         modified
+	 */
+	public static byte[] connectionLimitedResponse() {
+		return CONNECTION_LIMITED;
+	}
+	
+	private ResponseChannel outStream = null;
+	private final HeaderEncoder headers = new HeaderEncoder();
+	private long contentLength;
+	//what the access log reports about the response
+	private int status;
+	private long bodyBytes;
+	private ChunkedOutputStream chunked = null;
 	private boolean keepAlive;
+	//false for HTTP/1.0 clients, which do not understand chunked bodies
+	private boolean chunkedSupported = true;
 	private byte[] body = null;
+	private Validators validators = null;
+	//type of the file the next headers describe, looked up from its name when null
+	private ContentType contentType = null;
+	//state of a partial response between its headers and body
+	private ByteRanges ranges = null;
+	private byte[] partType = null;
 	
 	/**
-	 * @param os
+	 * @param out - connection's response channel
 	 * @param keepAlive
 	 */
-	public HttpResponse(OutputStream os, boolean keepAlive) {
-		out = new PrintWriter(os);
-		outStream = new BufferedOutputStream(os);
+	public HttpResponse(ResponseChannel out, boolean keepAlive) {
+		outStream = out;
 
 		this.keepAlive = keepAlive;
 	}
+	
+	/**
+	 * Prepare for the next response on the same connection, reusing the
+	 * header buffer
+	 * 
+	 * @param keepAlive
+	 */
+	public void reset(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+		this.chunkedSupported = true;
+		this.contentLength = 0;
+		this.status = 0;
+		this.bodyBytes = 0;
+		this.chunked = null;
+		this.body = null;
+		this.validators = null;
+		this.contentType = null;
+		this.ranges = null;
+		this.partType = null;
+	}
+	
+	/**
+	 * @return false if the connection must be closed after this response,
+	 *         either as requested or because the body is delimited by closing
+	 */
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+	
+	/**
+	 * @return status code of the response sent, 0 if none was sent
+	 */
+	public int getStatus() {
+		return status;
+	}
+	
+	/**
+	 * @return body bytes of the response sent, without headers
+	 */
+	public long getBodyBytes() {
+		return chunked != null ? chunked.bytesWritten() : bodyBytes;
+	}
+	
+	private static int statusCode(String status) {
+		try {
+			return Integer.parseInt(status.substring(0, 3));
+		} catch (RuntimeException e) {
+			return 0;
+		}
+	}
+	
+	/**
+	 * @param chunkedSupported - false if the client speaks HTTP/1.0
+	 */
+	public void setChunkedSupported(boolean chunkedSupported) {
+		this.chunkedSupported = chunkedSupported;
+	}
+	
+	/**
+	 * @param validators - ETag and Last-Modified of the file the next
+	 *            headers describe, null to send none
+	 */
+	public void setValidators(Validators validators) {
+		this.validators = validators;
+	}
+
+	/**
+	 * @param contentType - type of the file the next headers describe, e.g.
+	 *            from the web root index, null to look it up by file name
+	 */
+	public void setContentType(ContentType contentType) {
+		this.contentType = contentType;
+	}
 
 	/**
-	 * getContentType returns the proper MIME content type according to the
+	 * getContentType returns the Content-Type header line matching the
 	 * requested file's extension.
 	 *
 	 * @param fname
 	 *            File requested by client
 	 */
-	private String getContentType(String fname) {
-		if (fname.endsWith(".htm") || fname.endsWith(".html")) {
-			return "text/html";
-		} else if (fname.endsWith(".gif")) {
-			return "image/gif";
-		} else if (fname.endsWith(".jpg") || fname.endsWith(".jpeg")) {
-			return "image/jpeg";
-		} else if (fname.endsWith(".class") || fname.endsWith(".jar")) {
-			return "applicaton/octet-stream";
-		} else {
-			return "text/plain";
-		}
+	private byte[] getContentType(String fname) {
+		return (contentType != null ? contentType : ContentType.of(fname)).headerLine();
+	}
+	
+	/**
+	 * @param fname
+	 *            File requested by client
+	 * @return true if the file's content type is worth compressing
+	 */
+	public static boolean isCompressible(String fname) {
+		return ContentType.of(fname).isCompressible();
 	}
 
 	/**
@@ -68,70 +220,438 @@ public class HttpResponse {
 	 * @param file
 	 */
 	public void sendHeaders(File file) {
-		contentType = getContentType(file.getName());
-		log.info("Content Type: " + contentType);
+		sendHeaders(file, file.length());
+	}
+
+	/**
+	 * Send the headers back to the client for a body of known length,
+	 * e.g. a cached copy of the file
+	 * 
+	 * @param file
+	 * @param length
+	 */
+	public void sendHeaders(File file, long length) {
+		sendHeaders(file, length, null, false);
+	}
+
+	/**
+	 * Send the headers back to the client for a body of known length in
+	 * the given content coding
+	 * 
+	 * @param file
+	 * @param length - length of the encoded body
+	 * @param encoding - content coding of the body, null if sent as is
+	 * @param vary - true if the coding was chosen from Accept-Encoding
+	 */
+	public void sendHeaders(File file, long length, ContentEncoding encoding, boolean vary) {
+		contentLength = length;
+		status = 200;
 
 		// send HTTP headers
-		//out.println("HTTP/1.1 200 OK");
-		out.println(protocol + " " + OK);
-		out.println("Server: Java HTTP Server 1.1");
-		out.println("Date: " + new Date());
-		out.println("Allow: GET, HEAD");
+		headers.append(STATUS_OK).append(SERVER).date().append(ALLOW);
+		if (!keepAlive) {
+			headers.append(CONNECTION_CLOSE);
+		}
+		headers.append(getContentType(file.getName()));
+		if (encoding != null) {
+			headers.append(encoding.headerLine());
+		}
+		if (vary) {
+			headers.append(VARY_ACCEPT_ENCODING);
+		}
+		appendValidators(encoding);
+		if (encoding == null) {
+			headers.append(ACCEPT_RANGES);
+		}
+		headers.contentLength(contentLength);
+		writeHeaders();
+	}
+
+	/**
+	 * Send 206 headers for the satisfiable ranges of a file: a single range
+	 * is described by Content-Range, several become a multipart/byteranges
+	 * body whose part headers are sent by sendPartialBody.
+	 * 
+	 * @param file
+	 * @param ranges - at least one satisfiable range
+	 * @param vary - true if the file is also sent compressed to some clients
+	 */
+	public void sendPartialHeaders(File file, ByteRanges ranges, boolean vary) {
+		this.ranges = ranges;
+		this.partType = getContentType(file.getName());
+		this.status = 206;
+		long length = ranges.length();
+
+		headers.append(STATUS_PARTIAL_CONTENT).append(SERVER).date().append(ALLOW);
+		if (!keepAlive) {
+			headers.append(CONNECTION_CLOSE);
+		}
+		if (ranges.count() == 1) {
+			contentLength = ranges.end(0) - ranges.start(0) + 1;
+			headers.append(partType).contentRange(ranges.start(0), ranges.end(0), length);
+		} else {
+			contentLength = PARTS_END.length;
+			for (int i = 0; i < ranges.count(); i++) {
+				contentLength += PART_START.length + partType.length
+						+ HeaderEncoder.contentRangeLength(ranges.start(i), ranges.end(i), length) + 2
+						+ ranges.end(i) - ranges.start(i) + 1;
+			}
+			headers.append(TYPE_BYTERANGES);
+		}
+		if (vary) {
+			headers.append(VARY_ACCEPT_ENCODING);
+		}
+		appendValidators(null);
+		headers.append(ACCEPT_RANGES).contentLength(contentLength);
+		writeHeaders();
+	}
+
+	/**
+	 * Send the ranges of a cached body, after sendPartialHeaders
+	 * 
+	 * @param body - must not be modified afterwards
+	 */
+	public void sendPartialBody(byte[] body) {
+		try {
+			for (int i = 0; i < ranges.count(); i++) {
+				writePartHeaders(i);
+				int start = (int) ranges.start(i);
+				int count = (int) (ranges.end(i) - ranges.start(i) + 1);
+				if (count <= COALESCE_LIMIT) {
+					outStream.write(body, start, count);
+				} else {
+					outStream.write(ByteBuffer.wrap(body, start, count));
+				}
+			}
+			writePartsEnd();
+			bodyBytes = contentLength;
+			outStream.flush();
+		} catch (IOException ioe) {
+			log.error("Server Error: " + ioe);
+		}
+	}
+
+	/**
+	 * Send the ranges as slices of a shared file mapping, after
+	 * sendPartialHeaders. The caller's reference is released once the last
+	 * slice is written.
+	 * 
+	 * @param mapped
+	 */
+	public void sendPartialBody(MappedContent mapped) {
+		try {
+			for (int i = 0; i < ranges.count(); i++) {
+				writePartHeaders(i);
+				ByteBuffer slice = mapped.slice();
+				slice.limit((int) ranges.end(i) + 1);
+				slice.position((int) ranges.start(i));
+				if (i == ranges.count() - 1) {
+					outStream.write(slice, mapped);
+				} else {
+					outStream.write(slice);
+				}
+			}
+			writePartsEnd();
+			bodyBytes = contentLength;
+			outStream.flush();
+		} catch (IOException ioe) {
+			log.error("Server Error: " + ioe);
+		}
+	}
+
+	/**
+	 * Send the ranges straight from the file, after sendPartialHeaders. Small
+	 * ranges are read at their offset next to the part headers, larger ones
+	 * are positional transferTo regions, so nothing before a range is read.
+	 * 
+	 * @param file
+	 * @throws FileNotFoundException
+	 */
+	public void sendPartialBody(File file) throws FileNotFoundException {
+		FileChannel reader = null;
+		try {
+			for (int i = 0; i < ranges.count(); i++) {
+				writePartHeaders(i);
+				long start = ranges.start(i);
+				long count = ranges.end(i) - start + 1;
+				if (count <= COALESCE_LIMIT) {
+					if (reader == null) {
+						reader = new FileInputStream(file).getChannel();
+					}
+					byte[] part = new byte[(int) count];
+					ByteBuffer dst = ByteBuffer.wrap(part);
+					while (dst.hasRemaining() && reader.read(dst, start + dst.position()) != -1) {
+						//read until the end of the range
+					}
+					if (dst.hasRemaining()) {
+						//the file shrank below the range: close rather than send a short body
+						log.error("File " + file + " ended " + dst.remaining() + " bytes before the end of range " + start + "-" + ranges.end(i));
+						abort();
+						outStream.flush();
+						return;
+					}
+					outStream.write(part, 0, part.length);
+				} else {
+					//the response channel closes each transferred channel once sent
+					outStream.transferFile(new FileInputStream(file).getChannel(), start, count);
+				}
+			}
+			writePartsEnd();
+			bodyBytes = contentLength;
+			outStream.flush();
+		} catch (IOException ioe) {
+			log.error("Server Error: " + ioe);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (Exception e) {
+					log.error("Error closing file channel: " + e);
+				}
+			}
+		}
+	}
+
+	private void writePartHeaders(int i) throws IOException {
+		if (ranges.count() > 1) {
+			headers.append(PART_START).append(partType).contentRange(ranges.start(i), ranges.end(i), ranges.length());
+			headers.writeTo(outStream);
+		}
+	}
+
+	private void writePartsEnd() throws IOException {
+		if (ranges.count() > 1) {
+			outStream.write(PARTS_END, 0, PARTS_END.length);
+		}
+	}
+
+	/**
+	 * Tell the client none of the requested ranges lies within the file
+	 * 
+	 * @param length - length of the file
+	 */
+	public void sendRangeNotSatisfiable(long length) {
+		status = 416;
+		headers.append(STATUS_RANGE_NOT_SATISFIABLE).append(SERVER).date();
+		if (!keepAlive) {
+			headers.append(CONNECTION_CLOSE);
+		}
+		headers.append(HeaderEncoder.CONTENT_RANGE).append((byte) '*').append((byte) '/').appendDigits(length);
+		headers.append(HeaderEncoder.CRLF).contentLength(0);
+		writeHeaders();
+		flush();
+	}
+
+	/**
+	 * Send headers for a body of unknown length and return the stream the
+	 * body is written to; closing it ends the response. HTTP/1.1 clients get
+	 * a chunked body. For HTTP/1.0 clients the body ends when the connection
+	 * closes, so keep alive is switched off for this response.
+	 * 
+	 * @param status - status line text, e.g. "200 OK"
+	 * @param contentType - media type of the body, e.g. "text/html;charset=UTF-8"
+	 * @return the body stream
+	 */
+	public ChunkedOutputStream sendChunkedHeaders(String status, String contentType) {
+		if (!chunkedSupported) {
+			keepAlive = false;
+		}
+		this.status = statusCode(status);
+		headers.append(OK.equals(status) ? STATUS_OK : HeaderEncoder.line(protocol + " " + status)).append(SERVER).date().append(ALLOW);
 		if (!keepAlive) {
-			out.println("Connection: " + HttpRequest.CONNECTION_CLOSE);
+			headers.append(CONNECTION_CLOSE);
 		}
-		out.println("Content-Type: " + contentType);
-		out.println("Content-Length: " + file.length());
-		out.println();
-		out.flush();
+		headers.append(HeaderEncoder.line("Content-Type: " + contentType));
+		if (chunkedSupported) {
+			headers.append(TRANSFER_ENCODING_CHUNKED);
+		}
+		//the header block goes out with the first chunk
+		writeHeaders();
+		chunked = new ChunkedOutputStream(outStream, chunkedSupported, ServerConfig.CHUNK_BYTES, ServerConfig.CHUNK_FLUSH_MILLIS);
+		return chunked;
+	}
 
-		log.info("File " + file.getName() + " of type " + contentType + " returned.");
+	/**
+	 * Send the head of a response received from an upstream server, whose
+	 * body is then streamed through. The upstream fields are passed on as
+	 * they are; the framing is this connection's own: Content-Length for a
+	 * known length, else a chunked body, or for HTTP/1.0 clients a body that
+	 * ends when the connection closes.
+	 * 
+	 * @param status - status line text, e.g. "200 OK"
+	 * @param fields - header lines with CRLF, without hop-by-hop and framing fields
+	 * @param fieldsLength
+	 * @param length - body length, -1 if unknown
+	 * @param withBody - false for responses without body, e.g. to HEAD or 304
+	 * @return the body stream; closing it ends the response
+	 */
+	public OutputStream sendUpstreamHeaders(String status, byte[] fields, int fieldsLength, long length, boolean withBody) {
+		boolean streamed = withBody && length < 0;
+		if (streamed && !chunkedSupported) {
+			keepAlive = false;
+		}
+		this.status = statusCode(status);
+		headers.append(OK.equals(status) ? STATUS_OK : HeaderEncoder.line(protocol + " " + status));
+		if (!keepAlive) {
+			headers.append(CONNECTION_CLOSE);
+		}
+		headers.append(fields, 0, fieldsLength);
+		if (length >= 0) {
+			contentLength = length;
+			headers.contentLength(length);
+		} else if (streamed && chunkedSupported) {
+			headers.append(TRANSFER_ENCODING_CHUNKED);
+		}
+		writeHeaders();
+		if (streamed) {
+			chunked = new ChunkedOutputStream(outStream, chunkedSupported, ServerConfig.CHUNK_BYTES, ServerConfig.CHUNK_FLUSH_MILLIS);
+			return chunked;
+		}
+		return new BodyStream();
 	}
 
 	/**
-	 * Send the response body back to the client
+	 * Answers with the status and a short HTML body naming it, e.g. when an
+	 * upstream server could not be reached
+	 * 
+	 * @param status - status line text, e.g. "502 Bad Gateway"
+	 */
+	public void sendStatus(String status) {
+		body = ("<H2>" + status + "</H2>").getBytes();
+		this.status = statusCode(status);
+		headers.append(HeaderEncoder.line(protocol + " " + status)).append(SERVER).date();
+		if (!keepAlive) {
+			headers.append(CONNECTION_CLOSE);
+		}
+		headers.append(TYPE_HTML_UTF8).contentLength(body.length);
+		writeHeaders();
+		sendBody(body);
+	}
+
+	/**
+	 * Breaks off a response whose body cannot be completed, e.g. when its
+	 * upstream server went away: the connection is closed after what was
+	 * sent, so the client sees the body is short.
+	 */
+	public void abort() {
+		keepAlive = false;
+	}
+
+	/**
+	 * Tell the client its cached copy is still current. Only headers are
+	 * sent and the file is not touched.
+	 * 
+	 * @param encoding - coding of the representation the client holds, null if sent as is
+	 * @param vary - true if the representation depends on Accept-Encoding
+	 */
+	public void sendNotModified(ContentEncoding encoding, boolean vary) {
+		status = 304;
+		headers.append(STATUS_NOT_MODIFIED).append(SERVER).date();
+		if (!keepAlive) {
+			headers.append(CONNECTION_CLOSE);
+		}
+		if (vary) {
+			headers.append(VARY_ACCEPT_ENCODING);
+		}
+		appendValidators(encoding);
+		writeHeaders();
+		flush();
+	}
+
+	private void appendValidators(ContentEncoding encoding) {
+		if (validators != null) {
+			headers.append(validators.tagLine(encoding)).append(validators.lastModifiedLine());
+		}
+	}
+
+	/**
+	 * Send the response body back to the client. Small files are copied next
+	 * to the buffered headers so both leave in one write; larger files are
+	 * sent with FileChannel.transferTo straight from the page cache to the
+	 * socket.
 	 * 
 	 * @param file
-	 *            file being requested
+	 *            file being requested, after sendHeaders(file)
 	 * @throws FileNotFoundException
 	 */
 	public void sendBody(File file) throws FileNotFoundException {
-		FileInputStream fileIn = null;
-		byte[] fileData = new byte[1024];
-        int bytesRead = 0;
+		FileChannel fileChannel = new FileInputStream(file).getChannel();
+		boolean transferred = false;
 
 		try {
-		/*	int fileLength = (int) file.length();
-			// create byte array to store file data
-			//byte[] fileData = new byte[fileLength];
-
-			// open input stream from file
-			fileIn = new FileInputStream(file);
-			// read file into byte array
-			fileIn.read(fileData);
-
-			outStream.write(fileData, 0, fileLength); */
-			
-			// open input stream from file
-			fileIn = new FileInputStream(file);
-			while ((bytesRead = fileIn.read(fileData)) != -1) {
-				outStream.write(fileData, 0, bytesRead);
+			if (contentLength <= COALESCE_LIMIT) {
+				byte[] fileData = new byte[(int) contentLength];
+				ByteBuffer dst = ByteBuffer.wrap(fileData);
+				while (dst.hasRemaining() && fileChannel.read(dst) != -1) {
+					//read until the announced length
+				}
+				if (dst.hasRemaining()) {
+					//the file shrank after its length was announced: close rather than send a short body
+					log.error("File " + file + " ended " + dst.remaining() + " bytes before its announced length");
+					abort();
+				} else {
+					outStream.write(fileData, 0, fileData.length);
+					bodyBytes = contentLength;
+				}
+			} else {
+				outStream.transferFile(fileChannel, 0, contentLength);
+				transferred = true;
+				bodyBytes = contentLength;
 			}
-						
-			outStream.flush(); // flush binary output stream buffer
+			outStream.flush();
 		} catch (IOException ioe) {
 			log.error("Server Error: " + ioe);
 		} finally {
-			if (fileIn != null) {
+			if (!transferred) {
 				try {
-					fileIn.close();
+					fileChannel.close();
 				} catch (Exception e) {
-					log.error("Error closing file stream: " + e);
+					log.error("Error closing file channel: " + e);
 				}
 			}
 		}
 	}
 
+	/**
+	 * Send the response body straight from a shared file mapping. The
+	 * reference taken by the caller is released once the body is written.
+	 * 
+	 * @param mapped
+	 */
+	public void sendBody(MappedContent mapped) {
+		try {
+			bodyBytes = mapped.length();
+			outStream.write(mapped.slice(), mapped);
+			outStream.flush();
+		} catch (IOException ioe) {
+			log.error("Server Error: " + ioe);
+		}
+	}
+
+	/**
+	 * Send a body generated by the server, e.g. the metrics, with no file
+	 * behind it. Nothing is cached or validated.
+	 * 
+	 * @param contentType - media type of the body, e.g. "text/plain; charset=utf-8"
+	 * @param body - must not be modified afterwards
+	 * @param withBody - false for HEAD
+	 */
+	public void sendContent(String contentType, byte[] body, boolean withBody) {
+		status = 200;
+		contentLength = body.length;
+		headers.append(STATUS_OK).append(SERVER).date().append(ALLOW);
+		if (!keepAlive) {
+			headers.append(CONNECTION_CLOSE);
+		}
+		headers.append(HeaderEncoder.line("Content-Type: " + contentType)).contentLength(contentLength);
+		writeHeaders();
+		if (withBody) {
+			sendBody(body);
+		} else {
+			flush();
+		}
+	}
+
 	/**
 	 * Send the response headers and body back to the client upon receiving a
 	 * request for an unimplemented method.
@@ -140,32 +660,19 @@ public class HttpResponse {
 	 *            that was requested but not support by the server
 	 */
 	public void sendNotImplementedMethod(String method) {
-		log.info("501 Not Implemented: " + method + " method.");
+		status = 501;
+		//String msg = "Method " + method + " not implemented.";
+		String msg ="<H2>501 Method " + method + " not implemented.</H2>";
+		body = msg.getBytes();
 
 		// send Not Implemented message to client
-		//out.println("HTTP/1.1 501 Not Implemented");
-		out.println(protocol + " " + NOT_IMPLEMENTED);
-		out.println("Server: Java HTTP Server 1.1");
-		out.println("Date: " + new Date());
-		out.println("Allow: GET, HEAD");
+		headers.append(STATUS_NOT_IMPLEMENTED).append(SERVER).date().append(ALLOW);
 		if (!keepAlive) {
-			out.println("Connection: " + HttpRequest.CONNECTION_CLOSE);
+			headers.append(CONNECTION_CLOSE);
 		}
-		out.println("Content-Type: text/html;charset=UTF-8");
-			
-		//String msg = "Method " + method + " not implemented.";
-		String msg ="<H2>501 Method " + method + " not implemented.</H2>";
-		String length = Integer.toString(msg.length());
-		out.println("Content-Length: " + length);
-	    out.println();
-		out.flush();
-
-		log.info("501 Not Implemented: " + method + " method.");
-		
-		body = msg.getBytes();
+		headers.append(TYPE_HTML_UTF8).contentLength(body.length);
+		writeHeaders();
 		sendBody(body);
-		
-		log.info("Response 501 returned");
 	}
 
 	/**
@@ -177,42 +684,88 @@ public class HttpResponse {
 	
 	public void fileNotFound(String file)
 	{
+		status = 404;
 		//send file not found HTTP headers
-	    //out.println("HTTP/1.1 404 Not Found");
-		out.println(protocol + " " + NOT_FOUND);
-	    out.println("Server: Java HTTP Server 1.1");
-	    out.println("Allow: GET, HEAD");
+		headers.append(STATUS_NOT_FOUND).append(SERVER).append(ALLOW);
 	    if(!keepAlive)
 		{
-			out.println("Connection: " + HttpRequest.CONNECTION_CLOSE);
+			headers.append(CONNECTION_CLOSE);
 		}
-	    out.println("Date: " + new Date());
-	    out.println("Content-Type: text/html;charset=UTF-8");
+	    headers.date().append(TYPE_HTML_UTF8);
 	    
 	    //String msg = "File " + file + " not found.";
 	    String msg ="<H2>404 File Not Found: " + file + "</H2>";
-	    out.println("Content-Length: 100");
-	    out.println();
-		out.flush();
+		body = msg.getBytes(StandardCharsets.UTF_8);
+	    headers.contentLength(body.length);
+		writeHeaders();
+		sendBody(body);
+	}
 
-		log.info("404 File Not Found: " + file);
-		
+	/**
+	 * sendError answers a request head that could not be parsed. The
+	 * connection is closed afterwards, so the response always says so.
+	 *
+	 * @param status
+	 *            status line text, e.g. "400 Bad Request"
+	 */
+	public void sendError(String status)
+	{
+		String msg = "<H2>" + status + "</H2>";
 		body = msg.getBytes();
+		this.status = statusCode(status);
+
+		headers.append(HeaderEncoder.line(protocol + " " + status)).append(SERVER).date().append(CONNECTION_CLOSE);
+		headers.append(TYPE_HTML_UTF8).contentLength(body.length);
+		writeHeaders();
 		sendBody(body);
-	    
-		log.info("Response 404 returned");
 	}
 
 	/**
-	 * Sends the response body back to the client
+	 * Answers a request of a client over its request rate with 429 and closes
+	 * the connection; nothing of the request is looked up.
+	 * @param retryAfterSeconds - when the client may send again
+	 */
+	public void sendTooManyRequests(int retryAfterSeconds)
+	{
+		body = ("<H2>" + TOO_MANY_REQUESTS + "</H2>").getBytes();
+		status = 429;
+		keepAlive = false;
+		headers.append(HeaderEncoder.line(protocol + " " + TOO_MANY_REQUESTS)).append(SERVER).date();
+		headers.append(HeaderEncoder.line("Retry-After: " + retryAfterSeconds)).append(CONNECTION_CLOSE);
+		headers.append(TYPE_HTML_UTF8).contentLength(body.length);
+		writeHeaders();
+		sendBody(body);
+	}
+
+	/**
+	 * Buffers the header block; it reaches the socket together with the body
+	 * on the next flush. The response channel holds no monitor around socket
+	 * I/O, so virtual threads do not pin their carrier on writes.
+	 */
+	private void writeHeaders() {
+		try {
+			headers.writeTo(outStream);
+		} catch (IOException ioe) {
+			log.error("Server Error: " + ioe);
+		}
+	}
+
+	/**
+	 * Sends the response body back to the client. Bodies above the
+	 * coalescing limit are queued as they are instead of being copied.
 	 * 
-	 * @param body
+	 * @param body - must not be modified afterwards
 	 */
 	public void sendBody(byte[] body) {
 		try {
-			int bodyLength = (int) body.length;
+			int bodyLength = body.length;
+			bodyBytes = bodyLength;
 
-			outStream.write(body, 0, bodyLength);
+			if (bodyLength <= COALESCE_LIMIT) {
+				outStream.write(body, 0, bodyLength);
+			} else {
+				outStream.write(ByteBuffer.wrap(body));
+			}
 			outStream.flush(); // flush binary output stream buffer
 		} catch (IOException ioe) {
 			log.error("Server Error: " + ioe);
@@ -220,7 +773,47 @@ public class HttpResponse {
 	}
 
 	/**
-	 * close method closes the streams associated with an http response.
+	 * Flushes anything still buffered, e.g. the headers of a HEAD response
+	 */
+	public void flush() {
+		try {
+			outStream.flush();
+		} catch (IOException ioe) {
+			log.error("Server Error: " + ioe);
+		}
+	}
+
+	/**
+	 * Body of known length streamed through from elsewhere, see
+	 * sendUpstreamHeaders. Writes are copied into the response channel,
+	 * flush pushes them towards the socket and close ends the response.
+	 */
+	private final class BodyStream extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			outStream.write(b, off, len);
+			bodyBytes += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			outStream.drain();
+		}
+
+		@Override
+		public void close() throws IOException {
+			outStream.flush();
+		}
+	}
+
+	/**
+	 * close method releases anything the response channel still holds.
 	 * 
 	 */
 	public void close() {
@@ -228,9 +821,6 @@ public class HttpResponse {
 			if (outStream != null) {
 				outStream.close();
 			}
-			if (out != null) {
-				out.close();
-			}
 		} catch (Exception e) {
 			log.error("Error closing http response stream: " + e);
 		}
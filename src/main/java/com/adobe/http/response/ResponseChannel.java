@@ -0,0 +1,71 @@
+package com.adobe.http.response;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * @author rbajaj
+ * Destination of response bytes. Implementations decide how and when the
+ * bytes reach the socket: a blocking connection writes them out on flush,
+ * an event loop connection drains them as the socket becomes writable.
+ */
+public interface ResponseChannel extends Closeable {
+	
+	/**
+	 * Buffers bytes; consecutive small writes are coalesced into one socket write
+	 * @param b
+	 * @param off
+	 * @param len
+	 * @throws IOException
+	 */
+	void write(byte[] b, int off, int len) throws IOException;
+	
+	/**
+	 * Queues the remaining bytes of src without copying them. The content
+	 * must not change afterwards, e.g. an immutable cached body.
+	 * @param src
+	 * @throws IOException
+	 */
+	void write(ByteBuffer src) throws IOException;
+	
+	/**
+	 * Queues the remaining bytes of src without copying them and closes
+	 * release once they have been written, or when the connection goes away.
+	 * Used for buffers whose memory must stay valid until sent, such as
+	 * slices of a shared file mapping.
+	 * @param src
+	 * @param release
+	 * @throws IOException
+	 */
+	void write(ByteBuffer src, Closeable release) throws IOException;
+	
+	/**
+	 * Queues a region of a file to be sent with FileChannel.transferTo, so the
+	 * bytes go from the page cache to the socket without user space copies.
+	 * The response channel owns the file channel and closes it once sent.
+	 * @param file
+	 * @param position
+	 * @param count
+	 * @throws IOException
+	 */
+	void transferFile(FileChannel file, long position, long count) throws IOException;
+	
+	/**
+	 * Marks the end of a response and pushes buffered bytes and file regions
+	 * towards the socket. A connection answering pipelined requests may hold
+	 * them back and write the whole batch at once.
+	 * @throws IOException
+	 */
+	void flush() throws IOException;
+	
+	/**
+	 * Pushes everything queued towards the socket now, even while responses
+	 * are being batched, e.g. for a streamed body. A non-blocking channel
+	 * writes what the socket accepts and sends the rest when it is writable.
+	 * @return true if nothing is left queued
+	 * @throws IOException
+	 */
+	boolean drain() throws IOException;
+}
@@ -0,0 +1,88 @@
+package com.adobe.http.response;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author rbajaj
+ * Cache validators of one file version: the Last-Modified date and an
+ * entity tag per representation. Tags are built from the mtime and size,
+ * or from a content hash if one is given, and compressed variants get the
+ * coding appended, e.g. "18c2f1a9e40-1f4" and "18c2f1a9e40-1f4-gzip".
+ * All header lines are encoded once per version.
+ */
+public final class Validators {
+
+	private static final ContentEncoding[] ENCODINGS = ContentEncoding.values();
+
+	private final long lastModified;
+	private final long length;
+	private final byte[] lastModifiedLine;
+	private final byte[] lastModifiedDate;
+	//index 0 is the file as is, then one per ContentEncoding ordinal
+	private final byte[][] tags;
+	private final byte[][] tagLines;
+
+	/**
+	 * @param lastModified - mtime of the version in milliseconds
+	 * @param length - size of the version
+	 * @param hash - hex content hash, or null to tag by mtime and size
+	 */
+	public Validators(long lastModified, long length, String hash)
+	{
+		this.lastModified = lastModified;
+		this.length = length;
+		String date = HttpDate.format(lastModified);
+		this.lastModifiedDate = date.getBytes(StandardCharsets.US_ASCII);
+		this.lastModifiedLine = HeaderEncoder.line("Last-Modified: " + date);
+		String opaque = hash != null ? hash + '-' + Long.toHexString(length)
+				: Long.toHexString(lastModified) + '-' + Long.toHexString(length);
+		this.tags = new byte[ENCODINGS.length + 1][];
+		this.tagLines = new byte[ENCODINGS.length + 1][];
+		for(int i = 0; i < tags.length; i++)
+		{
+			String tag = '"' + opaque + (i == 0 ? "" : '-' + ENCODINGS[i - 1].token()) + '"';
+			tags[i] = tag.getBytes(StandardCharsets.US_ASCII);
+			tagLines[i] = HeaderEncoder.line("ETag: " + tag);
+		}
+	}
+
+	/**
+	 * @return true if these validators describe the file version with the given mtime and size
+	 */
+	public boolean isCurrent(long mtime, long size)
+	{
+		return lastModified == mtime && length == size;
+	}
+
+	public long lastModified()
+	{
+		return lastModified;
+	}
+
+	/**
+	 * @param encoding - coding of the representation, null for the file as is
+	 * @return the quoted entity tag, must not be modified
+	 */
+	public byte[] tag(ContentEncoding encoding)
+	{
+		return tags[encoding == null ? 0 : encoding.ordinal() + 1];
+	}
+
+	/**
+	 * @return Last-Modified date as sent, must not be modified
+	 */
+	public byte[] lastModifiedDate()
+	{
+		return lastModifiedDate;
+	}
+
+	byte[] tagLine(ContentEncoding encoding)
+	{
+		return tagLines[encoding == null ? 0 : encoding.ordinal() + 1];
+	}
+
+	byte[] lastModifiedLine()
+	{
+		return lastModifiedLine;
+	}
+}
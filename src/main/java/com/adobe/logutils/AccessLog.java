@@ -0,0 +1,539 @@
+package com.adobe.logutils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.adobe.cache.MappedContent;
+import com.adobe.http.request.HttpHeader;
+import com.adobe.http.request.HttpRequest;
+import com.adobe.http.response.HttpResponse;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author rbajaj
+ * Access log in Common or Combined Log Format, written off the request path.
+ *
+ * Request threads copy the few fields of a request into a preallocated slot
+ * of a ring buffer; slots are claimed with a compare-and-set on the head
+ * sequence, so logging takes no lock and allocates nothing. When the ring
+ * is full the record is dropped and counted rather than making the request
+ * wait. A single writer thread formats the records in order, in batches,
+ * straight into a memory mapped region of the log file. The file is rotated
+ * to name.1 ... name.maxFiles when the next record no longer fits.
+ */
+public final class AccessLog {
+
+	static Logger log = Logger.getLogger(AccessLog.class.getSimpleName());
+
+	//longest request line, referer and user agent kept, longer ones are cut
+	static final int MAX_LINE = 512;
+	static final int MAX_FIELD = 256;
+	//longest textual IPv6 address
+	private static final int MAX_REMOTE = 46;
+	private static final long IDLE_PARK_NANOS = 5000000L;
+
+	private static final DateTimeFormatter CLF_DATE =
+			DateTimeFormatter.ofPattern("'['dd/MMM/yyyy:HH:mm:ss '+0000]'", Locale.US).withZone(ZoneOffset.UTC);
+	private static final byte[] NO_LINE = "-".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	private final File file;
+	private final boolean combined;
+	private final long maxBytes;
+	private final int maxFiles;
+
+	private final Slot[] ring;
+	private final int mask;
+	//next sequence to claim, shared by all request threads
+	private final AtomicLong head = new AtomicLong();
+	//next sequence to write, advanced by the writer only
+	private volatile long tail = 0;
+	private volatile boolean running;
+	private final Thread writer;
+	private final Thread shutdownHook;
+
+	private final LongAdder written = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	//writer state
+	private RandomAccessFile raf;
+	private MappedByteBuffer mapped;
+	private long mappedStart;
+	private byte[] record = new byte[1024];
+	private int recordLength;
+	private long dateSecond = -1;
+	private byte[] date;
+
+	/**
+	 * @param path - log file, null disables the access log
+	 * @param combined - true for Combined Log Format, false for Common Log Format
+	 * @param maxBytes - size at which the file is rotated, also the size of the mapping
+	 * @param maxFiles - rotated files kept
+	 * @param ringSize - records that can wait for the writer, rounded up to a power of two
+	 */
+	public AccessLog(String path, boolean combined, long maxBytes, int maxFiles, int ringSize)
+	{
+		this.file = path == null || path.isEmpty() ? null : new File(path);
+		this.combined = combined;
+		this.maxBytes = Math.max(maxBytes, 4 * 1024);
+		this.maxFiles = maxFiles;
+		int size = Integer.highestOneBit(Math.max(2, ringSize) * 2 - 1);
+		this.ring = new Slot[file == null ? 1 : size];
+		this.mask = ring.length - 1;
+		for(int i = 0; i < ring.length; i++)
+		{
+			ring[i] = new Slot(i - ring.length);
+		}
+
+		boolean opened = false;
+		if(file != null)
+		{
+			try{
+				open();
+				opened = true;
+			}catch(IOException e)
+			{
+				log.error("Cannot open access log " + file + ": " + e);
+			}
+		}
+		this.running = opened;
+		if(opened)
+		{
+			writer = new Thread(new Runnable() {
+				public void run() {
+					writeLoop();
+				}
+			}, "access-log");
+			writer.setDaemon(true);
+			writer.start();
+			//records still in the ring are written when the JVM exits
+			shutdownHook = new Thread(new Runnable() {
+				public void run() {
+					close();
+				}
+			}, "access-log-close");
+			Runtime.getRuntime().addShutdownHook(shutdownHook);
+		}
+		else
+		{
+			writer = null;
+			shutdownHook = null;
+		}
+	}
+
+	/**
+	 * @return false if the access log is switched off or could not be opened
+	 */
+	public boolean isEnabled()
+	{
+		return running;
+	}
+
+	/**
+	 * Records a served request. Called on the request thread right after the
+	 * response was handed to the connection.
+	 *
+	 * @param remote - client address as ASCII, e.g. "127.0.0.1"
+	 * @param request - parsed request, null if the head could not be parsed
+	 * @param response
+	 */
+	public void log(byte[] remote, HttpRequest request, HttpResponse response)
+	{
+		if(!running)
+		{
+			return;
+		}
+		long sequence;
+		do
+		{
+			sequence = head.get();
+			if(sequence - tail >= ring.length)
+			{
+				dropped.increment();
+				return;
+			}
+		}while(!head.compareAndSet(sequence, sequence + 1));
+
+		Slot slot = ring[(int) sequence & mask];
+		slot.time = System.currentTimeMillis();
+		slot.status = response.getStatus();
+		slot.bytes = response.getBodyBytes();
+		slot.remoteLength = Math.min(remote.length, MAX_REMOTE);
+		System.arraycopy(remote, 0, slot.remote, 0, slot.remoteLength);
+		if(request != null)
+		{
+			slot.lineLength = request.copyRequestLine(slot.line, 0, MAX_LINE);
+			slot.refererLength = combined ? request.copyHeader(HttpHeader.REFERER, slot.referer, 0, MAX_FIELD) : -1;
+			slot.userAgentLength = combined ? request.copyHeader(HttpHeader.USER_AGENT, slot.userAgent, 0, MAX_FIELD) : -1;
+		}
+		else
+		{
+			slot.lineLength = -1;
+			slot.refererLength = -1;
+			slot.userAgentLength = -1;
+		}
+		//publish, the writer reads the fields only after seeing the sequence
+		slot.published = sequence;
+	}
+
+	/**
+	 * Writes what is still queued, trims the file to its content and stops
+	 * the writer. Later records are ignored.
+	 */
+	public void close()
+	{
+		if(!running)
+		{
+			return;
+		}
+		running = false;
+		if(Thread.currentThread() != shutdownHook)
+		{
+			try{
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			}catch(IllegalStateException e)
+			{
+				//already shutting down, the hook runs anyway
+			}
+		}
+		LockSupport.unpark(writer);
+		try{
+			writer.join(5000);
+		}catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @param address - client address, null if unknown
+	 * @return the address as logged, e.g. "127.0.0.1"
+	 */
+	public static byte[] remote(InetAddress address)
+	{
+		return (address == null ? "-" : address.getHostAddress()).getBytes(StandardCharsets.US_ASCII);
+	}
+
+	public long getWrittenCount()
+	{
+		return written.sum();
+	}
+
+	public long getDroppedCount()
+	{
+		return dropped.sum();
+	}
+
+	private void writeLoop()
+	{
+		try{
+			while(true)
+			{
+				long next = tail;
+				Slot slot = ring[(int) next & mask];
+				if(slot.published == next)
+				{
+					write(slot);
+					tail = next + 1;
+					written.increment();
+				}
+				else if(running || head.get() > next)
+				{
+					//idle, or a claimed slot is still being filled
+					LockSupport.parkNanos(running ? IDLE_PARK_NANOS : 1000L);
+				}
+				else
+				{
+					break;
+				}
+			}
+		}catch(IOException e)
+		{
+			running = false;
+			log.error("Access log stopped: " + e);
+		}finally
+		{
+			try{
+				finish();
+			}catch(IOException e)
+			{
+				log.error("Cannot close access log: " + e);
+			}
+		}
+	}
+
+	private void write(Slot slot) throws IOException
+	{
+		format(slot);
+		if(recordLength > mapped.remaining())
+		{
+			rotate();
+		}
+		mapped.put(record, 0, recordLength);
+	}
+
+	/**
+	 * host ident authuser [date] "request line" status bytes ["referer" "user agent"]
+	 */
+	private void format(Slot slot)
+	{
+		recordLength = 0;
+		append(slot.remote, slot.remoteLength);
+		appendAscii(" - - ");
+		long second = slot.time / 1000;
+		if(second != dateSecond)
+		{
+			dateSecond = second;
+			date = CLF_DATE.format(Instant.ofEpochMilli(slot.time)).getBytes(StandardCharsets.US_ASCII);
+		}
+		append(date, date.length);
+		appendAscii(" ");
+		appendQuoted(slot.line, slot.lineLength);
+		appendAscii(" ");
+		appendNumber(slot.status);
+		appendAscii(" ");
+		if(slot.bytes > 0)
+		{
+			appendNumber(slot.bytes);
+		}
+		else
+		{
+			appendAscii("-");
+		}
+		if(combined)
+		{
+			appendAscii(" ");
+			appendQuoted(slot.referer, slot.refererLength);
+			appendAscii(" ");
+			appendQuoted(slot.userAgent, slot.userAgentLength);
+		}
+		appendAscii("\n");
+	}
+
+	/**
+	 * Quotes a field, escaping quotes, backslashes and non-printable bytes
+	 * the way Apache does; an absent field is written as "-"
+	 */
+	private void appendQuoted(byte[] b, int length)
+	{
+		if(length < 0)
+		{
+			b = NO_LINE;
+			length = NO_LINE.length;
+		}
+		ensure(2 + 4 * length);
+		record[recordLength++] = '"';
+		for(int i = 0; i < length; i++)
+		{
+			int c = b[i] & 0xff;
+			if(c == '"' || c == '\\')
+			{
+				record[recordLength++] = '\\';
+				record[recordLength++] = (byte) c;
+			}
+			else if(c < 0x20 || c >= 0x7f)
+			{
+				record[recordLength++] = '\\';
+				record[recordLength++] = 'x';
+				record[recordLength++] = HEX[c >> 4];
+				record[recordLength++] = HEX[c & 0xf];
+			}
+			else
+			{
+				record[recordLength++] = (byte) c;
+			}
+		}
+		record[recordLength++] = '"';
+	}
+
+	private void appendNumber(long value)
+	{
+		ensure(20);
+		int digits = 1;
+		for(long v = value; v >= 10; v /= 10)
+		{
+			digits++;
+		}
+		for(int i = recordLength + digits - 1; i >= recordLength; i--)
+		{
+			record[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		recordLength += digits;
+	}
+
+	private void appendAscii(String s)
+	{
+		ensure(s.length());
+		for(int i = 0; i < s.length(); i++)
+		{
+			record[recordLength++] = (byte) s.charAt(i);
+		}
+	}
+
+	private void append(byte[] b, int length)
+	{
+		ensure(length);
+		System.arraycopy(b, 0, record, recordLength, length);
+		recordLength += length;
+	}
+
+	private void ensure(int extra)
+	{
+		if(recordLength + extra > record.length)
+		{
+			byte[] bigger = new byte[Math.max(record.length * 2, recordLength + extra)];
+			System.arraycopy(record, 0, bigger, 0, recordLength);
+			record = bigger;
+		}
+	}
+
+	/**
+	 * Maps the file from the end of what earlier runs wrote
+	 */
+	private void open() throws IOException
+	{
+		File dir = file.getAbsoluteFile().getParentFile();
+		if(dir != null && !dir.isDirectory() && !dir.mkdirs())
+		{
+			throw new IOException("Cannot create " + dir);
+		}
+		raf = new RandomAccessFile(file, "rw");
+		long end = dataEnd(raf.getChannel());
+		if(end >= maxBytes)
+		{
+			raf.getChannel().truncate(end);
+			raf.close();
+			shiftFiles();
+			raf = new RandomAccessFile(file, "rw");
+			end = 0;
+		}
+		mappedStart = end;
+		mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, end, maxBytes - end);
+	}
+
+	/**
+	 * @return length of the logged content; a mapping left by a run that did
+	 *         not close the log pads the file with zero bytes
+	 */
+	private static long dataEnd(FileChannel channel) throws IOException
+	{
+		long end = channel.size();
+		ByteBuffer block = ByteBuffer.allocate(64 * 1024);
+		while(end > 0)
+		{
+			long start = Math.max(0, end - block.capacity());
+			block.clear();
+			block.limit((int) (end - start));
+			while(block.hasRemaining() && channel.read(block, start + block.position()) > 0)
+			{
+				//fill the block
+			}
+			for(int i = block.position() - 1; i >= 0; i--)
+			{
+				if(block.get(i) != 0)
+				{
+					return start + i + 1;
+				}
+			}
+			end = start;
+		}
+		return 0;
+	}
+
+	private void rotate() throws IOException
+	{
+		finish();
+		shiftFiles();
+		open();
+		log.info("Rotated access log " + file);
+	}
+
+	/**
+	 * Releases the mapping, trims the file to what was written and closes it
+	 */
+	private void finish() throws IOException
+	{
+		if(raf == null)
+		{
+			return;
+		}
+		long end = mappedStart + mapped.position();
+		boolean unmapped = MappedContent.unmap(mapped);
+		mapped = null;
+		try{
+			//a file is never truncated under a live mapping; without one it keeps
+			//its zero padding, which dataEnd skips when the log is opened again
+			if(unmapped)
+			{
+				raf.getChannel().truncate(end);
+			}
+		}finally
+		{
+			raf.close();
+			raf = null;
+		}
+	}
+
+	/**
+	 * name.(n-1) becomes name.n, ..., name becomes name.1; the oldest is dropped
+	 */
+	private void shiftFiles()
+	{
+		String name = file.getPath();
+		new File(name + "." + maxFiles).delete();
+		for(int i = maxFiles - 1; i >= 1; i--)
+		{
+			File older = new File(name + "." + i);
+			if(older.exists())
+			{
+				older.renameTo(new File(name + "." + (i + 1)));
+			}
+		}
+		if(maxFiles > 0)
+		{
+			file.renameTo(new File(name + ".1"));
+		}
+		else
+		{
+			file.delete();
+		}
+	}
+
+	/**
+	 * Fixed size record, reused for every request that lands on it
+	 */
+	private static final class Slot {
+		volatile long published;
+		long time;
+		int status;
+		long bytes;
+		final byte[] remote = new byte[MAX_REMOTE];
+		int remoteLength;
+		final byte[] line = new byte[MAX_LINE];
+		int lineLength;
+		final byte[] referer = new byte[MAX_FIELD];
+		int refererLength;
+		final byte[] userAgent = new byte[MAX_FIELD];
+		int userAgentLength;
+
+		Slot(long published)
+		{
+			this.published = published;
+		}
+	}
+}
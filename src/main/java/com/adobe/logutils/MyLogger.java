@@ -5,8 +5,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
 import java.util.Properties;
 
+import org.apache.log4j.Appender;
+import org.apache.log4j.AsyncAppender;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
@@ -16,12 +21,23 @@ import org.apache.log4j.PropertyConfigurator;
  */
 public class MyLogger  
 {
+  private static final String ASYNC_APPENDER = "ASYNC";
+  private static final int ASYNC_BUFFER_SIZE = 8192;
+  //log4j is configured by the first caller only
+  private static boolean configured = false;
+	
   /**
+ * Configures log4j on the first call, the log file is named after that
+ * first caller; later calls only look up the logger.
  * @param logFile
  * @return
  */
-public static Logger getLogger(String logFile)
+public static synchronized Logger getLogger(String logFile)
   {
+	  if(configured)
+	  {
+		  return Logger.getLogger(logFile);
+	  }
 	  Logger log= null;
 	  try{
 		  Properties logProperties = new Properties();
@@ -30,7 +46,15 @@ public static Logger getLogger(String logFile)
 		  //new File(resource.toURI());
 	      logProperties.load(is);
 	      System.setProperty("file.name",logFile+".log");
+	      //appenders of an earlier configuration, e.g. log4j's own from a class loaded first, are replaced
+	      List<Appender> previous = rootAppenders();
 	      PropertyConfigurator.configure(logProperties);
+	      for(Appender appender : previous)
+	      {
+	    	  appender.close();
+	      }
+	      wrapRootAppenders();
+	      configured = true;
 	      log = Logger.getLogger(logFile);
 	      
 	  }catch(FileNotFoundException fe){
@@ -42,6 +66,44 @@ public static Logger getLogger(String logFile)
 	  
   }
   
+  /**
+   * Moves the configured root appenders behind a non-blocking AsyncAppender.
+   * log4j appenders write to file and console while holding a monitor; done on
+   * a request thread that pins a virtual thread's carrier for the whole write.
+   * Request threads now only enqueue the event, and a full buffer discards
+   * events instead of waiting.
+   */
+  private static void wrapRootAppenders()
+  {
+	  Logger root = Logger.getRootLogger();
+	  List<Appender> appenders = rootAppenders();
+	  if(appenders.isEmpty())
+	  {
+		  return;
+	  }
+	  AsyncAppender async = new AsyncAppender();
+	  async.setName(ASYNC_APPENDER);
+	  async.setBlocking(false);
+	  async.setBufferSize(ASYNC_BUFFER_SIZE);
+	  for(Appender appender : appenders)
+	  {
+		  root.removeAppender(appender);
+		  async.addAppender(appender);
+	  }
+	  root.addAppender(async);
+  }
+  
+  @SuppressWarnings("unchecked")
+  private static List<Appender> rootAppenders()
+  {
+	  List<Appender> appenders = new ArrayList<Appender>();
+	  Enumeration<Appender> e = Logger.getRootLogger().getAllAppenders();
+	  while(e.hasMoreElements())
+	  {
+		  appenders.add(e.nextElement());
+	  }
+	  return appenders;
+  }
   
   /**
  * @param e
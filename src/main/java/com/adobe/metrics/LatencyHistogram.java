@@ -0,0 +1,118 @@
+package com.adobe.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author rbajaj
+ * Histogram of durations in microseconds with log-linear buckets: values
+ * below 16 get a bucket each, and every power of two above that is split
+ * into 16 equal buckets, so a quantile read from it is at most 1/16 above
+ * the true value. Recording is one striped counter increment and never
+ * blocks; quantiles are read from a snapshot of the counters.
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	//longest recorded duration is 2^36 microseconds, about 19 hours
+	private static final int MAX_MAGNITUDE = 36;
+	private static final long MAX_VALUE = (1L << (MAX_MAGNITUDE + 1)) - 1;
+	static final int BUCKETS = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+
+	public LatencyHistogram()
+	{
+		for(int i = 0; i < BUCKETS; i++)
+		{
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * @param nanos - duration, negative values count as 0
+	 */
+	public void recordNanos(long nanos)
+	{
+		long micros = Math.min(Math.max(nanos / 1000, 0), MAX_VALUE);
+		buckets[bucket(micros)].increment();
+		count.increment();
+		sum.add(micros);
+	}
+
+	static int bucket(long micros)
+	{
+		if(micros < SUB_BUCKETS)
+		{
+			return (int) micros;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+		int shift = magnitude - SUB_BUCKET_BITS;
+		return (shift << SUB_BUCKET_BITS) + (int) (micros >>> shift);
+	}
+
+	/**
+	 * @return largest value that falls into the bucket
+	 */
+	static long highestValue(int bucket)
+	{
+		if(bucket < SUB_BUCKETS)
+		{
+			return bucket;
+		}
+		int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+		long lowest = (long) ((bucket & (SUB_BUCKETS - 1)) + SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	/**
+	 * @return number of recorded durations
+	 */
+	public long getCount()
+	{
+		return count.sum();
+	}
+
+	/**
+	 * @return total of recorded durations in microseconds
+	 */
+	public long getSumMicros()
+	{
+		return sum.sum();
+	}
+
+	/**
+	 * @param quantiles - e.g. 0.5, 0.99, in ascending order
+	 * @return for each quantile the duration in microseconds that that share
+	 *         of recorded durations does not exceed, 0 if nothing was recorded
+	 */
+	public long[] quantilesMicros(double... quantiles)
+	{
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for(int i = 0; i < BUCKETS; i++)
+		{
+			counts[i] = buckets[i].sum();
+			total += counts[i];
+		}
+		long[] values = new long[quantiles.length];
+		if(total == 0)
+		{
+			return values;
+		}
+		int bucket = 0;
+		long seen = counts[0];
+		for(int q = 0; q < quantiles.length; q++)
+		{
+			long rank = Math.max(1, (long) Math.ceil(quantiles[q] * total));
+			while(seen < rank && bucket < BUCKETS - 1)
+			{
+				seen += counts[++bucket];
+			}
+			values[q] = highestValue(bucket);
+		}
+		return values;
+	}
+}
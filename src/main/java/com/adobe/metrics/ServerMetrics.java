@@ -0,0 +1,398 @@
+package com.adobe.metrics;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author rbajaj
+ * Counters and latency histograms of the server, updated by the connections
+ * and read by the metrics endpoint in the Prometheus text format. Every
+ * counter is a LongAdder, so request threads never contend on an update;
+ * a scrape sums the cells and may see counters a few requests apart.
+ */
+public final class ServerMetrics {
+
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+	private static final String[] QUANTILE_LABELS = {"0.5", "0.9", "0.99", "0.999"};
+	private static final int MAX_STATUS = 600;
+	private static final String GET = "GET";
+	private static final String HEAD = "HEAD";
+
+	private final LongAdder getRequests = new LongAdder();
+	private final LongAdder headRequests = new LongAdder();
+	private final LongAdder otherRequests = new LongAdder();
+	private final LongAdder[] responses = new LongAdder[MAX_STATUS];
+	private final LongAdder bodyBytes = new LongAdder();
+	private final LongAdder connectionsOpened = new LongAdder();
+	private final LongAdder connectionsClosed = new LongAdder();
+	private final LongAdder idleConnections = new LongAdder();
+	private final LongAdder rejectedQueueFull = new LongAdder();
+	private final LongAdder rejectedQueueTimeout = new LongAdder();
+	private final LongAdder limitedConnections = new LongAdder();
+	private final LongAdder limitedRequests = new LongAdder();
+	private final LongAdder http2Connections = new LongAdder();
+	private final LongAdder tlsFullHandshakes = new LongAdder();
+	private final LongAdder tlsResumedHandshakes = new LongAdder();
+	private final LongAdder tlsFailedHandshakes = new LongAdder();
+	private final LongAdder proxyForwarded = new LongAdder();
+	private final LongAdder proxyCollapsed = new LongAdder();
+	private final LongAdder proxyFailed = new LongAdder();
+	private final LongAdder upstreamOpened = new LongAdder();
+	private final LongAdder upstreamReused = new LongAdder();
+	private final LongAdder upstreamEvicted = new LongAdder();
+	private final LatencyHistogram requestLatency = new LatencyHistogram();
+	private final LatencyHistogram serviceTime = new LatencyHistogram();
+	//connection executor in POOL mode, null otherwise
+	private volatile ThreadPoolExecutor pool;
+
+	public ServerMetrics()
+	{
+		for(int i = 0; i < MAX_STATUS; i++)
+		{
+			responses[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * @param pool - executor whose queue depth is reported, null for none
+	 */
+	public void setPool(ThreadPoolExecutor pool)
+	{
+		this.pool = pool;
+	}
+
+	/**
+	 * Records an answered request
+	 * @param method - request method, null if the head could not be parsed
+	 * @param status - status code sent
+	 * @param bytes - body bytes sent
+	 * @param latencyNanos - from the request's arrival until its response was handed to the connection
+	 * @param serviceNanos - time spent producing the response
+	 */
+	public void recordRequest(String method, int status, long bytes, long latencyNanos, long serviceNanos)
+	{
+		if(GET.equals(method))
+		{
+			getRequests.increment();
+		}
+		else if(HEAD.equals(method))
+		{
+			headRequests.increment();
+		}
+		else
+		{
+			otherRequests.increment();
+		}
+		if(status > 0 && status < MAX_STATUS)
+		{
+			responses[status].increment();
+		}
+		bodyBytes.add(bytes);
+		requestLatency.recordNanos(latencyNanos);
+		serviceTime.recordNanos(serviceNanos);
+	}
+
+	public void connectionOpened()
+	{
+		connectionsOpened.increment();
+	}
+
+	/**
+	 * @param idle - true if the connection was counted as idle
+	 */
+	public void connectionClosed(boolean idle)
+	{
+		connectionsClosed.increment();
+		if(idle)
+		{
+			idleConnections.decrement();
+		}
+	}
+
+	/**
+	 * @param idle - true when a kept alive connection starts waiting for its
+	 *            next request, false when that request arrived
+	 */
+	public void connectionIdle(boolean idle)
+	{
+		if(idle)
+		{
+			idleConnections.increment();
+		}
+		else
+		{
+			idleConnections.decrement();
+		}
+	}
+
+	/**
+	 * Records a connection answered with 503 instead of being served
+	 * @param timedOut - true if it waited too long for a thread, false if the queue was full
+	 */
+	public void connectionRejected(boolean timedOut)
+	{
+		(timedOut ? rejectedQueueTimeout : rejectedQueueFull).increment();
+		responses[503].increment();
+	}
+
+	/**
+	 * Records a connection answered with 429 because its client had too many open
+	 */
+	public void connectionLimited()
+	{
+		limitedConnections.increment();
+		responses[429].increment();
+	}
+	
+	/**
+	 * Records a request answered with 429 because its client was over its
+	 * request rate; the response itself is recorded by recordRequest
+	 */
+	public void requestLimited()
+	{
+		limitedRequests.increment();
+	}
+	
+	/**
+	 * Records a connection that switched to HTTP/2, by prior knowledge or upgrade
+	 */
+	public void http2Started()
+	{
+		http2Connections.increment();
+	}
+	
+	/**
+	 * @return connections that switched to HTTP/2
+	 */
+	public long getHttp2Connections()
+	{
+		return http2Connections.sum();
+	}
+	
+	/**
+	 * Records a completed TLS handshake
+	 * @param resumed - true if it resumed an earlier session instead of a full key exchange
+	 */
+	public void tlsHandshake(boolean resumed)
+	{
+		(resumed ? tlsResumedHandshakes : tlsFullHandshakes).increment();
+	}
+	
+	/**
+	 * Records a TLS handshake that failed or was given up by the client
+	 */
+	public void tlsHandshakeFailed()
+	{
+		tlsFailedHandshakes.increment();
+	}
+	
+	public long getTlsFullHandshakes()
+	{
+		return tlsFullHandshakes.sum();
+	}
+	
+	public long getTlsResumedHandshakes()
+	{
+		return tlsResumedHandshakes.sum();
+	}
+	
+	public long getTlsFailedHandshakes()
+	{
+		return tlsFailedHandshakes.sum();
+	}
+	
+	/**
+	 * Records a request of a proxy route
+	 * @param collapsed - true if it was answered with the response fetched for an identical request in flight
+	 */
+	public void proxyRequest(boolean collapsed)
+	{
+		(collapsed ? proxyCollapsed : proxyForwarded).increment();
+	}
+	
+	/**
+	 * Records a request of a proxy route whose upstream could not answer it
+	 */
+	public void proxyFailed()
+	{
+		proxyFailed.increment();
+	}
+	
+	/**
+	 * Records an upstream connection taken for a request
+	 * @param reused - true if it was an idle keep-alive connection from the pool
+	 */
+	public void upstreamConnection(boolean reused)
+	{
+		(reused ? upstreamReused : upstreamOpened).increment();
+	}
+	
+	/**
+	 * Records an idle upstream connection closed because it timed out or its upstream closed it
+	 */
+	public void upstreamEvicted()
+	{
+		upstreamEvicted.increment();
+	}
+	
+	public long getProxyForwarded()
+	{
+		return proxyForwarded.sum();
+	}
+	
+	public long getProxyCollapsed()
+	{
+		return proxyCollapsed.sum();
+	}
+	
+	public long getProxyFailed()
+	{
+		return proxyFailed.sum();
+	}
+	
+	public long getUpstreamOpened()
+	{
+		return upstreamOpened.sum();
+	}
+	
+	public long getUpstreamReused()
+	{
+		return upstreamReused.sum();
+	}
+	
+	public long getUpstreamEvicted()
+	{
+		return upstreamEvicted.sum();
+	}
+	
+	public LatencyHistogram getRequestLatency()
+	{
+		return requestLatency;
+	}
+
+	public LatencyHistogram getServiceTime()
+	{
+		return serviceTime;
+	}
+
+	/**
+	 * @return number of responses sent with this status code
+	 */
+	public long getResponseCount(int status)
+	{
+		return status > 0 && status < MAX_STATUS ? responses[status].sum() : 0;
+	}
+
+	/**
+	 * @return open connections
+	 */
+	public long getActiveConnections()
+	{
+		return connectionsOpened.sum() - connectionsClosed.sum();
+	}
+
+	/**
+	 * @return all metrics in the Prometheus text exposition format 0.0.4
+	 */
+	public byte[] format()
+	{
+		StringBuilder out = new StringBuilder(4096);
+		header(out, "webserver_requests_total", "counter", "Requests answered, by method.");
+		sample(out, "webserver_requests_total{method=\"GET\"}", getRequests.sum());
+		sample(out, "webserver_requests_total{method=\"HEAD\"}", headRequests.sum());
+		sample(out, "webserver_requests_total{method=\"other\"}", otherRequests.sum());
+
+		header(out, "webserver_responses_total", "counter", "Responses sent, by status code.");
+		for(int status = 0; status < MAX_STATUS; status++)
+		{
+			long n = responses[status].sum();
+			if(n > 0)
+			{
+				sample(out, "webserver_responses_total{status=\"" + status + "\"}", n);
+			}
+		}
+
+		header(out, "webserver_response_body_bytes_total", "counter", "Response body bytes sent, without headers.");
+		sample(out, "webserver_response_body_bytes_total", bodyBytes.sum());
+
+		header(out, "webserver_connections_active", "gauge", "Open client connections.");
+		sample(out, "webserver_connections_active", getActiveConnections());
+		header(out, "webserver_connections_idle", "gauge", "Kept alive connections waiting for their next request.");
+		sample(out, "webserver_connections_idle", Math.max(0, idleConnections.sum()));
+		header(out, "webserver_connections_total", "counter", "Client connections accepted.");
+		sample(out, "webserver_connections_total", connectionsOpened.sum());
+
+		header(out, "webserver_http2_connections_total", "counter", "Client connections that switched to HTTP/2.");
+		sample(out, "webserver_http2_connections_total", http2Connections.sum());
+
+		header(out, "webserver_tls_handshakes_total", "counter", "TLS handshakes by outcome, resumed ones skipped the key exchange.");
+		sample(out, "webserver_tls_handshakes_total{type=\"full\"}", tlsFullHandshakes.sum());
+		sample(out, "webserver_tls_handshakes_total{type=\"resumed\"}", tlsResumedHandshakes.sum());
+		sample(out, "webserver_tls_handshakes_total{type=\"failed\"}", tlsFailedHandshakes.sum());
+
+		header(out, "webserver_proxy_requests_total", "counter", "Requests of proxy routes, by how they were answered.");
+		sample(out, "webserver_proxy_requests_total{result=\"forwarded\"}", proxyForwarded.sum());
+		sample(out, "webserver_proxy_requests_total{result=\"collapsed\"}", proxyCollapsed.sum());
+		sample(out, "webserver_proxy_requests_total{result=\"failed\"}", proxyFailed.sum());
+
+		header(out, "webserver_upstream_connections_total", "counter", "Upstream connections opened, reused from the pool and evicted from it.");
+		sample(out, "webserver_upstream_connections_total{state=\"opened\"}", upstreamOpened.sum());
+		sample(out, "webserver_upstream_connections_total{state=\"reused\"}", upstreamReused.sum());
+		sample(out, "webserver_upstream_connections_total{state=\"evicted\"}", upstreamEvicted.sum());
+
+		header(out, "webserver_connections_rejected_total", "counter", "Connections answered with 503 because the server had no capacity.");
+		sample(out, "webserver_connections_rejected_total{reason=\"queue_full\"}", rejectedQueueFull.sum());
+		sample(out, "webserver_connections_rejected_total{reason=\"queue_timeout\"}", rejectedQueueTimeout.sum());
+
+		header(out, "webserver_client_limited_total", "counter", "Connections and requests answered with 429 because their client was over a limit.");
+		sample(out, "webserver_client_limited_total{reason=\"connections\"}", limitedConnections.sum());
+		sample(out, "webserver_client_limited_total{reason=\"rate\"}", limitedRequests.sum());
+		
+		ThreadPoolExecutor executor = pool;
+		header(out, "webserver_pool_queue_depth", "gauge", "Connections waiting for a pool thread.");
+		sample(out, "webserver_pool_queue_depth", executor != null ? executor.getQueue().size() : 0);
+		header(out, "webserver_pool_active_threads", "gauge", "Pool threads serving a connection.");
+		sample(out, "webserver_pool_active_threads", executor != null ? executor.getActiveCount() : 0);
+
+		summary(out, "webserver_request_duration_seconds",
+				"Time from the arrival of a request until its response was handed to the connection.", requestLatency);
+		summary(out, "webserver_service_duration_seconds", "Time spent producing a response.", serviceTime);
+		return out.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void summary(StringBuilder out, String name, String help, LatencyHistogram histogram)
+	{
+		header(out, name, "summary", help);
+		long[] values = histogram.quantilesMicros(QUANTILES);
+		for(int i = 0; i < QUANTILES.length; i++)
+		{
+			out.append(name).append("{quantile=\"").append(QUANTILE_LABELS[i]).append("\"} ");
+			seconds(out, values[i]).append('\n');
+		}
+		seconds(out.append(name).append("_sum "), histogram.getSumMicros()).append('\n');
+		sample(out, name + "_count", histogram.getCount());
+	}
+
+	private static StringBuilder seconds(StringBuilder out, long micros)
+	{
+		out.append(micros / 1000000).append('.');
+		String fraction = Long.toString(micros % 1000000);
+		for(int i = fraction.length(); i < 6; i++)
+		{
+			out.append('0');
+		}
+		return out.append(fraction);
+	}
+
+	private static void header(StringBuilder out, String name, String type, String help)
+	{
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(StringBuilder out, String name, long value)
+	{
+		out.append(name).append(' ').append(value).append('\n');
+	}
+}
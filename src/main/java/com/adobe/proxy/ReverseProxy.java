@@ -0,0 +1,565 @@
+package com.adobe.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.adobe.connection.BufferPool;
+import com.adobe.http.request.HttpHeader;
+import com.adobe.http.request.HttpRequest;
+import com.adobe.http.response.HttpResponse;
+import com.adobe.metrics.ServerMetrics;
+import com.adobe.server.ServerConfig;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author rbajaj
+ * Forwards the requests of configured path prefixes to upstream servers,
+ * e.g. "/api" to a local backend, instead of serving them from the web root.
+ *
+ * Requests go out as HTTP/1.1 over the persistent connections pooled by
+ * each upstream, without their hop-by-hop fields and with the client added
+ * to X-Forwarded-For. Response bodies are streamed through a pooled buffer
+ * as they arrive and framed by the client's connection, so a large or slow
+ * body never sits in memory whole. A request that fails on a pooled
+ * connection before any response byte arrived is sent again on a new one,
+ * if it has no body and is idempotent: the upstream closed the connection
+ * while it idled and never saw the request.
+ *
+ * Concurrent identical GETs are collapsed: the first goes upstream, the
+ * others wait for it and are answered with a copy of its response, as long
+ * as that response is small, complete and the same for every client. A
+ * response that turns out to be private is fetched by each waiting request
+ * on its own. Nothing is kept once the first request is answered.
+ */
+public final class ReverseProxy {
+
+	static Logger log = Logger.getLogger(ReverseProxy.class.getSimpleName());
+
+	private static final String GET = "GET";
+	private static final String HEAD = "HEAD";
+	//methods whose request may be sent twice without a different effect
+	private static final List<String> IDEMPOTENT = Arrays.asList(GET, HEAD, "OPTIONS", "TRACE", "PUT", "DELETE");
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	//route prefixes in lower case, longest first, and where each goes
+	private final String[] prefixes;
+	private final Upstream[] routes;
+	private final List<Upstream> upstreams;
+	private final int collapseMaxBytes;
+	private final BufferPool buffers = new BufferPool(BUFFER_SIZE, 64);
+	//GETs being fetched, by collapse key
+	private final ConcurrentHashMap<String, Flight> inFlight = new ConcurrentHashMap<String, Flight>();
+
+	/**
+	 * @param routes - comma separated prefix=host:port pairs, e.g. "/api=127.0.0.1:9000", empty for none
+	 * @param maxIdlePerUpstream - idle connections kept per upstream
+	 * @param idleTimeoutMillis - idle connections older than this are closed
+	 * @param connectTimeoutMillis
+	 * @param readTimeoutMillis - longest wait for upstream bytes
+	 * @param collapseMaxBytes - largest body shared by collapsed GETs, 0 disables collapsing
+	 * @throws IllegalArgumentException if a route is malformed
+	 */
+	public ReverseProxy(String routes, int maxIdlePerUpstream, long idleTimeoutMillis, int connectTimeoutMillis,
+			int readTimeoutMillis, int collapseMaxBytes)
+	{
+		this.collapseMaxBytes = collapseMaxBytes;
+		Map<String, Upstream> byPrefix = new HashMap<String, Upstream>();
+		Map<String, Upstream> byAddress = new HashMap<String, Upstream>();
+		for(String route : routes.split(","))
+		{
+			route = route.trim();
+			if(route.isEmpty())
+			{
+				continue;
+			}
+			int equals = route.indexOf('=');
+			int colon = route.lastIndexOf(':');
+			if(equals <= 0 || route.charAt(0) != '/' || colon < equals + 2)
+			{
+				throw new IllegalArgumentException("Invalid proxy route, expected prefix=host:port: " + route);
+			}
+			String prefix = route.substring(0, equals).trim().toLowerCase(Locale.ROOT);
+			if(prefix.length() > 1 && prefix.endsWith("/"))
+			{
+				prefix = prefix.substring(0, prefix.length() - 1);
+			}
+			String address = route.substring(equals + 1).trim();
+			int port;
+			try{
+				port = Integer.parseInt(route.substring(colon + 1).trim());
+			}catch(NumberFormatException nfe)
+			{
+				throw new IllegalArgumentException("Invalid port in proxy route: " + route);
+			}
+			Upstream upstream = byAddress.get(address);
+			if(upstream == null)
+			{
+				String host = route.substring(equals + 1, colon).trim();
+				upstream = new Upstream(host, port, maxIdlePerUpstream, idleTimeoutMillis, connectTimeoutMillis, readTimeoutMillis);
+				byAddress.put(address, upstream);
+			}
+			byPrefix.put(prefix, upstream);
+		}
+		List<String> sorted = new ArrayList<String>(byPrefix.keySet());
+		Collections.sort(sorted, new Comparator<String>() {
+			public int compare(String a, String b)
+			{
+				return b.length() - a.length();
+			}
+		});
+		this.prefixes = sorted.toArray(new String[sorted.size()]);
+		this.routes = new Upstream[prefixes.length];
+		for(int i = 0; i < prefixes.length; i++)
+		{
+			this.routes[i] = byPrefix.get(prefixes[i]);
+		}
+		this.upstreams = new ArrayList<Upstream>(byAddress.values());
+	}
+
+	/**
+	 * @return proxy with the routes and pool settings of ServerConfig
+	 * @throws IllegalArgumentException if a route is malformed
+	 */
+	public static ReverseProxy fromConfig()
+	{
+		return new ReverseProxy(ServerConfig.PROXY_ROUTES, ServerConfig.PROXY_MAX_IDLE_PER_UPSTREAM,
+				ServerConfig.PROXY_IDLE_TIMEOUT_MILLIS, ServerConfig.PROXY_CONNECT_TIMEOUT_MILLIS,
+				ServerConfig.PROXY_READ_TIMEOUT_MILLIS, ServerConfig.PROXY_COLLAPSE_MAX_BYTES);
+	}
+
+	/**
+	 * @return true if any route is configured
+	 */
+	public boolean isEnabled()
+	{
+		return prefixes.length > 0;
+	}
+
+	/**
+	 * @param url - request target in lower case
+	 * @return upstream of the longest prefix covering the path, null to serve it from the web root
+	 */
+	public Upstream route(String url)
+	{
+		for(int i = 0; i < prefixes.length; i++)
+		{
+			String prefix = prefixes[i];
+			if(url.startsWith(prefix))
+			{
+				//"/api" covers "/api", "/api/x" and "/api?x", not "/apix"
+				if(url.length() == prefix.length() || prefix.length() == 1)
+				{
+					return routes[i];
+				}
+				char next = url.charAt(prefix.length());
+				if(next == '/' || next == '?')
+				{
+					return routes[i];
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Answers a request with the response of its upstream, or with 502 if the
+	 * upstream cannot be reached and 504 if it does not answer in time
+	 * @param upstream - as returned by route
+	 * @param request
+	 * @param response
+	 * @param metrics - of the server the request came to
+	 */
+	public void forward(Upstream upstream, HttpRequest request, HttpResponse response, ServerMetrics metrics)
+	{
+		if(request.getHeader(HttpHeader.TRANSFER_ENCODING) != null)
+		{
+			//a chunked request body would have to be decoded first; clients resend it with a length
+			metrics.proxyFailed();
+			response.sendStatus(HttpResponse.LENGTH_REQUIRED);
+			return;
+		}
+		if(request.getContentLength() > 0 && request.getBody() == null)
+		{
+			//HTTP/2 streams do not hand their request bodies to handlers
+			metrics.proxyFailed();
+			response.sendStatus(HttpResponse.NOT_IMPLEMENTED);
+			return;
+		}
+		String key = collapseMaxBytes > 0 ? collapseKey(upstream, request) : null;
+		if(key == null)
+		{
+			fetch(upstream, request, response, null, metrics);
+			return;
+		}
+		Flight flight = new Flight();
+		Flight leader = inFlight.putIfAbsent(key, flight);
+		if(leader == null)
+		{
+			try{
+				fetch(upstream, request, response, flight, metrics);
+			}finally
+			{
+				inFlight.remove(key, flight);
+				flight.done.countDown();
+			}
+			return;
+		}
+		Recorded shared = leader.await(upstream.readTimeoutMillis());
+		if(shared == null)
+		{
+			//the response was private, too large or failed: this request goes upstream itself
+			fetch(upstream, request, response, null, metrics);
+			return;
+		}
+		metrics.proxyRequest(true);
+		replay(shared, response);
+	}
+
+	/**
+	 * @return key of a GET whose response can be shared with identical
+	 *         concurrent ones, null if the request carries anything that
+	 *         may make its response personal or partial
+	 */
+	private static String collapseKey(Upstream upstream, HttpRequest request)
+	{
+		if(!GET.equals(request.getMethod()) || request.getContentLength() > 0
+				|| request.getHeader(HttpHeader.AUTHORIZATION) != null || request.getHeader(HttpHeader.COOKIE) != null
+				|| request.getHeader(HttpHeader.RANGE) != null || request.getHeader(HttpHeader.IF_NONE_MATCH) != null
+				|| request.getHeader(HttpHeader.IF_MODIFIED_SINCE) != null)
+		{
+			return null;
+		}
+		return upstream + " " + request.getHeader(HttpHeader.HOST) + " " + request.getTarget() + " "
+				+ request.getHeader(HttpHeader.ACCEPT_ENCODING);
+	}
+
+	/**
+	 * Sends the request upstream and streams the response to the client
+	 * @param flight - where to record the response for collapsed requests, null if none wait for it
+	 */
+	private void fetch(Upstream upstream, HttpRequest request, HttpResponse response, Flight flight, ServerMetrics metrics)
+	{
+		boolean head = HEAD.equals(request.getMethod());
+		byte[] requestHead = requestHead(upstream, request);
+		UpstreamConnection connection = null;
+		UpstreamResponse upstreamResponse;
+		try{
+			connection = upstream.acquire(metrics);
+			try{
+				upstreamResponse = exchange(connection, requestHead, request, head);
+			}catch(IOException ioe)
+			{
+				if(!connection.isReused() || connection.hasReceived() || ioe instanceof SocketTimeoutException
+						|| request.getBody() != null || !IDEMPOTENT.contains(request.getMethod()))
+				{
+					throw ioe;
+				}
+				//closed by the upstream while it idled, the request never reached it
+				log.debug("Pooled connection to " + upstream + " failed, sending again: " + ioe);
+				connection.close();
+				connection = upstream.open(metrics);
+				upstreamResponse = exchange(connection, requestHead, request, head);
+			}
+		}catch(IOException ioe)
+		{
+			if(connection != null)
+			{
+				connection.close();
+			}
+			log.debug("Upstream " + upstream + " failed: " + ioe);
+			metrics.proxyFailed();
+			if(request.getBody() != null)
+			{
+				//what is left of the body cannot be told from the next request
+				response.abort();
+			}
+			response.sendStatus(ioe instanceof SocketTimeoutException ? HttpResponse.GATEWAY_TIMEOUT : HttpResponse.BAD_GATEWAY);
+			return;
+		}
+		metrics.proxyRequest(false);
+		stream(upstream, connection, upstreamResponse, request, response, flight, metrics);
+	}
+
+	/**
+	 * Writes the request, with its body if it has one, and reads the response head
+	 */
+	private UpstreamResponse exchange(UpstreamConnection connection, byte[] requestHead, HttpRequest request,
+			boolean head) throws IOException
+	{
+		connection.write(requestHead, 0, requestHead.length);
+		InputStream body = request.getBody();
+		if(body != null)
+		{
+			ByteBuffer buffer = buffers.acquire();
+			try{
+				byte[] b = buffer.array();
+				int n;
+				while((n = body.read(b, 0, b.length)) > 0)
+				{
+					connection.write(b, 0, n);
+				}
+			}finally
+			{
+				buffers.release(buffer);
+			}
+		}
+		return UpstreamResponse.read(connection, head);
+	}
+
+	/**
+	 * Copies the response body to the client as it arrives. What arrived is
+	 * pushed to the client before the next wait for the upstream, so the
+	 * client sees a slow body progress. The connection goes back to the
+	 * pool once the body was read to its end.
+	 */
+	private void stream(Upstream upstream, UpstreamConnection connection, UpstreamResponse upstreamResponse,
+			HttpRequest request, HttpResponse response, Flight flight, ServerMetrics metrics)
+	{
+		UpstreamResponse.Body body = upstreamResponse.body(connection);
+		byte[] fields = upstreamResponse.fields();
+		long length = upstreamResponse.length();
+		//copy for the collapsed requests, dropped once it grows past the limit
+		ByteArrayOutputStream recording = flight != null && upstreamResponse.isShareable() && length <= collapseMaxBytes
+				? new ByteArrayOutputStream(length > 0 ? (int) length : 1024) : null;
+		ByteBuffer buffer = buffers.acquire();
+		byte[] b = buffer.array();
+		OutputStream out = null;
+		try{
+			if(length < 0 && upstreamResponse.hasBody() && request.isHttp2())
+			{
+				//an HTTP/2 stream frames the body itself and sends it once complete anyway
+				ByteArrayOutputStream whole = new ByteArrayOutputStream();
+				int n;
+				while((n = body.read(b, 0, b.length)) > 0)
+				{
+					whole.write(b, 0, n);
+				}
+				out = response.sendUpstreamHeaders(upstreamResponse.statusText(), fields, fields.length, whole.size(), true);
+				whole.writeTo(out);
+				if(recording != null && whole.size() <= collapseMaxBytes)
+				{
+					whole.writeTo(recording);
+				}
+			}
+			else
+			{
+				out = response.sendUpstreamHeaders(upstreamResponse.statusText(), fields, fields.length, length,
+						upstreamResponse.hasBody());
+				int n;
+				while((n = body.read(b, 0, b.length)) > 0)
+				{
+					out.write(b, 0, n);
+					if(recording != null)
+					{
+						if(recording.size() + n > collapseMaxBytes)
+						{
+							recording = null;
+						}
+						else
+						{
+							recording.write(b, 0, n);
+						}
+					}
+					if(body.available() == 0)
+					{
+						out.flush();
+					}
+				}
+			}
+			out.close();
+		}catch(IOException ioe)
+		{
+			log.debug("Proxied response from " + upstream + " broken off: " + ioe);
+			if(out == null)
+			{
+				metrics.proxyFailed();
+				response.sendStatus(ioe instanceof SocketTimeoutException ? HttpResponse.GATEWAY_TIMEOUT : HttpResponse.BAD_GATEWAY);
+			}
+			else
+			{
+				//the client has part of the body, closing tells it the rest is missing
+				response.abort();
+			}
+		}finally
+		{
+			buffers.release(buffer);
+		}
+		if(body.isComplete() && upstreamResponse.isKeepAlive())
+		{
+			upstream.release(connection, metrics);
+		}
+		else
+		{
+			connection.close();
+		}
+		if(recording != null && body.isComplete())
+		{
+			flight.response = new Recorded(upstreamResponse.statusText(), fields,
+					upstreamResponse.hasBody() ? recording.toByteArray() : null, length);
+		}
+	}
+
+	/**
+	 * Answers a collapsed request with the response recorded for the first
+	 */
+	private static void replay(Recorded recorded, HttpResponse response)
+	{
+		boolean withBody = recorded.body != null;
+		OutputStream out = response.sendUpstreamHeaders(recorded.statusText, recorded.fields, recorded.fields.length,
+				withBody ? recorded.body.length : recorded.length, withBody);
+		try{
+			if(withBody)
+			{
+				out.write(recorded.body);
+			}
+			out.close();
+		}catch(IOException ioe)
+		{
+			log.debug("Collapsed response broken off: " + ioe);
+			response.abort();
+		}
+	}
+
+	/**
+	 * @return the request head as sent upstream: HTTP/1.1, without the
+	 *         hop-by-hop fields of the client's connection, with Host and
+	 *         the client appended to X-Forwarded-For
+	 */
+	private static byte[] requestHead(Upstream upstream, HttpRequest request)
+	{
+		StringBuilder head = new StringBuilder(512);
+		head.append(request.getMethod()).append(' ').append(request.getTarget()).append(" HTTP/1.1\r\n");
+		String connection = request.getHeader(HttpHeader.CONNECTION);
+		List<String> connectionTokens = new ArrayList<String>();
+		if(connection != null)
+		{
+			for(String token : connection.split(","))
+			{
+				connectionTokens.add(token.trim().toLowerCase(Locale.ROOT));
+			}
+		}
+		String forwardedFor = null;
+		boolean host = false;
+		for(int i = 0; i < request.getHeaderCount(); i++)
+		{
+			HttpHeader kind = request.getHeaderKind(i);
+			String name = request.getHeaderName(i);
+			if(kind == HttpHeader.X_FORWARDED_FOR)
+			{
+				String value = request.getHeaderValue(i);
+				forwardedFor = forwardedFor == null ? value : forwardedFor + ", " + value;
+			}
+			else if(kind != HttpHeader.CONNECTION && kind != HttpHeader.KEEP_ALIVE && kind != HttpHeader.TE
+					&& kind != HttpHeader.TRANSFER_ENCODING && kind != HttpHeader.UPGRADE && kind != HttpHeader.HTTP2_SETTINGS
+					&& kind != HttpHeader.EXPECT && kind != HttpHeader.CONTENT_LENGTH && !name.equalsIgnoreCase("Proxy-Connection")
+					&& !name.equalsIgnoreCase("Trailer") && !connectionTokens.contains(name.toLowerCase(Locale.ROOT)))
+			{
+				host |= kind == HttpHeader.HOST;
+				head.append(name).append(": ").append(request.getHeaderValue(i)).append("\r\n");
+			}
+		}
+		if(!host)
+		{
+			head.append("Host: ").append(upstream.hostHeader()).append("\r\n");
+		}
+		byte[] remote = request.getRemote();
+		if(remote != null || forwardedFor != null)
+		{
+			head.append("X-Forwarded-For: ");
+			if(forwardedFor != null)
+			{
+				head.append(forwardedFor).append(remote != null ? ", " : "");
+			}
+			if(remote != null)
+			{
+				head.append(new String(remote, StandardCharsets.US_ASCII));
+			}
+			head.append("\r\n");
+		}
+		if(request.getContentLength() > 0 || request.getHeader(HttpHeader.CONTENT_LENGTH) != null)
+		{
+			head.append("Content-Length: ").append(request.getContentLength()).append("\r\n");
+		}
+		head.append("\r\n");
+		return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @return the upstream servers of all routes
+	 */
+	public List<Upstream> getUpstreams()
+	{
+		return Collections.unmodifiableList(upstreams);
+	}
+
+	/**
+	 * Closes the idle upstream connections, when the server is replaced
+	 */
+	public void close()
+	{
+		for(Upstream upstream : upstreams)
+		{
+			upstream.close();
+		}
+	}
+
+	/**
+	 * A GET being fetched, which identical GETs arriving meanwhile wait for
+	 */
+	private static final class Flight {
+		final CountDownLatch done = new CountDownLatch(1);
+		//set by the first request if its response can answer the others
+		volatile Recorded response;
+
+		/**
+		 * @return the shared response, null if there is none or it took longer than timeoutMillis
+		 */
+		Recorded await(long timeoutMillis)
+		{
+			try{
+				return done.await(timeoutMillis, TimeUnit.MILLISECONDS) ? response : null;
+			}catch(InterruptedException ie)
+			{
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Complete response kept for the requests collapsed into one
+	 */
+	private static final class Recorded {
+		final String statusText;
+		final byte[] fields;
+		//null for responses without body
+		final byte[] body;
+		//announced length of a response without body, -1 if none
+		final long length;
+
+		Recorded(String statusText, byte[] fields, byte[] body, long length)
+		{
+			this.statusText = statusText;
+			this.fields = fields;
+			this.body = body;
+			this.length = length;
+		}
+	}
+}
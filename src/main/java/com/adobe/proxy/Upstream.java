@@ -0,0 +1,165 @@
+package com.adobe.proxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.adobe.metrics.ServerMetrics;
+
+/**
+ * @author rbajaj
+ * A backend server behind a proxy route, with its pool of idle keep-alive
+ * connections. The pool is a stack: the connection released last is taken
+ * first, so a few warm connections serve the load and the rest age out at
+ * the bottom. A connection is checked before it is handed out and dropped
+ * if it idled too long or its upstream closed it; the oldest one is also
+ * dropped whenever a connection comes back, so a pool that shrank does not
+ * keep dead sockets around.
+ */
+public final class Upstream {
+
+	private final String host;
+	private final int port;
+	private final InetSocketAddress address;
+	private final String hostHeader;
+	private final int maxIdle;
+	private final long idleTimeoutNanos;
+	private final int connectTimeoutMillis;
+	private final int readTimeoutMillis;
+	private final ConcurrentLinkedDeque<UpstreamConnection> idle = new ConcurrentLinkedDeque<UpstreamConnection>();
+	private final AtomicInteger idleCount = new AtomicInteger();
+	private volatile boolean closed = false;
+
+	/**
+	 * @param host - name or address of the upstream
+	 * @param port
+	 * @param maxIdle - most idle connections kept
+	 * @param idleTimeoutMillis - idle connections older than this are closed
+	 * @param connectTimeoutMillis
+	 * @param readTimeoutMillis - longest wait for response bytes
+	 */
+	Upstream(String host, int port, int maxIdle, long idleTimeoutMillis, int connectTimeoutMillis, int readTimeoutMillis)
+	{
+		this.host = host;
+		this.port = port;
+		this.address = new InetSocketAddress(host, port);
+		this.hostHeader = port == 80 ? host : host + ":" + port;
+		this.maxIdle = maxIdle;
+		this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.readTimeoutMillis = readTimeoutMillis;
+	}
+
+	/**
+	 * @return Host header value for requests that came without one
+	 */
+	String hostHeader()
+	{
+		return hostHeader;
+	}
+
+	int readTimeoutMillis()
+	{
+		return readTimeoutMillis;
+	}
+
+	/**
+	 * @param metrics - counts connections opened, reused and evicted
+	 * @return a live idle connection, or a new one if the pool has none
+	 * @throws IOException if a new connection cannot be established
+	 */
+	UpstreamConnection acquire(ServerMetrics metrics) throws IOException
+	{
+		UpstreamConnection connection;
+		while((connection = idle.pollFirst()) != null)
+		{
+			idleCount.decrementAndGet();
+			if(System.nanoTime() - connection.idleSince() < idleTimeoutNanos && connection.isAlive())
+			{
+				metrics.upstreamConnection(true);
+				connection.begin(true);
+				return connection;
+			}
+			evict(connection, metrics);
+		}
+		return open(metrics);
+	}
+
+	/**
+	 * @param metrics
+	 * @return a new connection, e.g. to send a request again that failed on a reused one
+	 * @throws IOException if it cannot be established
+	 */
+	UpstreamConnection open(ServerMetrics metrics) throws IOException
+	{
+		UpstreamConnection connection = new UpstreamConnection(address, connectTimeoutMillis, readTimeoutMillis);
+		metrics.upstreamConnection(false);
+		connection.begin(false);
+		return connection;
+	}
+
+	/**
+	 * Puts a connection whose response was read completely back into the pool
+	 * @param connection
+	 * @param metrics
+	 */
+	void release(UpstreamConnection connection, ServerMetrics metrics)
+	{
+		long now = System.nanoTime();
+		UpstreamConnection oldest = idle.peekLast();
+		if(oldest != null && now - oldest.idleSince() >= idleTimeoutNanos && idle.removeLastOccurrence(oldest))
+		{
+			idleCount.decrementAndGet();
+			evict(oldest, metrics);
+		}
+		if(closed || idleCount.incrementAndGet() > maxIdle)
+		{
+			idleCount.decrementAndGet();
+			connection.close();
+			return;
+		}
+		connection.idleSince(now);
+		idle.offerFirst(connection);
+		if(closed)
+		{
+			//lost the race with close
+			close();
+		}
+	}
+
+	private void evict(UpstreamConnection connection, ServerMetrics metrics)
+	{
+		connection.close();
+		metrics.upstreamEvicted();
+	}
+
+	/**
+	 * @return idle connections in the pool
+	 */
+	public int idleCount()
+	{
+		return idleCount.get();
+	}
+
+	/**
+	 * Closes the idle connections; connections in use are closed when they come back
+	 */
+	void close()
+	{
+		closed = true;
+		UpstreamConnection connection;
+		while((connection = idle.pollFirst()) != null)
+		{
+			idleCount.decrementAndGet();
+			connection.close();
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return host + ":" + port;
+	}
+}
@@ -0,0 +1,232 @@
+package com.adobe.proxy;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author rbajaj
+ * One persistent HTTP/1.1 connection to an upstream server. Requests are
+ * written and responses read in blocking mode with the proxy's read
+ * timeout; between requests the connection waits in its upstream's pool.
+ * Response bytes are read through a buffer of the connection, so a head
+ * and the start of its body usually arrive with one read.
+ */
+final class UpstreamConnection implements Closeable {
+
+	private static final int READ_BUFFER_SIZE = 8 * 1024;
+	//longest status or header line accepted from an upstream
+	private static final int MAX_LINE = 16 * 1024;
+
+	private final SocketChannel channel;
+	private final InputStream in;
+	private final OutputStream out;
+	private final byte[] buffer = new byte[READ_BUFFER_SIZE];
+	private int position = 0;
+	private int limit = 0;
+	//bytes received for the request being served, see hasReceived
+	private boolean received = false;
+	//taken from the pool, not opened for the request being served
+	private boolean reused = false;
+	//when the connection was put back into the pool
+	private long idleSince;
+
+	/**
+	 * Connects to the upstream
+	 * @param address
+	 * @param connectTimeoutMillis
+	 * @param readTimeoutMillis - longest wait for response bytes
+	 * @throws IOException if the upstream cannot be reached
+	 */
+	UpstreamConnection(InetSocketAddress address, int connectTimeoutMillis, int readTimeoutMillis) throws IOException
+	{
+		channel = SocketChannel.open();
+		try{
+			Socket socket = channel.socket();
+			socket.connect(address, connectTimeoutMillis);
+			socket.setSoTimeout(readTimeoutMillis);
+			//requests leave in one write, Nagle would only delay a body written after its head
+			socket.setTcpNoDelay(true);
+			in = socket.getInputStream();
+			out = socket.getOutputStream();
+		}catch(IOException ioe)
+		{
+			channel.close();
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Prepares for the next request
+	 * @param reused - true if the connection comes from the pool
+	 */
+	void begin(boolean reused)
+	{
+		this.reused = reused;
+		this.received = false;
+	}
+
+	/**
+	 * @return true if the connection served earlier requests
+	 */
+	boolean isReused()
+	{
+		return reused;
+	}
+
+	/**
+	 * @return true once bytes of the response arrived; a request that failed
+	 *         before may be sent again, as the upstream did not answer it
+	 */
+	boolean hasReceived()
+	{
+		return received;
+	}
+
+	void idleSince(long nanos)
+	{
+		idleSince = nanos;
+	}
+
+	long idleSince()
+	{
+		return idleSince;
+	}
+
+	/**
+	 * Checks an idle connection without waiting: the upstream closed it if
+	 * the socket is at end of stream, and broke it if it sent bytes nothing
+	 * asked for
+	 * @return true if the connection can take a request
+	 */
+	boolean isAlive()
+	{
+		if(position < limit)
+		{
+			return false;
+		}
+		try{
+			channel.configureBlocking(false);
+			try{
+				return channel.read(ByteBuffer.wrap(buffer, 0, 1)) == 0;
+			}finally
+			{
+				channel.configureBlocking(true);
+			}
+		}catch(IOException ioe)
+		{
+			return false;
+		}
+	}
+
+	void write(byte[] b, int off, int len) throws IOException
+	{
+		out.write(b, off, len);
+	}
+
+	/**
+	 * Reads response bytes, buffered ones first
+	 * @return bytes read, -1 at end of stream
+	 */
+	int read(byte[] b, int off, int len) throws IOException
+	{
+		if(position == limit)
+		{
+			if(len >= buffer.length)
+			{
+				//large reads go straight into the caller's array
+				int read = in.read(b, off, len);
+				received |= read > 0;
+				return read;
+			}
+			if(fill() < 0)
+			{
+				return -1;
+			}
+		}
+		int n = Math.min(len, limit - position);
+		System.arraycopy(buffer, position, b, off, n);
+		position += n;
+		return n;
+	}
+
+	/**
+	 * @return response bytes that can be read without waiting for the upstream
+	 */
+	int buffered()
+	{
+		return limit - position;
+	}
+
+	/**
+	 * Reads one line of the response head
+	 * @return the line without its CRLF or LF, as ISO-8859-1
+	 * @throws IOException if the upstream closes first or the line is too long
+	 */
+	String readLine() throws IOException
+	{
+		StringBuilder line = null;
+		while(true)
+		{
+			for(int p = position; p < limit; p++)
+			{
+				if(buffer[p] == '\n')
+				{
+					int end = p > position && buffer[p - 1] == '\r' ? p - 1 : p;
+					String text = new String(buffer, position, end - position, StandardCharsets.ISO_8859_1);
+					position = p + 1;
+					return line == null ? text : line.append(text).toString();
+				}
+			}
+			//a line longer than the buffer, rare enough to be assembled
+			if(line == null)
+			{
+				line = new StringBuilder();
+			}
+			line.append(new String(buffer, position, limit - position, StandardCharsets.ISO_8859_1));
+			position = limit;
+			if(line.length() > MAX_LINE)
+			{
+				throw new IOException("Upstream sent a header line over " + MAX_LINE + " bytes.");
+			}
+			if(fill() < 0)
+			{
+				throw new EOFException("Upstream closed the connection within a response head.");
+			}
+		}
+	}
+
+	/**
+	 * Refills the empty buffer from the socket
+	 * @return bytes read, -1 at end of stream
+	 */
+	private int fill() throws IOException
+	{
+		position = 0;
+		limit = 0;
+		int read = in.read(buffer, 0, buffer.length);
+		if(read > 0)
+		{
+			limit = read;
+			received = true;
+		}
+		return read;
+	}
+
+	public void close()
+	{
+		try{
+			channel.close();
+		}catch(IOException ioe)
+		{
+			//nothing left to release
+		}
+	}
+}
@@ -0,0 +1,369 @@
+package com.adobe.proxy;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * @author rbajaj
+ * Head of a response read from an upstream connection, and the stream its
+ * body is read through. The body framing of the upstream is undone here:
+ * Content-Length, chunked and close-delimited bodies all read as plain
+ * bytes, and the fields passed on to the client leave out the framing and
+ * hop-by-hop fields, so the client's connection frames the body its own way.
+ */
+final class UpstreamResponse {
+
+	//fields that only concern one connection, never passed on
+	private static final List<String> HOP_BY_HOP = Arrays.asList("connection", "keep-alive", "proxy-connection", "te",
+			"trailer", "transfer-encoding", "upgrade", "content-length");
+
+	private final int status;
+	//status line without the version, e.g. "200 OK"
+	private final String statusText;
+	//declared by Content-Length, -1 if absent or chunked
+	private final long contentLength;
+	private final boolean chunked;
+	private final boolean withBody;
+	private final boolean keepAlive;
+	private final boolean shareable;
+	private final byte[] fields;
+
+	private UpstreamResponse(int status, String statusText, long contentLength, boolean chunked, boolean withBody,
+			boolean keepAlive, boolean shareable, byte[] fields)
+	{
+		this.status = status;
+		this.statusText = statusText;
+		this.contentLength = contentLength;
+		this.chunked = chunked;
+		this.withBody = withBody;
+		this.keepAlive = keepAlive;
+		this.shareable = shareable;
+		this.fields = fields;
+	}
+
+	/**
+	 * Reads the next final response head, skipping interim 1xx responses
+	 * @param connection
+	 * @param head - true if the request was HEAD, whose response has no body
+	 * @return the response head
+	 * @throws IOException if the upstream closes first or the head is malformed
+	 */
+	static UpstreamResponse read(UpstreamConnection connection, boolean head) throws IOException
+	{
+		while(true)
+		{
+			String statusLine = connection.readLine();
+			if(!statusLine.startsWith("HTTP/1.") || statusLine.length() < 12 || statusLine.charAt(8) != ' ')
+			{
+				throw new IOException("Malformed upstream status line: " + statusLine);
+			}
+			int status;
+			try{
+				status = Integer.parseInt(statusLine.substring(9, 12));
+			}catch(NumberFormatException nfe)
+			{
+				throw new IOException("Malformed upstream status line: " + statusLine);
+			}
+			List<String> names = new ArrayList<String>();
+			List<String> values = new ArrayList<String>();
+			String line;
+			while(!(line = connection.readLine()).isEmpty())
+			{
+				int colon = line.indexOf(':');
+				if(colon <= 0)
+				{
+					throw new IOException("Malformed upstream header line: " + line);
+				}
+				names.add(line.substring(0, colon).trim());
+				values.add(line.substring(colon + 1).trim());
+			}
+			if(status >= 100 && status < 200)
+			{
+				//100 Continue and other interim responses are not passed on
+				continue;
+			}
+			return parse(statusLine.charAt(7) == '0', status, statusLine.substring(9), names, values, head);
+		}
+	}
+
+	private static UpstreamResponse parse(boolean http10, int status, String statusText, List<String> names,
+			List<String> values, boolean head) throws IOException
+	{
+		List<String> connectionTokens = new ArrayList<String>();
+		long contentLength = -1;
+		boolean chunked = false;
+		boolean transferEncoded = false;
+		boolean shareable = true;
+		for(int i = 0; i < names.size(); i++)
+		{
+			String name = names.get(i).toLowerCase(Locale.ROOT);
+			String value = values.get(i).toLowerCase(Locale.ROOT);
+			if(name.equals("connection"))
+			{
+				for(String token : value.split(","))
+				{
+					connectionTokens.add(token.trim());
+				}
+			}
+			else if(name.equals("content-length"))
+			{
+				long length = parseLength(value);
+				if(contentLength >= 0 && length != contentLength)
+				{
+					throw new IOException("Conflicting upstream Content-Length values.");
+				}
+				contentLength = length;
+			}
+			else if(name.equals("transfer-encoding"))
+			{
+				transferEncoded = true;
+				chunked = value.endsWith("chunked");
+			}
+			else if(name.equals("set-cookie"))
+			{
+				shareable = false;
+			}
+			else if(name.equals("cache-control"))
+			{
+				shareable &= !value.contains("private") && !value.contains("no-store");
+			}
+			else if(name.equals("vary"))
+			{
+				//the collapse key holds Accept-Encoding, nothing else
+				for(String token : value.split(","))
+				{
+					shareable &= token.trim().isEmpty() || token.trim().equals("accept-encoding");
+				}
+			}
+		}
+		boolean withBody = !head && status != 204 && status != 304;
+		boolean keepAlive = http10 ? connectionTokens.contains("keep-alive") : !connectionTokens.contains("close");
+		if(transferEncoded)
+		{
+			//the length is framed by the coding, a body in another coding runs until the upstream closes
+			contentLength = -1;
+			keepAlive &= chunked || !withBody;
+		}
+		else if(contentLength < 0 && withBody)
+		{
+			keepAlive = false;
+		}
+
+		StringBuilder passed = new StringBuilder(256);
+		for(int i = 0; i < names.size(); i++)
+		{
+			String name = names.get(i).toLowerCase(Locale.ROOT);
+			if(!HOP_BY_HOP.contains(name) && !connectionTokens.contains(name))
+			{
+				passed.append(names.get(i)).append(": ").append(values.get(i)).append("\r\n");
+			}
+		}
+		return new UpstreamResponse(status, statusText, contentLength, chunked, withBody, keepAlive, shareable,
+				passed.toString().getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	private static long parseLength(String value) throws IOException
+	{
+		if(value.isEmpty() || value.length() > 18)
+		{
+			throw new IOException("Invalid upstream Content-Length: " + value);
+		}
+		long length = 0;
+		for(int i = 0; i < value.length(); i++)
+		{
+			char c = value.charAt(i);
+			if(c < '0' || c > '9')
+			{
+				throw new IOException("Invalid upstream Content-Length: " + value);
+			}
+			length = length * 10 + (c - '0');
+		}
+		return length;
+	}
+
+	int status()
+	{
+		return status;
+	}
+
+	/**
+	 * @return status line without the version, e.g. "200 OK"
+	 */
+	String statusText()
+	{
+		return statusText;
+	}
+
+	/**
+	 * @return body length to announce to the client, -1 if unknown
+	 */
+	long length()
+	{
+		return contentLength;
+	}
+
+	/**
+	 * @return false for responses without body: to HEAD, 204 and 304
+	 */
+	boolean hasBody()
+	{
+		return withBody;
+	}
+
+	/**
+	 * @return true if the connection can serve another request once the body was read
+	 */
+	boolean isKeepAlive()
+	{
+		return keepAlive;
+	}
+
+	/**
+	 * @return true if the response is the same for every client sending the
+	 *         same request: it sets no cookie, is not private and varies at
+	 *         most by Accept-Encoding
+	 */
+	boolean isShareable()
+	{
+		return shareable;
+	}
+
+	/**
+	 * @return header lines passed on to the client, each with CRLF
+	 */
+	byte[] fields()
+	{
+		return fields;
+	}
+
+	/**
+	 * @param connection - the connection the head was read from
+	 * @return the body as plain bytes
+	 */
+	Body body(UpstreamConnection connection)
+	{
+		return new Body(connection);
+	}
+
+	/**
+	 * Body of the response, read up to its end and not beyond, so the
+	 * connection is positioned at the next response once it is complete
+	 */
+	final class Body extends InputStream {
+
+		private final UpstreamConnection connection;
+		//bytes left of the body, or of the current chunk
+		private long remaining;
+		private boolean complete;
+
+		Body(UpstreamConnection connection)
+		{
+			this.connection = connection;
+			//a chunked body starts with the size line of its first chunk
+			this.remaining = !withBody || chunked ? 0 : contentLength >= 0 ? contentLength : Long.MAX_VALUE;
+			this.complete = !withBody || (!chunked && remaining == 0);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if(complete)
+			{
+				return -1;
+			}
+			if(remaining == 0)
+			{
+				remaining = chunked ? nextChunk() : 0;
+				if(remaining == 0)
+				{
+					complete = true;
+					return -1;
+				}
+			}
+			int n = connection.read(b, off, (int) Math.min(len, remaining));
+			if(n < 0)
+			{
+				if(remaining == Long.MAX_VALUE)
+				{
+					complete = true;
+					return -1;
+				}
+				throw new EOFException("Upstream closed the connection within a response body.");
+			}
+			if(remaining != Long.MAX_VALUE)
+			{
+				remaining -= n;
+			}
+			if(chunked && remaining == 0 && !connection.readLine().isEmpty())
+			{
+				throw new IOException("Malformed upstream chunk: no CRLF after its data.");
+			}
+			return n;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+		}
+
+		/**
+		 * @return body bytes that can be read without waiting for the upstream
+		 */
+		@Override
+		public int available()
+		{
+			return complete ? 0 : (int) Math.min(remaining, connection.buffered());
+		}
+
+		/**
+		 * @return true once the body was read to its end
+		 */
+		boolean isComplete()
+		{
+			return complete;
+		}
+
+		/**
+		 * Reads a chunk size line; after the last chunk also its trailer fields
+		 * @return size of the next chunk, 0 for the last
+		 */
+		private long nextChunk() throws IOException
+		{
+			String line = connection.readLine();
+			int end = line.indexOf(';');
+			String digits = (end < 0 ? line : line.substring(0, end)).trim();
+			if(digits.isEmpty() || digits.length() > 15)
+			{
+				throw new IOException("Malformed upstream chunk size: " + line);
+			}
+			long size;
+			try{
+				size = Long.parseLong(digits, 16);
+			}catch(NumberFormatException nfe)
+			{
+				throw new IOException("Malformed upstream chunk size: " + line);
+			}
+			if(size < 0)
+			{
+				throw new IOException("Malformed upstream chunk size: " + line);
+			}
+			if(size == 0)
+			{
+				//trailer fields are dropped, the client's framing may have no place for them
+				while(!connection.readLine().isEmpty())
+				{
+					//up to the empty line ending the body
+				}
+			}
+			return size;
+		}
+	}
+}
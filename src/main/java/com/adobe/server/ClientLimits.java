@@ -0,0 +1,232 @@
+package com.adobe.server;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author rbajaj
+ * Admission control per client address: a cap on its open connections and
+ * a token bucket on its request rate. Clients live in a concurrent hash map
+ * whose bins are locked only on insert and removal; connection counts and
+ * buckets are single atomics updated with CAS, so connections of different
+ * clients never contend and those of one client never block.
+ *
+ * The bucket is kept as the time it is next empty, the generic cell rate
+ * algorithm: a request is allowed if taking one more token keeps that time
+ * within the burst of now, which needs a single long per client.
+ *
+ * Memory is bounded by maxClients. A client with no open connection and a
+ * full bucket carries no state, so it is dropped by the next sweep; sweeps
+ * run once a second and whenever the table is full. Clients that still do
+ * not fit are let in untracked and counted.
+ */
+public final class ClientLimits {
+
+	private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * Limits state of one client address, held by its connections
+	 */
+	public static final class Client {
+		final InetAddress address;
+		//open connections, -1 once the entry was dropped from the table
+		final AtomicInteger connections = new AtomicInteger();
+		//when the bucket will be empty, in System.nanoTime() terms; at or before now it is full
+		final AtomicLong emptyAt;
+
+		Client(InetAddress address, long now)
+		{
+			this.address = address;
+			this.emptyAt = new AtomicLong(now);
+		}
+	}
+
+	//handed out when nothing is limited or the table is full; never counted
+	private static final Client UNLIMITED = new Client(null, 0);
+
+	private final int maxConnections;
+	//nanoseconds per token, 0 for no rate limit
+	private final long intervalNanos;
+	//how far ahead of now the bucket may be emptied: burst tokens
+	private final long burstNanos;
+	private final int maxClients;
+	private final ConcurrentHashMap<InetAddress, Client> clients;
+	private final AtomicBoolean sweeping = new AtomicBoolean();
+	private final AtomicLong nextSweep = new AtomicLong(System.nanoTime() + SWEEP_INTERVAL_NANOS);
+	private final LongAdder untracked = new LongAdder();
+
+	/**
+	 * @param maxConnections - open connections per client, 0 for no limit
+	 * @param requestsPerSecond - sustained request rate per client, 0 for no limit
+	 * @param burst - requests a client may send at once above the rate, 0 for one second worth
+	 * @param maxClients - most client addresses tracked
+	 */
+	public ClientLimits(int maxConnections, int requestsPerSecond, int burst, int maxClients)
+	{
+		this.maxConnections = Math.max(0, maxConnections);
+		this.intervalNanos = requestsPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / requestsPerSecond : 0;
+		this.burstNanos = intervalNanos * (burst > 0 ? burst : Math.max(1, requestsPerSecond));
+		this.maxClients = Math.max(1, maxClients);
+		this.clients = new ConcurrentHashMap<InetAddress, Client>(isEnabled() ? Math.min(this.maxClients, 1024) : 1);
+	}
+
+	/**
+	 * @return true if connections or requests are limited at all
+	 */
+	public boolean isEnabled()
+	{
+		return maxConnections > 0 || intervalNanos > 0;
+	}
+
+	/**
+	 * Counts a new connection of a client
+	 * @param address - client address
+	 * @return handle to pass to tryRequest and release, null if the client has too many connections open
+	 */
+	public Client acquire(InetAddress address)
+	{
+		if(!isEnabled() || address == null)
+		{
+			return UNLIMITED;
+		}
+		long now = System.nanoTime();
+		if(now - nextSweep.get() >= 0)
+		{
+			sweep(now);
+		}
+		while(true)
+		{
+			Client client = clients.get(address);
+			if(client == null)
+			{
+				if(clients.size() >= maxClients)
+				{
+					sweep(now);
+					if(clients.size() >= maxClients)
+					{
+						untracked.increment();
+						return UNLIMITED;
+					}
+				}
+				Client fresh = new Client(address, now);
+				client = clients.putIfAbsent(address, fresh);
+				if(client == null)
+				{
+					client = fresh;
+				}
+			}
+			int open = client.connections.get();
+			while(open >= 0)
+			{
+				if(maxConnections > 0 && open >= maxConnections)
+				{
+					return null;
+				}
+				if(client.connections.compareAndSet(open, open + 1))
+				{
+					return client;
+				}
+				open = client.connections.get();
+			}
+			//dropped by a sweep meanwhile, a fresh entry takes its place
+		}
+	}
+
+	/**
+	 * Counts a closed connection
+	 * @param client - handle returned by acquire
+	 */
+	public void release(Client client)
+	{
+		if(client != null && client != UNLIMITED)
+		{
+			client.connections.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Takes a token from the client's bucket
+	 * @param client - handle returned by acquire
+	 * @return false if the client is over its request rate
+	 */
+	public boolean tryRequest(Client client)
+	{
+		if(intervalNanos == 0 || client == UNLIMITED)
+		{
+			return true;
+		}
+		long now = System.nanoTime();
+		while(true)
+		{
+			long emptyAt = client.emptyAt.get();
+			long next = (emptyAt - now > 0 ? emptyAt : now) + intervalNanos;
+			if(next - now > burstNanos)
+			{
+				return false;
+			}
+			if(client.emptyAt.compareAndSet(emptyAt, next))
+			{
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return seconds until the client may send the next request
+	 */
+	public int retryAfterSeconds(Client client)
+	{
+		if(intervalNanos == 0 || client == UNLIMITED)
+		{
+			return 1;
+		}
+		long wait = client.emptyAt.get() + intervalNanos - burstNanos - System.nanoTime();
+		return (int) Math.max(1, TimeUnit.NANOSECONDS.toSeconds(wait + TimeUnit.SECONDS.toNanos(1) - 1));
+	}
+
+	/**
+	 * @return client addresses tracked
+	 */
+	public int size()
+	{
+		return clients.size();
+	}
+
+	/**
+	 * @return connections let in untracked because the table was full
+	 */
+	public long getUntrackedCount()
+	{
+		return untracked.sum();
+	}
+
+	/**
+	 * Drops the clients without open connections whose bucket is full. One
+	 * thread sweeps at a time, the others go on without waiting for it.
+	 */
+	void sweep(long now)
+	{
+		if(!sweeping.compareAndSet(false, true))
+		{
+			return;
+		}
+		try{
+			nextSweep.set(now + SWEEP_INTERVAL_NANOS);
+			for(Client client : clients.values())
+			{
+				if(client.emptyAt.get() - now <= 0 && client.connections.compareAndSet(0, -1))
+				{
+					clients.remove(client.address, client);
+				}
+			}
+		}finally
+		{
+			sweeping.set(false);
+		}
+	}
+}
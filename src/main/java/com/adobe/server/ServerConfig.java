@@ -0,0 +1,159 @@
+package com.adobe.server;
+
+/**
+ * @author rbajaj
+ * Tunables of the Web Server. Each value can be overridden with a system
+ * property of the same name, e.g. -Dwebserver.cache.maxBytes=0
+ */
+public final class ServerConfig {
+	
+	/** Byte budget of the in-memory static content cache, 0 disables it */
+	public static final long CACHE_MAX_BYTES = Long.getLong("webserver.cache.maxBytes", 64L * 1024 * 1024);
+	
+	/** Largest file held by the content cache */
+	public static final int CACHE_MAX_ENTRY_BYTES = Integer.getInteger("webserver.cache.maxEntryBytes", 256 * 1024);
+	
+	/** Smallest file served from a memory mapping */
+	public static final long MMAP_MIN_BYTES = Long.getLong("webserver.mmap.minBytes", 1024L * 1024);
+	
+	/** Largest file served from a memory mapping */
+	public static final long MMAP_MAX_BYTES = Long.getLong("webserver.mmap.maxBytes", 50L * 1024 * 1024);
+	
+	/** Cap on the total of mapped bytes, 0 disables the mapped tier */
+	public static final long MMAP_MAX_MAPPED_BYTES = Long.getLong("webserver.mmap.maxMappedBytes", 512L * 1024 * 1024);
+	
+	/** Byte budget of the cache of gzip and deflate variants, 0 disables compression */
+	public static final long COMPRESSION_MAX_BYTES = Long.getLong("webserver.compression.maxBytes", 32L * 1024 * 1024);
+	
+	/** Smallest file that is compressed */
+	public static final long COMPRESSION_MIN_BYTES = Long.getLong("webserver.compression.minBytes", 256L);
+	
+	/** Largest file compressed on the request thread, larger ones are compressed in the background */
+	public static final long COMPRESSION_INLINE_MAX_BYTES = Long.getLong("webserver.compression.inlineMaxBytes", 64L * 1024);
+	
+	/** Largest file that is compressed at all */
+	public static final long COMPRESSION_MAX_FILE_BYTES = Long.getLong("webserver.compression.maxFileBytes", 8L * 1024 * 1024);
+	
+	/** Most files whose ETag and Last-Modified validators are kept */
+	public static final int ETAG_MAX_ENTRIES = Integer.getInteger("webserver.etag.maxEntries", 10000);
+	
+	/** Tag files by a hash of their content instead of their mtime and size */
+	public static final boolean ETAG_CONTENT_HASH = Boolean.getBoolean("webserver.etag.contentHash");
+	
+	/** Largest chunk of a streamed (chunked) response body */
+	public static final int CHUNK_BYTES = Integer.getInteger("webserver.chunked.chunkBytes", 8 * 1024);
+	
+	/** Longest time streamed body data waits for its chunk to fill before it is sent anyway */
+	public static final long CHUNK_FLUSH_MILLIS = Long.getLong("webserver.chunked.flushMillis", 50L);
+	
+	/** Connections accepted but not yet picked up by a pool thread, more are answered with 503 */
+	public static final int POOL_QUEUE_SIZE = Integer.getInteger("webserver.pool.queueSize", 1024);
+	
+	/** Longest time a connection may wait for a pool thread; one that waited longer is answered with 503 */
+	public static final long POOL_MAX_QUEUE_MILLIS = Long.getLong("webserver.pool.maxQueueMillis", 2000L);
+	
+	/** Length of the listen socket's queue of connections the server has not accepted yet */
+	public static final int ACCEPT_BACKLOG = Integer.getInteger("webserver.accept.backlog", 1024);
+	
+	/** Listening sockets bound to the port with SO_REUSEPORT, each with its own acceptor; 1 is a single acceptor */
+	public static final int ACCEPT_SHARDS = Integer.getInteger("webserver.accept.shards", 1);
+	
+	/** Open connections per client address, more are answered with 429 at once; 0 for no limit */
+	public static final int CLIENT_MAX_CONNECTIONS = Integer.getInteger("webserver.client.maxConnections", 0);
+	
+	/** Sustained requests per second per client address, more are answered with 429; 0 for no limit */
+	public static final int CLIENT_REQUESTS_PER_SECOND = Integer.getInteger("webserver.client.requestsPerSecond", 0);
+	
+	/** Requests a client may send at once above its rate, 0 for one second worth */
+	public static final int CLIENT_BURST = Integer.getInteger("webserver.client.burst", 0);
+	
+	/** Most client addresses whose limits are tracked, the memory bound of the limits table */
+	public static final int CLIENT_MAX_TRACKED = Integer.getInteger("webserver.client.maxTracked", 65536);
+	
+	/** Seconds sent in the Retry-After header of 503 responses */
+	public static final int RETRY_AFTER_SECONDS = Integer.getInteger("webserver.overload.retryAfterSeconds", 1);
+	
+	/** Keep an index of the web root current with a watch service instead of looking at the disk on every request */
+	public static final boolean INDEX_ENABLED = Boolean.parseBoolean(System.getProperty("webserver.index.enabled", "true"));
+	
+	/** Most files held by the web root index, others are looked up on disk */
+	public static final int INDEX_MAX_FILES = Integer.getInteger("webserver.index.maxFiles", 100000);
+	
+	/** Most missing paths the web root index remembers */
+	public static final int INDEX_MAX_MISSES = Integer.getInteger("webserver.index.maxMisses", 10000);
+	
+	/** Access log file, empty disables the access log */
+	public static final String ACCESS_LOG_FILE = System.getProperty("webserver.accesslog.file", "logs/access.log");
+	
+	/** Access log line format, "combined" or "common" */
+	public static final String ACCESS_LOG_FORMAT = System.getProperty("webserver.accesslog.format", "combined");
+	
+	/** Size at which the access log is rotated, also the size of its memory mapping */
+	public static final long ACCESS_LOG_MAX_BYTES = Long.getLong("webserver.accesslog.maxBytes", 64L * 1024 * 1024);
+	
+	/** Rotated access log files kept */
+	public static final int ACCESS_LOG_MAX_FILES = Integer.getInteger("webserver.accesslog.maxFiles", 5);
+	
+	/** Access log records that can wait for the writer, more are dropped */
+	public static final int ACCESS_LOG_RING_SIZE = Integer.getInteger("webserver.accesslog.ringSize", 8192);
+	
+	/** Reserved path answered with the server metrics in Prometheus text format, empty disables it */
+	public static final String METRICS_PATH = System.getProperty("webserver.metrics.path", "/metrics").toLowerCase();
+	
+	/** Longest accepted request line, longer ones are answered with 414 */
+	public static final int HTTP_MAX_REQUEST_LINE = Integer.getInteger("webserver.http.maxRequestLine", 8 * 1024);
+	
+	/** Most header fields accepted in one request, more are answered with 431 */
+	public static final int HTTP_MAX_HEADER_COUNT = Integer.getInteger("webserver.http.maxHeaderCount", 100);
+	
+	/** Largest accepted request head (request line plus headers), larger ones are answered with 431 */
+	public static final int HTTP_MAX_HEADER_BYTES = Integer.getInteger("webserver.http.maxHeaderBytes", 32 * 1024);
+	
+	/** Speak HTTP/2 with clients that start with its preface or ask to upgrade to h2c */
+	public static final boolean HTTP2_ENABLED = Boolean.parseBoolean(System.getProperty("webserver.http2.enabled", "true"));
+	
+	/** Streams an HTTP/2 client may have open at once, more are refused */
+	public static final int HTTP2_MAX_CONCURRENT_STREAMS = Integer.getInteger("webserver.http2.maxConcurrentStreams", 100);
+	
+	/** Keystore with the server's key and certificate chain; the server speaks HTTPS when it is set */
+	public static final String TLS_KEYSTORE = System.getProperty("webserver.tls.keystore", "");
+	
+	/** Password of the keystore and of the key in it */
+	public static final String TLS_KEYSTORE_PASSWORD = System.getProperty("webserver.tls.keystorePassword", "");
+	
+	/** Type of the keystore, e.g. PKCS12 or JKS */
+	public static final String TLS_KEYSTORE_TYPE = System.getProperty("webserver.tls.keystoreType", "PKCS12");
+	
+	/** Comma separated TLS versions the server accepts */
+	public static final String TLS_PROTOCOLS = System.getProperty("webserver.tls.protocols", "TLSv1.3,TLSv1.2");
+	
+	/** Sessions kept for resumption; a little under the JDK's 20480 */
+	public static final int TLS_SESSION_CACHE_SIZE = Integer.getInteger("webserver.tls.sessionCacheSize", 20000);
+	
+	/** How long a client can resume a session, shorter than the JDK's day */
+	public static final int TLS_SESSION_TIMEOUT_SECONDS = Integer.getInteger("webserver.tls.sessionTimeoutSeconds", 3600);
+	
+	/** Resume with stateless session tickets, so evicted sessions can still be resumed */
+	public static final boolean TLS_SESSION_TICKETS = Boolean.parseBoolean(System.getProperty("webserver.tls.sessionTickets", "true"));
+	
+	/** Comma separated proxy routes, each a path prefix and the upstream it goes to, e.g. "/api=127.0.0.1:9000" */
+	public static final String PROXY_ROUTES = System.getProperty("webserver.proxy.routes", "");
+	
+	/** Idle keep-alive connections kept per upstream */
+	public static final int PROXY_MAX_IDLE_PER_UPSTREAM = Integer.getInteger("webserver.proxy.maxIdlePerUpstream", 32);
+	
+	/** How long an upstream connection may idle before it is closed, below the 5 seconds common backends keep them */
+	public static final long PROXY_IDLE_TIMEOUT_MILLIS = Long.getLong("webserver.proxy.idleTimeoutMillis", 4000L);
+	
+	/** Longest wait for an upstream connection to be established */
+	public static final int PROXY_CONNECT_TIMEOUT_MILLIS = Integer.getInteger("webserver.proxy.connectTimeoutMillis", 2000);
+	
+	/** Longest wait for upstream bytes, answered with 504 before the response started */
+	public static final int PROXY_READ_TIMEOUT_MILLIS = Integer.getInteger("webserver.proxy.readTimeoutMillis", 30000);
+	
+	/** Largest upstream body shared by concurrent identical GETs, larger ones are fetched by each, 0 disables collapsing */
+	public static final int PROXY_COLLAPSE_MAX_BYTES = Integer.getInteger("webserver.proxy.collapseMaxBytes", 1024 * 1024);
+	
+	private ServerConfig() {
+	}
+}
@@ -0,0 +1,33 @@
+package com.adobe.server;
+
+/**
+ * @author rbajaj
+ * Connection handling strategies supported by the Web Server
+ */
+public enum ServerMode {
+	
+	/** Blocking accept, one pool thread per connection (default) */
+	POOL,
+	
+	/** Non-blocking selector event loops, each owning many connections */
+	NIO,
+	
+	/** Blocking accept, one virtual thread per connection (JDK 21+) */
+	VIRTUAL;
+	
+	/**
+	 * @param name - mode name as given on the command line, case insensitive
+	 * @return matching server mode
+	 */
+	public static ServerMode fromString(String name)
+	{
+		for(ServerMode mode : values())
+		{
+			if(mode.name().equalsIgnoreCase(name))
+			{
+				return mode;
+			}
+		}
+		throw new IllegalArgumentException("Unknown server mode: " + name);
+	}
+}
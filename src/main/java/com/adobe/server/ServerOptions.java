@@ -0,0 +1,102 @@
+package com.adobe.server;
+
+import com.adobe.connection.TlsContext;
+import com.adobe.proxy.ReverseProxy;
+
+/**
+ * @author rbajaj
+ * Optional settings of a WebServer, defaulting to ServerConfig. Setters
+ * return this so a server is configured in one expression, e.g.
+ * new ServerOptions().mode(ServerMode.NIO).acceptShards(4)
+ */
+public final class ServerOptions {
+
+	private ServerMode mode = ServerMode.POOL;
+	private int queueSize = ServerConfig.POOL_QUEUE_SIZE;
+	private long maxQueueMillis = ServerConfig.POOL_MAX_QUEUE_MILLIS;
+	private int acceptShards = ServerConfig.ACCEPT_SHARDS;
+	private TlsContext tls;
+	private ReverseProxy proxy;
+
+	/**
+	 * @param mode - connection handling strategy
+	 * @return this
+	 */
+	public ServerOptions mode(ServerMode mode)
+	{
+		this.mode = mode;
+		return this;
+	}
+
+	/**
+	 * @param queueSize - POOL mode: connections waiting for a thread, more are answered with 503
+	 * @param maxQueueMillis - POOL mode: connections that waited longer for a thread are answered with 503
+	 * @return this
+	 */
+	public ServerOptions queue(int queueSize, long maxQueueMillis)
+	{
+		this.queueSize = queueSize;
+		this.maxQueueMillis = maxQueueMillis;
+		return this;
+	}
+
+	/**
+	 * @param acceptShards - listening sockets bound with SO_REUSEPORT, each with its own acceptor; in NIO mode at most one per event loop
+	 * @return this
+	 */
+	public ServerOptions acceptShards(int acceptShards)
+	{
+		this.acceptShards = acceptShards;
+		return this;
+	}
+
+	/**
+	 * @param tls - serve HTTPS with this key and session cache, null for plain HTTP; POOL and VIRTUAL mode only
+	 * @return this
+	 */
+	public ServerOptions tls(TlsContext tls)
+	{
+		this.tls = tls;
+		return this;
+	}
+
+	/**
+	 * @param proxy - routes forwarded to upstream servers, null for the routes of ServerConfig; POOL and VIRTUAL mode only
+	 * @return this
+	 */
+	public ServerOptions proxy(ReverseProxy proxy)
+	{
+		this.proxy = proxy;
+		return this;
+	}
+
+	ServerMode getMode()
+	{
+		return mode;
+	}
+
+	int getQueueSize()
+	{
+		return queueSize;
+	}
+
+	long getMaxQueueMillis()
+	{
+		return maxQueueMillis;
+	}
+
+	int getAcceptShards()
+	{
+		return acceptShards;
+	}
+
+	TlsContext getTls()
+	{
+		return tls;
+	}
+
+	ReverseProxy getProxy()
+	{
+		return proxy;
+	}
+}
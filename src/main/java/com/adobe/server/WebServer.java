@@ -3,16 +3,38 @@ package com.adobe.server;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import com.adobe.cache.CompressedVariantCache;
+import com.adobe.cache.ContentCache;
+import com.adobe.cache.FileIndex;
+import com.adobe.cache.MappedFileCache;
+import com.adobe.cache.ValidatorCache;
+import com.adobe.logutils.AccessLog;
 import com.adobe.logutils.MyLogger;
+import com.adobe.metrics.ServerMetrics;
+import com.adobe.proxy.ReverseProxy;
 
 import org.apache.log4j.Logger;
 
+import com.adobe.connection.EventLoop;
 import com.adobe.connection.HttpConnection;
+import com.adobe.connection.IdleConnections;
+import com.adobe.connection.TlsContext;
 
 /**
  * @author rbajaj
@@ -20,20 +42,45 @@ import com.adobe.connection.HttpConnection;
  * Defines web server and supporting methods
  * This implementation relies on : 
  * www.sourcestream.com/programming-stuff/java-http-server
+ *
+ * Caches, index, metrics, client limits and proxy routes belong to one
+ * server and reach its connections through it, so several servers can run
+ * in one JVM. Only the access log is shared, by the servers writing the
+ * same file.
  */
 public class WebServer implements Runnable {
 	
-	static Logger log = null;
+	//configured before any class with a static logger is loaded, which would otherwise configure log4j without a file name
+	static Logger log = MyLogger.getLogger(WebServer.class.getSimpleName());
 
 	public static String SERVERROOT = null;
 	public static final String DEFAULT_FILE = "index.html";
 	public static final String DEFAULT_FILE2 = "index2.html";
 	public static final String DEFAULT_404 = "404.html"; 
-	private ServerSocket serverSocket;
+	//one writer per access log file, shared by the servers logging to it
+	private static final Map<String, AccessLog> accessLogs = new HashMap<String, AccessLog>();
 	private ExecutorService threadPool;
+	//POOL mode: kept alive connections waiting for their next request, null otherwise
+	private volatile IdleConnections idleConnections;
 
 	private final int port;
 	private final int threadThreshold;
+	private final ServerMode mode;
+	private final int queueSize;
+	private final long maxQueueNanos;
+	private final int acceptShards;
+	//null for plain HTTP
+	private final TlsContext tls;
+	//index of this server's web root, started by run
+	private final FileIndex fileIndex;
+	private final ContentCache contentCache;
+	private final MappedFileCache mappedFileCache;
+	private final CompressedVariantCache compressedCache;
+	private final ValidatorCache validatorCache;
+	private final AccessLog accessLog;
+	private final ServerMetrics metrics;
+	private final ClientLimits clientLimits;
+	private final ReverseProxy reverseProxy;
 	
 	/**
 	 * WebServer constructor
@@ -42,32 +89,202 @@ public class WebServer implements Runnable {
 	 * @param maxThreads
 	 */
 	public WebServer(int port, String webRoot, int maxThreads) {
-		log = MyLogger.getLogger(WebServer.class.getSimpleName());
+		this(port, webRoot, maxThreads, new ServerOptions());
+	}
+	
+	/**
+	 * WebServer constructor
+	 * @param port
+	 * @param webRoot
+	 * @param maxThreads - pool size in POOL mode, upper bound of event loops in NIO mode, unused in VIRTUAL mode
+	 * @param options - mode, pool queue, accept shards, TLS and proxy routes
+	 */
+	public WebServer(int port, String webRoot, int maxThreads, ServerOptions options) {
+		ServerMode mode = options.getMode();
+		TlsContext tls = options.getTls();
+		ReverseProxy proxy = options.getProxy();
+		if (tls != null && mode == ServerMode.NIO) {
+			throw new IllegalArgumentException("TLS is served in pool and virtual mode only");
+		}
+		if (proxy == null) {
+			proxy = ReverseProxy.fromConfig();
+		}
+		if (proxy.isEnabled() && mode == ServerMode.NIO) {
+			//forwarding blocks on the upstream, which would stall an event loop
+			throw new IllegalArgumentException("Proxy routes are served in pool and virtual mode only");
+		}
 		this.port = port;
 		this.threadThreshold = maxThreads;
+		this.mode = mode;
+		this.queueSize = options.getQueueSize();
+		this.maxQueueNanos = TimeUnit.MILLISECONDS.toNanos(options.getMaxQueueMillis());
+		this.acceptShards = Math.max(1, options.getAcceptShards());
+		this.tls = tls;
 		SERVERROOT = webRoot;
-		log.info("Running server on the port "+port+" with web root folder \""+ webRoot + "\"");
+		fileIndex = new FileIndex(webRoot, ServerConfig.INDEX_ENABLED, ServerConfig.INDEX_MAX_FILES, ServerConfig.INDEX_MAX_MISSES);
+		contentCache = new ContentCache(ServerConfig.CACHE_MAX_BYTES, ServerConfig.CACHE_MAX_ENTRY_BYTES);
+		mappedFileCache = new MappedFileCache(ServerConfig.MMAP_MIN_BYTES, ServerConfig.MMAP_MAX_BYTES, ServerConfig.MMAP_MAX_MAPPED_BYTES);
+		compressedCache = new CompressedVariantCache(ServerConfig.COMPRESSION_MAX_BYTES, ServerConfig.COMPRESSION_MIN_BYTES,
+				ServerConfig.COMPRESSION_INLINE_MAX_BYTES, ServerConfig.COMPRESSION_MAX_FILE_BYTES);
+		validatorCache = new ValidatorCache(ServerConfig.ETAG_MAX_ENTRIES, ServerConfig.ETAG_CONTENT_HASH);
+		accessLog = sharedAccessLog(ServerConfig.ACCESS_LOG_FILE);
+		metrics = new ServerMetrics();
+		clientLimits = new ClientLimits(ServerConfig.CLIENT_MAX_CONNECTIONS, ServerConfig.CLIENT_REQUESTS_PER_SECOND,
+				ServerConfig.CLIENT_BURST, ServerConfig.CLIENT_MAX_TRACKED);
+		reverseProxy = proxy;
+		log.info("Running server on the port "+port+" with web root folder \""+ webRoot + "\" in " + mode + " mode"
+				+ (tls != null ? " over TLS" : ""));
 	}
 	
 	public static void main(String[] args) {
 		int port = 8080;
 		String webRoot = "root";
 		int maxThreads = 10;
+		ServerMode mode = ServerMode.POOL;
 				
 		if (args.length == 0 || args[0].equals("-h") || args[0].equals("-help")){
-			System.out.println("Usage: java -cp ThreadPoolWebServer <port> <web root> <threads limit>\n");
+			System.out.println("Usage: java -cp ThreadPoolWebServer <port> <web root> <threads limit> [pool|nio|virtual]\n");
 			}
 		else {
 			port = Integer.parseInt(args[0]);
 			webRoot = args[1];
 			maxThreads = Integer.parseInt(args[2]);
+			if (args.length > 3) {
+				mode = ServerMode.fromString(args[3]);
+			}
+		}
+		if (mode == ServerMode.VIRTUAL && !isVirtualThreadSupported()) {
+			System.out.println("Server mode virtual requires JDK 21 or newer.\n");
+			return;
+		}
+		TlsContext tls;
+		try {
+			tls = TlsContext.fromConfig();
+		} catch (Exception e) {
+			System.out.println("Cannot load the TLS keystore " + ServerConfig.TLS_KEYSTORE + ": " + e + "\n");
+			return;
+		}
+		if (tls != null && mode == ServerMode.NIO) {
+			System.out.println("Server mode nio does not serve TLS, use pool or virtual.\n");
+			return;
+		}
+		ReverseProxy proxy;
+		try {
+			proxy = ReverseProxy.fromConfig();
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage() + "\n");
+			return;
+		}
+		if (proxy.isEnabled() && mode == ServerMode.NIO) {
+			System.out.println("Server mode nio does not serve proxy routes, use pool or virtual.\n");
+			return;
 		}
 		if (isAvailablePort(port)) {
-			new Thread(new WebServer(port, webRoot, maxThreads)).start();
+			new Thread(new WebServer(port, webRoot, maxThreads, new ServerOptions().mode(mode).tls(tls).proxy(proxy))).start();
 		}
 		
 	}
 	
+	/**
+	 * @return index of the web root's files shared by the connections of this server
+	 */
+	public FileIndex getFileIndex() {
+		return fileIndex;
+	}
+	
+	/**
+	 * @return cache of small static files shared by the connections of this server
+	 */
+	public ContentCache getContentCache() {
+		return contentCache;
+	}
+	
+	/**
+	 * @return memory mapped tier for medium size files shared by the connections of this server
+	 */
+	public MappedFileCache getMappedFileCache() {
+		return mappedFileCache;
+	}
+	
+	/**
+	 * @return cache of compressed variants of text files shared by the connections of this server
+	 */
+	public CompressedVariantCache getCompressedCache() {
+		return compressedCache;
+	}
+	
+	/**
+	 * @return cache of ETag and Last-Modified validators shared by the connections of this server
+	 */
+	public ValidatorCache getValidatorCache() {
+		return validatorCache;
+	}
+	
+	/**
+	 * @return access log written by the connections of this server, and of other servers logging to the same file
+	 */
+	public AccessLog getAccessLog() {
+		return accessLog;
+	}
+	
+	/**
+	 * @param path - access log file, empty for none
+	 * @return the writer of the file, opened by the first server logging to it
+	 */
+	private static synchronized AccessLog sharedAccessLog(String path) {
+		String key = path == null || path.isEmpty() ? "" : new File(path).getAbsolutePath();
+		AccessLog shared = accessLogs.get(key);
+		if (shared == null) {
+			//closed by its shutdown hook, when no server can log anymore
+			shared = new AccessLog(path, !"common".equalsIgnoreCase(ServerConfig.ACCESS_LOG_FORMAT),
+					ServerConfig.ACCESS_LOG_MAX_BYTES, ServerConfig.ACCESS_LOG_MAX_FILES, ServerConfig.ACCESS_LOG_RING_SIZE);
+			accessLogs.put(key, shared);
+		}
+		return shared;
+	}
+	
+	/**
+	 * @return longest time a connection may wait for a pool thread before it is answered with 503
+	 */
+	public long getMaxQueueNanos() {
+		return maxQueueNanos;
+	}
+	
+	/**
+	 * @return selector parking kept alive connections between requests in POOL mode, null in the other modes
+	 */
+	public IdleConnections getIdleConnections() {
+		return idleConnections;
+	}
+	
+	/**
+	 * @return key, session cache and buffers of the TLS connections, null for plain HTTP
+	 */
+	public TlsContext getTlsContext() {
+		return tls;
+	}
+	
+	/**
+	 * @return counters and latency histograms updated by the connections of this server
+	 */
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * @return routes forwarded to upstream servers by the connections of this server
+	 */
+	public ReverseProxy getReverseProxy() {
+		return reverseProxy;
+	}
+	
+	/**
+	 * @return per client connection and request rate limits applied by the connections of this server
+	 */
+	public ClientLimits getClientLimits() {
+		return clientLimits;
+	}
+	
 	/**
 	 * Verifies that a port on the system is available and not already in use
 	 * @param port
@@ -96,42 +313,161 @@ public class WebServer implements Runnable {
 
 	public void run() 
 	{
+		fileIndex.start();
+		try {
+			if (mode == ServerMode.NIO) {
+				runEventLoops();
+			} else {
+				runThreadPool();
+			}
+		} finally {
+			//resources of this server only, the shared access log stays open for the others
+			fileIndex.close();
+			reverseProxy.close();
+		}
+	}
+	
+	/**
+	 * @return true if the running JDK can create virtual threads
+	 */
+	public static boolean isVirtualThreadSupported()
+	{
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Creates the executor running connection handlers: a fixed size pool of
+	 * platform threads with a bounded queue, or one virtual thread per
+	 * connection in VIRTUAL mode.
+	 * The virtual thread executor is looked up reflectively so that the server
+	 * still builds and runs in the other modes on JDKs older than 21.
+	 * @return connection executor
+	 */
+	private ExecutorService newConnectionExecutor()
+	{
+		if (mode != ServerMode.VIRTUAL) {
+			//bounded, so an overloaded server turns connections away instead of piling them up
+			return new ThreadPoolExecutor(threadThreshold, threadThreshold, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)));
+		}
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			throw new IllegalStateException("VIRTUAL mode requires JDK 21 or newer, running on " + System.getProperty("java.version"), e);
+		}
+	}
+	
+	/**
+	 * Opens the listening sockets of the server. With more than one shard
+	 * every socket is bound to the port with SO_REUSEPORT and the kernel
+	 * spreads incoming connections over them; where SO_REUSEPORT is not
+	 * available a single socket is shared by all shards.
+	 * The option is looked up reflectively, it is not part of the JDK 8 API.
+	 * @param shards - number of acceptors
+	 * @return one listening channel per shard, possibly the same one
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	private ServerSocketChannel[] openListeners(int shards) throws IOException
+	{
+		ServerSocketChannel[] listeners = new ServerSocketChannel[Math.max(1, shards)];
+		SocketOption<Boolean> reusePort = null;
+		if (listeners.length > 1) {
+			try {
+				reusePort = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+			} catch (Exception e) {
+				log.info("SO_REUSEPORT needs JDK 9 or newer, " + listeners.length + " acceptors share one listening socket");
+			}
+		}
+		for (int i = 0; i < listeners.length; i++) {
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			if (reusePort != null && !channel.supportedOptions().contains(reusePort)) {
+				log.info("SO_REUSEPORT not supported on this platform, " + listeners.length + " acceptors share one listening socket");
+				reusePort = null;
+			}
+			if (reusePort == null && i > 0) {
+				channel.close();
+				listeners[i] = listeners[0];
+				continue;
+			}
+			if (reusePort != null) {
+				channel.setOption(reusePort, true);
+			}
+			channel.bind(new InetSocketAddress(port), ServerConfig.ACCEPT_BACKLOG);
+			listeners[i] = channel;
+		}
+		return listeners;
+	}
+	
+	/**
+	 * Closes every listening socket, which ends the accept loops
+	 */
+	private static void closeListeners(ServerSocketChannel[] listeners)
+	{
+		if (listeners == null) {
+			return;
+		}
+		for (ServerSocketChannel listener : listeners) {
+			try {
+				if (listener != null) {
+					listener.close();
+				}
+			} catch (IOException e) {
+				log.error("Exception while closing server socket: " + e);
+			}
+		}
+	}
+	
+	/**
+	 * Blocking accept loops handing every connection to the connection
+	 * executor, one per listening socket; the first runs on this thread
+	 */
+	private void runThreadPool()
+	{
+		ServerSocketChannel[] listeners = null;
 		try
 		{
-			//threadPool = Executors.newCachedThreadPool();
-			threadPool = Executors.newFixedThreadPool(threadThreshold);
-			serverSocket = new ServerSocket(port);
-	    	log.info("Web Server listening for connections on port " + port);
-   
-	    	//listen unless interrupted
-	    	while (!Thread.interrupted()) {
-				try {
-					HttpConnection conn = new HttpConnection(serverSocket.accept(), this);
-					threadPool.submit(new Thread(conn));
-				} catch (IOException ioe) {
-					log.error("Cannot submit another connection thread. IO Exception: "+ioe.getMessage());
-				} catch (Exception e){
-					log.error("Exception while submitting new Thread in Thread pool: "+e);
-				}
+			threadPool = newConnectionExecutor();
+			if (threadPool instanceof ThreadPoolExecutor) {
+				metrics.setPool((ThreadPoolExecutor) threadPool);
+			}
+			if (mode == ServerMode.POOL) {
+				//virtual threads park cheaply on a blocking read, pool threads should not
+				idleConnections = new IdleConnections(threadPool);
+				Thread idleThread = new Thread(idleConnections, "idle-connections");
+				idleThread.setDaemon(true);
+				idleThread.start();
+			}
+			//channel backed so that accepted sockets can send files with transferTo
+			listeners = openListeners(acceptShards);
+			log.info("Web Server listening for connections on port " + port + " with " + listeners.length + " acceptors");
+			for (int i = 1; i < listeners.length; i++) {
+				final ServerSocket shard = listeners[i].socket();
+				Thread acceptor = new Thread(new Runnable() {
+					public void run() {
+						acceptConnections(shard);
+					}
+				}, "acceptor-" + i);
+				acceptor.setDaemon(true);
+				acceptor.start();
 			}
+			acceptConnections(listeners[0].socket());
 		}catch (IOException e) {
 			log.error("Cannot listen on port " + port);
 			log.error("Server Error: "+e.getMessage());
 			System.exit(1);
 		}
 		
-		try
-		{
-			if(serverSocket != null)
-			{
-				//close server socket
-				serverSocket.close();
-			}
-		}catch(IOException e1)
-		{
-			log.error("Exception while closing server socket: " + e1);
+		closeListeners(listeners);
+		if (idleConnections != null) {
+			idleConnections.close();
 		}
-		
 		threadPool.shutdown();	
 		try {
 			if (!threadPool.awaitTermination(10, TimeUnit.SECONDS)) 
@@ -142,6 +478,105 @@ public class WebServer implements Runnable {
 		
 	}
 	
+	/**
+	 * Accept loop of one listening socket, runs until the thread is
+	 * interrupted or the socket is closed
+	 * @param serverSocket
+	 */
+	private void acceptConnections(ServerSocket serverSocket)
+	{
+		//listen unless interrupted
+		while (!Thread.interrupted() && !serverSocket.isClosed()) {
+			try {
+				HttpConnection conn = new HttpConnection(serverSocket.accept(), this);
+				if (!conn.isAdmitted()) {
+					//too many connections of this client: answer right here, before any thread or file is involved
+					conn.refuse();
+					continue;
+				}
+				try {
+					threadPool.execute(conn);
+				} catch (RejectedExecutionException ree) {
+					//queue full: answer right here, the connection never takes a thread
+					conn.reject(false);
+				}
+			} catch (IOException ioe) {
+				log.error("Cannot submit another connection thread. IO Exception: "+ioe.getMessage());
+			} catch (Exception e){
+				log.error("Exception while submitting new Thread in Thread pool: "+e);
+			}
+		}
+	}
+	
+	/**
+	 * Selector event loops, each serving many non-blocking connections.
+	 * With one shard a blocking accept loop on this thread distributes
+	 * connections round robin over the loops; with more, every loop accepts
+	 * on a listening socket of its own and keeps the connections it accepted
+	 * for their whole lifetime, so no connection changes threads.
+	 */
+	private void runEventLoops()
+	{
+		int loopCount = Math.max(1, Math.min(threadThreshold, Runtime.getRuntime().availableProcessors()));
+		EventLoop[] loops = new EventLoop[loopCount];
+		Thread[] loopThreads = new Thread[loopCount];
+		ServerSocketChannel[] listeners = null;
+		try
+		{
+			int shards = Math.min(acceptShards, loopCount);
+			listeners = openListeners(shards);
+			for (int i = 0; i < loopCount; i++) {
+				loops[i] = new EventLoop(this);
+				if (shards > 1) {
+					loops[i].listen(listeners[i % listeners.length]);
+				}
+				loopThreads[i] = new Thread(loops[i], "event-loop-" + i);
+				loopThreads[i].start();
+			}
+			log.info("Web Server listening for connections on port " + port + " with " + loopCount + " event loops and "
+					+ (shards > 1 ? shards + " accepting shards" : "one acceptor"));
+			
+			if (shards > 1) {
+				//the loops accept themselves, wait until the server is stopped
+				try {
+					for (Thread loopThread : loopThreads) {
+						loopThread.join();
+					}
+				} catch (InterruptedException ie) {
+					log.info("Web Server interrupted, stopping event loops");
+				}
+			} else {
+				ServerSocketChannel serverChannel = listeners[0];
+				int next = 0;
+				//listen unless interrupted
+				while (!Thread.interrupted()) {
+					try {
+						SocketChannel channel = serverChannel.accept();
+						loops[next].register(channel);
+						next = (next + 1) % loopCount;
+					} catch (IOException ioe) {
+						log.error("Cannot accept connection. IO Exception: "+ioe.getMessage());
+						if (!serverChannel.isOpen()) {
+							break;
+						}
+					}
+				}
+			}
+		}catch (IOException e) {
+			log.error("Cannot listen on port " + port);
+			log.error("Server Error: "+e.getMessage());
+			System.exit(1);
+		}
+		
+		closeListeners(listeners);
+		
+		for (Thread loopThread : loopThreads) {
+			if (loopThread != null) {
+				loopThread.interrupt();
+			}
+		}
+	}
+	
 	 /**
 	 * Initializes the default content for tests
 	 */
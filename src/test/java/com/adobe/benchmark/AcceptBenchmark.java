@@ -0,0 +1,143 @@
+package com.adobe.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.adobe.server.ServerMode;
+import com.adobe.server.ServerOptions;
+import com.adobe.server.WebServer;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * @author rbajaj
+ * Connection churn of a single acceptor against SO_REUSEPORT acceptor shards.
+ *
+ * Every client opens a connection, sends one GET with "Connection: close",
+ * reads the response and starts over, so the server accepts a connection per
+ * request. The report shows the connections served per second for the POOL
+ * and NIO modes with one acceptor and with the given number of shards.
+ * Raise the file descriptor limit and widen the ephemeral port range for long
+ * runs, every connection leaves a socket in TIME_WAIT on the client side.
+ *
+ * Usage: java -cp target/classes:target/test-classes:log4j.jar com.adobe.benchmark.AcceptBenchmark [seconds] [threads limit] [shards] [clients]
+ */
+public class AcceptBenchmark {
+
+	private static final String HOST = "127.0.0.1";
+	private static final int BASE_PORT = 53000;
+	private static final byte[] REQUEST = "GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes();
+
+	public static void main(String[] args) throws Exception {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		int shards = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		int clients = args.length > 3 ? Integer.parseInt(args[3]) : 32;
+
+		String webRoot = System.getProperty("user.dir") + "/root/";
+		ServerMode[] modes = {ServerMode.POOL, ServerMode.NIO};
+		int[] shardCounts = {1, shards};
+		for (int m = 0; m < modes.length; m++) {
+			for (int s = 0; s < shardCounts.length; s++) {
+				new Thread(new WebServer(BASE_PORT + m * 2 + s, webRoot, maxThreads,
+						new ServerOptions().mode(modes[m]).acceptShards(shardCounts[s]))).start();
+			}
+		}
+		WebServer.initializeDefaultContent();
+		Logger.getRootLogger().setLevel(Level.WARN);
+		Thread.sleep(500);
+
+		System.out.printf("%-6s %8s %10s %16s %10s%n", "mode", "shards", "clients", "connections/s", "errors");
+		for (int m = 0; m < modes.length; m++) {
+			for (int s = 0; s < shardCounts.length; s++) {
+				//warm up, then measure
+				run(BASE_PORT + m * 2 + s, clients, 1000L);
+				Result result = run(BASE_PORT + m * 2 + s, clients, seconds * 1000L);
+				System.out.printf("%-6s %8d %10d %16.0f %10d%n", modes[m], shardCounts[s], clients,
+						result.connections * 1000.0 / (seconds * 1000L), result.errors);
+			}
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Drives the given number of clients, each opening a new connection per request
+	 */
+	private static Result run(final int port, int clients, final long durationMillis) throws InterruptedException {
+		final AtomicLong connections = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(clients);
+		for (int i = 0; i < clients; i++) {
+			Thread client = new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+						long deadline = System.currentTimeMillis() + durationMillis;
+						long count = 0;
+						while (System.currentTimeMillis() < deadline) {
+							if (request(port)) {
+								count++;
+							} else {
+								errors.incrementAndGet();
+							}
+						}
+						connections.addAndGet(count);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+			client.setDaemon(true);
+			client.start();
+		}
+		start.countDown();
+		done.await();
+		return new Result(connections.get(), errors.get());
+	}
+
+	/**
+	 * One connection, one request
+	 * @return true if a 200 response was read
+	 */
+	private static boolean request(int port) {
+		Socket socket = null;
+		try {
+			socket = new Socket(HOST, port);
+			socket.setSoTimeout(5000);
+			OutputStream out = socket.getOutputStream();
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			out.write(REQUEST);
+			out.flush();
+			ServerModeBenchmark.readResponse(in);
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private static class Result {
+		final long connections;
+		final long errors;
+
+		Result(long connections, long errors) {
+			this.connections = connections;
+			this.errors = errors;
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.adobe.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import com.adobe.cache.CompressedContent;
+import com.adobe.cache.CompressedVariantCache;
+import com.adobe.http.response.ContentEncoding;
+import com.adobe.logutils.MyLogger;
+
+/**
+ * @author rbajaj
+ * Bytes on the wire and CPU per response for a text page: sent as is,
+ * compressed on every request, and taken from the CompressedVariantCache.
+ *
+ * Only the body production is measured, on the calling thread, so the
+ * numbers show what compression costs the request path rather than the
+ * network.
+ *
+ * Usage: java -cp classes:test-classes:log4j.jar com.adobe.benchmark.CompressionBenchmark [page KB] [requests]
+ */
+public class CompressionBenchmark {
+
+	private enum Path { IDENTITY, PER_REQUEST, VARIANT_CACHE }
+
+	public static void main(String[] args) throws Exception {
+		MyLogger.getLogger(CompressionBenchmark.class.getSimpleName());
+		int pageKb = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		int requests = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+
+		byte[] page = page(pageKb * 1024);
+		File file = File.createTempFile("compression", ".html");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(page);
+		} finally {
+			out.close();
+		}
+		CompressedVariantCache cache = new CompressedVariantCache(64L * 1024 * 1024, 256, 1024 * 1024, 8L * 1024 * 1024);
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		System.out.printf("%-14s %14s %16s%n", "path", "bytes/resp", "cpu us/resp");
+		for (Path path : Path.values()) {
+			//warm up, then measure
+			run(path, page, file, cache, requests / 10);
+			long cpu = threads.getCurrentThreadCpuTime();
+			long bytes = run(path, page, file, cache, requests);
+			cpu = threads.getCurrentThreadCpuTime() - cpu;
+			System.out.printf("%-14s %14d %16.1f%n", path, bytes / requests, cpu / 1000.0 / requests);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * @return total body bytes produced for the requests
+	 */
+	private static long run(Path path, byte[] page, File file, CompressedVariantCache cache, int requests) throws IOException {
+		long bytes = 0;
+		for (int i = 0; i < requests; i++) {
+			switch (path) {
+			case IDENTITY:
+				bytes += page.length;
+				break;
+			case PER_REQUEST:
+				ByteArrayOutputStream encoded = new ByteArrayOutputStream(page.length / 4);
+				OutputStream gzip = ContentEncoding.GZIP.compressor(encoded);
+				gzip.write(page);
+				gzip.close();
+				bytes += encoded.size();
+				break;
+			case VARIANT_CACHE:
+				CompressedContent variant = cache.get(file, file.lastModified(), page.length, ContentEncoding.GZIP, page);
+				bytes += variant.length();
+				break;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return markup with the repetition of a typical generated page
+	 */
+	private static byte[] page(int size) {
+		StringBuilder sb = new StringBuilder(size);
+		for (int i = 0; sb.length() < size; i++) {
+			sb.append("<tr class=\"row\"><td>").append(i).append("</td><td>item ").append(i * 7919 % 1000)
+					.append("</td><td><a href=\"/items/").append(i).append("\">details</a></td></tr>\n");
+		}
+		sb.setLength(size);
+		return sb.toString().getBytes();
+	}
+}
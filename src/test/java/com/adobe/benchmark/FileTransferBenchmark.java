@@ -0,0 +1,203 @@
+package com.adobe.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+import com.adobe.cache.MappedContent;
+import com.adobe.cache.MappedFileCache;
+import com.adobe.logutils.MyLogger;
+
+/**
+ * @author rbajaj
+ * CPU cost per GB of sending a file body to a socket: the former 1 KB
+ * FileInputStream / BufferedOutputStream copy loop, FileChannel.transferTo,
+ * and writing from a file mapping held by the MappedFileCache.
+ * 
+ * Only the sending thread's CPU time is counted; a separate thread drains the
+ * loopback connection.
+ * 
+ * Usage: java -cp classes:test-classes com.adobe.benchmark.FileTransferBenchmark [file MB] [rounds]
+ */
+public class FileTransferBenchmark {
+	
+	private static final double GB = 1024.0 * 1024 * 1024;
+	
+	private enum Path { COPY_LOOP, TRANSFER_TO, MAPPED }
+	
+	private static MappedFileCache mappedFiles;
+	
+	public static void main(String[] args) throws Exception {
+		MyLogger.getLogger(FileTransferBenchmark.class.getSimpleName());
+		int fileMb = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+		
+		File file = File.createTempFile("transfer", ".bin");
+		file.deleteOnExit();
+		writeRandom(file, fileMb * 1024L * 1024L);
+		mappedFiles = new MappedFileCache(0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+		
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("127.0.0.1", 0));
+		final int port = server.socket().getLocalPort();
+		
+		//warm up every path before measuring
+		for (Path path : Path.values()) {
+			measure(server, port, file, 2, path);
+		}
+		
+		System.out.printf("%-12s %10s %14s %12s%n", "path", "GB sent", "CPU ms / GB", "MB/s");
+		for (int i = 0; i < 2; i++) {
+			for (Path path : Path.values()) {
+				report(path.name().toLowerCase(), measure(server, port, file, rounds, path));
+			}
+		}
+		server.close();
+	}
+	
+	private static void report(String name, Result r) {
+		double gb = r.bytes / GB;
+		System.out.printf("%-12s %10.2f %14.1f %12.0f%n", name, gb, r.cpuNanos / 1e6 / gb, r.bytes / 1048576.0 / (r.wallNanos / 1e9));
+	}
+	
+	/**
+	 * Sends the file rounds times over one accepted connection
+	 */
+	private static Result measure(ServerSocketChannel server, int port, File file, int rounds, Path path) throws Exception {
+		final Socket client = new Socket("127.0.0.1", port);
+		Thread drain = new Thread(new Runnable() {
+			public void run() {
+				byte[] buffer = new byte[256 * 1024];
+				try {
+					InputStream in = client.getInputStream();
+					while (in.read(buffer) != -1) {
+						//discard
+					}
+				} catch (IOException e) {
+					//connection closed by the sender
+				}
+			}
+		});
+		drain.start();
+		SocketChannel channel = server.accept();
+		
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long cpuStart = threads.getCurrentThreadCpuTime();
+		long wallStart = System.nanoTime();
+		long sent = 0;
+		for (int i = 0; i < rounds; i++) {
+			switch (path) {
+			case COPY_LOOP:
+				sent += copyLoop(file, channel.socket().getOutputStream());
+				break;
+			case TRANSFER_TO:
+				sent += transferTo(file, channel);
+				break;
+			default:
+				sent += mapped(file, channel);
+			}
+		}
+		long cpu = threads.getCurrentThreadCpuTime() - cpuStart;
+		long wall = System.nanoTime() - wallStart;
+		channel.close();
+		drain.join();
+		client.close();
+		return new Result(sent, cpu, wall);
+	}
+	
+	/**
+	 * The body loop HttpResponse.sendBody(File) used before zero-copy
+	 */
+	private static long copyLoop(File file, OutputStream os) throws IOException {
+		BufferedOutputStream outStream = new BufferedOutputStream(os);
+		FileInputStream fileIn = new FileInputStream(file);
+		byte[] fileData = new byte[1024];
+		int bytesRead;
+		long total = 0;
+		try {
+			while ((bytesRead = fileIn.read(fileData)) != -1) {
+				outStream.write(fileData, 0, bytesRead);
+				total += bytesRead;
+			}
+			outStream.flush();
+		} finally {
+			fileIn.close();
+		}
+		return total;
+	}
+	
+	private static long transferTo(File file, SocketChannel channel) throws IOException {
+		FileChannel fc = new FileInputStream(file).getChannel();
+		try {
+			long position = 0;
+			long size = fc.size();
+			while (position < size) {
+				position += fc.transferTo(position, size - position, channel);
+			}
+			return size;
+		} finally {
+			fc.close();
+		}
+	}
+	
+	/**
+	 * The MappedFileCache path: acquire the shared mapping, write a slice of it
+	 */
+	private static long mapped(File file, SocketChannel channel) throws IOException {
+		MappedContent mapped = mappedFiles.acquire(file);
+		try {
+			ByteBuffer slice = mapped.slice();
+			while (slice.hasRemaining()) {
+				channel.write(slice);
+			}
+			return mapped.length();
+		} finally {
+			mapped.close();
+		}
+	}
+	
+	private static void writeRandom(File file, long size) throws IOException {
+		byte[] block = new byte[1024 * 1024];
+		new Random(42).nextBytes(block);
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			for (long written = 0; written < size; written += block.length) {
+				out.write(block, 0, (int) Math.min(block.length, size - written));
+			}
+		} finally {
+			out.close();
+		}
+		//read once so both paths start from the page cache
+		FileChannel fc = new FileInputStream(file).getChannel();
+		ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+		while (fc.read(buffer) != -1) {
+			buffer.clear();
+		}
+		fc.close();
+	}
+	
+	private static class Result {
+		final long bytes;
+		final long cpuNanos;
+		final long wallNanos;
+		
+		Result(long bytes, long cpuNanos, long wallNanos) {
+			this.bytes = bytes;
+			this.cpuNanos = cpuNanos;
+			this.wallNanos = wallNanos;
+		}
+	}
+}
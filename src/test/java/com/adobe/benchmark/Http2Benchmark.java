@@ -0,0 +1,196 @@
+package com.adobe.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.adobe.http.http2.HpackEncoder;
+import com.adobe.http.http2.Http2Frame;
+import com.adobe.logutils.MyLogger;
+import com.adobe.server.WebServer;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * @author rbajaj
+ * Throughput of HTTP/2 streams against HTTP/1.1 keep-alive connections.
+ *
+ * HTTP/1.1 clients send one request at a time on each connection, once
+ * with as many connections as the HTTP/2 run and once with as many as it
+ * has requests in flight. HTTP/2 clients open a batch of streams in one
+ * write and read until every one of them ended, so one connection carries
+ * as many requests at once as the HTTP/1.1 run needs connections for.
+ *
+ * Usage: java -cp classes:test-classes:log4j.jar com.adobe.benchmark.Http2Benchmark [seconds] [connections] [streams] [path]
+ */
+public class Http2Benchmark {
+
+	private static final String HOST = "127.0.0.1";
+	private static final int PORT = 51400;
+	//flow control windows opened by the client, so the server is never held back by them
+	private static final int WINDOW = Integer.MAX_VALUE;
+
+	public static void main(String[] args) throws Exception {
+		MyLogger.getLogger(Http2Benchmark.class.getSimpleName());
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		int connections = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		int streams = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+		String path = args.length > 3 ? args[3] : "/index.html";
+
+		String webRoot = System.getProperty("user.dir") + "/root/";
+		new Thread(new WebServer(PORT, webRoot, connections * streams)).start();
+		WebServer.initializeDefaultContent();
+		Logger.getRootLogger().setLevel(Level.WARN);
+		Thread.sleep(500);
+
+		long durationMillis = seconds * 1000L;
+		System.out.printf("%-10s %12s %10s %14s%n", "protocol", "connections", "in flight", "requests/s");
+		long requests = run(connections, 1, false, path, durationMillis);
+		System.out.printf("%-10s %12d %10d %14.0f%n", "http/1.1", connections, connections, requests * 1000.0 / durationMillis);
+		requests = run(connections * streams, 1, false, path, durationMillis);
+		System.out.printf("%-10s %12d %10d %14.0f%n", "http/1.1", connections * streams, connections * streams, requests * 1000.0 / durationMillis);
+		requests = run(connections, streams, true, path, durationMillis);
+		System.out.printf("%-10s %12d %10d %14.0f%n", "h2c", connections, connections * streams, requests * 1000.0 / durationMillis);
+		System.exit(0);
+	}
+
+	/**
+	 * Drives the connections for the duration
+	 * @param batch - streams opened at once, HTTP/2 only
+	 */
+	private static long run(int connections, final int batch, final boolean http2, final String path,
+			final long durationMillis) throws InterruptedException {
+		final AtomicLong total = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(connections);
+		for (int i = 0; i < connections; i++) {
+			Thread client = new Thread(new Runnable() {
+				public void run() {
+					Socket socket = null;
+					try {
+						socket = new Socket(HOST, PORT);
+						socket.setTcpNoDelay(true);
+						OutputStream out = socket.getOutputStream();
+						InputStream in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+						if (http2) {
+							total.addAndGet(runHttp2(out, new DataInputStream(in), batch, path, start, durationMillis));
+						} else {
+							total.addAndGet(runHttp11(out, in, path, start, durationMillis));
+						}
+					} catch (Exception e) {
+						System.err.println("Client failed: " + e);
+					} finally {
+						if (socket != null) {
+							try {
+								socket.close();
+							} catch (IOException e) {
+							}
+						}
+						done.countDown();
+					}
+				}
+			});
+			client.setDaemon(true);
+			client.start();
+		}
+		start.countDown();
+		done.await();
+		return total.get();
+	}
+
+	private static long runHttp11(OutputStream out, InputStream in, String path, CountDownLatch start,
+			long durationMillis) throws Exception {
+		byte[] request = ("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes("US-ASCII");
+		start.await();
+		long deadline = System.currentTimeMillis() + durationMillis;
+		long count = 0;
+		while (System.currentTimeMillis() < deadline) {
+			out.write(request);
+			out.flush();
+			ServerModeBenchmark.readResponse(in);
+			count++;
+		}
+		return count;
+	}
+
+	private static long runHttp2(OutputStream out, DataInputStream in, int batch, String path, CountDownLatch start,
+			long durationMillis) throws Exception {
+		out.write(Http2Frame.PREFACE);
+		byte[] settings = new byte[6];
+		settings[1] = (byte) Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE;
+		Http2Frame.putInt32(settings, 2, WINDOW);
+		write(out, Http2Frame.SETTINGS, 0, 0, settings, settings.length);
+		windowUpdate(out, WINDOW - Http2Frame.DEFAULT_WINDOW_SIZE);
+		out.flush();
+
+		HpackEncoder encoder = new HpackEncoder();
+		byte[] header = new byte[Http2Frame.HEADER_LENGTH];
+		byte[] payload = new byte[Http2Frame.DEFAULT_MAX_FRAME_SIZE];
+		int streamId = 1;
+		start.await();
+		long deadline = System.currentTimeMillis() + durationMillis;
+		long count = 0;
+		while (System.currentTimeMillis() < deadline) {
+			for (int i = 0; i < batch; i++) {
+				//from the second request on every field is a table index
+				encoder.reset();
+				encoder.header(":method", "GET");
+				encoder.header(":scheme", "http");
+				encoder.header(":path", path);
+				encoder.header(":authority", "localhost");
+				write(out, Http2Frame.HEADERS, Http2Frame.FLAG_END_HEADERS | Http2Frame.FLAG_END_STREAM, streamId,
+						encoder.buffer(), encoder.length());
+				streamId += 2;
+			}
+			out.flush();
+			int ended = 0;
+			int received = 0;
+			while (ended < batch) {
+				in.readFully(header);
+				int length = Http2Frame.length(header, 0);
+				int type = Http2Frame.type(header, 0);
+				int flags = Http2Frame.flags(header, 0);
+				if (length > payload.length) {
+					payload = Arrays.copyOf(payload, length);
+				}
+				in.readFully(payload, 0, length);
+				if (type == Http2Frame.SETTINGS && (flags & Http2Frame.FLAG_ACK) == 0) {
+					write(out, Http2Frame.SETTINGS, Http2Frame.FLAG_ACK, 0, payload, 0);
+				} else if (type == Http2Frame.DATA) {
+					received += length;
+				} else if (type == Http2Frame.GOAWAY || type == Http2Frame.RST_STREAM) {
+					throw new IOException("Stream refused or connection closed by the server.");
+				}
+				//header blocks are not decoded, only the end of each stream matters
+				if ((flags & Http2Frame.FLAG_END_STREAM) != 0 && (type == Http2Frame.HEADERS || type == Http2Frame.DATA)) {
+					ended++;
+				}
+			}
+			if (received > 0) {
+				windowUpdate(out, received);
+			}
+			count += batch;
+		}
+		return count;
+	}
+
+	private static void windowUpdate(OutputStream out, int increment) throws IOException {
+		byte[] payload = new byte[4];
+		Http2Frame.putInt32(payload, 0, increment);
+		write(out, Http2Frame.WINDOW_UPDATE, 0, 0, payload, payload.length);
+	}
+
+	private static void write(OutputStream out, int type, int flags, int streamId, byte[] payload, int length) throws IOException {
+		byte[] frame = new byte[Http2Frame.HEADER_LENGTH + length];
+		Http2Frame.header(frame, 0, length, type, flags, streamId);
+		System.arraycopy(payload, 0, frame, Http2Frame.HEADER_LENGTH, length);
+		out.write(frame);
+	}
+}
@@ -0,0 +1,400 @@
+package com.adobe.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.adobe.logutils.MyLogger;
+import com.adobe.metrics.LatencyHistogram;
+import com.adobe.server.ServerMode;
+import com.adobe.server.ServerOptions;
+import com.adobe.server.WebServer;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * @author rbajaj
+ * End-to-end load generator reporting throughput and the latency
+ * distribution, against in-process servers or one started separately.
+ *
+ * In closed loop every connection sends its next batch as soon as the last
+ * one was answered, which measures capacity. In open loop requests are due
+ * at a constant total rate whatever the server does, and latency counts
+ * from when a request was due rather than when it was sent, so a stalled
+ * server is charged for the requests it kept the clients from sending
+ * (coordinated omission). Each connection writes up to depth due requests
+ * in one go, so depth above 1 pipelines.
+ *
+ * Several in-process servers, e.g. servers=pool:10,pool:100,nio:4,virtual:0,
+ * are loaded one after the other with the same settings and compared in one
+ * table, which is how thread counts for a box are chosen.
+ *
+ * Usage: java -cp classes:test-classes:log4j.jar com.adobe.benchmark.LoadGenerator [key=value...]
+ *   servers=pool:10,nio:4   in-process servers as mode:threads limit (pool:10)
+ *   target=host:port        load a running server instead
+ *   loop=closed|open        (closed)
+ *   rate=N                  total requests per second in open loop (1000)
+ *   connections=N           (16)
+ *   depth=N                 requests written at once per connection (1)
+ *   keepAlive=true|false    false opens a connection per request (true)
+ *   seconds=N               measured duration (10)
+ *   warmup=N                seconds of load before measuring (2)
+ *   urls=/a.html,/b.css     URL mix, default every file under root
+ *   root=dir                web root of in-process servers and of the URL mix (./root)
+ */
+public class LoadGenerator {
+
+	private static final int BASE_PORT = 51200;
+	private static final double[] PERCENTILES = {0.5, 0.75, 0.9, 0.99, 0.999, 0.9999, 1.0};
+	private static final String[] PERCENTILE_LABELS = {"50", "75", "90", "99", "99.9", "99.99", "max"};
+
+	public static void main(String[] args) throws Exception {
+		MyLogger.getLogger(LoadGenerator.class.getSimpleName());
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq <= 0) {
+				System.out.println("Arguments are key=value, see the class comment");
+				return;
+			}
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		Settings settings = new Settings(options);
+		String webRoot = option(options, "root", System.getProperty("user.dir") + "/root/");
+		List<String> urls = urls(options.get("urls"), webRoot);
+		if (urls.isEmpty()) {
+			System.out.println("No files under " + webRoot + " to request, pass urls=");
+			return;
+		}
+		Logger.getRootLogger().setLevel(Level.WARN);
+
+		System.out.println(settings + ", " + urls.size() + " urls");
+		List<String> names = new ArrayList<String>();
+		List<Report> reports = new ArrayList<Report>();
+		String target = options.get("target");
+		if (target != null) {
+			int colon = target.lastIndexOf(':');
+			names.add(target);
+			reports.add(run(target.substring(0, colon), Integer.parseInt(target.substring(colon + 1)), settings, urls));
+		} else {
+			String[] servers = option(options, "servers", "pool:10").split(",");
+			for (int i = 0; i < servers.length; i++) {
+				String[] spec = servers[i].split(":");
+				ServerMode mode = ServerMode.fromString(spec[0]);
+				int maxThreads = spec.length > 1 ? Integer.parseInt(spec[1]) : 10;
+				if (mode == ServerMode.VIRTUAL && !WebServer.isVirtualThreadSupported()) {
+					System.out.println("Skipping " + servers[i] + ", virtual threads need JDK 21");
+					continue;
+				}
+				new Thread(new WebServer(BASE_PORT + i, webRoot, maxThreads, new ServerOptions().mode(mode))).start();
+				Logger.getRootLogger().setLevel(Level.WARN);
+				Thread.sleep(500);
+				names.add(servers[i]);
+				reports.add(run("127.0.0.1", BASE_PORT + i, settings, urls));
+			}
+		}
+
+		for (int i = 0; i < reports.size(); i++) {
+			System.out.println();
+			System.out.println(names.get(i) + ": " + reports.get(i).latency.getCount() + " requests, " + reports.get(i).errors.get() + " errors");
+			reports.get(i).printDistribution();
+		}
+		System.out.println();
+		System.out.printf("%-14s %12s %8s %10s %10s %10s %10s %10s%n",
+				"server", "requests/s", "errors", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+		for (int i = 0; i < reports.size(); i++) {
+			Report report = reports.get(i);
+			long[] q = report.latency.quantilesMicros(0.5, 0.9, 0.99, 0.999, 1.0);
+			System.out.printf("%-14s %12.0f %8d %10.3f %10.3f %10.3f %10.3f %10.3f%n", names.get(i),
+					report.latency.getCount() / (double) settings.seconds, report.errors.get(),
+					q[0] / 1000.0, q[1] / 1000.0, q[2] / 1000.0, q[3] / 1000.0, q[4] / 1000.0);
+		}
+		System.exit(0);
+	}
+
+	private static String option(Map<String, String> options, String key, String defaultValue) {
+		String value = options.get(key);
+		return value != null ? value : defaultValue;
+	}
+
+	/**
+	 * @return the given URLs, or every readable file under the web root
+	 */
+	private static List<String> urls(String list, String webRoot) {
+		List<String> urls = new ArrayList<String>();
+		if (list != null) {
+			for (String url : list.split(",")) {
+				urls.add(url);
+			}
+			return urls;
+		}
+		File root = new File(webRoot);
+		collect(root, root.getAbsolutePath().length(), urls);
+		return urls;
+	}
+
+	private static void collect(File dir, int rootLength, List<String> urls) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File f : files) {
+			if (f.isDirectory()) {
+				collect(f, rootLength, urls);
+			} else if (f.canRead()) {
+				urls.add(f.getAbsolutePath().substring(rootLength).replace(File.separatorChar, '/'));
+			}
+		}
+	}
+
+	/**
+	 * Drives all connections against one server through warmup and measurement
+	 */
+	private static Report run(final String host, final int port, final Settings settings, final List<String> urls)
+			throws InterruptedException {
+		final Report report = new Report();
+		final long startNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+		final long measureNanos = startNanos + TimeUnit.SECONDS.toNanos(settings.warmup);
+		final long endNanos = measureNanos + TimeUnit.SECONDS.toNanos(settings.seconds);
+		final CountDownLatch done = new CountDownLatch(settings.connections);
+		for (int i = 0; i < settings.connections; i++) {
+			final int index = i;
+			Thread client = new Thread(new Runnable() {
+				public void run() {
+					try {
+						new Client(host, port, settings, urls, report, index).run(startNanos, measureNanos, endNanos);
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "load-" + i);
+			client.setDaemon(true);
+			client.start();
+		}
+		done.await();
+		return report;
+	}
+
+	/**
+	 * One connection's request loop
+	 */
+	private static class Client {
+		private final String host;
+		private final int port;
+		private final Settings settings;
+		private final List<String> urls;
+		private final Report report;
+		private final Random random;
+		//open loop: time between two requests of this connection, first one staggered
+		private final long intervalNanos;
+		private final long offsetNanos;
+		private final long[] due;
+		private Socket socket;
+		private OutputStream out;
+		private InputStream in;
+
+		Client(String host, int port, Settings settings, List<String> urls, Report report, int index) {
+			this.host = host;
+			this.port = port;
+			this.settings = settings;
+			this.urls = urls;
+			this.report = report;
+			this.random = new Random(index);
+			this.intervalNanos = settings.open ? (long) (1e9 * settings.connections / settings.rate) : 0;
+			this.offsetNanos = intervalNanos * index / Math.max(1, settings.connections);
+			this.due = new long[settings.depth];
+		}
+
+		void run(long startNanos, long measureNanos, long endNanos) {
+			long next = startNanos + offsetNanos;
+			while (true) {
+				long now = System.nanoTime();
+				if (now >= endNanos) {
+					break;
+				}
+				int batch;
+				if (settings.open) {
+					if (next > now) {
+						LockSupport.parkNanos(Math.min(next, endNanos) - now);
+						continue;
+					}
+					//every request already due goes out now, up to the pipeline depth
+					batch = 0;
+					while (batch < settings.depth && next <= now && next < endNanos) {
+						due[batch++] = next;
+						next += intervalNanos;
+					}
+				} else {
+					batch = settings.depth;
+					for (int i = 0; i < batch; i++) {
+						due[i] = now;
+					}
+				}
+				try {
+					send(batch);
+					for (int i = 0; i < batch; i++) {
+						int status = readResponse(in);
+						long latency = System.nanoTime() - due[i];
+						if (due[i] >= measureNanos && due[i] < endNanos) {
+							report.record(latency, status >= 400);
+						}
+					}
+					if (!settings.keepAlive) {
+						close();
+					}
+				} catch (IOException e) {
+					for (int i = 0; i < batch; i++) {
+						if (due[i] >= measureNanos) {
+							report.record(System.nanoTime() - due[i], true);
+						}
+					}
+					close();
+				}
+			}
+			close();
+		}
+
+		private void send(int batch) throws IOException {
+			if (socket == null) {
+				socket = new Socket(host, port);
+				socket.setTcpNoDelay(true);
+				socket.setSoTimeout(30000);
+				out = socket.getOutputStream();
+				in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+			}
+			StringBuilder text = new StringBuilder(batch * 64);
+			for (int i = 0; i < batch; i++) {
+				text.append("GET ").append(urls.get(random.nextInt(urls.size()))).append(" HTTP/1.1\r\nHost: ")
+						.append(host).append("\r\n");
+				if (!settings.keepAlive) {
+					text.append("Connection: close\r\n");
+				}
+				text.append("\r\n");
+			}
+			out.write(text.toString().getBytes("ISO-8859-1"));
+			out.flush();
+		}
+
+		private void close() {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+				}
+				socket = null;
+			}
+		}
+	}
+
+	/**
+	 * Reads one response, using Content-Length to find the end of the body
+	 * @return status code
+	 */
+	static int readResponse(InputStream in) throws IOException {
+		int status = -1;
+		long contentLength = 0;
+		StringBuilder line = new StringBuilder();
+		while (true) {
+			int b = in.read();
+			if (b < 0) {
+				throw new IOException("Connection closed");
+			}
+			if (b == '\n') {
+				if (line.length() == 0) {
+					break;
+				}
+				String header = line.toString();
+				if (status < 0) {
+					status = Integer.parseInt(header.substring(9, 12));
+				} else if (header.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+					contentLength = Long.parseLong(header.substring(15).trim());
+				}
+				line.setLength(0);
+			} else if (b != '\r') {
+				line.append((char) b);
+			}
+		}
+		while (contentLength > 0) {
+			long skipped = in.skip(contentLength);
+			if (skipped <= 0) {
+				if (in.read() < 0) {
+					throw new IOException("Connection closed");
+				}
+				skipped = 1;
+			}
+			contentLength -= skipped;
+		}
+		return status;
+	}
+
+	/**
+	 * Load settings shared by every run
+	 */
+	private static class Settings {
+		final boolean open;
+		final double rate;
+		final int connections;
+		final int depth;
+		final boolean keepAlive;
+		final int seconds;
+		final int warmup;
+
+		Settings(Map<String, String> options) {
+			open = "open".equalsIgnoreCase(option(options, "loop", "closed"));
+			rate = Double.parseDouble(option(options, "rate", "1000"));
+			connections = Integer.parseInt(option(options, "connections", "16"));
+			keepAlive = Boolean.parseBoolean(option(options, "keepAlive", "true"));
+			//without keep alive every request has a connection of its own
+			depth = keepAlive ? Math.max(1, Integer.parseInt(option(options, "depth", "1"))) : 1;
+			seconds = Integer.parseInt(option(options, "seconds", "10"));
+			warmup = Integer.parseInt(option(options, "warmup", "2"));
+		}
+
+		@Override
+		public String toString() {
+			return (open ? "open loop at " + (long) rate + " requests/s" : "closed loop") + ", " + connections
+					+ " connections, depth " + depth + ", keep-alive " + keepAlive + ", " + warmup + "s warmup, "
+					+ seconds + "s measured";
+		}
+	}
+
+	/**
+	 * Latency and counts of the measured part of one run
+	 */
+	private static class Report {
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong errors = new AtomicLong();
+
+		void record(long latencyNanos, boolean error) {
+			latency.recordNanos(latencyNanos);
+			if (error) {
+				errors.incrementAndGet();
+			}
+		}
+
+		void printDistribution() {
+			long[] values = latency.quantilesMicros(PERCENTILES);
+			System.out.printf("  %10s %12s%n", "percentile", "latency ms");
+			for (int i = 0; i < PERCENTILES.length; i++) {
+				System.out.printf("  %10s %12.3f%n", PERCENTILE_LABELS[i],
+						values[i] / 1000.0);
+			}
+			if (latency.getCount() > 0) {
+				System.out.printf("  %10s %12.3f%n", "mean", latency.getSumMicros() / 1000.0 / latency.getCount());
+			}
+		}
+	}
+}
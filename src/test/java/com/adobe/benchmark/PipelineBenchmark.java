@@ -0,0 +1,121 @@
+package com.adobe.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.adobe.logutils.MyLogger;
+import com.adobe.server.ServerMode;
+import com.adobe.server.ServerOptions;
+import com.adobe.server.WebServer;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * @author rbajaj
+ * Throughput of pipelined keep-alive requests, like wrk --pipeline N.
+ *
+ * Every client writes a batch of N requests in one go, then reads the N
+ * responses, and repeats for the measurement window. With batched response
+ * writes the server answers a batch with one socket write, so throughput
+ * should grow with the pipeline depth.
+ *
+ * Usage: java -cp classes:test-classes:log4j.jar com.adobe.benchmark.PipelineBenchmark [seconds] [connections] [depths...]
+ */
+public class PipelineBenchmark {
+
+	private static final String HOST = "127.0.0.1";
+	private static final int BASE_PORT = 51100;
+	private static final String REQUEST = "GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n";
+
+	public static void main(String[] args) throws Exception {
+		MyLogger.getLogger(PipelineBenchmark.class.getSimpleName());
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		int connections = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		int[] depths = {1, 16};
+		if (args.length > 2) {
+			depths = new int[args.length - 2];
+			for (int i = 2; i < args.length; i++) {
+				depths[i - 2] = Integer.parseInt(args[i]);
+			}
+		}
+
+		String webRoot = System.getProperty("user.dir") + "/root/";
+		ServerMode[] modes = {ServerMode.POOL, ServerMode.NIO};
+		for (int i = 0; i < modes.length; i++) {
+			new Thread(new WebServer(BASE_PORT + i, webRoot, connections, new ServerOptions().mode(modes[i]))).start();
+		}
+		WebServer.initializeDefaultContent();
+		Logger.getRootLogger().setLevel(Level.WARN);
+		Thread.sleep(500);
+
+		System.out.printf("%-6s %8s %14s%n", "mode", "depth", "requests/s");
+		for (int depth : depths) {
+			for (int i = 0; i < modes.length; i++) {
+				long requests = run(BASE_PORT + i, connections, depth, seconds * 1000L);
+				System.out.printf("%-6s %8d %14.0f%n", modes[i], depth, requests * 1000.0 / (seconds * 1000L));
+			}
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Drives the connections with batches of depth pipelined requests
+	 */
+	private static long run(final int port, int connections, int depth, final long durationMillis) throws InterruptedException {
+		StringBuilder batch = new StringBuilder();
+		for (int i = 0; i < depth; i++) {
+			batch.append(REQUEST);
+		}
+		final byte[] requests = batch.toString().getBytes();
+		final int batchSize = depth;
+		final AtomicLong total = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(connections);
+		for (int i = 0; i < connections; i++) {
+			Thread client = new Thread(new Runnable() {
+				public void run() {
+					Socket socket = null;
+					try {
+						socket = new Socket(HOST, port);
+						socket.setTcpNoDelay(true);
+						OutputStream out = socket.getOutputStream();
+						InputStream in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+						start.await();
+						long deadline = System.currentTimeMillis() + durationMillis;
+						long count = 0;
+						while (System.currentTimeMillis() < deadline) {
+							out.write(requests);
+							out.flush();
+							for (int r = 0; r < batchSize; r++) {
+								ServerModeBenchmark.readResponse(in);
+							}
+							count += batchSize;
+						}
+						total.addAndGet(count);
+					} catch (Exception e) {
+						System.err.println("Client failed: " + e);
+					} finally {
+						if (socket != null) {
+							try {
+								socket.close();
+							} catch (IOException e) {
+							}
+						}
+						done.countDown();
+					}
+				}
+			});
+			client.setDaemon(true);
+			client.start();
+		}
+		start.countDown();
+		done.await();
+		return total.get();
+	}
+}
@@ -0,0 +1,158 @@
+package com.adobe.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.adobe.server.ServerMode;
+import com.adobe.server.ServerOptions;
+import com.adobe.server.WebServer;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * @author rbajaj
+ * Concurrent keep-alive connection scaling of the POOL and NIO server modes.
+ * 
+ * Every client opens one keep-alive connection and issues GET requests back to
+ * back for the measurement window. The report shows how many of the connections
+ * were served at all and the aggregate request throughput.
+ * 
+ * Usage: java -cp target/classes:target/test-classes:log4j.jar com.adobe.benchmark.ServerModeBenchmark [seconds] [threads limit] [connections...]
+ */
+public class ServerModeBenchmark {
+	
+	private static final String HOST = "127.0.0.1";
+	private static final int BASE_PORT = 51000;
+	private static final byte[] REQUEST = "GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes();
+	
+	public static void main(String[] args) throws Exception {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int[] connections = {10, 100, 1000};
+		if (args.length > 2) {
+			connections = new int[args.length - 2];
+			for (int i = 2; i < args.length; i++) {
+				connections[i - 2] = Integer.parseInt(args[i]);
+			}
+		}
+		
+		String webRoot = System.getProperty("user.dir") + "/root/";
+		ServerMode[] modes = ServerMode.values();
+		for (int i = 0; i < modes.length; i++) {
+			new Thread(new WebServer(BASE_PORT + i, webRoot, maxThreads, new ServerOptions().mode(modes[i]))).start();
+		}
+		WebServer.initializeDefaultContent();
+		Logger.getRootLogger().setLevel(Level.WARN);
+		Thread.sleep(500);
+		
+		System.out.printf("%-6s %12s %12s %14s%n", "mode", "connections", "served", "requests/s");
+		for (int c : connections) {
+			for (int i = 0; i < modes.length; i++) {
+				Result result = run(BASE_PORT + i, c, seconds * 1000L);
+				System.out.printf("%-6s %12d %12d %14.0f%n", modes[i], c, result.served, result.requests * 1000.0 / (seconds * 1000L));
+			}
+		}
+		System.exit(0);
+	}
+	
+	/**
+	 * Drives the given number of keep-alive connections against one server
+	 */
+	private static Result run(final int port, int connections, final long durationMillis) throws InterruptedException {
+		final AtomicLong requests = new AtomicLong();
+		final AtomicInteger served = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(connections);
+		for (int i = 0; i < connections; i++) {
+			Thread client = new Thread(new Runnable() {
+				public void run() {
+					Socket socket = null;
+					try {
+						start.await();
+						long deadline = System.currentTimeMillis() + durationMillis;
+						socket = new Socket(HOST, port);
+						socket.setSoTimeout((int) durationMillis);
+						OutputStream out = socket.getOutputStream();
+						InputStream in = new BufferedInputStream(socket.getInputStream());
+						long count = 0;
+						while (System.currentTimeMillis() < deadline) {
+							out.write(REQUEST);
+							out.flush();
+							readResponse(in);
+							count++;
+						}
+						requests.addAndGet(count);
+						if (count > 0) {
+							served.incrementAndGet();
+						}
+					} catch (Exception e) {
+						//starved or timed out connections simply count as not served
+					} finally {
+						if (socket != null) {
+							try {
+								socket.close();
+							} catch (IOException e) {
+							}
+						}
+						done.countDown();
+					}
+				}
+			});
+			client.setDaemon(true);
+			client.start();
+		}
+		start.countDown();
+		done.await();
+		//give the server time to drop the closed connections before the next round
+		Thread.sleep(6000);
+		return new Result(requests.get(), served.get());
+	}
+	
+	/**
+	 * Reads one response, using Content-Length to find the end of the body
+	 */
+	static void readResponse(InputStream in) throws IOException {
+		int contentLength = 0;
+		StringBuilder line = new StringBuilder();
+		while (true) {
+			int b = in.read();
+			if (b < 0) {
+				throw new IOException("Connection closed");
+			}
+			if (b == '\n') {
+				if (line.length() == 0) {
+					break;
+				}
+				String header = line.toString();
+				if (header.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+					contentLength = Integer.parseInt(header.substring(15).trim());
+				}
+				line.setLength(0);
+			} else if (b != '\r') {
+				line.append((char) b);
+			}
+		}
+		for (int i = 0; i < contentLength; i++) {
+			if (in.read() < 0) {
+				throw new IOException("Connection closed");
+			}
+		}
+	}
+	
+	private static class Result {
+		final long requests;
+		final int served;
+		
+		Result(long requests, int served) {
+			this.requests = requests;
+			this.served = served;
+		}
+	}
+}
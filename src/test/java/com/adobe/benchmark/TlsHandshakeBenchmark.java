@@ -0,0 +1,168 @@
+package com.adobe.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyStore;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+import com.adobe.connection.TlsContext;
+import com.adobe.logutils.MyLogger;
+import com.adobe.metrics.ServerMetrics;
+import com.adobe.server.ServerConfig;
+import com.adobe.server.ServerOptions;
+import com.adobe.server.WebServer;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * @author rbajaj
+ * Connections per second with a full TLS handshake against ones resuming
+ * an earlier session, for TLS 1.3 and TLS 1.2.
+ *
+ * Every connection does its handshake, one GET with Connection: close and
+ * closes, so the rate is bound by the handshake. Full handshakes forget the
+ * session after each connection; resumed ones keep the client's session
+ * cache, which TLS 1.3 fills with the server's tickets and TLS 1.2 with
+ * session ids. The server's handshake counters show what it actually did.
+ *
+ * Uses a self-signed EC key, generated with keytool unless a PKCS12 keystore
+ * with the password changeit is given.
+ *
+ * Usage: java -cp classes:test-classes:log4j.jar com.adobe.benchmark.TlsHandshakeBenchmark [seconds] [clients] [keystore]
+ */
+public class TlsHandshakeBenchmark {
+
+	private static final String HOST = "127.0.0.1";
+	private static final int PORT = 51500;
+	private static final char[] PASSWORD = "changeit".toCharArray();
+
+	public static void main(String[] args) throws Exception {
+		MyLogger.getLogger(TlsHandshakeBenchmark.class.getSimpleName());
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		File keystore = args.length > 2 ? new File(args[2]) : generateKeystore();
+
+		KeyStore keys = KeyStore.getInstance("PKCS12");
+		InputStream in = new FileInputStream(keystore);
+		try {
+			keys.load(in, PASSWORD);
+		} finally {
+			in.close();
+		}
+		KeyStore trusted = KeyStore.getInstance(KeyStore.getDefaultType());
+		trusted.load(null, null);
+		trusted.setCertificateEntry("server", keys.getCertificate(keys.aliases().nextElement()));
+
+		TlsContext tls = new TlsContext(TlsContext.load(keystore.getPath(), PASSWORD, "PKCS12"),
+				new String[] {"TLSv1.3", "TLSv1.2"}, ServerConfig.TLS_SESSION_CACHE_SIZE,
+				ServerConfig.TLS_SESSION_TIMEOUT_SECONDS, false);
+		String webRoot = System.getProperty("user.dir") + "/root/";
+		WebServer server = new WebServer(PORT, webRoot, clients, new ServerOptions().acceptShards(1).tls(tls));
+		new Thread(server).start();
+		WebServer.initializeDefaultContent();
+		Logger.getRootLogger().setLevel(Level.WARN);
+		Thread.sleep(500);
+
+		long durationMillis = seconds * 1000L;
+		System.out.printf("%-8s %-8s %8s %14s %10s %10s%n", "protocol", "session", "clients", "handshakes/s", "full", "resumed");
+		for (String protocol : new String[] {"TLSv1.3", "TLSv1.2"}) {
+			for (boolean resume : new boolean[] {false, true}) {
+				ServerMetrics metrics = server.getMetrics();
+				long full = metrics.getTlsFullHandshakes();
+				long resumed = metrics.getTlsResumedHandshakes();
+				long connections = run(clientContext(trusted), protocol, resume, clients, durationMillis);
+				System.out.printf("%-8s %-8s %8d %14.0f %10d %10d%n", protocol, resume ? "resumed" : "full", clients,
+						connections * 1000.0 / durationMillis, metrics.getTlsFullHandshakes() - full,
+						metrics.getTlsResumedHandshakes() - resumed);
+			}
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Drives the clients for the duration
+	 * @param resume - keep sessions in the client's cache for the next connection
+	 * @return connections completed
+	 */
+	private static long run(SSLContext context, final String protocol, final boolean resume, int clients,
+			final long durationMillis) throws InterruptedException {
+		final SSLSocketFactory factory = context.getSocketFactory();
+		final AtomicLong total = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(clients);
+		for (int i = 0; i < clients; i++) {
+			Thread client = new Thread(new Runnable() {
+				public void run() {
+					try {
+						byte[] request = "GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes("US-ASCII");
+						start.await();
+						long deadline = System.currentTimeMillis() + durationMillis;
+						long count = 0;
+						while (System.currentTimeMillis() < deadline) {
+							SSLSocket socket = (SSLSocket) factory.createSocket(HOST, PORT);
+							try {
+								socket.setTcpNoDelay(true);
+								socket.setEnabledProtocols(new String[] {protocol});
+								OutputStream out = socket.getOutputStream();
+								out.write(request);
+								out.flush();
+								//the response also brings the TLS 1.3 tickets into the client's cache
+								ServerModeBenchmark.readResponse(new BufferedInputStream(socket.getInputStream()));
+								if (!resume) {
+									socket.getSession().invalidate();
+								}
+							} finally {
+								socket.close();
+							}
+							count++;
+						}
+						total.addAndGet(count);
+					} catch (Exception e) {
+						System.err.println("Client failed: " + e);
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+			client.setDaemon(true);
+			client.start();
+		}
+		start.countDown();
+		done.await();
+		return total.get();
+	}
+
+	private static SSLContext clientContext(KeyStore trusted) throws Exception {
+		TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		factory.init(trusted);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, factory.getTrustManagers(), null);
+		return context;
+	}
+
+	private static File generateKeystore() throws IOException, InterruptedException {
+		File keystore = File.createTempFile("tls-benchmark", ".p12");
+		keystore.delete();
+		keystore.deleteOnExit();
+		String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+		Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "server", "-keyalg", "EC", "-keysize", "256",
+				"-dname", "CN=localhost", "-ext", "SAN=ip:127.0.0.1", "-storetype", "PKCS12",
+				"-keystore", keystore.getPath(), "-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD))
+				.inheritIO().start();
+		if (process.waitFor() != 0) {
+			throw new IOException("keytool failed to generate " + keystore);
+		}
+		return keystore;
+	}
+}
@@ -0,0 +1,201 @@
+package com.adobe.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.adobe.http.response.ContentEncoding;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * @author rbajaj
+ * Unit tests of the cache of compressed variants
+ */
+public class CompressedVariantCacheTest extends TestCase {
+
+	    private static final int KB = 1024;
+	    private File dir;
+
+	    public CompressedVariantCacheTest(String testName) {
+	        super(testName);
+	    }
+
+	    public static Test suite() {
+	        return new TestSuite(CompressedVariantCacheTest.class);
+	    }
+
+	    public void setUp() throws IOException {
+	    	dir = File.createTempFile("variants", "");
+	    	dir.delete();
+	    	dir.mkdir();
+	    }
+
+	    public void tearDown() {
+	    	for (File f : dir.listFiles()) {
+	    		f.delete();
+	    	}
+	    	dir.delete();
+	    }
+
+	    /**
+	     * Variant test - Verify both codings decode to the original and are produced once
+	     */
+	    public void testInlineCompression() throws IOException {
+	    	CompressedVariantCache cache = new CompressedVariantCache(1024 * KB, 256, 64 * KB, 1024 * KB);
+	    	byte[] text = text(20 * KB);
+	    	File file = write("a.html", text);
+
+	    	CompressedContent gzip = cache.get(file, file.lastModified(), file.length(), ContentEncoding.GZIP, null);
+	    	assertNotNull(gzip);
+	    	assertTrue(gzip.length() < text.length);
+	    	assertEquals(new String(text), new String(decode(new GZIPInputStream(new ByteArrayInputStream(gzip.body())))));
+
+	    	CompressedContent deflate = cache.get(file, file.lastModified(), file.length(), ContentEncoding.DEFLATE, text);
+	    	assertNotNull(deflate);
+	    	assertEquals(new String(text), new String(decode(new InflaterInputStream(new ByteArrayInputStream(deflate.body())))));
+
+	    	assertSame(gzip, cache.get(file, file.lastModified(), file.length(), ContentEncoding.GZIP, null));
+	    	assertEquals(1, cache.getHitCount());
+	    	assertEquals(2, cache.getMissCount());
+	    	assertEquals(2, cache.size());
+	    }
+
+	    /**
+	     * Variant test - Verify small, incompressible and oversized files are sent as they are
+	     */
+	    public void testFilesSentAsIs() throws IOException {
+	    	CompressedVariantCache cache = new CompressedVariantCache(1024 * KB, 256, 64 * KB, 100 * KB);
+	    	File small = write("small.txt", text(100));
+	    	assertNull(cache.get(small, small.lastModified(), small.length(), ContentEncoding.GZIP, null));
+	    	File large = write("large.txt", text(200 * KB));
+	    	assertNull(cache.get(large, large.lastModified(), large.length(), ContentEncoding.GZIP, null));
+	    	assertEquals(0, cache.getMissCount());
+
+	    	byte[] noise = new byte[8 * KB];
+	    	new Random(42).nextBytes(noise);
+	    	File random = write("random.txt", noise);
+	    	assertNull(cache.get(random, random.lastModified(), random.length(), ContentEncoding.GZIP, null));
+	    	//remembered as not smaller, so it is not compressed again
+	    	assertNull(cache.get(random, random.lastModified(), random.length(), ContentEncoding.GZIP, null));
+	    	assertEquals(1, cache.getMissCount());
+	    	assertEquals(1, cache.getHitCount());
+	    }
+
+	    /**
+	     * Variant test - Verify a changed file is compressed again
+	     */
+	    public void testChangedFileRecompressed() throws IOException {
+	    	CompressedVariantCache cache = new CompressedVariantCache(1024 * KB, 256, 64 * KB, 1024 * KB);
+	    	File file = write("a.css", text(4 * KB));
+	    	CompressedContent first = cache.get(file, file.lastModified(), file.length(), ContentEncoding.GZIP, null);
+
+	    	byte[] changed = text(6 * KB);
+	    	write("a.css", changed);
+	    	CompressedContent second = cache.get(file, file.lastModified() + 1000, changed.length, ContentEncoding.GZIP, changed);
+	    	assertNotSame(first, second);
+	    	assertEquals(new String(changed), new String(decode(new GZIPInputStream(new ByteArrayInputStream(second.body())))));
+	    	assertEquals(1, cache.size());
+	    	assertEquals(2, cache.getMissCount());
+	    }
+
+	    /**
+	     * Variant test - Verify the byte budget evicts the least recently used variant
+	     */
+	    public void testBudgetEvictsLeastRecentlyUsed() throws IOException {
+	    	//random letters shrink by less than half, so a variant fits a budget smaller than two files
+	    	File a = write("a.txt", letters(16 * KB, 1));
+	    	File b = write("b.txt", letters(16 * KB, 2));
+	    	File c = write("c.txt", letters(16 * KB, 3));
+	    	CompressedContent variant = CompressedVariantCache.compress(a.getPath(), ContentEncoding.GZIP, letters(16 * KB, 1), 0);
+	    	//room for two variants of this size
+	    	CompressedVariantCache cache = new CompressedVariantCache(2 * (variant.length() + 200), 256, 64 * KB, 64 * KB);
+
+	    	get(cache, a);
+	    	get(cache, b);
+	    	get(cache, a);
+	    	get(cache, c);
+	    	assertEquals(1, cache.getEvictionCount());
+	    	assertEquals(2, cache.size());
+	    	assertTrue(cache.weightedSize() <= 2 * (variant.length() + 200));
+
+	    	long misses = cache.getMissCount();
+	    	get(cache, a);
+	    	assertEquals(misses, cache.getMissCount());
+	    	get(cache, b);
+	    	assertEquals(misses + 1, cache.getMissCount());
+	    }
+
+	    /**
+	     * Variant test - Verify a large file is served as is until compressed in the background
+	     */
+	    public void testLargeFileCompressedInBackground() throws Exception {
+	    	CompressedVariantCache cache = new CompressedVariantCache(1024 * KB, 256, 16 * KB, 1024 * KB);
+	    	byte[] text = text(200 * KB);
+	    	File file = write("large.js", text);
+	    	assertNull(cache.get(file, file.lastModified(), file.length(), ContentEncoding.GZIP, null));
+
+	    	CompressedContent variant = null;
+	    	for (int i = 0; i < 100 && variant == null; i++) {
+	    		Thread.sleep(50);
+	    		variant = cache.get(file, file.lastModified(), file.length(), ContentEncoding.GZIP, null);
+	    	}
+	    	assertNotNull(variant);
+	    	assertEquals(new String(text), new String(decode(new GZIPInputStream(new ByteArrayInputStream(variant.body())))));
+	    }
+
+	    private static CompressedContent get(CompressedVariantCache cache, File file) {
+	    	return cache.get(file, file.lastModified(), file.length(), ContentEncoding.GZIP, null);
+	    }
+
+	    /**
+	     * @return repetitive markup, compressible like real pages
+	     */
+	    private static byte[] text(int size) {
+	    	StringBuilder sb = new StringBuilder(size);
+	    	for (int i = 0; sb.length() < size; i++) {
+	    		sb.append("<p class=\"row\">line ").append(i).append("</p>\n");
+	    	}
+	    	sb.setLength(size);
+	    	return sb.toString().getBytes();
+	    }
+
+	    private static byte[] letters(int size, long seed) {
+	    	Random random = new Random(seed);
+	    	byte[] letters = new byte[size];
+	    	for (int i = 0; i < size; i++) {
+	    		letters[i] = (byte) ('a' + random.nextInt(26));
+	    	}
+	    	return letters;
+	    }
+
+	    private static byte[] decode(InputStream in) throws IOException {
+	    	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	    	byte[] buf = new byte[4096];
+	    	int n;
+	    	while ((n = in.read(buf)) > 0) {
+	    		out.write(buf, 0, n);
+	    	}
+	    	in.close();
+	    	return out.toByteArray();
+	    }
+
+	    private File write(String name, byte[] content) throws IOException {
+	    	File file = new File(dir, name);
+	    	FileOutputStream out = new FileOutputStream(file);
+	    	try {
+	    		out.write(content);
+	    	} finally {
+	    		out.close();
+	    	}
+	    	return file;
+	    }
+}
@@ -0,0 +1,149 @@
+package com.adobe.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * @author rbajaj
+ * Unit tests of the static content cache
+ */
+public class ContentCacheTest extends TestCase {
+	
+	    private File dir;
+	    
+	    public ContentCacheTest(String testName) {
+	        super(testName);
+	    }
+
+	    public static Test suite() {
+	        return new TestSuite(ContentCacheTest.class);
+	    }
+	    
+	    public void setUp() throws IOException {
+	    	dir = File.createTempFile("cache", "");
+	    	dir.delete();
+	    	dir.mkdir();
+	    }
+	    
+	    public void tearDown() {
+	    	for (File f : dir.listFiles()) {
+	    		f.delete();
+	    	}
+	    	dir.delete();
+	    }
+	    
+	    /**
+	     * Cache test - Verify the second request is a hit returning the same body
+	     */
+	    public void testHitAndMissCounters() throws IOException {
+	    	ContentCache cache = new ContentCache(1024 * 1024, 64 * 1024);
+	    	File file = write("a.html", 100);
+	    	
+	    	CachedContent first = get(cache, file);
+	    	CachedContent second = get(cache, file);
+	    	
+	    	assertNotNull(first);
+	    	assertSame(first, second);
+	    	assertEquals(1, cache.getMissCount());
+	    	assertEquals(1, cache.getHitCount());
+	    	assertEquals(1, cache.size());
+	    	assertEquals(100, cache.weightedSize());
+	    }
+	    
+	    /**
+	     * Cache test - Verify a changed file is read again
+	     */
+	    public void testInvalidatesOnChange() throws IOException {
+	    	ContentCache cache = new ContentCache(1024 * 1024, 64 * 1024);
+	    	File file = write("a.html", 100);
+	    	get(cache, file);
+	    	
+	    	write("a.html", 200);
+	    	CachedContent content = get(cache, file);
+	    	
+	    	assertEquals(200, content.length());
+	    	assertTrue(Arrays.equals(content(200), content.body()));
+	    	assertEquals(2, cache.getMissCount());
+	    	assertEquals(200, cache.weightedSize());
+	    }
+	    
+	    /**
+	     * Cache test - Verify deleted, missing and oversized files are not served from memory
+	     */
+	    public void testMissingAndLargeFiles() throws IOException {
+	    	ContentCache cache = new ContentCache(1024 * 1024, 1024);
+	    	File file = write("a.html", 100);
+	    	assertNotNull(get(cache, file));
+	    	
+	    	file.delete();
+	    	assertNull(get(cache, file));
+	    	assertEquals(0, cache.size());
+	    	
+	    	assertNull(get(cache, write("big.bin", 2048)));
+	    	assertNull(get(cache, new File(dir, "nosuchfile.html")));
+	    	assertEquals(0, cache.weightedSize());
+	    }
+	    
+	    /**
+	     * Cache test - Verify one-off requests cannot push out a hot file while a
+	     * repeatedly requested file is admitted by evicting cold entries
+	     */
+	    public void testFrequencyAwareAdmissionAndEviction() throws IOException {
+	    	ContentCache cache = new ContentCache(10 * 1024, 10 * 1024);
+	    	File hot = write("hot.html", 1024);
+	    	for (int i = 0; i < 10; i++) {
+	    		get(cache, hot);
+	    	}
+	    	for (int i = 0; i < 30; i++) {
+	    		get(cache, write("cold" + i + ".html", 1024));
+	    	}
+	    	assertTrue(cache.weightedSize() <= 10 * 1024);
+	    	assertEquals(0, cache.getEvictionCount());
+	    	
+	    	File popular = write("popular.html", 1024);
+	    	get(cache, popular);
+	    	get(cache, popular);
+	    	long hits = cache.getHitCount();
+	    	get(cache, popular);
+	    	
+	    	assertEquals(hits + 1, cache.getHitCount());
+	    	assertEquals(1, cache.getEvictionCount());
+	    	
+	    	hits = cache.getHitCount();
+	    	get(cache, hot);
+	    	assertEquals(hits + 1, cache.getHitCount());
+	    	assertTrue(cache.weightedSize() <= 10 * 1024);
+	    }
+	    
+	    /**
+	     * Looks the file up with its current mtime and size, as the web root index would
+	     */
+	    private static CachedContent get(ContentCache cache, File file) {
+	    	return cache.get(file, file.lastModified(), file.length());
+	    }
+	    
+	    private File write(String name, int size) throws IOException {
+	    	File file = new File(dir, name);
+	    	FileOutputStream out = new FileOutputStream(file);
+	    	try {
+	    		out.write(content(size));
+	    	} finally {
+	    		out.close();
+	    	}
+	    	return file;
+	    }
+	    
+	    private static byte[] content(int size) {
+	    	byte[] b = new byte[size];
+	    	for (int i = 0; i < size; i++) {
+	    		b[i] = (byte) ('a' + i % 26);
+	    	}
+	    	return b;
+	    }
+}
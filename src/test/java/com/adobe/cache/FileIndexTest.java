@@ -0,0 +1,143 @@
+package com.adobe.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * @author rbajaj
+ * Unit tests of the in-memory web root index
+ */
+public class FileIndexTest extends TestCase {
+	
+	    private File dir;
+	    private FileIndex index;
+	    
+	    public FileIndexTest(String testName) {
+	        super(testName);
+	    }
+
+	    public static Test suite() {
+	        return new TestSuite(FileIndexTest.class);
+	    }
+	    
+	    public void setUp() throws IOException {
+	    	dir = File.createTempFile("index", "");
+	    	dir.delete();
+	    	dir.mkdir();
+	    	new File(dir, "sub").mkdir();
+	    	write("a.html", "hello");
+	    	write("sub/b.css", "body {}");
+	    	index = new FileIndex(dir.getPath(), true, 1000, 1000);
+	    	index.start();
+	    }
+	    
+	    public void tearDown() {
+	    	index.close();
+	    	delete(dir);
+	    }
+	    
+	    /**
+	     * Index test - Verify files are indexed at start and answered without looking at the disk
+	     */
+	    public void testBuild() throws Exception {
+	    	if (!index.isActive()) {
+	    		return;
+	    	}
+	    	assertEquals(2, index.size());
+	    	FileEntry entry = index.get("/sub/b.css");
+	    	assertNotNull(entry);
+	    	assertEquals(7, entry.length());
+	    	assertEquals(new File(dir, "sub/b.css").lastModified(), entry.lastModified());
+	    	assertNotNull(index.get("a.html"));
+	    	assertNotNull(index.get("//sub/./b.css"));
+	    	assertEquals(3, index.getHitCount());
+	    	assertEquals(0, index.getDiskLookupCount());
+	    	assertNull(index.get("/sub"));
+	    }
+	    
+	    /**
+	     * Index test - Verify created and deleted files are picked up from watch events
+	     */
+	    public void testWatch() throws Exception {
+	    	if (!index.isActive()) {
+	    		return;
+	    	}
+	    	assertNull(index.get("/c.js"));
+	    	File created = write("c.js", "var c;");
+	    	awaitPeek("/c.js", true);
+	    	assertEquals(6, index.get("/c.js").length());
+	    	
+	    	new File(dir, "sub/b.css").delete();
+	    	awaitPeek("/sub/b.css", false);
+	    	assertNull(index.get("/sub/b.css"));
+	    	assertTrue(created.exists());
+	    }
+	    
+	    /**
+	     * Index test - Verify repeated requests for a missing file look at the disk once
+	     */
+	    public void testRememberedMiss() throws Exception {
+	    	if (!index.isActive()) {
+	    		return;
+	    	}
+	    	for (int i = 0; i < 10; i++) {
+	    		assertNull(index.get("/missing.html"));
+	    	}
+	    	assertEquals(1, index.getDiskLookupCount());
+	    	assertEquals(9, index.getMissHitCount());
+	    }
+	    
+	    /**
+	     * Index test - Verify a disabled index answers every lookup from disk
+	     */
+	    public void testDisabled() throws Exception {
+	    	FileIndex disabled = new FileIndex(dir.getPath(), false, 1000, 1000);
+	    	disabled.start();
+	    	assertFalse(disabled.isActive());
+	    	assertNotNull(disabled.get("/a.html"));
+	    	assertNull(disabled.get("/missing.html"));
+	    	assertEquals(2, disabled.getDiskLookupCount());
+	    	assertEquals(0, disabled.size());
+	    }
+	    
+	    public void testNormalize() {
+	    	assertEquals("/a/b", FileIndex.normalize("//a/./b"));
+	    	assertEquals("/a.html", FileIndex.normalize("a.html"));
+	    	assertEquals("/", FileIndex.normalize(""));
+	    }
+	    
+	    private void awaitPeek(String url, boolean present) throws InterruptedException {
+	    	for (int i = 0; i < 500 && (index.peek(url) != null) != present; i++) {
+	    		Thread.sleep(10);
+	    	}
+	    	assertEquals(present, index.peek(url) != null);
+	    }
+	    
+	    //written with an old mtime, so the entries are not re-checked as racy
+	    private File write(String name, String content) throws IOException {
+	    	File file = new File(dir, name);
+	    	FileOutputStream out = new FileOutputStream(file);
+	    	try {
+	    		out.write(content.getBytes("US-ASCII"));
+	    	} finally {
+	    		out.close();
+	    	}
+	    	file.setLastModified(System.currentTimeMillis() - 60000);
+	    	return file;
+	    }
+	    
+	    private static void delete(File file) {
+	    	File[] children = file.listFiles();
+	    	if (children != null) {
+	    		for (File child : children) {
+	    			delete(child);
+	    		}
+	    	}
+	    	file.delete();
+	    }
+}
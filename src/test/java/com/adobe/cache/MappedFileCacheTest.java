@@ -0,0 +1,131 @@
+package com.adobe.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * @author rbajaj
+ * Unit tests of the memory mapped serving tier
+ */
+public class MappedFileCacheTest extends TestCase {
+	
+	    private static final int KB = 1024;
+	    private File dir;
+	    
+	    public MappedFileCacheTest(String testName) {
+	        super(testName);
+	    }
+
+	    public static Test suite() {
+	        return new TestSuite(MappedFileCacheTest.class);
+	    }
+	    
+	    public void setUp() throws IOException {
+	    	dir = File.createTempFile("mmap", "");
+	    	dir.delete();
+	    	dir.mkdir();
+	    }
+	    
+	    public void tearDown() {
+	    	for (File f : dir.listFiles()) {
+	    		f.delete();
+	    	}
+	    	dir.delete();
+	    }
+	    
+	    /**
+	     * Mapped tier test - Verify only files inside the size band are mapped
+	     */
+	    public void testSizeBand() throws IOException {
+	    	MappedFileCache cache = new MappedFileCache(10 * KB, 100 * KB, 1024 * KB);
+	    	assertNull(cache.acquire(write("small.bin", 5 * KB, 'a')));
+	    	assertNull(cache.acquire(write("large.bin", 200 * KB, 'b')));
+	    	assertNull(cache.acquire(new File(dir, "nosuchfile.bin")));
+	    	
+	    	MappedContent mapped = cache.acquire(write("medium.bin", 50 * KB, 'c'));
+	    	assertNotNull(mapped);
+	    	assertEquals(50 * KB, mapped.length());
+	    	assertEquals('c', mapped.slice().get(49 * KB));
+	    	mapped.close();
+	    	assertEquals(50 * KB, cache.mappedBytes());
+	    }
+	    
+	    /**
+	     * Mapped tier test - Verify the cap on mapped bytes unmaps the least recently used file
+	     */
+	    public void testCapEvictsLeastRecentlyUsed() throws IOException {
+	    	MappedFileCache cache = new MappedFileCache(KB, 1024 * KB, 250 * KB);
+	    	File a = write("a.bin", 100 * KB, 'a');
+	    	File b = write("b.bin", 100 * KB, 'b');
+	    	File c = write("c.bin", 100 * KB, 'c');
+	    	
+	    	cache.acquire(a).close();
+	    	cache.acquire(b).close();
+	    	cache.acquire(a).close();
+	    	assertEquals(1, cache.getHitCount());
+	    	
+	    	cache.acquire(c).close();
+	    	assertEquals(1, cache.getEvictionCount());
+	    	assertEquals(200 * KB, cache.mappedBytes());
+	    	
+	    	long misses = cache.getMissCount();
+	    	cache.acquire(a).close();
+	    	assertEquals(misses, cache.getMissCount());
+	    	cache.acquire(b).close();
+	    	assertEquals(misses + 1, cache.getMissCount());
+	    	assertTrue(cache.mappedBytes() <= 250 * KB);
+	    }
+	    
+	    /**
+	     * Mapped tier test - Verify an evicted mapping stays readable for the response still holding it
+	     */
+	    public void testEvictedMappingStaysValidWhileAcquired() throws IOException {
+	    	MappedFileCache cache = new MappedFileCache(KB, 1024 * KB, 150 * KB);
+	    	MappedContent a = cache.acquire(write("a.bin", 100 * KB, 'a'));
+	    	cache.acquire(write("b.bin", 100 * KB, 'b')).close();
+	    	assertEquals(1, cache.getEvictionCount());
+	    	
+	    	ByteBuffer slice = a.slice();
+	    	while (slice.hasRemaining()) {
+	    		assertEquals('a', slice.get());
+	    	}
+	    	a.close();
+	    }
+	    
+	    /**
+	     * Mapped tier test - Verify a changed file is mapped again
+	     */
+	    public void testRemapsChangedFile() throws IOException {
+	    	MappedFileCache cache = new MappedFileCache(KB, 1024 * KB, 1024 * KB);
+	    	File file = write("a.bin", 100 * KB, 'a');
+	    	cache.acquire(file).close();
+	    	
+	    	write("a.bin", 120 * KB, 'z');
+	    	MappedContent mapped = cache.acquire(file);
+	    	assertEquals(120 * KB, mapped.length());
+	    	assertEquals('z', mapped.slice().get(0));
+	    	mapped.close();
+	    	assertEquals(2, cache.getMissCount());
+	    	assertEquals(120 * KB, cache.mappedBytes());
+	    }
+	    
+	    private File write(String name, int size, char fill) throws IOException {
+	    	File file = new File(dir, name);
+	    	byte[] content = new byte[size];
+	    	Arrays.fill(content, (byte) fill);
+	    	FileOutputStream out = new FileOutputStream(file);
+	    	try {
+	    		out.write(content);
+	    	} finally {
+	    		out.close();
+	    	}
+	    	return file;
+	    }
+}
@@ -0,0 +1,107 @@
+package com.adobe.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import com.adobe.http.response.ContentEncoding;
+import com.adobe.http.response.Validators;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * @author rbajaj
+ * Unit tests of the ETag and Last-Modified validators
+ */
+public class ValidatorCacheTest extends TestCase {
+
+	    private File dir;
+
+	    public ValidatorCacheTest(String testName) {
+	        super(testName);
+	    }
+
+	    public static Test suite() {
+	        return new TestSuite(ValidatorCacheTest.class);
+	    }
+
+	    public void setUp() throws IOException {
+	    	dir = File.createTempFile("validators", "");
+	    	dir.delete();
+	    	dir.mkdir();
+	    }
+
+	    public void tearDown() {
+	    	for (File f : dir.listFiles()) {
+	    		f.delete();
+	    	}
+	    	dir.delete();
+	    }
+
+	    /**
+	     * Validator test - Verify tags per coding and the Last-Modified date
+	     */
+	    public void testTags() {
+	    	Validators validators = new Validators(784111777000L, 500, null);
+	    	assertEquals("\"b690b434e8-1f4\"", new String(validators.tag(null)));
+	    	assertEquals("\"b690b434e8-1f4-gzip\"", new String(validators.tag(ContentEncoding.GZIP)));
+	    	assertEquals("\"b690b434e8-1f4-deflate\"", new String(validators.tag(ContentEncoding.DEFLATE)));
+	    	assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", new String(validators.lastModifiedDate()));
+	    }
+
+	    /**
+	     * Validator test - Verify validators are kept per file version
+	     */
+	    public void testCachedPerVersion() throws IOException {
+	    	ValidatorCache cache = new ValidatorCache(100, false);
+	    	File file = write("a.html", "first");
+	    	Validators first = cache.get(file, file.lastModified(), file.length(), null);
+	    	assertSame(first, cache.get(file, file.lastModified(), file.length(), null));
+	    	assertEquals(1, cache.getHitCount());
+
+	    	Validators changed = cache.get(file, file.lastModified() + 1000, file.length(), null);
+	    	assertFalse(new String(first.tag(null)).equals(new String(changed.tag(null))));
+	    	assertEquals(2, cache.getMissCount());
+	    	assertEquals(1, cache.size());
+	    }
+
+	    /**
+	     * Validator test - Verify content hashing tags identical content alike whatever its mtime
+	     */
+	    public void testContentHash() throws IOException {
+	    	ValidatorCache cache = new ValidatorCache(100, true);
+	    	File a = write("a.html", "same content");
+	    	File b = write("b.html", "same content");
+	    	File c = write("c.html", "other content");
+	    	Validators va = cache.get(a, 1000, a.length(), null);
+	    	Validators vb = cache.get(b, 2000, b.length(), "same content".getBytes());
+	    	Validators vc = cache.get(c, 1000, c.length(), null);
+	    	assertEquals(new String(va.tag(null)), new String(vb.tag(null)));
+	    	assertFalse(new String(va.tag(null)).equals(new String(vc.tag(null))));
+	    }
+
+	    /**
+	     * Validator test - Verify the entry count stays bounded
+	     */
+	    public void testBounded() throws IOException {
+	    	ValidatorCache cache = new ValidatorCache(2, false);
+	    	for (int i = 0; i < 5; i++) {
+	    		File file = write(i + ".html", "content " + i);
+	    		cache.get(file, file.lastModified(), file.length(), null);
+	    	}
+	    	assertEquals(2, cache.size());
+	    }
+
+	    private File write(String name, String content) throws IOException {
+	    	File file = new File(dir, name);
+	    	FileOutputStream out = new FileOutputStream(file);
+	    	try {
+	    		out.write(content.getBytes("US-ASCII"));
+	    	} finally {
+	    		out.close();
+	    	}
+	    	return file;
+	    }
+}
@@ -0,0 +1,55 @@
+package com.adobe.connection;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * @author rbajaj
+ * Unit tests of the shared buffer free list
+ */
+public class BufferPoolTest extends TestCase {
+
+	    public BufferPoolTest(String testName) {
+	        super(testName);
+	    }
+
+	    public static Test suite() {
+	        return new TestSuite(BufferPoolTest.class);
+	    }
+
+	    /**
+	     * Pool test - Verify a buffer given back is handed out again, cleared
+	     */
+	    public void testReuse() {
+	    	BufferPool pool = new BufferPool(64, 4);
+	    	ByteBuffer buffer = pool.acquire();
+	    	buffer.put(new byte[10]).flip();
+	    	pool.release(buffer);
+	    	assertEquals(1, pool.size());
+	    	ByteBuffer again = pool.acquire();
+	    	assertSame(buffer, again);
+	    	assertEquals(0, again.position());
+	    	assertEquals(64, again.remaining());
+	    	assertEquals(0, pool.size());
+	    	assertEquals(1, pool.getAllocatedCount());
+	    }
+
+	    /**
+	     * Pool test - Verify the pool keeps at most its limit and drops buffers of another size
+	     */
+	    public void testBounded() {
+	    	BufferPool pool = new BufferPool(64, 2);
+	    	ByteBuffer[] buffers = {pool.acquire(), pool.acquire(), pool.acquire()};
+	    	for (ByteBuffer buffer : buffers) {
+	    		pool.release(buffer);
+	    	}
+	    	assertEquals(2, pool.size());
+	    	pool.acquire();
+	    	pool.release(ByteBuffer.allocate(128));
+	    	pool.release(null);
+	    	assertEquals(1, pool.size());
+	    }
+}
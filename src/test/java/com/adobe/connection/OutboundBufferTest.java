@@ -0,0 +1,223 @@
+package com.adobe.connection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * @author rbajaj
+ * Unit tests of response batching in the outbound buffer
+ */
+public class OutboundBufferTest extends TestCase {
+
+	    public OutboundBufferTest(String testName) {
+	        super(testName);
+	    }
+
+	    public static Test suite() {
+	        return new TestSuite(OutboundBufferTest.class);
+	    }
+
+	    /**
+	     * Outbound test - Verify every flush writes when not batching
+	     */
+	    public void testFlushWritesWithoutBatching() throws IOException {
+	    	CountingChannel channel = new CountingChannel();
+	    	OutboundBuffer outbound = new OutboundBuffer(channel);
+	    	for (int i = 0; i < 16; i++) {
+	    		respond(outbound, i);
+	    	}
+	    	assertEquals(16, channel.writes);
+	    }
+
+	    /**
+	     * Outbound test - Verify a batch of small responses leaves in one write, in order
+	     */
+	    public void testBatchedResponsesLeaveTogether() throws IOException {
+	    	CountingChannel channel = new CountingChannel();
+	    	OutboundBuffer outbound = new OutboundBuffer(channel);
+	    	outbound.setBatching(true);
+	    	StringBuilder expected = new StringBuilder();
+	    	for (int i = 0; i < 16; i++) {
+	    		respond(outbound, i);
+	    		expected.append("response ").append(i).append('\n');
+	    	}
+	    	assertEquals(0, channel.writes);
+	    	assertTrue(outbound.drain());
+	    	assertEquals(1, channel.writes);
+	    	assertEquals(expected.toString(), channel.bytes.toString("US-ASCII"));
+	    	assertTrue(outbound.isEmpty());
+	    }
+
+	    /**
+	     * Outbound test - Verify a batch is written early once it passes the threshold
+	     */
+	    public void testBacklogFlushesEarly() throws IOException {
+	    	CountingChannel channel = new CountingChannel();
+	    	OutboundBuffer outbound = new OutboundBuffer(channel);
+	    	outbound.setBatching(true);
+	    	byte[] body = new byte[OutboundBuffer.FLUSH_THRESHOLD / 4];
+	    	for (int i = 0; i < 3; i++) {
+	    		outbound.write(ByteBuffer.wrap(body));
+	    		outbound.flush();
+	    	}
+	    	assertEquals(0, channel.writes);
+	    	outbound.write(ByteBuffer.wrap(body));
+	    	assertTrue(outbound.isBacklogged());
+	    	outbound.flush();
+	    	assertTrue(channel.writes > 0);
+	    	assertTrue(outbound.isEmpty());
+	    	assertFalse(outbound.isBacklogged());
+	    	assertEquals(4 * body.length, channel.bytes.size());
+	    }
+
+	    /**
+	     * Outbound test - Verify headers and a queued body leave in one gathering write
+	     */
+	    public void testHeadersAndBodyGathered() throws IOException {
+	    	GatheringChannel channel = new GatheringChannel(Integer.MAX_VALUE);
+	    	OutboundBuffer outbound = new OutboundBuffer(channel);
+	    	byte[] headers = "HTTP/1.1 200 OK\r\n\r\n".getBytes();
+	    	byte[] body = new byte[40 * 1024];
+	    	Arrays.fill(body, (byte) 'b');
+	    	outbound.write(headers, 0, headers.length);
+	    	outbound.write(ByteBuffer.wrap(body));
+	    	outbound.write(headers, 0, headers.length);
+	    	outbound.flush();
+	    	assertEquals(1, channel.writes);
+	    	assertEquals(2 * headers.length + body.length, channel.bytes.size());
+	    }
+
+	    /**
+	     * Outbound test - Verify order is kept when the channel takes a few bytes per write
+	     */
+	    public void testPartialGatheringWrites() throws IOException {
+	    	GatheringChannel channel = new GatheringChannel(7);
+	    	OutboundBuffer outbound = new OutboundBuffer(channel);
+	    	StringBuilder expected = new StringBuilder();
+	    	for (int i = 0; i < 3; i++) {
+	    		byte[] head = ("head " + i + "|").getBytes();
+	    		byte[] body = new byte[20 * 1024];
+	    		Arrays.fill(body, (byte) ('0' + i));
+	    		outbound.write(head, 0, head.length);
+	    		outbound.write(ByteBuffer.wrap(body));
+	    		expected.append(new String(head)).append(new String(body));
+	    	}
+	    	outbound.flush();
+	    	assertTrue(outbound.isEmpty());
+	    	assertEquals(expected.toString(), channel.bytes.toString("US-ASCII"));
+	    }
+
+	    /**
+	     * Outbound test - Verify a file truncated while it is sent to a
+	     * non-blocking socket fails the drain instead of never completing
+	     */
+	    public void testFileTruncatedDuringTransfer() throws IOException {
+	    	File file = File.createTempFile("truncated", ".bin");
+	    	ServerSocketChannel listener = ServerSocketChannel.open();
+	    	SocketChannel client = null;
+	    	SocketChannel accepted = null;
+	    	RandomAccessFile raf = new RandomAccessFile(file, "rw");
+	    	try {
+	    		int length = 8 * 1024 * 1024;
+	    		raf.setLength(length);
+	    		listener.bind(new InetSocketAddress("127.0.0.1", 0));
+	    		client = SocketChannel.open(listener.getLocalAddress());
+	    		accepted = listener.accept();
+	    		accepted.configureBlocking(false);
+	    		OutboundBuffer outbound = new OutboundBuffer(accepted);
+	    		outbound.transferFile(new RandomAccessFile(file, "r").getChannel(), 0, length);
+	    		//nobody reads: the socket fills up part way through the file
+	    		assertFalse(outbound.drain());
+	    		raf.setLength(0);
+	    		try {
+	    			for (int i = 0; i < 1000; i++) {
+	    				outbound.drain();
+	    			}
+	    			fail("drain kept waiting for a file that shrank");
+	    		} catch (IOException expected) {
+	    			assertTrue(expected.getMessage(), expected.getMessage().contains("truncated"));
+	    		}
+	    		outbound.close();
+	    	} finally {
+	    		raf.close();
+	    		if (client != null) {
+	    			client.close();
+	    		}
+	    		if (accepted != null) {
+	    			accepted.close();
+	    		}
+	    		listener.close();
+	    		file.delete();
+	    	}
+	    }
+
+	    private static void respond(OutboundBuffer outbound, int i) throws IOException {
+	    	byte[] response = ("response " + i + "\n").getBytes();
+	    	outbound.write(response, 0, response.length);
+	    	outbound.flush();
+	    }
+
+	    /**
+	     * Blocking channel that records what it was given and how often
+	     */
+	    private static class CountingChannel implements WritableByteChannel {
+	    	int writes = 0;
+	    	final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+	    	public int write(ByteBuffer src) {
+	    		writes++;
+	    		int n = src.remaining();
+	    		while (src.hasRemaining()) {
+	    			bytes.write(src.get());
+	    		}
+	    		return n;
+	    	}
+
+	    	public boolean isOpen() {
+	    		return true;
+	    	}
+
+	    	public void close() {
+	    	}
+	    }
+
+	    /**
+	     * Blocking gathering channel taking at most maxPerWrite bytes per call
+	     */
+	    private static class GatheringChannel extends CountingChannel implements GatheringByteChannel {
+	    	private final int maxPerWrite;
+
+	    	GatheringChannel(int maxPerWrite) {
+	    		this.maxPerWrite = maxPerWrite;
+	    	}
+
+	    	public long write(ByteBuffer[] srcs, int offset, int length) {
+	    		writes++;
+	    		long n = 0;
+	    		for (int i = offset; i < offset + length && n < maxPerWrite; i++) {
+	    			while (srcs[i].hasRemaining() && n < maxPerWrite) {
+	    				bytes.write(srcs[i].get());
+	    				n++;
+	    			}
+	    		}
+	    		return n;
+	    	}
+
+	    	public long write(ByteBuffer[] srcs) {
+	    		return write(srcs, 0, srcs.length);
+	    	}
+	    }
+}
@@ -0,0 +1,86 @@
+package com.adobe.connection;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * @author rbajaj
+ * Unit tests of the idle timeout wheel
+ */
+public class TimerWheelTest extends TestCase {
+
+	    public TimerWheelTest(String testName) {
+	        super(testName);
+	    }
+
+	    public static Test suite() {
+	        return new TestSuite(TimerWheelTest.class);
+	    }
+
+	    /**
+	     * Wheel test - Verify items expire once their deadline tick has passed, not before
+	     */
+	    public void testExpiresAtDeadline() {
+	    	TimerWheel<String> wheel = new TimerWheel<String>(10, 8, 1000);
+	    	wheel.schedule("a", 1025);
+	    	wheel.schedule("b", 1050);
+	    	List<String> expired = new ArrayList<String>();
+	    	assertEquals(0, wheel.advance(1020, expired));
+	    	assertEquals(1, wheel.advance(1030, expired));
+	    	assertEquals("a", expired.get(0));
+	    	assertEquals(1, wheel.size());
+	    	assertEquals(1, wheel.advance(1050, expired));
+	    	assertEquals("b", expired.get(1));
+	    	assertEquals(0, wheel.size());
+	    }
+
+	    /**
+	     * Wheel test - Verify a cancelled item never expires
+	     */
+	    public void testCancel() {
+	    	TimerWheel<String> wheel = new TimerWheel<String>(10, 8, 1000);
+	    	TimerWheel.Timeout<String> a = wheel.schedule("a", 1020);
+	    	wheel.schedule("b", 1020);
+	    	assertTrue(wheel.cancel(a));
+	    	assertFalse(wheel.cancel(a));
+	    	List<String> expired = new ArrayList<String>();
+	    	assertEquals(1, wheel.advance(1100, expired));
+	    	assertEquals("b", expired.get(0));
+	    }
+
+	    /**
+	     * Wheel test - Verify an item more than one turn ahead waits for its round
+	     */
+	    public void testDeadlineBeyondOneTurn() {
+	    	//8 slots of 10 ms: one turn is 80 ms
+	    	TimerWheel<String> wheel = new TimerWheel<String>(10, 8, 1000);
+	    	wheel.schedule("late", 1250);
+	    	List<String> expired = new ArrayList<String>();
+	    	for (long now = 1010; now < 1250; now += 10) {
+	    		assertEquals(0, wheel.advance(now, expired));
+	    	}
+	    	assertEquals(1, wheel.advance(1250, expired));
+	    }
+
+	    /**
+	     * Wheel test - Verify a clock jump past many turns expires everything due
+	     */
+	    public void testLongPause() {
+	    	TimerWheel<Integer> wheel = new TimerWheel<Integer>(10, 8, 1000);
+	    	for (int i = 1; i <= 20; i++) {
+	    		wheel.schedule(i, 1000 + i * 10);
+	    	}
+	    	wheel.schedule(99, 100000);
+	    	List<Integer> expired = new ArrayList<Integer>();
+	    	assertEquals(20, wheel.advance(5000, expired));
+	    	assertEquals(1, wheel.size());
+	    	//scheduling into the past still waits for the next tick
+	    	wheel.schedule(100, 10);
+	    	assertEquals(0, wheel.advance(5000, expired));
+	    	assertEquals(1, wheel.advance(5010, expired));
+	    }
+}
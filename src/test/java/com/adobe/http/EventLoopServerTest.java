@@ -0,0 +1,528 @@
+package com.adobe.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import com.adobe.logutils.MyLogger;
+import com.adobe.server.ServerMode;
+import com.adobe.server.ServerOptions;
+import com.adobe.server.WebServer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author rbajaj
+ * Integration tests of the selector based NIO server mode
+ */
+public class EventLoopServerTest extends TestCase {
+	
+		Logger log = MyLogger.getLogger(this.getClass().getSimpleName());
+	    private static String host = "127.0.0.1";
+	    private static int port = 50002;
+	    private static boolean running = false;
+	    private static WebServer server = null;
+	    private static String workingDir = null;
+	    
+	    public EventLoopServerTest(String testName) {
+	        super(testName);
+	    }
+
+	    public static Test suite() {
+	        return new TestSuite(EventLoopServerTest.class);
+	    }
+	    
+	    /**
+	     * Starts an instance of WebServer in NIO mode for integration tests.
+	     */
+	    public void setUp() throws Exception {
+	        if (!running) {
+	            log.info("Starting NIO WebServer test instance on port: " + port);
+	            workingDir = System.getProperty("user.dir")+"/root/";
+	            server = new WebServer(port, workingDir, 2, new ServerOptions().mode(ServerMode.NIO));
+	            WebServer.initializeDefaultContent();
+	            new Thread(server).start();
+	            waitForPort();
+	            running = true;
+	        }
+	    }
+	    
+	    /**
+	     * NIO test - Verify GET success
+	     */
+	    public void testGETMethod() throws IOException {
+	    	Socket socket = new Socket(host, port);
+	    	try {
+	    		send(socket, "GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+	    		RawResponse response = RawResponse.read(socket.getInputStream(), true);
+	    		assertEquals(200, response.status);
+	    		assertEquals("Java HTTP Server 1.1", response.headers.get("server"));
+	    		assertEquals("GET, HEAD", response.headers.get("allow"));
+	    		assertTrue(response.body.contains("Web Server Response!!!"));
+	    	} finally {
+	    		socket.close();
+	    	}
+	    }
+	    
+	    /**
+	     * NIO test - Verify HEAD returns headers only
+	     */
+	    public void testHEADMethod() throws IOException {
+	    	Socket socket = new Socket(host, port);
+	    	try {
+	    		send(socket, "HEAD /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+	    		RawResponse response = RawResponse.read(socket.getInputStream(), false);
+	    		assertEquals(200, response.status);
+	    		assertEquals("", response.body);
+	    	} finally {
+	    		socket.close();
+	    	}
+	    }
+	    
+	    /**
+	     * NIO test - Verify 404 and 501 responses
+	     */
+	    public void testErrorResponses() throws IOException {
+	    	Socket socket = new Socket(host, port);
+	    	try {
+	    		send(socket, "GET /nosuchfile.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+	    		RawResponse response = RawResponse.read(socket.getInputStream(), true);
+	    		assertEquals(404, response.status);
+	    		assertEquals("text/html;charset=UTF-8", response.headers.get("content-type"));
+	    		assertEquals("<H2>404 File Not Found: /nosuchfile.html</H2>", response.body);
+	    		
+	    		//the body length was exact, so the connection is still in step
+	    		send(socket, "GET /index2.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+	    		assertEquals(200, RawResponse.read(socket.getInputStream(), true).status);
+	    	} finally {
+	    		socket.close();
+	    	}
+	    	
+	    	socket = new Socket(host, port);
+	    	try {
+	    		send(socket, "POST /index.html HTTP/1.1\r\nHost: localhost\r\nContent-Length: 4\r\n\r\nabcd");
+	    		RawResponse response = RawResponse.read(socket.getInputStream(), true);
+	    		assertEquals(501, response.status);
+	    		
+	    		//request body must have been skipped rather than parsed as a request
+	    		send(socket, "GET /index2.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+	    		response = RawResponse.read(socket.getInputStream(), true);
+	    		assertEquals(200, response.status);
+	    	} finally {
+	    		socket.close();
+	    	}
+	    }
+	    
+	    /**
+	     * NIO Server test - Verify a malformed request head is answered with 400 and the connection closed
+	     */
+	    public void testMalformedRequest() throws IOException {
+	    	Socket socket = new Socket(host, port);
+	    	try {
+	    		send(socket, "GET /index.html HTTP/1.1\r\nNo colon here\r\n\r\n");
+	    		RawResponse response = RawResponse.read(socket.getInputStream(), true);
+	    		assertEquals(400, response.status);
+	    		assertEquals("close", response.headers.get("connection"));
+	    		assertEquals(-1, socket.getInputStream().read());
+	    	} finally {
+	    		socket.close();
+	    	}
+	    }
+	    
+	    /**
+	     * NIO test - Verify a large body sent by non-blocking transferTo arrives
+	     * intact and in order with a following pipelined response
+	     */
+	    public void testGETLargeFile() throws IOException {
+	    	byte[] content = WebServerTest.createLargeFile(server, workingDir, "large-nio.bin", 5 * 1024 * 1024 + 3);
+	    	Socket socket = new Socket(host, port);
+	    	try {
+	    		send(socket, "GET /large-nio.bin HTTP/1.1\r\nHost: localhost\r\n\r\n"
+	    				+ "GET /index2.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+	    		InputStream in = socket.getInputStream();
+	    		RawResponse large = RawResponse.read(in, false);
+	    		assertEquals(String.valueOf(content.length), large.headers.get("content-length"));
+	    		byte[] body = new byte[content.length];
+	    		int off = 0;
+	    		while (off < body.length) {
+	    			int n = in.read(body, off, body.length - off);
+	    			assertTrue(n > 0);
+	    			off += n;
+	    		}
+	    		assertTrue(Arrays.equals(content, body));
+	    		assertTrue(RawResponse.read(in, true).body.contains("Web Server Response 2!!!"));
+	    	} finally {
+	    		socket.close();
+	    	}
+	    }
+	    
+	    /**
+	     * NIO test - Verify two requests written back to back on one connection
+	     */
+	    public void testPipelinedKeepAlive() throws IOException {
+	    	Socket socket = new Socket(host, port);
+	    	try {
+	    		send(socket, "GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n"
+	    				+ "GET /index2.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+	    		InputStream in = socket.getInputStream();
+	    		RawResponse first = RawResponse.read(in, true);
+	    		RawResponse second = RawResponse.read(in, true);
+	    		assertTrue(first.body.contains("Web Server Response!!!"));
+	    		assertTrue(second.body.contains("Web Server Response 2!!!"));
+	    	} finally {
+	    		socket.close();
+	    	}
+	    }
+	    
+	    /**
+	     * NIO test - Verify the connection is closed after "Connection: close"
+	     */
+	    public void testKeepAliveDisabled() throws IOException {
+	    	Socket socket = new Socket(host, port);
+	    	try {
+	    		send(socket, "GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+	    		InputStream in = socket.getInputStream();
+	    		RawResponse response = RawResponse.read(in, true);
+	    		assertEquals(200, response.status);
+	    		assertEquals("close", response.headers.get("connection"));
+	    		assertEquals(-1, in.read());
+	    	} finally {
+	    		socket.close();
+	    	}
+	    }
+	    
+	    private static void send(Socket socket, String request) throws IOException {
+	    	OutputStream out = socket.getOutputStream();
+	    	out.write(request.getBytes("US-ASCII"));
+	    	out.flush();
+	    }
+	    
+	    private static void waitForPort() throws InterruptedException {
+	    	for (int i = 0; i < 50; i++) {
+	    		try {
+	    			new Socket(host, port).close();
+	    			return;
+	    		} catch (IOException e) {
+	    			Thread.sleep(100);
+	    		}
+	    	}
+	    }
+	    
+	    /**
+	     * Minimal HTTP/1.1 response reader for raw socket tests
+	     */
+	    /**
+	     * NIO Server test - Verify a deep pipeline of responses larger than the
+	     * batch threshold is answered completely and in order
+	     */
+	    public void testDeepPipeline() throws IOException {
+	    	byte[] content = WebServerTest.createLargeFile(server, workingDir, "pipeline-nio.bin", 20 * 1024 + 1);
+	    	StringBuilder requests = new StringBuilder();
+	    	for (int i = 0; i < 64; i++) {
+	    		requests.append("GET /pipeline-nio.bin HTTP/1.1\r\nHost: localhost\r\n\r\n");
+	    	}
+	    	requests.append("GET /index2.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+	    	Socket socket = new Socket(host, port);
+	    	try {
+	    		send(socket, requests.toString());
+	    		InputStream in = socket.getInputStream();
+	    		for (int i = 0; i < 64; i++) {
+	    			RawResponse response = RawResponse.read(in, false);
+	    			assertEquals(200, response.status);
+	    			byte[] body = new byte[content.length];
+	    			int off = 0;
+	    			while (off < body.length) {
+	    				int n = in.read(body, off, body.length - off);
+	    				assertTrue(n > 0);
+	    				off += n;
+	    			}
+	    			assertTrue(Arrays.equals(content, body));
+	    		}
+	    		assertTrue(RawResponse.read(in, true).body.contains("Web Server Response 2!!!"));
+	    	} finally {
+	    		socket.close();
+	    	}
+	    }
+	    
+	    /**
+	     * NIO Server test - Verify a text file is sent gzipped to a client accepting
+	     * it and as is to one that does not
+	     */
+	    public void testCompressedResponse() throws IOException {
+	    	StringBuilder page = new StringBuilder();
+	    	for (int i = 0; i < 200; i++) {
+	    		page.append("<p>compressible line ").append(i).append("</p>\n");
+	    	}
+	    	byte[] content = page.toString().getBytes("US-ASCII");
+	    	FileOutputStream out = new FileOutputStream(new File(workingDir, "compress-nio.html"));
+	    	try {
+	    		out.write(content);
+	    	} finally {
+	    		out.close();
+	    	}
+	    	WebServerTest.awaitIndexed(server, new File(workingDir, "compress-nio.html"));
+	    	Socket socket = new Socket(host, port);
+	    	try {
+	    		InputStream in = socket.getInputStream();
+	    		send(socket, "GET /compress-nio.html HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: deflate;q=0.5, gzip\r\n\r\n");
+	    		RawResponse response = RawResponse.read(in, false);
+	    		assertEquals(200, response.status);
+	    		assertEquals("gzip", response.headers.get("content-encoding"));
+	    		assertEquals("Accept-Encoding", response.headers.get("vary"));
+	    		byte[] body = new byte[Integer.parseInt(response.headers.get("content-length"))];
+	    		assertTrue(body.length < content.length);
+	    		int off = 0;
+	    		while (off < body.length) {
+	    			int n = in.read(body, off, body.length - off);
+	    			assertTrue(n > 0);
+	    			off += n;
+	    		}
+	    		GZIPInputStream gunzip = new GZIPInputStream(new ByteArrayInputStream(body));
+	    		ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+	    		int b;
+	    		while ((b = gunzip.read()) != -1) {
+	    			decoded.write(b);
+	    		}
+	    		assertTrue(Arrays.equals(content, decoded.toByteArray()));
+	    		
+	    		send(socket, "GET /compress-nio.html HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip;q=0\r\n\r\n");
+	    		response = RawResponse.read(in, true);
+	    		assertNull(response.headers.get("content-encoding"));
+	    		assertEquals("Accept-Encoding", response.headers.get("vary"));
+	    		assertEquals(page.toString(), response.body);
+	    	} finally {
+	    		socket.close();
+	    	}
+	    }
+	    
+	    /**
+	     * NIO Server test - Verify revalidation with ETag and Last-Modified is
+	     * answered with 304 on a kept alive connection
+	     */
+	    public void testConditionalGET() throws IOException {
+	    	Socket socket = new Socket(host, port);
+	    	try {
+	    		InputStream in = socket.getInputStream();
+	    		send(socket, "GET /index2.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+	    		RawResponse response = RawResponse.read(in, true);
+	    		assertEquals(200, response.status);
+	    		String etag = response.headers.get("etag");
+	    		String lastModified = response.headers.get("last-modified");
+	    		assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+	    		assertNotNull(lastModified);
+	    		
+	    		send(socket, "GET /index2.html HTTP/1.1\r\nHost: localhost\r\nIf-None-Match: \"x\", W/" + etag + "\r\n\r\n");
+	    		response = RawResponse.read(in, false);
+	    		assertEquals(304, response.status);
+	    		assertEquals(etag, response.headers.get("etag"));
+	    		assertNull(response.headers.get("content-length"));
+	    		
+	    		//If-None-Match wins over If-Modified-Since
+	    		send(socket, "GET /index2.html HTTP/1.1\r\nHost: localhost\r\nIf-None-Match: \"x\"\r\nIf-Modified-Since: " + lastModified + "\r\n\r\n");
+	    		assertEquals(200, RawResponse.read(in, true).status);
+	    		
+	    		send(socket, "HEAD /index2.html HTTP/1.1\r\nHost: localhost\r\nIf-Modified-Since: " + lastModified + "\r\n\r\n");
+	    		assertEquals(304, RawResponse.read(in, false).status);
+	    		send(socket, "GET /index2.html HTTP/1.1\r\nHost: localhost\r\nIf-Modified-Since: Sun, 06 Nov 1994 08:49:37 GMT\r\n\r\n");
+	    		response = RawResponse.read(in, true);
+	    		assertEquals(200, response.status);
+	    		assertTrue(response.body.contains("Web Server Response 2!!!"));
+	    	} finally {
+	    		socket.close();
+	    	}
+	    }
+	    
+	    /**
+	     * NIO Server test - Verify a compressed variant has its own ETag and revalidates to 304
+	     */
+	    public void testConditionalGETCompressed() throws IOException {
+	    	StringBuilder page = new StringBuilder();
+	    	for (int i = 0; i < 100; i++) {
+	    		page.append("<p>revalidated line ").append(i).append("</p>\n");
+	    	}
+	    	FileOutputStream out = new FileOutputStream(new File(workingDir, "etag-nio.html"));
+	    	try {
+	    		out.write(page.toString().getBytes("US-ASCII"));
+	    	} finally {
+	    		out.close();
+	    	}
+	    	WebServerTest.awaitIndexed(server, new File(workingDir, "etag-nio.html"));
+	    	Socket socket = new Socket(host, port);
+	    	try {
+	    		InputStream in = socket.getInputStream();
+	    		send(socket, "HEAD /etag-nio.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+	    		String identity = RawResponse.read(in, false).headers.get("etag");
+	    		send(socket, "HEAD /etag-nio.html HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip\r\n\r\n");
+	    		RawResponse response = RawResponse.read(in, false);
+	    		assertEquals("gzip", response.headers.get("content-encoding"));
+	    		String gzip = response.headers.get("etag");
+	    		assertFalse(identity.equals(gzip));
+	    		
+	    		send(socket, "GET /etag-nio.html HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip\r\nIf-None-Match: " + gzip + "\r\n\r\n");
+	    		response = RawResponse.read(in, false);
+	    		assertEquals(304, response.status);
+	    		assertEquals(gzip, response.headers.get("etag"));
+	    		assertEquals("Accept-Encoding", response.headers.get("vary"));
+	    	} finally {
+	    		socket.close();
+	    	}
+	    }
+	    
+	    /**
+	     * NIO Server test - Verify single, multiple and unsatisfiable ranges of a
+	     * file sent by transferTo, on one kept alive connection
+	     */
+	    public void testRangeRequests() throws IOException {
+	    	byte[] content = WebServerTest.createLargeFile(server, workingDir, "range-nio.bin", 300 * 1024 + 5);
+	    	Socket socket = new Socket(host, port);
+	    	try {
+	    		InputStream in = socket.getInputStream();
+	    		send(socket, "GET /range-nio.bin HTTP/1.1\r\nHost: localhost\r\nRange: bytes=100000-199999\r\n\r\n");
+	    		RawResponse response = RawResponse.read(in, false);
+	    		assertEquals(206, response.status);
+	    		assertEquals("bytes 100000-199999/" + content.length, response.headers.get("content-range"));
+	    		assertEquals("bytes", response.headers.get("accept-ranges"));
+	    		assertTrue(Arrays.equals(Arrays.copyOfRange(content, 100000, 200000), readBytes(in, response)));
+	    		
+	    		send(socket, "GET /range-nio.bin HTTP/1.1\r\nHost: localhost\r\nRange: bytes=-10\r\n\r\n");
+	    		response = RawResponse.read(in, false);
+	    		assertEquals(206, response.status);
+	    		assertTrue(Arrays.equals(Arrays.copyOfRange(content, content.length - 10, content.length), readBytes(in, response)));
+	    		
+	    		send(socket, "GET /range-nio.bin HTTP/1.1\r\nHost: localhost\r\nRange: bytes=0-9, 200000-\r\n\r\n");
+	    		response = RawResponse.read(in, false);
+	    		assertEquals(206, response.status);
+	    		String type = response.headers.get("content-type");
+	    		assertTrue(type.startsWith("multipart/byteranges; boundary="));
+	    		String boundary = type.substring(type.indexOf('=') + 1);
+	    		byte[] body = readBytes(in, response);
+	    		String text = new String(body, "ISO-8859-1");
+	    		String first = "\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 0-9/" + content.length + "\r\n\r\n";
+	    		assertTrue(text.startsWith(first));
+	    		assertEquals(new String(content, 0, 10, "ISO-8859-1"), text.substring(first.length(), first.length() + 10));
+	    		String second = "\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 200000-" + (content.length - 1) + "/" + content.length + "\r\n\r\n";
+	    		assertEquals(second, text.substring(first.length() + 10, first.length() + 10 + second.length()));
+	    		String end = "\r\n--" + boundary + "--\r\n";
+	    		assertTrue(text.endsWith(end));
+	    		assertEquals(first.length() + 10 + second.length() + content.length - 200000 + end.length(), body.length);
+	    		
+	    		send(socket, "GET /range-nio.bin HTTP/1.1\r\nHost: localhost\r\nRange: bytes=" + content.length + "-\r\n\r\n");
+	    		response = RawResponse.read(in, true);
+	    		assertEquals(416, response.status);
+	    		assertEquals("bytes */" + content.length, response.headers.get("content-range"));
+	    		
+	    		//a stale If-Range gets the whole file
+	    		send(socket, "GET /range-nio.bin HTTP/1.1\r\nHost: localhost\r\nRange: bytes=0-9\r\nIf-Range: \"old\"\r\n\r\n");
+	    		response = RawResponse.read(in, false);
+	    		assertEquals(200, response.status);
+	    		String etag = response.headers.get("etag");
+	    		assertTrue(Arrays.equals(content, readBytes(in, response)));
+	    		send(socket, "GET /range-nio.bin HTTP/1.1\r\nHost: localhost\r\nRange: bytes=0-9\r\nIf-Range: " + etag + "\r\n\r\n");
+	    		response = RawResponse.read(in, false);
+	    		assertEquals(206, response.status);
+	    		assertTrue(Arrays.equals(Arrays.copyOfRange(content, 0, 10), readBytes(in, response)));
+	    	} finally {
+	    		socket.close();
+	    	}
+	    }
+	    
+	    /**
+	     * Metrics test - Verify the reserved path is answered with counters and
+	     * latency quantiles in Prometheus text format
+	     */
+	    public void testMetrics() throws IOException {
+	    	Socket socket = new Socket(host, port);
+	    	try {
+	    		send(socket, "GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+	    		assertEquals(200, RawResponse.read(socket.getInputStream(), true).status);
+	    		send(socket, "GET /metrics HTTP/1.1\r\nHost: localhost\r\n\r\n");
+	    		RawResponse response = RawResponse.read(socket.getInputStream(), true);
+	    		assertEquals(200, response.status);
+	    		assertEquals("text/plain; version=0.0.4; charset=utf-8", response.headers.get("content-type"));
+	    		assertTrue(response.body, response.body.contains("# TYPE webserver_requests_total counter\n"));
+	    		assertTrue(response.body, response.body.matches("(?s).*\nwebserver_responses_total\\{status=\"200\"\\} [1-9].*"));
+	    		assertTrue(response.body, response.body.matches("(?s).*\nwebserver_connections_active [1-9].*"));
+	    		assertTrue(response.body, response.body.matches("(?s).*\nwebserver_request_duration_seconds\\{quantile=\"0.99\"\\} \\d+\\.\\d{6}\n.*"));
+	    		
+	    		send(socket, "HEAD /metrics HTTP/1.1\r\nHost: localhost\r\n\r\n");
+	    		response = RawResponse.read(socket.getInputStream(), false);
+	    		assertEquals(200, response.status);
+	    	} finally {
+	    		socket.close();
+	    	}
+	    }
+	    
+	    private static byte[] readBytes(InputStream in, RawResponse response) throws IOException {
+	    	byte[] body = new byte[Integer.parseInt(response.headers.get("content-length"))];
+	    	int off = 0;
+	    	while (off < body.length) {
+	    		int n = in.read(body, off, body.length - off);
+	    		assertTrue(n > 0);
+	    		off += n;
+	    	}
+	    	return body;
+	    }
+	    
+	    static class RawResponse {
+	    	int status;
+	    	Map<String, String> headers = new HashMap<String, String>();
+	    	String body = "";
+	    	
+	    	/**
+	    	 * @param in
+	    	 * @param hasBody - false for HEAD and for bodies that should not be trusted
+	    	 * @return the parsed response
+	    	 * @throws IOException
+	    	 */
+	    	static RawResponse read(InputStream in, boolean hasBody) throws IOException {
+	    		RawResponse response = new RawResponse();
+	    		String statusLine = readLine(in);
+	    		response.status = Integer.parseInt(statusLine.split(" ")[1]);
+	    		String line;
+	    		while (!(line = readLine(in)).isEmpty()) {
+	    			int colon = line.indexOf(':');
+	    			response.headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+	    		}
+	    		String length = response.headers.get("content-length");
+	    		if (hasBody && length != null) {
+	    			byte[] body = new byte[Integer.parseInt(length)];
+	    			int off = 0;
+	    			while (off < body.length) {
+	    				int n = in.read(body, off, body.length - off);
+	    				if (n < 0) {
+	    					throw new IOException("Connection closed before end of body");
+	    				}
+	    				off += n;
+	    			}
+	    			response.body = new String(body, "UTF-8");
+	    		}
+	    		return response;
+	    	}
+	    	
+	    	private static String readLine(InputStream in) throws IOException {
+	    		ByteArrayOutputStream line = new ByteArrayOutputStream();
+	    		int b;
+	    		while ((b = in.read()) != '\n') {
+	    			if (b < 0) {
+	    				throw new IOException("Connection closed while reading line");
+	    			}
+	    			if (b != '\r') {
+	    				line.write(b);
+	    			}
+	    		}
+	    		return line.toString("US-ASCII");
+	    	}
+	    }
+}
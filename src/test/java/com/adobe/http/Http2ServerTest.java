@@ -0,0 +1,424 @@
+package com.adobe.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import com.adobe.http.http2.HeaderListener;
+import com.adobe.http.http2.HpackDecoder;
+import com.adobe.http.http2.HpackEncoder;
+import com.adobe.http.http2.Http2Exception;
+import com.adobe.http.http2.Http2Frame;
+import com.adobe.logutils.MyLogger;
+import com.adobe.server.WebServer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author rbajaj
+ * Integration tests of cleartext HTTP/2, spoken by a minimal client built
+ * from the server's own frame and HPACK classes
+ */
+public class Http2ServerTest extends TestCase {
+
+		Logger log = MyLogger.getLogger(this.getClass().getSimpleName());
+	    private static String host = "127.0.0.1";
+	    private static int port = 50007;
+	    private static boolean running = false;
+	    private static WebServer server = null;
+	    private static String workingDir = null;
+	    private static byte[] large = null;
+
+	    public Http2ServerTest(String testName) {
+	        super(testName);
+	    }
+
+	    public static Test suite() {
+	        return new TestSuite(Http2ServerTest.class);
+	    }
+
+	    public void setUp() throws Exception {
+	        if (!running) {
+	            log.info("Starting HTTP/2 WebServer test instance on port: " + port);
+	            workingDir = System.getProperty("user.dir")+"/root/";
+	            server = new WebServer(port, workingDir, 10);
+	            WebServer.initializeDefaultContent();
+	            new Thread(server).start();
+	            Thread.sleep(500);
+	            large = WebServerTest.createLargeFile(server, workingDir, "h2-large.bin", 300000);
+	            running = true;
+	        }
+	    }
+
+	    /**
+	     * HTTP/2 test - A client with prior knowledge gets the server's settings and the file
+	     */
+	    public void testPriorKnowledgeGet() throws IOException {
+	    	H2Client client = new H2Client(false);
+	    	try {
+	    		client.request(1, "GET", "/index.html");
+	    		Response response = client.readResponses(1).get(1);
+	    		assertEquals("200", response.headers.get(":status"));
+	    		assertEquals("text/html", response.headers.get("content-type"));
+	    		assertNull(response.headers.get("connection"));
+	    		String body = new String(response.body.toByteArray(), "UTF-8");
+	    		assertTrue(body.contains("Web Server Response!!!"));
+	    		assertEquals(Integer.toString(body.length()), response.headers.get("content-length"));
+	    		assertTrue(client.serverSettings.containsKey(Http2Frame.SETTINGS_MAX_CONCURRENT_STREAMS));
+	    		assertTrue(client.settingsAcked);
+	    	} finally {
+	    		client.close();
+	    	}
+	    }
+
+	    /**
+	     * HTTP/2 test - Upgrade: h2c is answered with 101, the request itself on stream 1
+	     */
+	    public void testUpgradeFromHttp11() throws IOException {
+	    	H2Client client = new H2Client(true);
+	    	try {
+	    		Response response = client.readResponses(1).get(1);
+	    		assertEquals("200", response.headers.get(":status"));
+	    		assertTrue(new String(response.body.toByteArray(), "UTF-8").contains("Web Server Response 2!!!"));
+
+	    		client.request(3, "GET", "/index.html");
+	    		assertEquals("200", client.readResponses(1).get(3).headers.get(":status"));
+	    	} finally {
+	    		client.close();
+	    	}
+	    }
+
+	    /**
+	     * HTTP/2 test - Small responses are not held up behind a large one requested first
+	     */
+	    public void testMultiplexedStreams() throws IOException {
+	    	H2Client client = new H2Client(false);
+	    	try {
+	    		client.settings(Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE, 1 << 20);
+	    		client.windowUpdate(0, 1 << 20);
+	    		client.request(1, "GET", "/h2-large.bin");
+	    		client.request(3, "GET", "/index.html");
+	    		client.request(5, "HEAD", "/index2.html");
+	    		client.request(7, "GET", "/missing.html");
+	    		Map<Integer, Response> responses = client.readResponses(4);
+
+	    		assertTrue(Arrays.equals(large, responses.get(1).body.toByteArray()));
+	    		assertEquals("200", responses.get(3).headers.get(":status"));
+	    		assertEquals("200", responses.get(5).headers.get(":status"));
+	    		assertEquals(0, responses.get(5).body.size());
+	    		assertEquals("404", responses.get(7).headers.get(":status"));
+	    		//the large file ends last although it was asked for first
+	    		assertEquals(4, responses.get(1).order);
+	    	} finally {
+	    		client.close();
+	    	}
+	    }
+
+	    /**
+	     * HTTP/2 test - DATA stops at the stream window and continues after WINDOW_UPDATE
+	     */
+	    public void testFlowControl() throws IOException {
+	    	H2Client client = new H2Client(false);
+	    	try {
+	    		client.settings(Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE, 1000);
+	    		client.request(1, "GET", "/h2-large.bin");
+	    		Response response = client.responses.get(1);
+	    		while (response == null || response.body.size() < 1000) {
+	    			client.readFrame();
+	    			response = client.responses.get(1);
+	    		}
+	    		assertEquals(1000, response.body.size());
+	    		client.socket.setSoTimeout(300);
+	    		try {
+	    			client.readFrame();
+	    			fail("frame sent beyond the window");
+	    		} catch (SocketTimeoutException expected) {
+	    			//nothing more until the window opens
+	    		}
+	    		client.socket.setSoTimeout(5000);
+
+	    		client.windowUpdate(1, large.length);
+	    		client.windowUpdate(0, large.length);
+	    		client.readResponses(1);
+	    		assertTrue(Arrays.equals(large, response.body.toByteArray()));
+	    	} finally {
+	    		client.close();
+	    	}
+	    }
+
+	    /**
+	     * HTTP/2 test - A request with an upper case field name is reset, the connection stays usable
+	     */
+	    public void testMalformedRequestIsReset() throws IOException {
+	    	H2Client client = new H2Client(false);
+	    	try {
+	    		client.request(1, "GET", "/index.html", "X-Upper", "1");
+	    		Frame frame;
+	    		while ((frame = client.readFrame()).type != Http2Frame.RST_STREAM) {
+	    			assertFalse(frame.type == Http2Frame.HEADERS);
+	    		}
+	    		assertEquals(1, frame.streamId);
+	    		assertEquals(Http2Exception.PROTOCOL_ERROR, Http2Frame.int32(frame.payload, 0));
+
+	    		client.request(3, "GET", "/index.html");
+	    		assertEquals("200", client.readResponses(1).get(3).headers.get(":status"));
+	    	} finally {
+	    		client.close();
+	    	}
+	    }
+
+	    /**
+	     * HTTP/2 test - A small block repeating the index of one large table entry
+	     * decodes to a header list over the limit; it is answered with 431 without
+	     * decoding it into memory, and the connection stays usable
+	     */
+	    public void testRepeatedIndexHeaderListIsRefused() throws IOException {
+	    	H2Client client = new H2Client(false);
+	    	try {
+	    		char[] big = new char[4000];
+	    		Arrays.fill(big, 'a');
+	    		String value = new String(big);
+	    		client.encoder.reset();
+	    		client.encoder.header(":method", "GET");
+	    		client.encoder.header(":scheme", "http");
+	    		client.encoder.header(":path", "/index.html");
+	    		client.encoder.header(":authority", "localhost");
+	    		//the first one enters the dynamic table, every further one is a single index byte
+	    		for (int i = 0; i < 40000; i++) {
+	    			client.encoder.header("x-big", value);
+	    		}
+	    		byte[] block = Arrays.copyOf(client.encoder.buffer(), client.encoder.length());
+	    		assertTrue(block.length < 48 * 1024);
+	    		long allocated = allocatedBytes();
+	    		int frameSize = Http2Frame.DEFAULT_MAX_FRAME_SIZE;
+	    		for (int off = 0; off < block.length; off += frameSize) {
+	    			int end = Math.min(block.length, off + frameSize);
+	    			int flags = (off == 0 ? Http2Frame.FLAG_END_STREAM : 0) | (end == block.length ? Http2Frame.FLAG_END_HEADERS : 0);
+	    			client.frame(off == 0 ? Http2Frame.HEADERS : Http2Frame.CONTINUATION, flags, 1, Arrays.copyOfRange(block, off, end));
+	    		}
+	    		client.responses.put(1, new Response());
+	    		assertEquals("431", client.readResponses(1).get(1).headers.get(":status"));
+	    		//the list decodes to 160 MB, what is kept stays near the 32 KB limit
+	    		assertTrue(allocatedBytes() - allocated < 32 * 1024 * 1024);
+
+	    		client.request(3, "GET", "/index.html");
+	    		assertEquals("200", client.readResponses(1).get(3).headers.get(":status"));
+	    	} finally {
+	    		client.close();
+	    	}
+	    }
+
+	    /**
+	     * HTTP/2 test - PING is answered, a protocol violation ends the connection with GOAWAY
+	     */
+	    public void testPingAndGoAway() throws IOException {
+	    	H2Client client = new H2Client(false);
+	    	try {
+	    		byte[] ping = {1, 2, 3, 4, 5, 6, 7, 8};
+	    		client.frame(Http2Frame.PING, 0, 0, ping);
+	    		Frame frame;
+	    		while ((frame = client.readFrame()).type != Http2Frame.PING) {
+	    			//settings
+	    		}
+	    		assertEquals(Http2Frame.FLAG_ACK, frame.flags);
+	    		assertTrue(Arrays.equals(ping, frame.payload));
+
+	    		client.frame(Http2Frame.DATA, 0, 0, new byte[1]);
+	    		frame = client.readFrame();
+	    		assertEquals(Http2Frame.GOAWAY, frame.type);
+	    		assertEquals(Http2Exception.PROTOCOL_ERROR, Http2Frame.int32(frame.payload, 4));
+	    		assertEquals(-1, client.in.read());
+	    	} finally {
+	    		client.close();
+	    	}
+	    }
+
+	    /**
+	     * @return bytes allocated so far by the live threads of the JVM, the server's included
+	     */
+	    private static long allocatedBytes() {
+	    	com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	    	long total = 0;
+	    	for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+	    		total += Math.max(0, allocated);
+	    	}
+	    	return total;
+	    }
+
+	    /**
+	     * Response collected from HEADERS and DATA frames
+	     */
+	    static final class Response {
+	    	final Map<String, String> headers = new HashMap<String, String>();
+	    	final ByteArrayOutputStream body = new ByteArrayOutputStream();
+	    	boolean ended;
+	    	//position among the responses of the connection, by END_STREAM
+	    	int order;
+	    }
+
+	    static final class Frame {
+	    	int type;
+	    	int flags;
+	    	int streamId;
+	    	byte[] payload;
+	    }
+
+	    /**
+	     * Client end of one HTTP/2 connection
+	     */
+	    static final class H2Client {
+	    	final Socket socket;
+	    	final DataInputStream in;
+	    	final OutputStream out;
+	    	final HpackEncoder encoder = new HpackEncoder();
+	    	final HpackDecoder decoder = new HpackDecoder(Http2Frame.DEFAULT_HEADER_TABLE_SIZE);
+	    	final Map<Integer, Integer> serverSettings = new HashMap<Integer, Integer>();
+	    	final Map<Integer, Response> responses = new HashMap<Integer, Response>();
+	    	boolean settingsAcked;
+	    	int ended;
+
+	    	/**
+	    	 * @param upgrade - start with an HTTP/1.1 request for /index2.html asking for h2c
+	    	 */
+	    	H2Client(boolean upgrade) throws IOException {
+	    		this(new Socket(host, port), upgrade);
+	    	}
+
+	    	/**
+	    	 * @param socket - connected, e.g. a TLS socket that agreed on h2 with ALPN
+	    	 * @param upgrade - start with an HTTP/1.1 request for /index2.html asking for h2c
+	    	 */
+	    	H2Client(Socket socket, boolean upgrade) throws IOException {
+	    		this.socket = socket;
+	    		socket.setSoTimeout(5000);
+	    		in = new DataInputStream(socket.getInputStream());
+	    		out = socket.getOutputStream();
+	    		if (upgrade) {
+	    			out.write(("GET /index2.html HTTP/1.1\r\nHost: localhost\r\nConnection: Upgrade, HTTP2-Settings\r\n"
+	    					+ "Upgrade: h2c\r\nHTTP2-Settings: AAMAAABkAAQAAP__\r\n\r\n").getBytes("US-ASCII"));
+	    			StringBuilder head = new StringBuilder();
+	    			while (!head.toString().endsWith("\r\n\r\n")) {
+	    				head.append((char) in.readUnsignedByte());
+	    			}
+	    			assertTrue(head.toString(), head.toString().startsWith("HTTP/1.1 101 Switching Protocols\r\n"));
+	    			responses.put(1, new Response());
+	    		}
+	    		out.write(Http2Frame.PREFACE);
+	    		settings();
+	    	}
+
+	    	void settings(int... pairs) throws IOException {
+	    		byte[] payload = new byte[pairs.length * 3];
+	    		for (int i = 0; i < pairs.length; i += 2) {
+	    			payload[i * 3] = (byte) (pairs[i] >> 8);
+	    			payload[i * 3 + 1] = (byte) pairs[i];
+	    			Http2Frame.putInt32(payload, i * 3 + 2, pairs[i + 1]);
+	    		}
+	    		frame(Http2Frame.SETTINGS, 0, 0, payload);
+	    	}
+
+	    	void windowUpdate(int streamId, int increment) throws IOException {
+	    		byte[] payload = new byte[4];
+	    		Http2Frame.putInt32(payload, 0, increment);
+	    		frame(Http2Frame.WINDOW_UPDATE, 0, streamId, payload);
+	    	}
+
+	    	/**
+	    	 * Opens a stream with a request without body
+	    	 * @param fields - further name and value pairs
+	    	 */
+	    	void request(int streamId, String method, String path, String... fields) throws IOException {
+	    		encoder.reset();
+	    		encoder.header(":method", method);
+	    		encoder.header(":scheme", "http");
+	    		encoder.header(":path", path);
+	    		encoder.header(":authority", "localhost");
+	    		for (int i = 0; i < fields.length; i += 2) {
+	    			encoder.header(fields[i], fields[i + 1]);
+	    		}
+	    		frame(Http2Frame.HEADERS, Http2Frame.FLAG_END_HEADERS | Http2Frame.FLAG_END_STREAM, streamId,
+	    				Arrays.copyOf(encoder.buffer(), encoder.length()));
+	    		responses.put(streamId, new Response());
+	    	}
+
+	    	void frame(int type, int flags, int streamId, byte[] payload) throws IOException {
+	    		byte[] frame = new byte[Http2Frame.HEADER_LENGTH + payload.length];
+	    		Http2Frame.header(frame, 0, payload.length, type, flags, streamId);
+	    		System.arraycopy(payload, 0, frame, Http2Frame.HEADER_LENGTH, payload.length);
+	    		out.write(frame);
+	    		out.flush();
+	    	}
+
+	    	/**
+	    	 * Reads frames until this many more responses ended
+	    	 */
+	    	Map<Integer, Response> readResponses(int count) throws IOException {
+	    		int until = ended + count;
+	    		while (ended < until) {
+	    			readFrame();
+	    		}
+	    		return responses;
+	    	}
+
+	    	/**
+	    	 * Reads one frame and applies it to the responses
+	    	 */
+	    	Frame readFrame() throws IOException {
+	    		byte[] header = new byte[Http2Frame.HEADER_LENGTH];
+	    		in.readFully(header);
+	    		Frame frame = new Frame();
+	    		frame.type = Http2Frame.type(header, 0);
+	    		frame.flags = Http2Frame.flags(header, 0);
+	    		frame.streamId = Http2Frame.streamId(header, 0);
+	    		frame.payload = new byte[Http2Frame.length(header, 0)];
+	    		in.readFully(frame.payload);
+	    		final Response response = responses.get(frame.streamId);
+	    		switch (frame.type) {
+	    		case Http2Frame.SETTINGS:
+	    			if ((frame.flags & Http2Frame.FLAG_ACK) != 0) {
+	    				settingsAcked = true;
+	    			} else {
+	    				for (int p = 0; p < frame.payload.length; p += 6) {
+	    					serverSettings.put((frame.payload[p] & 0xff) << 8 | (frame.payload[p + 1] & 0xff),
+	    							Http2Frame.int32(frame.payload, p + 2));
+	    				}
+	    				frame(Http2Frame.SETTINGS, Http2Frame.FLAG_ACK, 0, new byte[0]);
+	    			}
+	    			break;
+	    		case Http2Frame.HEADERS:
+	    			assertEquals(Http2Frame.FLAG_END_HEADERS, frame.flags & Http2Frame.FLAG_END_HEADERS);
+	    			decoder.decode(frame.payload, 0, frame.payload.length, new HeaderListener() {
+	    				public void header(String name, String value) {
+	    					response.headers.put(name, value);
+	    				}
+	    			});
+	    			break;
+	    		case Http2Frame.DATA:
+	    			response.body.write(frame.payload);
+	    			break;
+	    		default:
+	    		}
+	    		if ((frame.flags & Http2Frame.FLAG_END_STREAM) != 0
+	    				&& (frame.type == Http2Frame.HEADERS || frame.type == Http2Frame.DATA)) {
+	    			assertFalse(response.ended);
+	    			response.ended = true;
+	    			response.order = ++ended;
+	    		}
+	    		return frame;
+	    	}
+
+	    	void close() throws IOException {
+	    		socket.close();
+	    	}
+	    }
+}
@@ -0,0 +1,442 @@
+package com.adobe.http;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import com.adobe.logutils.MyLogger;
+import com.adobe.metrics.ServerMetrics;
+import com.adobe.proxy.ReverseProxy;
+import com.adobe.server.ServerOptions;
+import com.adobe.server.WebServer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author rbajaj
+ * Integration tests of the proxy routes, against a stub backend started by
+ * the test that answers a few fixed paths and counts what it receives
+ */
+public class ProxyServerTest extends TestCase {
+
+		Logger log = MyLogger.getLogger(this.getClass().getSimpleName());
+	    private static String host = "127.0.0.1";
+	    private static int port = 50009;
+	    private static int backendPort = 50109;
+	    //nothing listens there
+	    private static int downPort = 50110;
+	    private static boolean running = false;
+	    private static WebServer server = null;
+	    private static Backend backend = null;
+
+	    public ProxyServerTest(String testName) {
+	        super(testName);
+	    }
+
+	    public static Test suite() {
+	        return new TestSuite(ProxyServerTest.class);
+	    }
+
+	    public void setUp() throws Exception {
+	        if (!running) {
+	            log.info("Starting proxy WebServer test instance on port: " + port);
+	            backend = new Backend(backendPort);
+	            String workingDir = System.getProperty("user.dir")+"/root/";
+	            ReverseProxy proxy = new ReverseProxy("/api=" + host + ":" + backendPort + ", /down=" + host + ":" + downPort,
+	            		8, 4000, 1000, 1000, 64 * 1024);
+	            server = new WebServer(port, workingDir, 20, new ServerOptions().acceptShards(1).proxy(proxy));
+	            WebServer.initializeDefaultContent();
+	            new Thread(server).start();
+	            Thread.sleep(500);
+	            running = true;
+	        }
+	    }
+
+	    /**
+	     * Proxy test - Longest prefix wins, and a prefix covers whole path segments only
+	     */
+	    public void testRoutes() {
+	    	ReverseProxy proxy = new ReverseProxy("/api=127.0.0.1:1, /api/v2/=127.0.0.1:2, /x=127.0.0.1:1", 1, 1, 1, 1, 1);
+	    	assertEquals(2, proxy.getUpstreams().size());
+	    	assertEquals("127.0.0.1:1", String.valueOf(proxy.route("/api")));
+	    	assertEquals("127.0.0.1:1", String.valueOf(proxy.route("/api/users?id=1")));
+	    	assertEquals("127.0.0.1:1", String.valueOf(proxy.route("/api?x")));
+	    	assertEquals("127.0.0.1:2", String.valueOf(proxy.route("/api/v2/users")));
+	    	assertNull(proxy.route("/apix"));
+	    	assertNull(proxy.route("/index.html"));
+	    	assertFalse(new ReverseProxy("", 1, 1, 1, 1, 1).isEnabled());
+	    	try {
+	    		new ReverseProxy("/api=localhost", 1, 1, 1, 1, 1);
+	    		fail("A route without port must be refused");
+	    	} catch (IllegalArgumentException e) {
+	    		//expected
+	    	}
+	    }
+
+	    /**
+	     * Proxy test - Requests on one client connection reuse one pooled upstream
+	     * connection; hop-by-hop fields stay behind and the client is named in
+	     * X-Forwarded-For. Files outside the routes are still served.
+	     */
+	    public void testKeepAliveUpstream() throws Exception {
+	    	ServerMetrics metrics = server.getMetrics();
+	    	long reused = metrics.getUpstreamReused();
+	    	int connections = backend.connections.get();
+	    	Socket socket = new Socket(host, port);
+	    	try {
+	    		OutputStream out = socket.getOutputStream();
+	    		InputStream in = new BufferedInputStream(socket.getInputStream());
+	    		for (int i = 0; i < 5; i++) {
+	    			out.write(("GET /api/hello?n=" + i + " HTTP/1.1\r\nHost: localhost\r\nConnection: keep-alive, X-Private\r\n"
+	    					+ "X-Private: secret\r\nX-Forwarded-For: 10.0.0.1\r\n\r\n").getBytes("US-ASCII"));
+	    			EventLoopServerTest.RawResponse response = EventLoopServerTest.RawResponse.read(in, true);
+	    			assertEquals(200, response.status);
+	    			assertEquals("hello /api/hello?n=" + i, response.body);
+	    			assertEquals("10.0.0.1, 127.0.0.1", response.headers.get("x-seen-forwarded-for"));
+	    			assertEquals("localhost", response.headers.get("x-seen-host"));
+	    			assertEquals("none", response.headers.get("x-seen-private"));
+	    		}
+	    		out.write("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+	    		EventLoopServerTest.RawResponse response = EventLoopServerTest.RawResponse.read(in, true);
+	    		assertEquals(200, response.status);
+	    		assertTrue(response.body.contains("Web Server Response!!!"));
+	    		out.write("GET /apix HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+	    		assertEquals(404, EventLoopServerTest.RawResponse.read(in, true).status);
+	    	} finally {
+	    		socket.close();
+	    	}
+	    	assertTrue(backend.connections.get() - connections <= 1);
+	    	assertTrue(metrics.getUpstreamReused() - reused >= 4);
+	    }
+
+	    /**
+	     * Proxy test - A large body streams through with its length, and the
+	     * connection serves a HEAD and another request after it
+	     */
+	    public void testLargeBodyAndHead() throws Exception {
+	    	Socket socket = new Socket(host, port);
+	    	try {
+	    		OutputStream out = socket.getOutputStream();
+	    		InputStream in = new BufferedInputStream(socket.getInputStream());
+	    		out.write("GET /api/large HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+	    		EventLoopServerTest.RawResponse response = EventLoopServerTest.RawResponse.read(in, true);
+	    		assertEquals(200, response.status);
+	    		assertEquals(Backend.large(), response.body);
+	    		out.write("HEAD /api/large HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+	    		response = EventLoopServerTest.RawResponse.read(in, false);
+	    		assertEquals(200, response.status);
+	    		assertEquals(String.valueOf(Backend.LARGE_SIZE), response.headers.get("content-length"));
+	    		out.write("GET /api/hello HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+	    		response = EventLoopServerTest.RawResponse.read(in, true);
+	    		assertEquals("hello /api/hello", response.body);
+	    	} finally {
+	    		socket.close();
+	    	}
+	    }
+
+	    /**
+	     * Proxy test - A chunked upstream body is chunked again for HTTP/1.1
+	     * clients and sent until the connection closes to HTTP/1.0 clients
+	     */
+	    public void testChunkedBody() throws Exception {
+	    	HttpURLConnection connection = (HttpURLConnection) new URL("http://" + host + ":" + port + "/api/chunked").openConnection();
+	    	assertEquals(200, connection.getResponseCode());
+	    	assertEquals("chunked", connection.getHeaderField("Transfer-Encoding"));
+	    	assertEquals("part1part2part3", new String(readAll(connection.getInputStream()), "US-ASCII"));
+
+	    	Socket socket = new Socket(host, port);
+	    	try {
+	    		socket.getOutputStream().write("GET /api/chunked HTTP/1.0\r\n\r\n".getBytes("US-ASCII"));
+	    		String response = new String(readAll(socket.getInputStream()), "US-ASCII");
+	    		assertTrue(response.startsWith("HTTP/1.1 200"));
+	    		assertTrue(response.contains("Connection: close\r\n"));
+	    		assertFalse(response.contains("Transfer-Encoding"));
+	    		assertTrue(response.endsWith("\r\n\r\npart1part2part3"));
+	    	} finally {
+	    		socket.close();
+	    	}
+	    }
+
+	    /**
+	     * Proxy test - A request body is forwarded, also one the client sends
+	     * only after 100 Continue, and the connection goes on after it
+	     */
+	    public void testPostBody() throws Exception {
+	    	Socket socket = new Socket(host, port);
+	    	try {
+	    		OutputStream out = socket.getOutputStream();
+	    		InputStream in = new BufferedInputStream(socket.getInputStream());
+	    		out.write("POST /api/echo HTTP/1.1\r\nHost: localhost\r\nContent-Length: 11\r\n\r\nhello world".getBytes("US-ASCII"));
+	    		EventLoopServerTest.RawResponse response = EventLoopServerTest.RawResponse.read(in, true);
+	    		assertEquals(200, response.status);
+	    		assertEquals("hello world", response.body);
+
+	    		out.write("PUT /api/echo HTTP/1.1\r\nHost: localhost\r\nContent-Length: 7\r\nExpect: 100-continue\r\n\r\n".getBytes("US-ASCII"));
+	    		EventLoopServerTest.RawResponse interim = EventLoopServerTest.RawResponse.read(in, false);
+	    		assertEquals(100, interim.status);
+	    		out.write("payload".getBytes("US-ASCII"));
+	    		response = EventLoopServerTest.RawResponse.read(in, true);
+	    		assertEquals(200, response.status);
+	    		assertEquals("payload", response.body);
+
+	    		out.write("GET /api/hello HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+	    		assertEquals("hello /api/hello", EventLoopServerTest.RawResponse.read(in, true).body);
+	    	} finally {
+	    		socket.close();
+	    	}
+	    }
+
+	    /**
+	     * Proxy test - Concurrent identical GETs reach the backend once and all
+	     * get its response
+	     */
+	    public void testCollapsedGets() throws Exception {
+	    	ServerMetrics metrics = server.getMetrics();
+	    	long collapsed = metrics.getProxyCollapsed();
+	    	final int clients = 5;
+	    	final CountDownLatch start = new CountDownLatch(1);
+	    	final CountDownLatch done = new CountDownLatch(clients);
+	    	final AtomicInteger answered = new AtomicInteger();
+	    	for (int i = 0; i < clients; i++) {
+	    		new Thread(new Runnable() {
+	    			public void run() {
+	    				try {
+	    					start.await();
+	    					HttpURLConnection connection = (HttpURLConnection) new URL("http://" + host + ":" + port + "/api/slow").openConnection();
+	    					if (connection.getResponseCode() == 200
+	    							&& "slow".equals(new String(readAll(connection.getInputStream()), "US-ASCII"))) {
+	    						answered.incrementAndGet();
+	    					}
+	    				} catch (Exception e) {
+	    					log.error("Collapsed request failed: " + e);
+	    				} finally {
+	    					done.countDown();
+	    				}
+	    			}
+	    		}).start();
+	    	}
+	    	start.countDown();
+	    	done.await();
+	    	assertEquals(clients, answered.get());
+	    	assertEquals(1, backend.requests("/api/slow"));
+	    	assertEquals(clients - 1, metrics.getProxyCollapsed() - collapsed);
+	    }
+
+	    /**
+	     * Proxy test - A pooled connection the backend closed is evicted and the
+	     * request goes over another one
+	     */
+	    public void testEvictClosedConnection() throws Exception {
+	    	ServerMetrics metrics = server.getMetrics();
+	    	Socket socket = new Socket(host, port);
+	    	try {
+	    		OutputStream out = socket.getOutputStream();
+	    		InputStream in = new BufferedInputStream(socket.getInputStream());
+	    		out.write("GET /api/bye HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+	    		assertEquals("bye", EventLoopServerTest.RawResponse.read(in, true).body);
+	    		Thread.sleep(200);
+	    		long evicted = metrics.getUpstreamEvicted();
+	    		out.write("GET /api/hello HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+	    		EventLoopServerTest.RawResponse response = EventLoopServerTest.RawResponse.read(in, true);
+	    		assertEquals(200, response.status);
+	    		assertEquals("hello /api/hello", response.body);
+	    		assertTrue(metrics.getUpstreamEvicted() > evicted);
+	    	} finally {
+	    		socket.close();
+	    	}
+	    }
+
+	    /**
+	     * Proxy test - 502 when the upstream is down, 504 when it does not answer in time
+	     */
+	    public void testUpstreamFailures() throws Exception {
+	    	ServerMetrics metrics = server.getMetrics();
+	    	long failed = metrics.getProxyFailed();
+	    	Socket socket = new Socket(host, port);
+	    	try {
+	    		OutputStream out = socket.getOutputStream();
+	    		InputStream in = new BufferedInputStream(socket.getInputStream());
+	    		out.write("GET /down/x HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+	    		assertEquals(502, EventLoopServerTest.RawResponse.read(in, true).status);
+	    		out.write("GET /api/stall HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+	    		assertEquals(504, EventLoopServerTest.RawResponse.read(in, true).status);
+	    		out.write("GET /api/hello HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+	    		assertEquals(200, EventLoopServerTest.RawResponse.read(in, true).status);
+	    	} finally {
+	    		socket.close();
+	    	}
+	    	assertEquals(2, metrics.getProxyFailed() - failed);
+	    }
+
+	    private static byte[] readAll(InputStream in) throws IOException {
+	    	ByteArrayOutputStream all = new ByteArrayOutputStream();
+	    	byte[] b = new byte[8192];
+	    	int n;
+	    	while ((n = in.read(b)) > 0) {
+	    		all.write(b, 0, n);
+	    	}
+	    	in.close();
+	    	return all.toByteArray();
+	    }
+
+	    /**
+	     * Stub backend: keep-alive HTTP/1.1 on a thread per connection
+	     */
+	    static class Backend implements Runnable {
+	    	static final int LARGE_SIZE = 1024 * 1024 + 17;
+	    	final ServerSocket listener;
+	    	final AtomicInteger connections = new AtomicInteger();
+	    	final Map<String, AtomicInteger> paths = new ConcurrentHashMap<String, AtomicInteger>();
+
+	    	Backend(int port) throws IOException {
+	    		listener = new ServerSocket(port, 50, InetAddress.getByName(host));
+	    		Thread acceptor = new Thread(this);
+	    		acceptor.setDaemon(true);
+	    		acceptor.start();
+	    	}
+
+	    	static String large() {
+	    		StringBuilder body = new StringBuilder(LARGE_SIZE);
+	    		for (int i = 0; i < LARGE_SIZE; i++) {
+	    			body.append((char) ('a' + i % 26));
+	    		}
+	    		return body.toString();
+	    	}
+
+	    	int requests(String path) {
+	    		AtomicInteger count = paths.get(path);
+	    		return count != null ? count.get() : 0;
+	    	}
+
+	    	public void run() {
+	    		while (true) {
+	    			try {
+	    				final Socket socket = listener.accept();
+	    				connections.incrementAndGet();
+	    				Thread worker = new Thread(new Runnable() {
+	    					public void run() {
+	    						serve(socket);
+	    					}
+	    				});
+	    				worker.setDaemon(true);
+	    				worker.start();
+	    			} catch (IOException e) {
+	    				return;
+	    			}
+	    		}
+	    	}
+
+	    	private void serve(Socket socket) {
+	    		try {
+	    			InputStream in = new BufferedInputStream(socket.getInputStream());
+	    			OutputStream out = socket.getOutputStream();
+	    			while (true) {
+	    				String requestLine = readLine(in);
+	    				if (requestLine == null) {
+	    					break;
+	    				}
+	    				String[] parts = requestLine.split(" ");
+	    				Map<String, String> headers = new HashMap<String, String>();
+	    				String line;
+	    				while (!(line = readLine(in)).isEmpty()) {
+	    					int colon = line.indexOf(':');
+	    					headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+	    				}
+	    				byte[] body = new byte[headers.containsKey("content-length") ? Integer.parseInt(headers.get("content-length")) : 0];
+	    				for (int off = 0; off < body.length;) {
+	    					off += in.read(body, off, body.length - off);
+	    				}
+	    				String path = parts[1];
+	    				String pathOnly = path.indexOf('?') < 0 ? path : path.substring(0, path.indexOf('?'));
+	    				paths.putIfAbsent(pathOnly, new AtomicInteger());
+	    				paths.get(pathOnly).incrementAndGet();
+	    				boolean head = parts[0].equals("HEAD");
+	    				if (pathOnly.equals("/api/hello")) {
+	    					String extra = "X-Seen-Forwarded-For: " + headers.get("x-forwarded-for") + "\r\n"
+	    							+ "X-Seen-Host: " + headers.get("host") + "\r\n"
+	    							+ "X-Seen-Private: " + (headers.containsKey("x-private") ? "present" : "none") + "\r\n";
+	    					respond(out, extra, ("hello " + path).getBytes("US-ASCII"), head);
+	    				} else if (pathOnly.equals("/api/large")) {
+	    					respond(out, "", large().getBytes("US-ASCII"), head);
+	    				} else if (pathOnly.equals("/api/echo")) {
+	    					respond(out, "", body, head);
+	    				} else if (pathOnly.equals("/api/slow")) {
+	    					Thread.sleep(500);
+	    					respond(out, "Cache-Control: public, max-age=1\r\n", "slow".getBytes("US-ASCII"), head);
+	    				} else if (pathOnly.equals("/api/stall")) {
+	    					Thread.sleep(1500);
+	    					break;
+	    				} else if (pathOnly.equals("/api/bye")) {
+	    					//keep-alive response, then the backend closes the connection anyway
+	    					respond(out, "", "bye".getBytes("US-ASCII"), head);
+	    					break;
+	    				} else if (pathOnly.equals("/api/chunked")) {
+	    					out.write("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nTransfer-Encoding: chunked\r\n\r\n".getBytes("US-ASCII"));
+	    					for (int i = 1; i <= 3; i++) {
+	    						out.write(("5;ext=1\r\npart" + i + "\r\n").getBytes("US-ASCII"));
+	    						out.flush();
+	    						Thread.sleep(20);
+	    					}
+	    					out.write("0\r\nX-Trailer: x\r\n\r\n".getBytes("US-ASCII"));
+	    					out.flush();
+	    				} else {
+	    					out.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n".getBytes("US-ASCII"));
+	    					out.flush();
+	    				}
+	    			}
+	    		} catch (Exception e) {
+	    			//the proxy closed the connection
+	    		} finally {
+	    			try {
+	    				socket.close();
+	    			} catch (IOException e) {
+	    				//already closed
+	    			}
+	    		}
+	    	}
+
+	    	private static void respond(OutputStream out, String extra, byte[] body, boolean head) throws IOException {
+	    		out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\n" + extra + "Content-Length: " + body.length
+	    				+ "\r\n\r\n").getBytes("US-ASCII"));
+	    		if (!head) {
+	    			out.write(body);
+	    		}
+	    		out.flush();
+	    	}
+
+	    	/**
+	    	 * @return the line without CRLF, null at end of stream before any byte
+	    	 */
+	    	private static String readLine(InputStream in) throws IOException {
+	    		ByteArrayOutputStream line = new ByteArrayOutputStream();
+	    		int b;
+	    		while ((b = in.read()) != '\n') {
+	    			if (b < 0) {
+	    				if (line.size() == 0) {
+	    					return null;
+	    				}
+	    				throw new IOException("Connection closed while reading line");
+	    			}
+	    			if (b != '\r') {
+	    				line.write(b);
+	    			}
+	    		}
+	    		return line.toString("US-ASCII");
+	    	}
+	    }
+}
@@ -0,0 +1,292 @@
+package com.adobe.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URL;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import com.adobe.connection.TlsContext;
+import com.adobe.http.http2.Http2Frame;
+import com.adobe.logutils.MyLogger;
+import com.adobe.metrics.ServerMetrics;
+import com.adobe.server.ServerOptions;
+import com.adobe.server.WebServer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author rbajaj
+ * Integration tests of HTTPS, against a server using a self-signed key
+ * generated with the JDK's keytool
+ */
+public class TlsServerTest extends TestCase {
+
+		Logger log = MyLogger.getLogger(this.getClass().getSimpleName());
+	    private static String host = "127.0.0.1";
+	    private static int port = 50008;
+	    private static final char[] PASSWORD = "changeit".toCharArray();
+	    private static boolean running = false;
+	    private static WebServer server = null;
+	    private static String workingDir = null;
+	    private static KeyStore trusted = null;
+
+	    public TlsServerTest(String testName) {
+	        super(testName);
+	    }
+
+	    public static Test suite() {
+	        return new TestSuite(TlsServerTest.class);
+	    }
+
+	    public void setUp() throws Exception {
+	        if (!running) {
+	            log.info("Starting TLS WebServer test instance on port: " + port);
+	            workingDir = System.getProperty("user.dir")+"/root/";
+	            File keystore = createKeystore(new File(System.getProperty("user.dir"), "tls-test.p12"));
+	            trusted = trustStore(keystore);
+	            TlsContext tls = new TlsContext(TlsContext.load(keystore.getPath(), PASSWORD, "PKCS12"),
+	            		new String[] {"TLSv1.3", "TLSv1.2"}, 100, 300, true);
+	            server = new WebServer(port, workingDir, 10, new ServerOptions().acceptShards(1).tls(tls));
+	            WebServer.initializeDefaultContent();
+	            new Thread(server).start();
+	            Thread.sleep(500);
+	            running = true;
+	        }
+	    }
+
+	    /**
+	     * TLS test - Requests on one kept alive connection, also after it was
+	     * parked on the idle selector between them
+	     */
+	    public void testKeepAliveGet() throws Exception {
+	    	SSLSocket socket = connect(clientContext(), null);
+	    	try {
+	    		OutputStream out = socket.getOutputStream();
+	    		InputStream in = socket.getInputStream();
+	    		out.write("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+	    		EventLoopServerTest.RawResponse response = EventLoopServerTest.RawResponse.read(in, true);
+	    		assertEquals(200, response.status);
+	    		assertTrue(response.body.contains("Web Server Response!!!"));
+	    		Thread.sleep(200);
+	    		out.write("GET /index2.html HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+	    		response = EventLoopServerTest.RawResponse.read(in, true);
+	    		assertEquals(200, response.status);
+	    		assertTrue(response.body.contains("Web Server Response 2!!!"));
+	    	} finally {
+	    		socket.close();
+	    	}
+	    }
+
+	    /**
+	     * TLS test - Pipelined requests in one record are answered in order
+	     */
+	    public void testPipelinedRequests() throws Exception {
+	    	SSLSocket socket = connect(clientContext(), null);
+	    	try {
+	    		StringBuilder requests = new StringBuilder();
+	    		for (int i = 0; i < 10; i++) {
+	    			requests.append("GET /index").append(i % 2 == 0 ? "" : "2").append(".html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+	    		}
+	    		socket.getOutputStream().write(requests.toString().getBytes("US-ASCII"));
+	    		InputStream in = socket.getInputStream();
+	    		for (int i = 0; i < 10; i++) {
+	    			EventLoopServerTest.RawResponse response = EventLoopServerTest.RawResponse.read(in, true);
+	    			assertEquals(200, response.status);
+	    			assertEquals(i % 2 == 0, !response.body.contains("Response 2"));
+	    		}
+	    	} finally {
+	    		socket.close();
+	    	}
+	    }
+
+	    /**
+	     * TLS test - A file sent from disk arrives intact through the record layer
+	     */
+	    public void testLargeFile() throws Exception {
+	    	byte[] content = WebServerTest.createLargeFile(server, workingDir, "tls-large.bin", 300000);
+	    	HttpsURLConnection conn = (HttpsURLConnection) new URL("https://" + host + ":" + port + "/tls-large.bin").openConnection();
+	    	conn.setSSLSocketFactory(clientContext().getSocketFactory());
+	    	assertEquals(200, conn.getResponseCode());
+	    	ByteArrayOutputStream body = new ByteArrayOutputStream();
+	    	InputStream in = conn.getInputStream();
+	    	byte[] buffer = new byte[8192];
+	    	int n;
+	    	while ((n = in.read(buffer)) != -1) {
+	    		body.write(buffer, 0, n);
+	    	}
+	    	in.close();
+	    	assertTrue(Arrays.equals(content, body.toByteArray()));
+	    	conn.disconnect();
+	    }
+
+	    /**
+	     * TLS test - A client that keeps its session resumes it on the next
+	     * connection, with TLS 1.3 tickets and with TLS 1.2 session ids
+	     */
+	    public void testSessionResumption() throws Exception {
+	    	for (String protocol : new String[] {"TLSv1.3", "TLSv1.2"}) {
+	    		SSLContext client = clientContext();
+	    		ServerMetrics metrics = server.getMetrics();
+	    		long full = metrics.getTlsFullHandshakes();
+	    		long resumed = metrics.getTlsResumedHandshakes();
+	    		for (int i = 0; i < 3; i++) {
+	    			SSLSocket socket = connect(client, protocol);
+	    			try {
+	    				socket.getOutputStream().write("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+	    				assertEquals(200, EventLoopServerTest.RawResponse.read(socket.getInputStream(), true).status);
+	    				assertEquals(protocol, socket.getSession().getProtocol());
+	    			} finally {
+	    				socket.close();
+	    			}
+	    		}
+	    		assertEquals(protocol, full + 1, metrics.getTlsFullHandshakes());
+	    		assertEquals(protocol, resumed + 2, metrics.getTlsResumedHandshakes());
+	    	}
+	    }
+
+	    /**
+	     * TLS test - A plaintext request on the TLS port fails the handshake
+	     * and is closed without an answer
+	     */
+	    public void testPlaintextClosed() throws Exception {
+	    	long failed = server.getMetrics().getTlsFailedHandshakes();
+	    	Socket socket = new Socket(host, port);
+	    	try {
+	    		socket.setSoTimeout(5000);
+	    		socket.getOutputStream().write("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+	    		InputStream in = socket.getInputStream();
+	    		byte[] buffer = new byte[1024];
+	    		int n;
+	    		ByteArrayOutputStream answer = new ByteArrayOutputStream();
+	    		try {
+	    			while ((n = in.read(buffer)) != -1) {
+	    				answer.write(buffer, 0, n);
+	    			}
+	    		} catch (IOException e) {
+	    			//reset by the server
+	    		}
+	    		assertFalse(new String(answer.toByteArray(), "ISO-8859-1").contains("HTTP/1.1"));
+	    	} finally {
+	    		socket.close();
+	    	}
+	    	assertEquals(failed + 1, server.getMetrics().getTlsFailedHandshakes());
+	    }
+
+	    /**
+	     * TLS test - A client that agreed on h2 with ALPN speaks HTTP/2 right after the handshake
+	     */
+	    public void testHttp2WithAlpn() throws Exception {
+	    	SSLSocket socket = (SSLSocket) clientContext().getSocketFactory().createSocket(host, port);
+	    	SSLParameters parameters = socket.getSSLParameters();
+	    	parameters.setApplicationProtocols(new String[] {"h2", "http/1.1"});
+	    	socket.setSSLParameters(parameters);
+	    	socket.startHandshake();
+	    	assertEquals("h2", socket.getApplicationProtocol());
+	    	Http2ServerTest.H2Client client = new Http2ServerTest.H2Client(socket, false);
+	    	try {
+	    		client.request(1, "GET", "/index.html");
+	    		client.request(3, "GET", "/missing.html");
+	    		Map<Integer, Http2ServerTest.Response> responses = client.readResponses(2);
+	    		assertEquals("200", responses.get(1).headers.get(":status"));
+	    		assertTrue(new String(responses.get(1).body.toByteArray(), "UTF-8").contains("Web Server Response!!!"));
+	    		assertEquals("404", responses.get(3).headers.get(":status"));
+	    		assertTrue(client.serverSettings.containsKey(Http2Frame.SETTINGS_MAX_CONCURRENT_STREAMS));
+	    	} finally {
+	    		client.close();
+	    	}
+	    }
+
+	    /**
+	     * @param protocol - the only TLS version offered, null for the defaults
+	     * @return a client socket after its handshake
+	     */
+	    private static SSLSocket connect(SSLContext context, String protocol) throws IOException {
+	    	SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(host, port);
+	    	socket.setSoTimeout(5000);
+	    	if (protocol != null) {
+	    		socket.setEnabledProtocols(new String[] {protocol});
+	    	}
+	    	socket.startHandshake();
+	    	return socket;
+	    }
+
+	    /**
+	     * @return a client context trusting the test key, with its own session cache
+	     */
+	    static SSLContext clientContext() throws Exception {
+	    	TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+	    	factory.init(trusted);
+	    	SSLContext context = SSLContext.getInstance("TLS");
+	    	context.init(null, factory.getTrustManagers(), null);
+	    	return context;
+	    }
+
+	    /**
+	     * Generates a self-signed EC key for localhost and 127.0.0.1, unless an earlier run did
+	     * @param keystore - PKCS12 file to write
+	     * @return keystore
+	     */
+	    static File createKeystore(File keystore) throws Exception {
+	    	if (keystore.exists()) {
+	    		return keystore;
+	    	}
+	    	keystore.getParentFile().mkdirs();
+	    	String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+	    	Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "server", "-keyalg", "EC",
+	    			"-keysize", "256", "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+	    			"-validity", "3650", "-storetype", "PKCS12", "-keystore", keystore.getPath(),
+	    			"-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD))
+	    			.redirectErrorStream(true).start();
+	    	ByteArrayOutputStream output = new ByteArrayOutputStream();
+	    	InputStream in = process.getInputStream();
+	    	byte[] buffer = new byte[1024];
+	    	int n;
+	    	while ((n = in.read(buffer)) != -1) {
+	    		output.write(buffer, 0, n);
+	    	}
+	    	assertEquals(output.toString(), 0, process.waitFor());
+	    	return keystore;
+	    }
+
+	    /**
+	     * @return a trust store holding the certificates of keystore
+	     */
+	    static KeyStore trustStore(File keystore) throws Exception {
+	    	KeyStore keys = KeyStore.getInstance("PKCS12");
+	    	InputStream in = new FileInputStream(keystore);
+	    	try {
+	    		keys.load(in, PASSWORD);
+	    	} finally {
+	    		in.close();
+	    	}
+	    	KeyStore trust = KeyStore.getInstance(KeyStore.getDefaultType());
+	    	trust.load(null, null);
+	    	Enumeration<String> aliases = keys.aliases();
+	    	while (aliases.hasMoreElements()) {
+	    		String alias = aliases.nextElement();
+	    		Certificate certificate = keys.getCertificate(alias);
+	    		if (certificate != null) {
+	    			trust.setCertificateEntry(alias, certificate);
+	    		}
+	    	}
+	    	return trust;
+	    }
+}
@@ -0,0 +1,110 @@
+package com.adobe.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import com.adobe.logutils.MyLogger;
+import com.adobe.server.ServerMode;
+import com.adobe.server.ServerOptions;
+import com.adobe.server.WebServer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author rbajaj
+ * Integration tests of the virtual thread per connection mode.
+ * Tests pass trivially when the JDK has no virtual threads (before JDK 21).
+ */
+public class VirtualThreadServerTest extends TestCase {
+	
+		Logger log = MyLogger.getLogger(this.getClass().getSimpleName());
+	    private static String host = "127.0.0.1";
+	    private static int port = 50003;
+	    private static boolean running = false;
+	    
+	    //far more idle keep-alive connections than the threads limit of 2
+	    private static final int IDLE_CONNECTIONS = 200;
+	    
+	    public VirtualThreadServerTest(String testName) {
+	        super(testName);
+	    }
+
+	    public static Test suite() {
+	        return new TestSuite(VirtualThreadServerTest.class);
+	    }
+	    
+	    public void setUp() throws Exception {
+	        if (!running && WebServer.isVirtualThreadSupported()) {
+	            log.info("Starting virtual thread WebServer test instance on port: " + port);
+	            String workingDir = System.getProperty("user.dir")+"/root/";
+	            WebServer ws = new WebServer(port, workingDir, 2, new ServerOptions().mode(ServerMode.VIRTUAL));
+	            WebServer.initializeDefaultContent();
+	            new Thread(ws).start();
+	            Thread.sleep(500);
+	            running = true;
+	        }
+	    }
+	    
+	    /**
+	     * Virtual thread test - Verify a request is served while many idle
+	     * keep-alive connections are held open
+	     */
+	    public void testIdleKeepAliveConnectionsDoNotStarveServer() throws IOException {
+	    	if (!WebServer.isVirtualThreadSupported()) {
+	    		log.info("Virtual threads not supported on " + System.getProperty("java.version") + ", skipping.");
+	    		return;
+	    	}
+	    	List<Socket> idle = new ArrayList<Socket>();
+	    	try {
+	    		for (int i = 0; i < IDLE_CONNECTIONS; i++) {
+	    			Socket socket = new Socket(host, port);
+	    			get(socket, "/index.html");
+	    			idle.add(socket);
+	    		}
+	    		
+	    		Socket socket = new Socket(host, port);
+	    		idle.add(socket);
+	    		socket.setSoTimeout(2000);
+	    		assertTrue(get(socket, "/index2.html").startsWith("HTTP/1.1 200 OK"));
+	    	} finally {
+	    		for (Socket socket : idle) {
+	    			socket.close();
+	    		}
+	    	}
+	    }
+	    
+	    /**
+	     * Sends a GET and reads the status line and headers of the response
+	     */
+	    private static String get(Socket socket, String path) throws IOException {
+	    	OutputStream out = socket.getOutputStream();
+	    	out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes("US-ASCII"));
+	    	out.flush();
+	    	InputStream in = socket.getInputStream();
+	    	StringBuilder head = new StringBuilder();
+	    	int contentLength = 0;
+	    	while (!head.toString().endsWith("\r\n\r\n")) {
+	    		int b = in.read();
+	    		if (b < 0) {
+	    			throw new IOException("Connection closed");
+	    		}
+	    		head.append((char) b);
+	    	}
+	    	for (String line : head.toString().split("\r\n")) {
+	    		if (line.startsWith("Content-Length:")) {
+	    			contentLength = Integer.parseInt(line.substring(15).trim());
+	    		}
+	    	}
+	    	for (int i = 0; i < contentLength; i++) {
+	    		in.read();
+	    	}
+	    	return head.toString();
+	    }
+}
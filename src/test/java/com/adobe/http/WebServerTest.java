@@ -3,16 +3,26 @@ package com.adobe.http;
 import static org.junit.Assert.assertNotEquals;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Random;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.Socket;
 import java.net.URL;
 
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
+import com.adobe.cache.FileEntry;
 import com.adobe.logutils.MyLogger;
+import com.adobe.metrics.ServerMetrics;
+import com.adobe.server.ServerOptions;
 import com.adobe.server.WebServer;
 
 import org.apache.log4j.Logger;
@@ -28,6 +38,7 @@ public class WebServerTest extends TestCase {
 	    private static int port = 50001;
 	    private static boolean running = false;
 	    private static String workingDir = null;
+	    private static WebServer server = null;
 	    
 	    /**
 	     * Creates the test case.
@@ -56,12 +67,31 @@ public class WebServerTest extends TestCase {
 	            workingDir = System.getProperty("user.dir")+"/root/";
 	            log.info("Working directory: " + workingDir);
 	            log.info("Test WebServer Logs: " + System.getProperty("user.dir") + "/logs/");
-	            WebServer ws = new WebServer(port, workingDir, 10);
+	            server = new WebServer(port, workingDir, 10);
 	            WebServer.initializeDefaultContent();
-	            new Thread(ws).start();
+	            new Thread(server).start();
+	            waitForPort();
 	            running = true;
 	        }
 	    }
+	    
+	    /**
+	     * Waits until the test instance accepts connections
+	     */
+	    private static void waitForPort() {
+	    	for (int i = 0; i < 50; i++) {
+	    		try {
+	    			new Socket(host, port).close();
+	    			return;
+	    		} catch (IOException e) {
+	    			try {
+	    				Thread.sleep(100);
+	    			} catch (InterruptedException ie) {
+	    				return;
+	    			}
+	    		}
+	    	}
+	    }
 
 	    /**
 	     * Opens an http connection and returns the response message
@@ -360,6 +390,340 @@ public class WebServerTest extends TestCase {
 	    	
 	    }
 	   	    
+	    /**
+	     * Server test - Verify pipelined requests sent in one write are all answered in order
+	     */
+	    public void testPipelinedRequests() throws IOException {
+	    	StringBuilder requests = new StringBuilder();
+	    	for (int i = 0; i < 16; i++) {
+	    		requests.append("GET /index").append(i % 2 == 0 ? "" : "2").append(".html HTTP/1.1\r\nHost: localhost\r\n");
+	    		requests.append(i == 15 ? "Connection: close\r\n\r\n" : "\r\n");
+	    	}
+	    	Socket socket = new Socket(host, port);
+	    	try {
+	    		socket.getOutputStream().write(requests.toString().getBytes());
+	    		socket.getOutputStream().flush();
+	    		InputStream in = socket.getInputStream();
+	    		for (int i = 0; i < 16; i++) {
+	    			String body = EventLoopServerTest.RawResponse.read(in, true).body;
+	    			assertTrue(body.contains(i % 2 == 0 ? "Web Server Response!!!" : "Web Server Response 2!!!"));
+	    		}
+	    		assertEquals(-1, in.read());
+	    	} finally {
+	    		socket.close();
+	    	}
+	    }
+	    
+	    /**
+	     * Overload test - Verify a full queue is answered with 503 at once and a
+	     * connection that waited too long for a thread gets 503 instead of service
+	     */
+	    public void testOverloadShedding() throws Exception {
+	    	int overloadPort = 50004;
+	    	new Thread(new WebServer(overloadPort, workingDir, 1, new ServerOptions().queue(1, 300))).start();
+	    	for (int i = 0; i < 50; i++) {
+	    		try {
+	    			new Socket(host, overloadPort).close();
+	    			break;
+	    		} catch (IOException e) {
+	    			Thread.sleep(100);
+	    		}
+	    	}
+	    	//the probe connections above hold the only thread for a moment
+	    	Thread.sleep(500);
+	    	
+	    	Socket busy = new Socket(host, overloadPort);
+	    	Socket queued = null;
+	    	Socket rejected = null;
+	    	try {
+	    		//a partial head: the only pool thread now waits for the rest of it
+	    		busy.getOutputStream().write("GET /index.html HTTP/1.1\r\n".getBytes());
+	    		Thread.sleep(100);
+	    		queued = new Socket(host, overloadPort);
+	    		Thread.sleep(100);
+	    		rejected = new Socket(host, overloadPort);
+	    		rejected.setSoTimeout(2000);
+	    		EventLoopServerTest.RawResponse response = EventLoopServerTest.RawResponse.read(rejected.getInputStream(), true);
+	    		assertEquals(503, response.status);
+	    		assertEquals("1", response.headers.get("retry-after"));
+	    		assertEquals("close", response.headers.get("connection"));
+	    		
+	    		//free the thread once the queued connection is past its deadline
+	    		Thread.sleep(400);
+	    		busy.close();
+	    		queued.setSoTimeout(2000);
+	    		assertEquals(503, EventLoopServerTest.RawResponse.read(queued.getInputStream(), true).status);
+	    	} finally {
+	    		busy.close();
+	    		if (queued != null) {
+	    			queued.close();
+	    		}
+	    		if (rejected != null) {
+	    			rejected.close();
+	    		}
+	    	}
+	    }
+	    
+	    /**
+	     * WebServer test - Verify an idle kept alive connection gives its pool
+	     * thread back and is served again when its next request arrives
+	     */
+	    public void testIdleConnectionsReleaseThreads() throws Exception {
+	    	int idlePort = 50005;
+	    	new Thread(new WebServer(idlePort, workingDir, 1, new ServerOptions().queue(16, 2000))).start();
+	    	for (int i = 0; i < 50; i++) {
+	    		try {
+	    			new Socket(host, idlePort).close();
+	    			break;
+	    		} catch (IOException e) {
+	    			Thread.sleep(100);
+	    		}
+	    	}
+	    	byte[] request = "GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes();
+	    	Socket first = new Socket(host, idlePort);
+	    	Socket second = new Socket(host, idlePort);
+	    	try {
+	    		first.setSoTimeout(2000);
+	    		second.setSoTimeout(2000);
+	    		first.getOutputStream().write(request);
+	    		assertEquals(200, EventLoopServerTest.RawResponse.read(first.getInputStream(), true).status);
+	    		//with one thread, the second connection is only served if the first one is parked
+	    		second.getOutputStream().write(request);
+	    		assertEquals(200, EventLoopServerTest.RawResponse.read(second.getInputStream(), true).status);
+	    		first.getOutputStream().write(request);
+	    		assertEquals(200, EventLoopServerTest.RawResponse.read(first.getInputStream(), true).status);
+	    		second.getOutputStream().write(request);
+	    		assertEquals(200, EventLoopServerTest.RawResponse.read(second.getInputStream(), true).status);
+	    	} finally {
+	    		first.close();
+	    		second.close();
+	    	}
+	    }
+	    
+	    /**
+	     * WebServer test - Verify a server with several acceptors on the same
+	     * port serves short lived connections from all of them
+	     */
+	    public void testShardedAcceptors() throws Exception {
+	    	int shardedPort = 50006;
+	    	new Thread(new WebServer(shardedPort, workingDir, 4, new ServerOptions().queue(64, 2000).acceptShards(4))).start();
+	    	for (int i = 0; i < 50; i++) {
+	    		try {
+	    			new Socket(host, shardedPort).close();
+	    			break;
+	    		} catch (IOException e) {
+	    			Thread.sleep(100);
+	    		}
+	    	}
+	    	byte[] request = "GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes();
+	    	for (int i = 0; i < 64; i++) {
+	    		Socket socket = new Socket(host, shardedPort);
+	    		try {
+	    			socket.setSoTimeout(2000);
+	    			socket.getOutputStream().write(request);
+	    			EventLoopServerTest.RawResponse response = EventLoopServerTest.RawResponse.read(socket.getInputStream(), true);
+	    			assertEquals(200, response.status);
+	    			assertEquals("close", response.headers.get("connection"));
+	    		} finally {
+	    			socket.close();
+	    		}
+	    	}
+	    }
+	    
+	    /**
+	     * WebServer test - Verify a second server in the same JVM keeps its own
+	     * metrics and index and leaves those of the running server alone
+	     */
+	    public void testServersKeepOwnState() throws Exception {
+	    	assertEquals(200, sendRequest("GET", "http://" + host + ":" + port + "/index.html", false).getResponseCode());
+	    	ServerMetrics metrics = server.getMetrics();
+	    	long served = awaitResponseCount(metrics, 200, 1);
+	    	int otherPort = 50012;
+	    	WebServer other = new WebServer(otherPort, workingDir, 2);
+	    	new Thread(other).start();
+	    	for (int i = 0; i < 50; i++) {
+	    		try {
+	    			new Socket(host, otherPort).close();
+	    			break;
+	    		} catch (IOException e) {
+	    			Thread.sleep(100);
+	    		}
+	    	}
+	    	assertEquals(200, sendRequest("GET", "http://" + host + ":" + otherPort + "/index.html", false).getResponseCode());
+	    	assertEquals(1, awaitResponseCount(other.getMetrics(), 200, 1));
+	    	assertSame(metrics, server.getMetrics());
+	    	assertEquals(served, metrics.getResponseCount(200));
+	    	assertNotSame(server.getFileIndex(), other.getFileIndex());
+	    	assertTrue(server.getFileIndex().isActive());
+	    }
+	    
+	    /**
+	     * Waits until the response that was just read is counted
+	     * @return responses counted with the status
+	     */
+	    private static long awaitResponseCount(ServerMetrics metrics, int status, long atLeast) throws InterruptedException {
+	    	for (int i = 0; i < 100 && metrics.getResponseCount(status) < atLeast; i++) {
+	    		Thread.sleep(10);
+	    	}
+	    	return metrics.getResponseCount(status);
+	    }
+	    
+	    /**
+	     * WebServer test - Verify the server started from a clean working
+	     * directory logs into a logs directory, not into a file named logs,
+	     * and writes the access log of its default configuration there
+	     */
+	    public void testCleanWorkingDirectory() throws Exception {
+	    	File dir = new File(System.getProperty("java.io.tmpdir"), "webserver-clean-" + System.nanoTime());
+	    	assertTrue(new File(dir, "root").mkdirs());
+	    	FileOutputStream index = new FileOutputStream(new File(dir, "root/index.html"));
+	    	index.write("<html>clean</html>".getBytes("US-ASCII"));
+	    	index.close();
+	    	Process server = startServer(dir, 50011);
+	    	File logs = new File(dir, "logs");
+	    	File accessLog = new File(logs, "access.log");
+	    	try {
+	    		File serverLog = new File(logs, "WebServer.log");
+	    		for (int i = 0; i < 100 && serverLog.length() == 0; i++) {
+	    			Thread.sleep(100);
+	    		}
+	    		assertTrue(logs.isDirectory());
+	    		assertTrue(serverLog.length() > 0);
+	    		HttpURLConnection conn = sendRequest("GET", "http://" + host + ":50011/index.html", false);
+	    		assertEquals(200, conn.getResponseCode());
+	    		assertEquals("<html>clean</html>", getResponseBody(conn));
+	    	} finally {
+	    		//the shutdown hook of the access log writes what is queued and trims the file
+	    		server.destroy();
+	    		server.waitFor();
+	    	}
+	    	try {
+	    		byte[] content = java.nio.file.Files.readAllBytes(accessLog.toPath());
+	    		String text = new String(content, "US-ASCII");
+	    		assertTrue(text, text.startsWith("127.0.0.1 - - ["));
+	    		assertTrue(text, text.contains("\"GET /index.html HTTP/1.1\" 200 18 "));
+	    		assertEquals('\n', text.charAt(text.length() - 1));
+	    	} finally {
+	    		deleteTree(dir);
+	    	}
+	    }
+	    
+	    /**
+	     * Starts WebServer.main in its own JVM with the given working directory
+	     * and waits until it accepts connections
+	     */
+	    static Process startServer(File dir, int serverPort) throws Exception {
+	    	Process server = new ProcessBuilder(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+	    			"-cp", System.getProperty("java.class.path"), WebServer.class.getName(), String.valueOf(serverPort), "root", "2")
+	    			.directory(dir).redirectErrorStream(true).redirectOutput(new File(dir, "server.out")).start();
+	    	for (int i = 0; i < 100; i++) {
+	    		try {
+	    			new Socket(host, serverPort).close();
+	    			return server;
+	    		} catch (IOException e) {
+	    			Thread.sleep(100);
+	    		}
+	    	}
+	    	server.destroy();
+	    	fail("Server in " + dir + " did not start");
+	    	return null;
+	    }
+	    
+	    static void deleteTree(File file) {
+	    	File[] children = file.listFiles();
+	    	if (children != null) {
+	    		for (File child : children) {
+	    			deleteTree(child);
+	    		}
+	    	}
+	    	file.delete();
+	    }
+	    
+	    /**
+	     * WebServer test - Verify a body above the coalescing limit is sent intact
+	     * through the zero-copy transfer path
+	     * Test requires a running WebServer instance
+	     */
+	    public void testGETLargeFile() throws IOException {
+	    	log.info("Test GET Method, large file");
+	    	byte[] content = createLargeFile(server, workingDir, "large.bin", 3 * 1024 * 1024 + 17);
+	    	HttpURLConnection conn = sendRequest("GET", "http://" + host + ":" + port + "/large.bin");
+	    	
+	    	assertEquals(200, conn.getResponseCode());
+	    	assertEquals(String.valueOf(content.length), conn.getHeaderField("Content-Length"));
+	    	
+	    	ByteArrayOutputStream body = new ByteArrayOutputStream();
+	    	InputStream in = conn.getInputStream();
+	    	byte[] buffer = new byte[8192];
+	    	int n;
+	    	while ((n = in.read(buffer)) != -1) {
+	    		body.write(buffer, 0, n);
+	    	}
+	    	in.close();
+	    	assertTrue(Arrays.equals(content, body.toByteArray()));
+	    	
+	    	conn.disconnect();
+	    }
+	    
+	    /**
+	     * WebServer test - Verify a range of a cached file is answered with 206
+	     */
+	    public void testGETRange() throws IOException {
+	    	HttpURLConnection conn = sendRequest("GET", "http://" + host + ":" + port + "/index.html");
+	    	conn.setRequestProperty("Range", "bytes=68-90");
+	    	
+	    	assertEquals(206, conn.getResponseCode());
+	    	assertEquals("bytes", conn.getHeaderField("Accept-Ranges"));
+	    	assertEquals("23", conn.getHeaderField("Content-Length"));
+	    	assertTrue(conn.getHeaderField("Content-Range").startsWith("bytes 68-90/"));
+	    	
+	    	BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream()));
+	    	assertEquals("Web Server Response!!!<", in.readLine());
+	    	in.close();
+	    	conn.disconnect();
+	    }
+	    
+	    /**
+	     * Writes a file of pseudo random bytes into the web root
+	     * 
+	     * @param root web root directory
+	     * @param name file name
+	     * @param size file size
+	     * @return the file content
+	     */
+	    static byte[] createLargeFile(WebServer server, String root, String name, int size) throws IOException {
+	    	byte[] content = new byte[size];
+	    	new Random(size).nextBytes(content);
+	    	FileOutputStream out = new FileOutputStream(new File(root, name));
+	    	try {
+	    		out.write(content);
+	    	} finally {
+	    		out.close();
+	    	}
+	    	awaitIndexed(server, new File(root, name));
+	    	return content;
+	    }
+	    
+	    /**
+	     * Waits until the web root index of a server has seen the latest write
+	     * of a file, which it learns from its watch service shortly after the write
+	     * @param server
+	     * @param file file in the web root
+	     */
+	    static void awaitIndexed(WebServer server, File file) {
+	    	for (int i = 0; i < 200 && server.getFileIndex().isActive(); i++) {
+	    		FileEntry entry = server.getFileIndex().peek("/" + file.getName());
+	    		if (entry != null && entry.lastModified() == file.lastModified() && entry.length() == file.length()) {
+	    			return;
+	    		}
+	    		try {
+	    			Thread.sleep(10);
+	    		} catch (InterruptedException e) {
+	    			return;
+	    		}
+	    	}
+	    }
+	   	    
 	    /**
 	     * Extracts the response body from an open url connection
 	     * 
@@ -0,0 +1,161 @@
+package com.adobe.http.http2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * @author rbajaj
+ * Unit tests of the HPACK encoder, decoder and Huffman code
+ */
+public class HpackTest extends TestCase {
+
+	    public HpackTest(String testName) {
+	        super(testName);
+	    }
+
+	    public static Test suite() {
+	        return new TestSuite(HpackTest.class);
+	    }
+
+	    /**
+	     * Decoder test - RFC 7541 C.4, three requests with Huffman coding sharing one dynamic table
+	     */
+	    public void testRfcRequestExamples() throws Exception {
+	    	HpackDecoder decoder = new HpackDecoder(4096);
+
+	    	assertEquals("[:method: GET, :scheme: http, :path: /, :authority: www.example.com]",
+	    			decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff"));
+	    	assertEquals(57, decoder.tableSize());
+	    	assertEquals("[:method: GET, :scheme: http, :path: /, :authority: www.example.com, cache-control: no-cache]",
+	    			decode(decoder, "828684be5886a8eb10649cbf"));
+	    	assertEquals(110, decoder.tableSize());
+	    	assertEquals("[:method: GET, :scheme: https, :path: /index.html, :authority: www.example.com, custom-key: custom-value]",
+	    			decode(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"));
+	    	assertEquals(164, decoder.tableSize());
+	    }
+
+	    /**
+	     * Encoder test - Repeated fields are sent as one index, fields that are not indexed as literals
+	     */
+	    public void testRoundTripUsesDynamicTable() throws Exception {
+	    	HpackEncoder encoder = new HpackEncoder();
+	    	HpackDecoder decoder = new HpackDecoder(4096);
+
+	    	int[] lengths = new int[2];
+	    	for (int i = 0; i < 2; i++) {
+	    		encoder.reset();
+	    		encoder.header(":status", "200");
+	    		encoder.header("server", "Java HTTP Server 1.1");
+	    		encoder.header("content-type", "text/html");
+	    		encoder.header("content-length", "1234", false);
+	    		lengths[i] = encoder.length();
+	    		assertEquals("[:status: 200, server: Java HTTP Server 1.1, content-type: text/html, content-length: 1234]",
+	    				decode(decoder, encoder.buffer(), encoder.length()));
+	    	}
+	    	//status, server and type are one byte each the second time, the length is still a literal of name index and Huffman coded value
+	    	assertEquals(3 + 2 + 1 + 3, lengths[1]);
+	    	assertTrue(lengths[0] > lengths[1] + 20);
+	    	assertEquals(decoder.tableSize(), 32 + "server".length() + "Java HTTP Server 1.1".length() + 32
+	    			+ "content-type".length() + "text/html".length());
+	    }
+
+	    /**
+	     * Encoder test - A smaller table announced by the peer is signalled at the next block and evicts old entries
+	     */
+	    public void testTableSizeUpdateEvicts() throws Exception {
+	    	HpackEncoder encoder = new HpackEncoder();
+	    	HpackDecoder decoder = new HpackDecoder(4096);
+	    	encoder.reset();
+	    	encoder.header("x-first", "1111111111");
+	    	decode(decoder, encoder.buffer(), encoder.length());
+
+	    	encoder.setMaxTableSize(0);
+	    	encoder.setMaxTableSize(80);
+	    	encoder.reset();
+	    	//0x20 empties the table, then 80 is allowed again
+	    	assertEquals(0x20, encoder.buffer()[0] & 0xff);
+	    	encoder.header("x-second", "2222222222");
+	    	encoder.header("x-third", "3333333333");
+	    	assertEquals("[x-second: 2222222222, x-third: 3333333333]", decode(decoder, encoder.buffer(), encoder.length()));
+	    	//only the newest entry fits into 80 bytes
+	    	assertEquals(32 + 7 + 10, decoder.tableSize());
+
+	    	encoder.reset();
+	    	encoder.header("x-third", "3333333333");
+	    	encoder.header("x-second", "2222222222");
+	    	assertEquals((byte) (0x80 | 62), encoder.buffer()[0]);
+	    	assertEquals("[x-third: 3333333333, x-second: 2222222222]", decode(decoder, encoder.buffer(), encoder.length()));
+	    }
+
+	    /**
+	     * Decoder test - Index 0, indexes past the table and size updates over the limit are compression errors
+	     */
+	    public void testInvalidBlocks() throws Exception {
+	    	assertCompressionError(new HpackDecoder(4096), "80");
+	    	assertCompressionError(new HpackDecoder(4096), "be");
+	    	assertCompressionError(new HpackDecoder(100), "3f46");
+	    	//size update after a field
+	    	assertCompressionError(new HpackDecoder(4096), "8220");
+	    	//string longer than the block
+	    	assertCompressionError(new HpackDecoder(4096), "400a61");
+	    }
+
+	    /**
+	     * Huffman test - Every octet survives encoding and decoding, padding of all ones only
+	     */
+	    public void testHuffmanRoundTrip() throws Exception {
+	    	StringBuilder all = new StringBuilder();
+	    	for (int c = 0; c < 256; c++) {
+	    		all.append((char) c);
+	    	}
+	    	for (String s : new String[] {"", "a", "www.example.com", "no-cache", all.toString()}) {
+	    		byte[] b = new byte[Huffman.encodedLength(s)];
+	    		assertEquals(b.length, Huffman.encode(s, b, 0));
+	    		assertEquals(s, Huffman.decode(b, 0, b.length));
+	    	}
+	    	assertEquals("www.example.com", Huffman.decode(bytes("f1e3c2e5f23a6ba0ab90f4ff"), 0, 12));
+	    	try {
+	    		//'0' is 00000, padding must be ones
+	    		Huffman.decode(new byte[] {0x00}, 0, 1);
+	    		fail("zero padding accepted");
+	    	} catch (Http2Exception expected) {
+	    		assertEquals(Http2Exception.COMPRESSION_ERROR, expected.getErrorCode());
+	    	}
+	    }
+
+	    private static void assertCompressionError(HpackDecoder decoder, String hex) {
+	    	try {
+	    		decode(decoder, hex);
+	    		fail("decoded " + hex);
+	    	} catch (Http2Exception expected) {
+	    		assertEquals(Http2Exception.COMPRESSION_ERROR, expected.getErrorCode());
+	    	}
+	    }
+
+	    private static String decode(HpackDecoder decoder, String hex) throws Http2Exception {
+	    	byte[] b = bytes(hex);
+	    	return decode(decoder, b, b.length);
+	    }
+
+	    private static String decode(HpackDecoder decoder, byte[] b, int length) throws Http2Exception {
+	    	final List<String> fields = new ArrayList<String>();
+	    	decoder.decode(b, 0, length, new HeaderListener() {
+	    		public void header(String name, String value) {
+	    			fields.add(name + ": " + value);
+	    		}
+	    	});
+	    	return fields.toString();
+	    }
+
+	    private static byte[] bytes(String hex) {
+	    	byte[] b = new byte[hex.length() / 2];
+	    	for (int i = 0; i < b.length; i++) {
+	    		b[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+	    	}
+	    	return b;
+	    }
+}
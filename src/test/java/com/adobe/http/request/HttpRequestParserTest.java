@@ -0,0 +1,201 @@
+package com.adobe.http.request;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+
+import com.adobe.http.response.ContentEncoding;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * @author rbajaj
+ * Unit tests of the byte level request parser
+ */
+public class HttpRequestParserTest extends TestCase {
+
+	    private static final String REQUEST = "GET /Index.html HTTP/1.1\r\n"
+	    		+ "Host: localhost\r\n"
+	    		+ "user-agent: test\r\n"
+	    		+ "ACCEPT-ENCODING:   gzip, deflate  \r\n"
+	    		+ "X-Custom: a\r\n"
+	    		+ "\r\n";
+
+	    private HttpRequestParser parser;
+	    private HttpRequest request;
+
+	    public HttpRequestParserTest(String testName) {
+	        super(testName);
+	    }
+
+	    public static Test suite() {
+	        return new TestSuite(HttpRequestParserTest.class);
+	    }
+
+	    public void setUp() {
+	    	parser = new HttpRequestParser(64, 4, 256);
+	    	request = new HttpRequest();
+	    }
+
+	    /**
+	     * Parser test - Verify request line and headers of a complete head
+	     */
+	    public void testParseCompleteHead() throws Exception {
+	    	ByteBuffer in = buffer(REQUEST + "GET /next");
+
+	    	assertTrue(parser.parse(in, request));
+	    	assertEquals(REQUEST.length(), in.position());
+	    	assertEquals("GET", request.getMethod());
+	    	assertEquals("/index.html", request.getUrl());
+	    	assertEquals("localhost", request.getHeader(HttpHeader.HOST));
+	    	assertEquals("test", request.getHeader(HttpHeader.USER_AGENT));
+	    	assertEquals("gzip, deflate", request.getHeader(HttpHeader.ACCEPT_ENCODING));
+	    	assertEquals("a", request.getHeader("x-custom"));
+	    	assertEquals(4, request.getHeaderCount());
+	    	assertEquals("X-Custom", request.getHeaderName(3));
+	    	assertTrue(request.keepAlive);
+	    	assertEquals(0, request.getContentLength());
+	    }
+
+	    /**
+	     * Parser test - Verify a head arriving one byte at a time is parsed once complete
+	     */
+	    public void testParseIncrementally() throws Exception {
+	    	ByteBuffer in = ByteBuffer.allocate(REQUEST.length());
+	    	in.flip();
+	    	for (int i = 0; i < REQUEST.length(); i++) {
+	    		assertFalse(parser.parse(in, request));
+	    		//what a connection does between reads: compact, append, flip
+	    		in.compact();
+	    		in.put((byte) REQUEST.charAt(i));
+	    		in.flip();
+	    	}
+	    	assertTrue(parser.parse(in, request));
+	    	assertEquals("/index.html", request.getUrl());
+	    	assertEquals("gzip, deflate", request.getHeader(HttpHeader.ACCEPT_ENCODING));
+	    	assertFalse(in.hasRemaining());
+	    }
+
+	    /**
+	     * Parser test - Verify keep alive defaults of HTTP/1.1 and HTTP/1.0
+	     */
+	    public void testConnectionHeader() throws Exception {
+	    	assertTrue(parser.parse(buffer("GET / HTTP/1.1\r\nConnection: Close\r\n\r\n"), request));
+	    	assertFalse(request.keepAlive);
+	    	assertTrue(parser.parse(buffer("GET / HTTP/1.0\r\n\r\n"), request));
+	    	assertFalse(request.keepAlive);
+	    	assertTrue(parser.parse(buffer("GET / HTTP/1.0\r\nConnection: Keep-Alive\r\n\r\n"), request));
+	    	assertTrue(request.keepAlive);
+	    	assertTrue(parser.parse(buffer("\r\nGET / HTTP/1.1\nHost: x\n\n"), request));
+	    	assertTrue(request.keepAlive);
+	    	assertEquals("GET", request.getMethod());
+	    }
+
+	    /**
+	     * Parser test - Verify Content-Length is parsed and rejected when invalid
+	     */
+	    public void testContentLength() throws Exception {
+	    	assertTrue(parser.parse(buffer("POST / HTTP/1.1\r\nContent-Length: 42\r\n\r\n"), request));
+	    	assertEquals(42, request.getContentLength());
+	    	assertStatus("POST / HTTP/1.1\r\nContent-Length: 4x\r\n\r\n", HttpParseException.BAD_REQUEST);
+	    }
+
+	    /**
+	     * Parser test - Verify the coding chosen from Accept-Encoding weights
+	     */
+	    public void testAcceptedEncoding() throws Exception {
+	    	assertNull(acceptedEncoding(null));
+	    	assertNull(acceptedEncoding("identity"));
+	    	assertEquals(ContentEncoding.GZIP, acceptedEncoding("gzip, deflate"));
+	    	assertEquals(ContentEncoding.GZIP, acceptedEncoding("deflate, GZIP"));
+	    	assertEquals(ContentEncoding.DEFLATE, acceptedEncoding("gzip;q=0.5, deflate"));
+	    	assertEquals(ContentEncoding.DEFLATE, acceptedEncoding("gzip; q=0, deflate;q=0.001"));
+	    	assertEquals(ContentEncoding.GZIP, acceptedEncoding("x-gzip"));
+	    	assertEquals(ContentEncoding.GZIP, acceptedEncoding("*"));
+	    	assertEquals(ContentEncoding.DEFLATE, acceptedEncoding("gzip;q=0, *;q=0.2"));
+	    	assertNull(acceptedEncoding("*;q=0"));
+	    	assertNull(acceptedEncoding("gzip;q=0.000, deflate;q=0"));
+	    }
+	    
+	    /**
+	     * Parser test - Verify malformed heads and exceeded limits are rejected with their status
+	     */
+	    public void testRejectedHeads() throws Exception {
+	    	assertStatus("GET / FTP/1.0\r\n\r\n", HttpParseException.BAD_REQUEST);
+	    	assertStatus("GET /\r\n\r\n", HttpParseException.BAD_REQUEST);
+	    	assertStatus("GET / HTTP/1.1\r\nNo colon\r\n\r\n", HttpParseException.BAD_REQUEST);
+	    	assertStatus("GET / HTTP/1.1\r\nA: b\r\n folded\r\n\r\n", HttpParseException.BAD_REQUEST);
+	    	assertStatus("GET /" + repeat('a', 100) + " HTTP/1.1\r\n\r\n", HttpParseException.URI_TOO_LONG);
+	    	assertStatus("GET /" + repeat('a', 100), HttpParseException.URI_TOO_LONG);
+	    	assertStatus("GET / HTTP/1.1\r\nA: 1\r\nB: 2\r\nC: 3\r\nD: 4\r\nE: 5\r\n\r\n", HttpParseException.HEADERS_TOO_LARGE);
+	    	assertStatus("GET / HTTP/1.1\r\nA: " + repeat('a', 300), HttpParseException.HEADERS_TOO_LARGE);
+
+	    	//the parser is usable again after a failure
+	    	assertTrue(parser.parse(buffer("GET / HTTP/1.1\r\n\r\n"), request));
+	    }
+
+	    /**
+	     * Parser test - Verify parsing a repeated request allocates nothing once warmed up
+	     */
+	    public void testSteadyStateParsingDoesNotAllocate() throws Exception {
+	    	ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	    	if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+	    		return;
+	    	}
+	    	com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+	    	if (!allocation.isThreadAllocatedMemorySupported()) {
+	    		return;
+	    	}
+	    	allocation.setThreadAllocatedMemoryEnabled(true);
+
+	    	HttpRequestParser parser = new HttpRequestParser();
+	    	ByteBuffer in = buffer(REQUEST);
+	    	long thread = Thread.currentThread().getId();
+
+	    	parseRepeatedly(parser, in, 200000);
+	    	long before = allocation.getThreadAllocatedBytes(thread);
+	    	parseRepeatedly(parser, in, 100000);
+	    	long allocated = allocation.getThreadAllocatedBytes(thread) - before;
+
+	    	//a single String or array per request would add up to megabytes
+	    	assertTrue("allocated " + allocated + " bytes", allocated < 64 * 1024);
+	    }
+
+	    private ContentEncoding acceptedEncoding(String value) throws HttpParseException {
+	    	String head = "GET / HTTP/1.1\r\n" + (value == null ? "" : "Accept-Encoding: " + value + "\r\n") + "\r\n";
+	    	assertTrue(parser.parse(buffer(head), request));
+	    	return request.acceptedEncoding();
+	    }
+	    
+	    private void parseRepeatedly(HttpRequestParser parser, ByteBuffer in, int times) throws HttpParseException {
+	    	for (int i = 0; i < times; i++) {
+	    		in.rewind();
+	    		if (!parser.parse(in, request) || !request.keepAlive || request.getContentLength() != 0) {
+	    			fail("request not parsed");
+	    		}
+	    	}
+	    }
+
+	    private void assertStatus(String head, String status) {
+	    	try {
+	    		parser.parse(buffer(head), request);
+	    		fail("accepted " + head);
+	    	} catch (HttpParseException hpe) {
+	    		assertEquals(status, hpe.getStatus());
+	    	}
+	    }
+
+	    private static ByteBuffer buffer(String s) {
+	    	return ByteBuffer.wrap(s.getBytes());
+	    }
+
+	    private static String repeat(char c, int n) {
+	    	StringBuilder sb = new StringBuilder(n);
+	    	for (int i = 0; i < n; i++) {
+	    		sb.append(c);
+	    	}
+	    	return sb.toString();
+	    }
+}
@@ -0,0 +1,83 @@
+package com.adobe.http.response;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * @author rbajaj
+ * Unit tests of Range header parsing
+ */
+public class ByteRangesTest extends TestCase {
+
+	    private ByteRanges ranges;
+
+	    public ByteRangesTest(String testName) {
+	        super(testName);
+	    }
+
+	    public static Test suite() {
+	        return new TestSuite(ByteRangesTest.class);
+	    }
+
+	    public void setUp() {
+	    	ranges = new ByteRanges();
+	    }
+
+	    /**
+	     * Range test - Verify closed, open and suffix ranges are resolved against the length
+	     */
+	    public void testResolveRanges() {
+	    	assertTrue(parse("bytes=0-499, 500-, -100,9000-20000", 10000));
+	    	assertEquals(4, ranges.count());
+	    	assertRange(0, 0, 499);
+	    	assertRange(1, 500, 9999);
+	    	assertRange(2, 9900, 9999);
+	    	assertRange(3, 9000, 9999);
+
+	    	assertTrue(parse("Bytes = -20000", 10000));
+	    	assertRange(0, 0, 9999);
+	    }
+
+	    /**
+	     * Range test - Verify ranges outside the file leave nothing to send
+	     */
+	    public void testUnsatisfiable() {
+	    	assertTrue(parse("bytes=10000-", 10000));
+	    	assertEquals(0, ranges.count());
+	    	assertTrue(parse("bytes=-0", 10000));
+	    	assertEquals(0, ranges.count());
+	    	assertTrue(parse("bytes=0-0, 20000-30000", 10000));
+	    	assertEquals(1, ranges.count());
+	    	assertTrue(parse("bytes=0-", 0));
+	    	assertEquals(0, ranges.count());
+	    }
+
+	    /**
+	     * Range test - Verify malformed headers and other units are ignored
+	     */
+	    public void testIgnored() {
+	    	assertFalse(parse("items=0-1", 10000));
+	    	assertFalse(parse("bytes 0-1", 10000));
+	    	assertFalse(parse("bytes=", 10000));
+	    	assertFalse(parse("bytes=-", 10000));
+	    	assertFalse(parse("bytes=5-1", 10000));
+	    	assertFalse(parse("bytes=a-b", 10000));
+	    	assertFalse(parse("bytes=0-1;x", 10000));
+	    	StringBuilder many = new StringBuilder("bytes=0-0");
+	    	for (int i = 1; i <= ByteRanges.MAX_RANGES; i++) {
+	    		many.append(',').append(i).append('-').append(i);
+	    	}
+	    	assertFalse(parse(many.toString(), 10000));
+	    }
+
+	    private boolean parse(String value, long length) {
+	    	byte[] b = value.getBytes();
+	    	return ranges.parse(b, 0, b.length, length);
+	    }
+
+	    private void assertRange(int i, long start, long end) {
+	    	assertEquals(start, ranges.start(i));
+	    	assertEquals(end, ranges.end(i));
+	    }
+}
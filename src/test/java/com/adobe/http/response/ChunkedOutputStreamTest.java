@@ -0,0 +1,145 @@
+package com.adobe.http.response;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * @author rbajaj
+ * Unit tests of the chunked streaming response body
+ */
+public class ChunkedOutputStreamTest extends TestCase {
+
+	    public ChunkedOutputStreamTest(String testName) {
+	        super(testName);
+	    }
+
+	    public static Test suite() {
+	        return new TestSuite(ChunkedOutputStreamTest.class);
+	    }
+
+	    /**
+	     * Chunked test - Verify full chunks are framed and pushed as they fill
+	     */
+	    public void testChunksBoundedBySize() throws IOException {
+	    	RecordingChannel channel = new RecordingChannel();
+	    	ChunkedOutputStream body = new ChunkedOutputStream(channel, true, 16, 60000);
+	    	body.write("0123456789".getBytes());
+	    	assertEquals(0, channel.bytes.size());
+	    	body.write("abcdefghij".getBytes());
+	    	assertEquals("10\r\n0123456789abcdef\r\n", channel.text());
+	    	assertEquals(1, channel.drains);
+	    	body.write('!');
+	    	body.close();
+	    	assertEquals("10\r\n0123456789abcdef\r\n5\r\nghij!\r\n0\r\n\r\n", channel.text());
+	    	assertEquals(1, channel.flushes);
+
+	    	body.close();
+	    	assertEquals(1, channel.flushes);
+	    	try {
+	    		body.write('x');
+	    		fail("written after close");
+	    	} catch (IOException expected) {
+	    	}
+	    }
+
+	    /**
+	     * Chunked test - Verify a partial chunk is sent once the flush interval has passed
+	     */
+	    public void testChunksBoundedByTime() throws Exception {
+	    	RecordingChannel channel = new RecordingChannel();
+	    	ChunkedOutputStream body = new ChunkedOutputStream(channel, true, 1024, 20);
+	    	body.write("first".getBytes());
+	    	assertEquals(0, channel.bytes.size());
+	    	Thread.sleep(30);
+	    	body.write("second".getBytes());
+	    	assertEquals("b\r\nfirstsecond\r\n", channel.text());
+	    	body.flush();
+	    	assertEquals(2, channel.drains);
+	    }
+
+	    /**
+	     * Chunked test - Verify HTTP/1.0 clients get an unframed body and the connection is closed
+	     */
+	    public void testHttp10Unframed() throws IOException {
+	    	RecordingChannel channel = new RecordingChannel();
+	    	HttpResponse response = new HttpResponse(channel, true);
+	    	response.setChunkedSupported(false);
+	    	OutputStream body = response.sendChunkedHeaders(HttpResponse.OK, "text/plain");
+	    	body.write("listing".getBytes());
+	    	body.close();
+	    	assertFalse(response.isKeepAlive());
+	    	String text = channel.text();
+	    	assertTrue(text.contains("Connection: close\r\n"));
+	    	assertFalse(text.contains("Transfer-Encoding"));
+	    	assertTrue(text.endsWith("\r\n\r\nlisting"));
+	    }
+
+	    /**
+	     * Chunked test - Verify the response headers announce a chunked body
+	     */
+	    public void testChunkedHeaders() throws IOException {
+	    	RecordingChannel channel = new RecordingChannel();
+	    	HttpResponse response = new HttpResponse(channel, true);
+	    	OutputStream body = response.sendChunkedHeaders(HttpResponse.OK, "text/html;charset=UTF-8");
+	    	body.write("<p>".getBytes());
+	    	body.close();
+	    	assertTrue(response.isKeepAlive());
+	    	String text = channel.text();
+	    	assertTrue(text.startsWith("HTTP/1.1 200 OK\r\n"));
+	    	assertTrue(text.contains("Content-Type: text/html;charset=UTF-8\r\nTransfer-Encoding: chunked\r\n\r\n"));
+	    	assertFalse(text.contains("Content-Length"));
+	    	assertTrue(text.endsWith("\r\n\r\n3\r\n<p>\r\n0\r\n\r\n"));
+	    }
+
+	    /**
+	     * Response channel that keeps everything written to it
+	     */
+	    private static class RecordingChannel implements ResponseChannel {
+	    	final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	    	int flushes = 0;
+	    	int drains = 0;
+
+	    	String text() throws IOException {
+	    		return bytes.toString("ISO-8859-1");
+	    	}
+
+	    	public void write(byte[] b, int off, int len) {
+	    		bytes.write(b, off, len);
+	    	}
+
+	    	public void write(ByteBuffer src) {
+	    		while (src.hasRemaining()) {
+	    			bytes.write(src.get());
+	    		}
+	    	}
+
+	    	public void write(ByteBuffer src, Closeable release) throws IOException {
+	    		write(src);
+	    		release.close();
+	    	}
+
+	    	public void transferFile(FileChannel file, long position, long count) {
+	    		throw new UnsupportedOperationException();
+	    	}
+
+	    	public void flush() {
+	    		flushes++;
+	    	}
+
+	    	public boolean drain() {
+	    		drains++;
+	    		return true;
+	    	}
+
+	    	public void close() {
+	    	}
+	    }
+}
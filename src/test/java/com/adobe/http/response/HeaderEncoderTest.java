@@ -0,0 +1,116 @@
+package com.adobe.http.response;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * @author rbajaj
+ * Unit tests of the pre-encoded response headers and the cached Date
+ */
+public class HeaderEncoderTest extends TestCase {
+
+	    private static final String IMF_FIXDATE = "[A-Z][a-z]{2}, \\d{2} [A-Z][a-z]{2} \\d{4} \\d{2}:\\d{2}:\\d{2} GMT";
+
+	    public HeaderEncoderTest(String testName) {
+	        super(testName);
+	    }
+
+	    public static Test suite() {
+	        return new TestSuite(HeaderEncoderTest.class);
+	    }
+
+	    /**
+	     * Header test - Verify dates use the RFC 1123 format with a two digit day
+	     */
+	    public void testDateFormat() {
+	    	assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", HttpDate.format(784111777000L));
+	    	assertTrue(new String(HttpDate.now()).matches(IMF_FIXDATE));
+	    }
+
+	    /**
+	     * Header test - Verify the current date is encoded once and shared
+	     */
+	    public void testDateIsCached() {
+	    	byte[] first = HttpDate.now();
+	    	byte[] second = HttpDate.now();
+	    	//both calls may straddle a second boundary, a third cannot straddle two
+	    	assertTrue(first == second || second == HttpDate.now());
+	    }
+
+	    /**
+	     * Header test - Verify lines, digits and the terminating blank line
+	     */
+	    public void testEncodeHeaderBlock() throws IOException {
+	    	HeaderEncoder encoder = new HeaderEncoder();
+	    	RecordingChannel out = new RecordingChannel();
+
+	    	encoder.append(HeaderEncoder.line("HTTP/1.1 200 OK")).contentLength(0).writeTo(out);
+	    	encoder.append(HeaderEncoder.line("HTTP/1.1 200 OK")).date().contentLength(9876543210L).writeTo(out);
+
+	    	String[] blocks = out.bytes.toString("ISO-8859-1").split("\r\n\r\n", -1);
+	    	assertEquals(3, blocks.length);
+	    	assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 0", blocks[0]);
+	    	String[] lines = blocks[1].split("\r\n");
+	    	assertEquals(3, lines.length);
+	    	assertTrue(lines[1].substring(6).matches(IMF_FIXDATE));
+	    	assertEquals("Content-Length: 9876543210", lines[2]);
+	    	assertEquals("", blocks[2]);
+	    }
+
+	    /**
+	     * Header test - Verify a header block larger than the initial buffer
+	     */
+	    public void testEncoderGrows() throws IOException {
+	    	HeaderEncoder encoder = new HeaderEncoder();
+	    	RecordingChannel out = new RecordingChannel();
+	    	byte[] line = HeaderEncoder.line("X-Padding: 0123456789012345678901234567890123456789");
+	    	for (int i = 0; i < 40; i++) {
+	    		encoder.append(line);
+	    	}
+	    	encoder.writeTo(out);
+	    	assertEquals(40 * line.length + 2, out.bytes.size());
+	    }
+
+	    /**
+	     * Response channel that keeps everything written to it
+	     */
+	    private static class RecordingChannel implements ResponseChannel {
+	    	final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+	    	public void write(byte[] b, int off, int len) {
+	    		bytes.write(b, off, len);
+	    	}
+
+	    	public void write(ByteBuffer src) {
+	    		while (src.hasRemaining()) {
+	    			bytes.write(src.get());
+	    		}
+	    	}
+
+	    	public void write(ByteBuffer src, Closeable release) throws IOException {
+	    		write(src);
+	    		release.close();
+	    	}
+
+	    	public void transferFile(FileChannel file, long position, long count) {
+	    		throw new UnsupportedOperationException();
+	    	}
+
+	    	public void flush() {
+	    	}
+
+	    	public boolean drain() {
+	    		return true;
+	    	}
+
+	    	public void close() {
+	    	}
+	    }
+}
@@ -0,0 +1,127 @@
+package com.adobe.http.response;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * @author rbajaj
+ * Unit tests of file bodies sent by the response
+ */
+public class HttpResponseTest extends TestCase {
+
+	    private File file;
+
+	    public HttpResponseTest(String testName) {
+	        super(testName);
+	    }
+
+	    public static Test suite() {
+	        return new TestSuite(HttpResponseTest.class);
+	    }
+
+	    public void setUp() throws IOException {
+	    	file = File.createTempFile("response", ".txt");
+	    	FileOutputStream out = new FileOutputStream(file);
+	    	out.write("0123456789".getBytes());
+	    	out.close();
+	    }
+
+	    public void tearDown() {
+	    	file.delete();
+	    }
+
+	    /**
+	     * Body test - Verify a small file is sent whole next to its headers
+	     */
+	    public void testSmallFileBody() throws IOException {
+	    	RecordingChannel channel = new RecordingChannel();
+	    	HttpResponse response = new HttpResponse(channel, true);
+	    	response.sendHeaders(file, file.length());
+	    	response.sendBody(file);
+	    	assertTrue(response.isKeepAlive());
+	    	String text = channel.text();
+	    	assertTrue(text.contains("Content-Length: 10\r\n"));
+	    	assertTrue(text.endsWith("\r\n\r\n0123456789"));
+	    }
+
+	    /**
+	     * Body test - Verify a file that shrank after its length was announced closes the connection without a short body
+	     */
+	    public void testSmallFileReadShort() throws IOException {
+	    	RecordingChannel channel = new RecordingChannel();
+	    	HttpResponse response = new HttpResponse(channel, true);
+	    	response.sendHeaders(file, 20);
+	    	response.sendBody(file);
+	    	assertFalse(response.isKeepAlive());
+	    	String text = channel.text();
+	    	assertTrue(text.contains("Content-Length: 20\r\n"));
+	    	assertTrue(text.endsWith("\r\n\r\n"));
+	    }
+
+	    /**
+	     * Range test - Verify a range past the end of a file that shrank closes the connection without a short part
+	     */
+	    public void testRangeReadShort() throws IOException {
+	    	ByteRanges ranges = new ByteRanges();
+	    	byte[] header = "bytes=0-3,5-19".getBytes("US-ASCII");
+	    	assertTrue(ranges.parse(header, 0, header.length, 20));
+	    	RecordingChannel channel = new RecordingChannel();
+	    	HttpResponse response = new HttpResponse(channel, true);
+	    	response.sendPartialHeaders(file, ranges, false);
+	    	response.sendPartialBody(file);
+	    	assertFalse(response.isKeepAlive());
+	    	String text = channel.text();
+	    	assertTrue(text.contains("\r\n\r\n0123\r\n"));
+	    	assertFalse(text.contains("56789"));
+	    }
+
+	    /**
+	     * Response channel that keeps everything written to it
+	     */
+	    private static class RecordingChannel implements ResponseChannel {
+	    	final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+	    	String text() throws IOException {
+	    		return bytes.toString("ISO-8859-1");
+	    	}
+
+	    	public void write(byte[] b, int off, int len) {
+	    		bytes.write(b, off, len);
+	    	}
+
+	    	public void write(ByteBuffer src) {
+	    		while (src.hasRemaining()) {
+	    			bytes.write(src.get());
+	    		}
+	    	}
+
+	    	public void write(ByteBuffer src, Closeable release) throws IOException {
+	    		write(src);
+	    		release.close();
+	    	}
+
+	    	public void transferFile(FileChannel file, long position, long count) throws IOException {
+	    		file.close();
+	    		throw new UnsupportedOperationException();
+	    	}
+
+	    	public void flush() {
+	    	}
+
+	    	public boolean drain() {
+	    		return true;
+	    	}
+
+	    	public void close() {
+	    	}
+	    }
+}
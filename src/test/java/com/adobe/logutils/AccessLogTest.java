@@ -0,0 +1,196 @@
+package com.adobe.logutils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import com.adobe.http.request.HttpRequest;
+import com.adobe.http.request.HttpRequestParser;
+import com.adobe.http.response.HttpResponse;
+import com.adobe.http.response.ResponseChannel;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * @author rbajaj
+ * Unit tests of the memory mapped access log
+ */
+public class AccessLogTest extends TestCase {
+
+	    private static final byte[] REMOTE = "127.0.0.1".getBytes(StandardCharsets.US_ASCII);
+	    private static final String LINE_PATTERN = "\\[\\d\\d/\\w{3}/\\d{4}:\\d\\d:\\d\\d:\\d\\d \\+0000\\]";
+
+	    private File dir;
+	    private HttpRequest request;
+	    private HttpResponse response;
+
+	    public AccessLogTest(String testName) {
+	        super(testName);
+	    }
+
+	    public static Test suite() {
+	        return new TestSuite(AccessLogTest.class);
+	    }
+
+	    public void setUp() throws IOException {
+	    	MyLogger.getLogger(AccessLogTest.class.getSimpleName());
+	    	dir = Files.createTempDirectory("accesslog").toFile();
+	    	request = new HttpRequest();
+	    	String head = "GET /index.html?q=\"x\" HTTP/1.1\r\n"
+	    			+ "Host: localhost\r\n"
+	    			+ "Referer: http://localhost/\r\n"
+	    			+ "User-Agent: test\tagent\r\n"
+	    			+ "\r\n";
+	    	assertTrue(new HttpRequestParser().parse(ByteBuffer.wrap(head.getBytes(StandardCharsets.ISO_8859_1)), request));
+	    	response = new HttpResponse(new DiscardingChannel(), true);
+	    	response.reset(true);
+	    	response.sendError("400 Bad Request");
+	    }
+
+	    public void tearDown() {
+	    	File[] files = dir.listFiles();
+	    	if (files != null) {
+	    		for (File f : files) {
+	    			f.delete();
+	    		}
+	    	}
+	    	dir.delete();
+	    }
+
+	    /**
+	     * Access log test - Verify Combined Log Format with escaped fields
+	     */
+	    public void testCombinedFormat() throws IOException {
+	    	File file = new File(dir, "access.log");
+	    	AccessLog accessLog = new AccessLog(file.getPath(), true, 64 * 1024, 2, 16);
+	    	assertTrue(accessLog.isEnabled());
+	    	accessLog.log(REMOTE, request, response);
+	    	accessLog.log(REMOTE, null, response);
+	    	accessLog.close();
+
+	    	String[] lines = read(file).split("\n");
+	    	assertEquals(2, lines.length);
+	    	assertTrue(lines[0], lines[0].matches("127\\.0\\.0\\.1 - - " + LINE_PATTERN
+	    			+ " \"GET /index\\.html\\?q=\\\\\"x\\\\\" HTTP/1\\.1\" 400 24 \"http://localhost/\" \"test\\\\x09agent\""));
+	    	assertTrue(lines[1], lines[1].endsWith("] \"-\" 400 24 \"-\" \"-\""));
+	    	assertEquals(2, accessLog.getWrittenCount());
+	    	assertEquals(0, accessLog.getDroppedCount());
+	    	//trimmed to its content on close
+	    	assertEquals(read(file).length(), file.length());
+	    }
+
+	    /**
+	     * Access log test - Verify Common Log Format leaves out referer and user agent
+	     */
+	    public void testCommonFormat() throws IOException {
+	    	File file = new File(dir, "access.log");
+	    	AccessLog accessLog = new AccessLog(file.getPath(), false, 64 * 1024, 2, 16);
+	    	accessLog.log(REMOTE, request, response);
+	    	accessLog.close();
+
+	    	String line = read(file);
+	    	assertTrue(line, line.endsWith(" HTTP/1.1\" 400 24\n"));
+	    }
+
+	    /**
+	     * Access log test - Verify a reopened log appends after the earlier records
+	     */
+	    public void testReopenAppends() throws IOException {
+	    	File file = new File(dir, "access.log");
+	    	AccessLog first = new AccessLog(file.getPath(), true, 64 * 1024, 2, 16);
+	    	first.log(REMOTE, request, response);
+	    	first.close();
+	    	AccessLog second = new AccessLog(file.getPath(), true, 64 * 1024, 2, 16);
+	    	second.log(REMOTE, request, response);
+	    	second.close();
+
+	    	assertEquals(2, read(file).split("\n").length);
+	    }
+
+	    /**
+	     * Access log test - Verify a full file is rotated and only maxFiles old files are kept
+	     */
+	    public void testRotation() throws IOException {
+	    	File file = new File(dir, "access.log");
+	    	AccessLog accessLog = new AccessLog(file.getPath(), true, 4 * 1024, 2, 1024);
+	    	int records = 200;
+	    	for (int i = 0; i < records; i++) {
+	    		accessLog.log(REMOTE, request, response);
+	    		if ((i & 63) == 63) {
+	    			//keep the ring from filling up
+	    			waitForWriter(accessLog, i + 1);
+	    		}
+	    	}
+	    	accessLog.close();
+
+	    	assertEquals(records, accessLog.getWrittenCount() + accessLog.getDroppedCount());
+	    	assertTrue(new File(dir, "access.log.1").length() > 3 * 1024);
+	    	assertTrue(new File(dir, "access.log.2").exists());
+	    	assertFalse(new File(dir, "access.log.3").exists());
+	    	for (String name : new String[] {"access.log", "access.log.1", "access.log.2"}) {
+	    		String text = read(new File(dir, name));
+	    		assertTrue(name, text.endsWith("\"test\\x09agent\"\n"));
+	    		assertTrue(name, text.length() <= 4 * 1024);
+	    	}
+	    }
+
+	    /**
+	     * Access log test - Verify an empty path switches logging off
+	     */
+	    public void testDisabled() {
+	    	AccessLog accessLog = new AccessLog("", true, 64 * 1024, 2, 16);
+	    	assertFalse(accessLog.isEnabled());
+	    	accessLog.log(REMOTE, request, response);
+	    	accessLog.close();
+	    	assertEquals(0, accessLog.getWrittenCount());
+	    }
+
+	    private static void waitForWriter(AccessLog accessLog, long records) {
+	    	long deadline = System.currentTimeMillis() + 5000;
+	    	while (accessLog.getWrittenCount() + accessLog.getDroppedCount() < records && System.currentTimeMillis() < deadline) {
+	    		Thread.yield();
+	    	}
+	    }
+
+	    private static String read(File file) throws IOException {
+	    	return new String(Files.readAllBytes(file.toPath()), StandardCharsets.ISO_8859_1);
+	    }
+
+	    private static class DiscardingChannel implements ResponseChannel {
+	    	final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+	    	public void write(byte[] b, int off, int len) {
+	    		bytes.write(b, off, len);
+	    	}
+
+	    	public void write(ByteBuffer src) {
+	    		src.position(src.limit());
+	    	}
+
+	    	public void write(ByteBuffer src, Closeable release) throws IOException {
+	    		write(src);
+	    		release.close();
+	    	}
+
+	    	public void transferFile(FileChannel file, long position, long count) {
+	    		throw new UnsupportedOperationException();
+	    	}
+
+	    	public void flush() {
+	    	}
+
+	    	public boolean drain() {
+	    		return true;
+	    	}
+
+	    	public void close() {
+	    	}
+	    }
+}
@@ -0,0 +1,69 @@
+package com.adobe.metrics;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * @author rbajaj
+ * Unit tests of the log-linear latency histogram
+ */
+public class LatencyHistogramTest extends TestCase {
+
+	    public LatencyHistogramTest(String testName) {
+	        super(testName);
+	    }
+
+	    public static Test suite() {
+	        return new TestSuite(LatencyHistogramTest.class);
+	    }
+
+	    /**
+	     * Histogram test - Verify every value falls into a bucket whose upper bound is within 1/16 above it
+	     */
+	    public void testBucketBounds() {
+	    	long[] values = {0, 1, 15, 16, 17, 31, 32, 33, 1000, 123456, 1L << 30, (1L << 37) - 1};
+	    	for (long v : values) {
+	    		int bucket = LatencyHistogram.bucket(v);
+	    		long highest = LatencyHistogram.highestValue(bucket);
+	    		assertTrue(v + " > " + highest, v <= highest);
+	    		assertTrue(v + " far below " + highest, highest - v <= v / 16);
+	    		assertTrue(bucket > 0 ? LatencyHistogram.highestValue(bucket - 1) < v : v == 0);
+	    		assertTrue(bucket < LatencyHistogram.BUCKETS);
+	    	}
+	    }
+
+	    /**
+	     * Histogram test - Verify quantiles of a uniform spread of durations
+	     */
+	    public void testQuantiles() {
+	    	LatencyHistogram histogram = new LatencyHistogram();
+	    	assertEquals(0, histogram.quantilesMicros(0.5)[0]);
+	    	for (int i = 1; i <= 10000; i++) {
+	    		histogram.recordNanos(i * 1000L);
+	    	}
+	    	long[] q = histogram.quantilesMicros(0.5, 0.99, 0.999, 1.0);
+	    	assertEquals(10000, histogram.getCount());
+	    	assertEquals(10000L * 10001 / 2, histogram.getSumMicros());
+	    	assertBetween(5000, q[0]);
+	    	assertBetween(9900, q[1]);
+	    	assertBetween(9990, q[2]);
+	    	assertBetween(10000, q[3]);
+	    }
+
+	    /**
+	     * Histogram test - Verify durations past the largest bucket are clamped
+	     */
+	    public void testClamping() {
+	    	LatencyHistogram histogram = new LatencyHistogram();
+	    	histogram.recordNanos(-5);
+	    	histogram.recordNanos(Long.MAX_VALUE);
+	    	long[] q = histogram.quantilesMicros(0.5, 1.0);
+	    	assertEquals(0, q[0]);
+	    	assertEquals((1L << 37) - 1, q[1]);
+	    }
+
+	    private static void assertBetween(long expected, long actual) {
+	    	assertTrue(expected + " vs " + actual, actual >= expected && actual <= expected + expected / 16);
+	    }
+}
@@ -0,0 +1,52 @@
+package com.adobe.metrics;
+
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * @author rbajaj
+ * Unit tests of the metrics registry and its Prometheus text output
+ */
+public class ServerMetricsTest extends TestCase {
+
+	    public ServerMetricsTest(String testName) {
+	        super(testName);
+	    }
+
+	    public static Test suite() {
+	        return new TestSuite(ServerMetricsTest.class);
+	    }
+
+	    /**
+	     * Metrics test - Verify counters and gauges as exposed
+	     */
+	    public void testFormat() {
+	    	ServerMetrics metrics = new ServerMetrics();
+	    	metrics.connectionOpened();
+	    	metrics.connectionOpened();
+	    	metrics.recordRequest("GET", 200, 100, 2000000, 1000000);
+	    	metrics.recordRequest("HEAD", 304, 0, 1000, 1000);
+	    	metrics.recordRequest(null, 400, 24, 1000, 1000);
+	    	metrics.connectionIdle(true);
+	    	metrics.connectionClosed(true);
+
+	    	String text = new String(metrics.format(), StandardCharsets.UTF_8);
+	    	assertTrue(text, text.contains("webserver_requests_total{method=\"GET\"} 1\n"));
+	    	assertTrue(text, text.contains("webserver_requests_total{method=\"HEAD\"} 1\n"));
+	    	assertTrue(text, text.contains("webserver_requests_total{method=\"other\"} 1\n"));
+	    	assertTrue(text, text.contains("webserver_responses_total{status=\"304\"} 1\n"));
+	    	assertFalse(text, text.contains("webserver_responses_total{status=\"404\"}"));
+	    	assertTrue(text, text.contains("webserver_response_body_bytes_total 124\n"));
+	    	assertTrue(text, text.contains("webserver_connections_active 1\n"));
+	    	assertTrue(text, text.contains("webserver_connections_idle 0\n"));
+	    	assertTrue(text, text.contains("webserver_pool_queue_depth 0\n"));
+	    	assertTrue(text, text.contains("# TYPE webserver_request_duration_seconds summary\n"));
+	    	assertTrue(text, text.contains("webserver_request_duration_seconds_sum 0.002002\n"));
+	    	assertTrue(text, text.contains("webserver_request_duration_seconds_count 3\n"));
+	    	assertTrue(text, text.contains("webserver_service_duration_seconds{quantile=\"0.999\"} 0.001023\n"));
+	    	assertEquals(1, metrics.getResponseCount(400));
+	    }
+}
@@ -0,0 +1,95 @@
+package com.adobe.server;
+
+import java.net.InetAddress;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * @author rbajaj
+ * Unit tests of the per client connection cap and request rate bucket
+ */
+public class ClientLimitsTest extends TestCase {
+
+	    public ClientLimitsTest(String testName) {
+	        super(testName);
+	    }
+
+	    public static Test suite() {
+	        return new TestSuite(ClientLimitsTest.class);
+	    }
+
+	    /**
+	     * Limits test - Verify the connection cap applies per address and is freed on release
+	     */
+	    public void testConnectionCap() throws Exception {
+	    	ClientLimits limits = new ClientLimits(2, 0, 0, 100);
+	    	InetAddress a = InetAddress.getByName("10.0.0.1");
+	    	InetAddress b = InetAddress.getByName("10.0.0.2");
+	    	ClientLimits.Client first = limits.acquire(a);
+	    	ClientLimits.Client second = limits.acquire(a);
+	    	assertNotNull(first);
+	    	assertNotNull(second);
+	    	assertNull(limits.acquire(a));
+	    	assertNotNull(limits.acquire(b));
+	    	limits.release(first);
+	    	assertNotNull(limits.acquire(a));
+	    }
+
+	    /**
+	     * Limits test - Verify a burst is allowed and the rate holds after it
+	     */
+	    public void testRateBucket() throws Exception {
+	    	//one token per 100 ms, up to 5 at once
+	    	ClientLimits limits = new ClientLimits(0, 10, 5, 100);
+	    	ClientLimits.Client client = limits.acquire(InetAddress.getByName("10.0.0.1"));
+	    	for (int i = 0; i < 5; i++) {
+	    		assertTrue(limits.tryRequest(client));
+	    	}
+	    	assertFalse(limits.tryRequest(client));
+	    	assertEquals(1, limits.retryAfterSeconds(client));
+	    	Thread.sleep(250);
+	    	assertTrue(limits.tryRequest(client));
+	    	assertTrue(limits.tryRequest(client));
+	    	assertFalse(limits.tryRequest(client));
+	    }
+
+	    /**
+	     * Limits test - Verify only clients without connections and with a full
+	     * bucket are dropped, and a full table lets new clients in untracked
+	     */
+	    public void testBoundedTable() throws Exception {
+	    	ClientLimits limits = new ClientLimits(1, 1000, 1, 2);
+	    	ClientLimits.Client a = limits.acquire(InetAddress.getByName("10.0.0.1"));
+	    	ClientLimits.Client b = limits.acquire(InetAddress.getByName("10.0.0.2"));
+	    	assertEquals(2, limits.size());
+	    	ClientLimits.Client c = limits.acquire(InetAddress.getByName("10.0.0.3"));
+	    	assertNotNull(c);
+	    	assertEquals(1, limits.getUntrackedCount());
+	    	//untracked clients are not limited
+	    	assertNotNull(limits.acquire(InetAddress.getByName("10.0.0.3")));
+
+	    	limits.release(a);
+	    	limits.release(b);
+	    	Thread.sleep(5);
+	    	limits.sweep(System.nanoTime());
+	    	assertEquals(0, limits.size());
+	    	//a fresh entry starts with no connections
+	    	assertNotNull(limits.acquire(InetAddress.getByName("10.0.0.1")));
+	    	assertNull(limits.acquire(InetAddress.getByName("10.0.0.1")));
+	    }
+
+	    /**
+	     * Limits test - Verify nothing is tracked when no limit is set
+	     */
+	    public void testDisabled() throws Exception {
+	    	ClientLimits limits = new ClientLimits(0, 0, 0, 100);
+	    	assertFalse(limits.isEnabled());
+	    	ClientLimits.Client client = limits.acquire(InetAddress.getByName("10.0.0.1"));
+	    	for (int i = 0; i < 1000; i++) {
+	    		assertTrue(limits.tryRequest(client));
+	    	}
+	    	assertEquals(0, limits.size());
+	    }
+}